@@ -1,6 +1,9 @@
 package huisken.projection;
 
 import fiji.util.gui.GenericDialogPlus;
+import huisken.projection.acquisition.RawStackRecorder;
+import huisken.projection.processing.StreamingFusion;
+import huisken.projection.processing.TwoCameraFusion;
 import huisken.projection.processing.TwoCameraSphericalMaxProjection;
 import ij.IJ;
 import ij.ImagePlus;
@@ -31,6 +34,7 @@ public class File_MaxProjection implements PlugIn {
 	private boolean twocameras;
 	private double layerWidth;
 	private int nLayers;
+	private boolean fuse;
 
 	private static final String format = "tp%04d_a%03d" + File.separator + "%04d_ill%d.tif";
 
@@ -56,6 +60,7 @@ public class File_MaxProjection implements PlugIn {
 		gd.addDirectoryField("Output directory", "");
 		gd.addNumericField("Layer width", 140.00, 2);
 		gd.addNumericField("#Layers", 1, 0);
+		gd.addCheckbox("Fuse while projecting", false);
 		gd.showDialog();
 		if(gd.wasCanceled())
 			return false;
@@ -65,6 +70,7 @@ public class File_MaxProjection implements PlugIn {
 		outputdir = new File(gd.getNextString());
 		layerWidth = gd.getNextNumber();
 		nLayers = (int)gd.getNextNumber();
+		fuse = gd.getNextBoolean();
 
 		if(!cam1dir.exists() || !cam1dir.isDirectory())
 			throw new RuntimeException(cam1dir + " is not a directory");
@@ -110,6 +116,7 @@ public class File_MaxProjection implements PlugIn {
 			return;
 		}
 
+		StreamingFusion fusion = null;
 		for(int camera = TwoCameraSphericalMaxProjection.CAMERA1;
 				camera <= TwoCameraSphericalMaxProjection.CAMERA2;
 				camera++) {
@@ -124,21 +131,54 @@ public class File_MaxProjection implements PlugIn {
 					center, radius,
 					layerWidth, nLayers,
 					transformations);
-			startAcq(camera);
+			if(fuse) {
+				if(fusion == null)
+					fusion = createFusion();
+				mmsmp.addStackListener(fusion);
+			}
+			try {
+				startAcq(camera);
+			} finally {
+				// stops the writer and projection threads
+				mmsmp.close();
+			}
+		}
+		if(fusion != null) {
+			// timepoints with missing stacks will not complete anymore
+			fusion.acquisitionFinished();
+			try {
+				fusion.awaitCompletion();
+			} catch(InterruptedException e) {
+				fusion.stop();
+				e.printStackTrace();
+			}
 		}
 	}
 
+	/**
+	 * Fuses the projections in the output directory while the cameras
+	 * are processed; must be called after the sphere was saved there.
+	 */
+	private StreamingFusion createFusion() {
+		TwoCameraFusion tcf = new TwoCameraFusion();
+		try {
+			tcf.prepareFusion(outputdir.getAbsolutePath(), nAngles, angleInc, nLayers,
+					transformations == null ? new Matrix4f[1] : transformations, true);
+		} catch(IOException e) {
+			throw new RuntimeException("Cannot prepare fusion", e);
+		}
+		return new StreamingFusion(tcf, nTimepoints, Runtime.getRuntime().availableProcessors());
+	}
+
 	private TwoCameraSphericalMaxProjection mmsmp;
 	private static final boolean SAVE_RAW = false;
 
 	private void startAcq(int camera) {
+		RawStackRecorder recorder = SAVE_RAW ? new RawStackRecorder(w, h, 16) : null;
 		for(int t = 0; t < nTimepoints; t++) {
 			for(int a = 0; a < nAngles; a++) {
-				File tpDir = null;
-				if(SAVE_RAW) {
-					tpDir = new File(mmsmp.getOutputDirectory(), String.format("tp%04d_a%03d", t, a));
-					tpDir.mkdir();
-				}
+				if(SAVE_RAW)
+					recorder.startStack(RawStackRecorder.getFile(new File(mmsmp.getOutputDirectory()), t, a), 2 * d, 2);
 				for(int f = 0; f < d; f++) {
 					for(int ill = 0; ill < 2; ill++) {
 						int real_ill = doublesided ? ill : 0;
@@ -147,11 +187,13 @@ public class File_MaxProjection implements PlugIn {
 
 						mmsmp.process((short[])ip.getPixels(), t, a, f, ill);
 						if(SAVE_RAW)
-							IJ.save(new ImagePlus("", ip), new File(tpDir, String.format("%04d_ill%d.tif", f, ill)).getAbsolutePath());
+							recorder.addPlane((short[])ip.getPixels());
 					}
 				}
 			}
 		}
+		if(SAVE_RAW)
+			recorder.close();
 	}
 
 	public static void createConfFile() {
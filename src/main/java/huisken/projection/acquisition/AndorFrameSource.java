@@ -0,0 +1,39 @@
+package huisken.projection.acquisition;
+
+import neo.AT;
+
+/**
+ * Frames from an Andor camera, which was set up for acquiring a fixed
+ * number of frames (CycleMode "Fixed") and whose buffers were created.
+ */
+public class AndorFrameSource implements FrameSource {
+
+	private final AT at;
+	private long timestamp;
+
+	public AndorFrameSource(AT at) {
+		this.at = at;
+	}
+
+	@Override
+	public void startStack(int nFrames) {
+		at.AT_SetInt("FrameCount", nFrames);
+		at.AT_Command("AcquisitionStart");
+	}
+
+	@Override
+	public void nextFrame(short[] frame) {
+		at.AT_NextFrame(frame);
+		timestamp = System.nanoTime();
+	}
+
+	@Override
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	@Override
+	public void stopStack() {
+		at.AT_Command("AcquisitionStop");
+	}
+}
@@ -0,0 +1,111 @@
+package huisken.projection.acquisition;
+
+/**
+ * Decides at which quality the next stack is projected, from the
+ * occupancy of the FIFO between camera and projection, so that a
+ * projection which falls behind sheds load instead of overflowing the
+ * FIFO.
+ *
+ * thresholds[i] is the occupancy (pending frames / FIFO capacity) from
+ * which on level i + 1 is used. The level rises as soon as a threshold
+ * is reached, but only falls by one level per stack, and only once the
+ * occupancy dropped below recovery * the threshold of the current level.
+ * This way the quality does not oscillate, and full quality is reached
+ * again once the backlog is cleared.
+ */
+public class DegradationPolicy {
+
+	private final double[] thresholds;
+	private final double recovery;
+
+	private int level = 0;
+	private double occupancy = 0;
+	private long nStacks = 0;
+	private long nDegraded = 0;
+
+	/**
+	 * @param thresholds Increasing occupancies, at which the next level is used.
+	 * @param recovery Fraction of the threshold of the current level below
+	 *                 which the level is decreased again, between 0 and 1.
+	 */
+	public DegradationPolicy(double[] thresholds, double recovery) {
+		for(int i = 1; i < thresholds.length; i++)
+			if(thresholds[i] < thresholds[i - 1])
+				throw new IllegalArgumentException("Thresholds must be increasing");
+		if(recovery < 0 || recovery > 1)
+			throw new IllegalArgumentException("Recovery must be between 0 and 1");
+		this.thresholds = thresholds.clone();
+		this.recovery = recovery;
+	}
+
+	/**
+	 * Degrades by one level per quarter of the FIFO filled, and recovers
+	 * below half of the respective threshold.
+	 */
+	public DegradationPolicy(int nLevels) {
+		this(createThresholds(nLevels), 0.5);
+	}
+
+	private static double[] createThresholds(int nLevels) {
+		double[] t = new double[nLevels];
+		for(int i = 0; i < nLevels; i++)
+			t[i] = (i + 1) / (nLevels + 1.0);
+		return t;
+	}
+
+	/**
+	 * Returns the level for the next stack, given the current number of
+	 * pending frames in fifo. Call once per stack, before it is processed.
+	 */
+	public int update(FIFO fifo) {
+		return update(fifo.size() / (double)fifo.capacity());
+	}
+
+	/**
+	 * Returns the level for the next stack, given the fraction of the
+	 * frame buffers which is filled, e.g. of the FIFO or of a
+	 * ProjectionPipeline.
+	 */
+	public int update(double occupancy) {
+		this.occupancy = occupancy;
+		int target = 0;
+		while(target < thresholds.length && occupancy >= thresholds[target])
+			target++;
+		if(target > level)
+			level = target;
+		else if(level > 0 && occupancy < recovery * thresholds[level - 1])
+			level--;
+		nStacks++;
+		if(level > 0)
+			nDegraded++;
+		return level;
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	public int getNumLevels() {
+		return thresholds.length;
+	}
+
+	/**
+	 * Number of stacks for which a level above 0 was returned.
+	 */
+	public long getNumDegraded() {
+		return nDegraded;
+	}
+
+	/**
+	 * Describes the reason for the current level, for the manifest.
+	 */
+	public String getReason() {
+		return String.format("buffers %.0f%% full", 100 * occupancy);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Degradation: level %d, %s, %d of %d stacks degraded",
+				level, getReason(), nDegraded, nStacks);
+	}
+}
@@ -1,56 +1,586 @@
 package huisken.projection.acquisition;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free single-producer/single-consumer ring of preallocated frames.
+ *
+ * Frames are lent out instead of being copied: the producer obtains an
+ * empty frame with claim(), fills it and publishes it with commit(); the
+ * consumer obtains the oldest frame with take() or poll(), and hands it
+ * back with release(), or keeps it and hands back an empty frame of its
+ * own with detach().
+ *
+ * Each frame carries its sequence number, i.e. the number of frames
+ * committed before it, see getSequence(); with OverflowPolicy.DROP_OLDEST,
+ * the consumer detects dropped frames as gaps in the sequence.
+ *
+ * What happens if the producer is faster than the consumer is determined
+ * by the OverflowPolicy. How threads wait for each other is determined
+ * by the WaitStrategy.
+ *
+ * Only one thread may call the producer methods (claim(), commit(), add())
+ * and only one thread may call the consumer methods (take(), poll(), get(),
+ * release(), detach()).
+ */
 public class FIFO {
 
-	private short[][] cache;
-	private int first = 0;
-	private int last = -1;
-	private int size = 0;
-	private final Object lock = new Object();
+	public static enum OverflowPolicy {
+		/** The producer waits until the consumer releases a frame. */
+		BLOCK,
+		/** The oldest frame which was not yet taken is discarded. */
+		DROP_OLDEST,
+		/** Frames are written to a temporary file and read back later. */
+		SPILL_TO_DISK
+	}
+
+	public static enum WaitStrategy {
+		/** Park the waiting thread until it is signaled. */
+		BLOCK,
+		/** Busy-spin, for lowest latency at the cost of one core. */
+		SPIN
+	}
+
+	private final int capacity;
+	private final int frameSize;
+	private final OverflowPolicy policy;
+	private final WaitStrategy waitStrategy;
+
+	/*
+	 * Frames which were committed but not yet taken are
+	 * ring[head % capacity] to ring[(tail - 1) % capacity].
+	 * ring positions are only written by the producer; head is
+	 * advanced by the consumer, and by the producer when dropping.
+	 */
+	private final short[][] ring;
+	private final long[] ringSequence;
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+
+	/*
+	 * Empty frames, handed back from the consumer to the producer.
+	 */
+	private final short[][] free;
+	private final AtomicLong freeHead = new AtomicLong();
+	private final AtomicLong freeTail = new AtomicLong();
+
+	// Spilling to disk
+	private final int maxSpilledFrames;
+	private final File spillDir;
+	private FileChannel spillChannel;
+	private File spillFile;
+	private ByteBuffer spillWriteBuffer, spillReadBuffer;
+	private final short[] spillWriteFrame, spillReadFrame;
+	private final long[] spillSequence;
+	private final AtomicLong spillWritten = new AtomicLong();
+	private final AtomicLong spillRead = new AtomicLong();
+
+	// Owned by the producer
+	private short[] claimed = null;
+	private boolean claimedSpill = false;
+	private long committed = 0;
+
+	// Owned by the consumer
+	private short[] taken = null;
+	private boolean takenFromRing = false;
+	private long takenSequence = -1;
+
+	private volatile Thread waitingProducer = null;
+	private volatile Thread waitingConsumer = null;
+
+	// Statistics
+	private volatile long highWaterMark = 0;
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong spilled = new AtomicLong();
 
 	public FIFO(int n, int nInner) {
-		cache = new short[n][nInner];
+		this(n, nInner, OverflowPolicy.BLOCK, WaitStrategy.BLOCK, null, 0);
+	}
+
+	/**
+	 * @param n Number of preallocated frames.
+	 * @param nInner Number of pixels per frame.
+	 * @param policy What to do if all frames are in use.
+	 * @param waitStrategy How to wait for the other thread.
+	 * @param spillDir Directory for the spill file, only used with
+	 *                 OverflowPolicy.SPILL_TO_DISK; null for the
+	 *                 default temporary directory.
+	 * @param maxSpilledFrames Maximum number of frames in the spill file;
+	 *                 if it is full, the producer waits.
+	 */
+	public FIFO(int n, int nInner, OverflowPolicy policy, WaitStrategy waitStrategy, File spillDir, int maxSpilledFrames) {
+		if(n < 2)
+			throw new IllegalArgumentException("Need at least 2 frames");
+		this.capacity = n;
+		this.frameSize = nInner;
+		this.policy = policy;
+		this.waitStrategy = waitStrategy;
+		this.ring = new short[n][];
+		this.ringSequence = new long[n];
+		this.free = new short[n][];
+		for(int i = 0; i < n; i++)
+			free[i] = new short[nInner];
+		freeTail.set(n);
+
+		this.spillDir = spillDir;
+		this.maxSpilledFrames = maxSpilledFrames;
+		if(policy == OverflowPolicy.SPILL_TO_DISK) {
+			if(maxSpilledFrames < 1)
+				throw new IllegalArgumentException("Need room for at least one spilled frame");
+			spillWriteFrame = new short[nInner];
+			spillReadFrame = new short[nInner];
+			spillSequence = new long[maxSpilledFrames];
+		} else {
+			spillWriteFrame = null;
+			spillReadFrame = null;
+			spillSequence = null;
+		}
+	}
+
+	/*************************************************************
+	 * Producer
+	 *************************************************************/
+
+	/**
+	 * Returns an empty frame to be filled by the producer and
+	 * published with commit(). Depending on the overflow policy,
+	 * this may wait for the consumer, discard the oldest frame
+	 * or prepare for writing to disk.
+	 */
+	public short[] claim() throws InterruptedException {
+		if(claimed != null)
+			throw new IllegalStateException("Previous frame was not committed");
+
+		while(true) {
+			// preserve the order: once spilled, keep spilling until
+			// the consumer has caught up
+			if(policy == OverflowPolicy.SPILL_TO_DISK && spillPending()) {
+				if(spillRoom())
+					return claimSpill();
+				awaitProducer();
+				continue;
+			}
+
+			short[] frame = pollFree();
+			if(frame != null) {
+				claimed = frame;
+				claimedSpill = false;
+				return frame;
+			}
+
+			switch(policy) {
+			case DROP_OLDEST:
+				frame = dropOldest();
+				if(frame != null) {
+					claimed = frame;
+					claimedSpill = false;
+					return frame;
+				}
+				break;
+			case SPILL_TO_DISK:
+				return claimSpill();
+			case BLOCK:
+				break;
+			}
+			awaitProducer();
+		}
+	}
+
+	/**
+	 * Publishes the frame obtained by the most recent claim().
+	 */
+	public void commit() {
+		if(claimed == null)
+			throw new IllegalStateException("No frame claimed");
+		if(claimedSpill) {
+			writeSpill(claimed);
+			long w = spillWritten.get();
+			spillSequence[(int)(w % maxSpilledFrames)] = committed;
+			spillWritten.set(w + 1);
+			spilled.incrementAndGet();
+		} else {
+			long t = tail.get();
+			ring[(int)(t % capacity)] = claimed;
+			ringSequence[(int)(t % capacity)] = committed;
+			tail.set(t + 1);
+		}
+		claimed = null;
+		committed++;
+		long occ = size();
+		if(occ > highWaterMark)
+			highWaterMark = occ;
+		signal(waitingConsumer);
 	}
 
+	/**
+	 * Convenience method which copies data into a claimed frame
+	 * and commits it.
+	 */
 	public void add(short[] data) {
-		synchronized(lock) {
-			last = (last + 1) % cache.length;
-			if(!isEmpty() && last == first) {
-				throw new RuntimeException("Overwriting data");
+		try {
+			short[] frame = claim();
+			System.arraycopy(data, 0, frame, 0, data.length);
+			commit();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while adding data", e);
+		}
+	}
+
+	private short[] pollFree() {
+		long h = freeHead.get();
+		if(h == freeTail.get())
+			return null;
+		short[] frame = free[(int)(h % capacity)];
+		freeHead.lazySet(h + 1);
+		return frame;
+	}
+
+	private short[] dropOldest() {
+		while(true) {
+			long h = head.get();
+			if(h >= tail.get())
+				return null;
+			short[] frame = ring[(int)(h % capacity)];
+			if(head.compareAndSet(h, h + 1)) {
+				dropped.incrementAndGet();
+				return frame;
 			}
-			System.arraycopy(data, 0, cache[last], 0, data.length);
-			size++;
-			lock.notifyAll();
 		}
 	}
 
-	public void get(short[] ret) {
-		synchronized(lock) {
-			if(isEmpty()) {
-				try {
-					lock.wait();
-				} catch(InterruptedException e) {
-					e.printStackTrace();
+	/*************************************************************
+	 * Consumer
+	 *************************************************************/
+
+	/**
+	 * Returns the oldest frame, waiting if necessary. The frame
+	 * must be handed back with release() before the next call.
+	 */
+	public short[] take() throws InterruptedException {
+		return poll(0, TimeUnit.NANOSECONDS, false);
+	}
+
+	/**
+	 * Returns the oldest frame, waiting at most the given time.
+	 * Returns null if no frame became available in time.
+	 */
+	public short[] poll(long timeout, TimeUnit unit) throws InterruptedException {
+		return poll(unit.toNanos(timeout), TimeUnit.NANOSECONDS, true);
+	}
+
+	private short[] poll(long timeout, TimeUnit unit, boolean timed) throws InterruptedException {
+		if(taken != null)
+			throw new IllegalStateException("Previous frame was not released");
+		long deadline = timed ? System.nanoTime() + unit.toNanos(timeout) : 0;
+		while(true) {
+			long h = head.get();
+			if(h < tail.get()) {
+				// read the slot before advancing head: once head is
+				// advanced, the producer may drop and refill it
+				short[] frame = ring[(int)(h % capacity)];
+				long sequence = ringSequence[(int)(h % capacity)];
+				if(head.compareAndSet(h, h + 1)) {
+					taken = frame;
+					takenFromRing = true;
+					takenSequence = sequence;
+					return taken;
 				}
+				// the producer dropped it
+				continue;
+			}
+			if(spillPending()) {
+				// the producer does not add to the ring while frames
+				// are spilled, but it might have done so just before
+				if(head.get() < tail.get())
+					continue;
+				readSpill(spillReadFrame);
+				long r = spillRead.get();
+				takenSequence = spillSequence[(int)(r % maxSpilledFrames)];
+				spillRead.set(r + 1);
+				signal(waitingProducer);
+				taken = spillReadFrame;
+				takenFromRing = false;
+				return taken;
 			}
-			System.arraycopy(cache[first], 0, ret, 0, ret.length);
-			first = (first + 1) % cache.length;
-			size--;
+			if(!awaitConsumer(timed, deadline))
+				return null;
+		}
+	}
+
+	/**
+	 * Sequence number of the frame obtained by the most recent take()
+	 * or poll(), counting the committed frames from 0.
+	 */
+	public long getSequence() {
+		return takenSequence;
+	}
+
+	/**
+	 * Hands the frame obtained by the most recent take() or poll()
+	 * back to the producer.
+	 */
+	public void release() {
+		if(taken == null)
+			throw new IllegalStateException("No frame taken");
+		if(takenFromRing) {
+			long t = freeTail.get();
+			free[(int)(t % capacity)] = taken;
+			freeTail.set(t + 1);
+			signal(waitingProducer);
+		}
+		taken = null;
+	}
+
+	/**
+	 * Keeps the frame obtained by the most recent take() or poll(), and
+	 * hands the empty frame replacement back to the producer in its
+	 * place, so that the frame can be passed on without copying it.
+	 * Returns the frame which the consumer now owns: the taken frame, or,
+	 * if it was read back from disk, replacement filled with its data.
+	 */
+	public short[] detach(short[] replacement) {
+		if(taken == null)
+			throw new IllegalStateException("No frame taken");
+		if(replacement.length != frameSize)
+			throw new IllegalArgumentException("Expected a frame of " + frameSize + " pixels, got " + replacement.length);
+		short[] frame = taken;
+		if(takenFromRing) {
+			long t = freeTail.get();
+			free[(int)(t % capacity)] = replacement;
+			freeTail.set(t + 1);
+			signal(waitingProducer);
+		} else {
+			System.arraycopy(frame, 0, replacement, 0, frameSize);
+			frame = replacement;
+		}
+		taken = null;
+		return frame;
+	}
+
+	/**
+	 * Copies the oldest frame into ret and releases it.
+	 */
+	public void get(short[] ret) {
+		try {
+			short[] frame = take();
+			System.arraycopy(frame, 0, ret, 0, ret.length);
+			release();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for data", e);
 		}
 	}
 
+	/*************************************************************
+	 * Waiting
+	 *************************************************************/
+
+	private boolean consumerCanProceed() {
+		return head.get() < tail.get() || spillPending();
+	}
+
+	private boolean producerCanProceed() {
+		// like claim(): once spilled, free frames are not used until
+		// the consumer has caught up
+		if(policy == OverflowPolicy.SPILL_TO_DISK && spillPending())
+			return spillRoom();
+		if(freeHead.get() != freeTail.get())
+			return true;
+		switch(policy) {
+		case DROP_OLDEST:   return head.get() < tail.get();
+		case SPILL_TO_DISK: return true;
+		default:            return false;
+		}
+	}
+
+	private static void signal(Thread t) {
+		if(t != null)
+			LockSupport.unpark(t);
+	}
+
+	private int spins = 0;
+
+	private void spin() {
+		if((++spins & 0xff) == 0)
+			Thread.yield();
+	}
+
+	private void awaitProducer() throws InterruptedException {
+		if(waitStrategy == WaitStrategy.SPIN) {
+			spin();
+		} else {
+			waitingProducer = Thread.currentThread();
+			if(!producerCanProceed())
+				LockSupport.park(this);
+			waitingProducer = null;
+		}
+		if(Thread.interrupted())
+			throw new InterruptedException();
+	}
+
+	private boolean awaitConsumer(boolean timed, long deadline) throws InterruptedException {
+		long remaining = 0;
+		if(timed) {
+			remaining = deadline - System.nanoTime();
+			if(remaining <= 0)
+				return false;
+		}
+		if(waitStrategy == WaitStrategy.SPIN) {
+			spin();
+		} else {
+			waitingConsumer = Thread.currentThread();
+			if(!consumerCanProceed()) {
+				if(timed)
+					LockSupport.parkNanos(this, remaining);
+				else
+					LockSupport.park(this);
+			}
+			waitingConsumer = null;
+		}
+		if(Thread.interrupted())
+			throw new InterruptedException();
+		return true;
+	}
+
+	/*************************************************************
+	 * Spilling
+	 *************************************************************/
+
+	private boolean spillPending() {
+		return spillRead.get() < spillWritten.get();
+	}
+
+	private boolean spillRoom() {
+		return spillWritten.get() - spillRead.get() < maxSpilledFrames;
+	}
+
+	private short[] claimSpill() {
+		claimed = spillWriteFrame;
+		claimedSpill = true;
+		return claimed;
+	}
+
+	private long spillOffset(long index) {
+		return (index % maxSpilledFrames) * 2L * frameSize;
+	}
+
+	private void writeSpill(short[] frame) {
+		try {
+			if(spillChannel == null)
+				openSpillFile();
+			spillWriteBuffer.clear();
+			spillWriteBuffer.asShortBuffer().put(frame);
+			long offset = spillOffset(spillWritten.get());
+			while(spillWriteBuffer.hasRemaining())
+				offset += spillChannel.write(spillWriteBuffer, offset);
+		} catch(IOException e) {
+			throw new RuntimeException("Cannot write to spill file " + spillFile, e);
+		}
+	}
+
+	private void readSpill(short[] frame) {
+		try {
+			spillReadBuffer.clear();
+			long offset = spillOffset(spillRead.get());
+			while(spillReadBuffer.hasRemaining()) {
+				int n = spillChannel.read(spillReadBuffer, offset);
+				if(n < 0)
+					throw new IOException("Unexpected end of file");
+				offset += n;
+			}
+			spillReadBuffer.flip();
+			spillReadBuffer.asShortBuffer().get(frame);
+		} catch(IOException e) {
+			throw new RuntimeException("Cannot read from spill file " + spillFile, e);
+		}
+	}
+
+	/*
+	 * Called by the producer before the first spilled frame is
+	 * published; spillWritten publishes the fields to the consumer.
+	 */
+	private void openSpillFile() throws IOException {
+		spillFile = File.createTempFile("fifo", ".spill", spillDir);
+		spillFile.deleteOnExit();
+		spillChannel = new RandomAccessFile(spillFile, "rw").getChannel();
+		spillWriteBuffer = ByteBuffer.allocateDirect(2 * frameSize).order(ByteOrder.nativeOrder());
+		spillReadBuffer = ByteBuffer.allocateDirect(2 * frameSize).order(ByteOrder.nativeOrder());
+	}
+
+	/**
+	 * Closes and deletes the spill file, if any.
+	 */
+	public void close() throws IOException {
+		if(spillChannel != null) {
+			spillChannel.close();
+			spillChannel = null;
+			spillFile.delete();
+		}
+	}
+
+	/*************************************************************
+	 * Statistics
+	 *************************************************************/
+
+	/**
+	 * Number of frames which were committed but not yet taken,
+	 * including spilled frames.
+	 */
 	public int size() {
-		return size;
+		return (int)(tail.get() - head.get() + spillWritten.get() - spillRead.get());
 	}
 
 	public boolean isEmpty() {
-		return size == 0;
+		return size() == 0;
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Largest number of pending frames observed so far.
+	 */
+	public long getHighWaterMark() {
+		return highWaterMark;
+	}
+
+	/**
+	 * Number of frames discarded with OverflowPolicy.DROP_OLDEST.
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Number of frames written to the spill file so far.
+	 */
+	public long getSpilled() {
+		return spilled.get();
+	}
+
+	@Override
+	public String toString() {
+		return "FIFO: " + size() + "/" + capacity +
+			", high-water mark " + highWaterMark +
+			", dropped " + dropped.get() +
+			", spilled " + spilled.get();
 	}
 
 	public static void main(String[] args) {
-		final FIFO cache = new FIFO(100, 1);
+		final FIFO cache = new FIFO(10, 1, OverflowPolicy.SPILL_TO_DISK, WaitStrategy.BLOCK, null, 1000);
 
 		new Thread() {
+			@Override
 			public void run() {
 				for(int i = 0; i < 100; i++) {
 					cache.add(new short[] {(short)i});
@@ -59,13 +589,21 @@ public class FIFO {
 		}.start();
 
 		new Thread() {
-			private short[] x = new short[1];
+			@Override
 			public void run() {
-				for(int i = 0; i < 100; i++) {
-					cache.get(x);
+				try {
+					for(int i = 0; i < 100; i++) {
+						short[] x = cache.take();
+						if(x[0] != i)
+							System.out.println("Expected " + i + " but got " + x[0]);
+						cache.release();
+					}
+					System.out.println(cache);
+					cache.close();
+				} catch(Exception e) {
+					e.printStackTrace();
 				}
 			}
 		}.start();
 	}
 }
-
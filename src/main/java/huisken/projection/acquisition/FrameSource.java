@@ -0,0 +1,31 @@
+package huisken.projection.acquisition;
+
+/**
+ * Delivers the frames of an acquisition, e.g. from a camera or a
+ * simulation. Stacks are acquired one after the other; all methods are
+ * called from the same thread.
+ */
+public interface FrameSource {
+
+	/**
+	 * Starts the acquisition of a stack of nFrames frames.
+	 */
+	public void startStack(int nFrames);
+
+	/**
+	 * Waits for the next frame of the current stack and copies it into
+	 * frame, which has w * h pixels.
+	 */
+	public void nextFrame(short[] frame);
+
+	/**
+	 * Returns the System.nanoTime() at which the last frame returned by
+	 * nextFrame() was acquired.
+	 */
+	public long getTimestamp();
+
+	/**
+	 * Stops the acquisition of the current stack.
+	 */
+	public void stopStack();
+}
@@ -0,0 +1,93 @@
+package huisken.projection.acquisition;
+
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Simulated camera which delivers frames at a fixed frame rate, with
+ * optional Gaussian jitter of the frame times. nextFrame() waits until
+ * the next frame is due.
+ *
+ * Like a real camera, the simulation does not wait for the caller: if
+ * nextFrame() is called later than nBuffers frame periods after a frame
+ * was due, a camera with nBuffers internal buffers would have lost the
+ * frame. Such frames are counted as overruns, but still delivered, so
+ * that the stack is complete.
+ */
+public abstract class PacedFrameSource implements FrameSource {
+
+	private final long period;
+	private final long jitter;
+	private final int nBuffers;
+	private final Random random = new Random(42);
+
+	private long stackStart;
+	private int frameInStack;
+	private long index = 0;
+	private long timestamp;
+	private long nOverruns = 0;
+
+	/**
+	 * @param fps Frame rate.
+	 * @param jitterMillis Standard deviation of the frame times, in ms;
+	 *                     limited to half a frame period.
+	 * @param nBuffers Number of frames the simulated camera can buffer.
+	 */
+	protected PacedFrameSource(double fps, double jitterMillis, int nBuffers) {
+		this.period = (long)(1e9 / fps);
+		this.jitter = (long)(jitterMillis * 1e6);
+		this.nBuffers = nBuffers;
+	}
+
+	/**
+	 * Fills frame with the given frame of the current stack; index
+	 * counts all frames since the start of the simulation.
+	 */
+	protected abstract void fill(short[] frame, int frameInStack, long index);
+
+	@Override
+	public void startStack(int nFrames) {
+		stackStart = System.nanoTime();
+		frameInStack = 0;
+	}
+
+	@Override
+	public void nextFrame(short[] frame) {
+		long due = stackStart + frameInStack * period;
+		if(jitter > 0) {
+			long j = (long)(random.nextGaussian() * jitter);
+			due += Math.max(-period / 2, Math.min(period / 2, j));
+		}
+		long now;
+		while((now = System.nanoTime()) < due)
+			LockSupport.parkNanos(due - now);
+		if(now - due > nBuffers * period)
+			nOverruns++;
+		timestamp = due;
+		fill(frame, frameInStack, index);
+		frameInStack++;
+		index++;
+	}
+
+	@Override
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	@Override
+	public void stopStack() {}
+
+	/**
+	 * Number of frames which a real camera would have lost.
+	 */
+	public long getOverruns() {
+		return nOverruns;
+	}
+
+	/**
+	 * Number of frames delivered so far.
+	 */
+	public long getNFrames() {
+		return index;
+	}
+}
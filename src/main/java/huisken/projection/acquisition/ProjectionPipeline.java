@@ -0,0 +1,300 @@
+package huisken.projection.acquisition;
+
+import huisken.projection.processing.TwoCameraSphericalMaxProjection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Projects the stacks of several samples in parallel, one worker thread
+ * per sample, so that a sample whose projection falls behind does not
+ * hold up the projection of the other samples.
+ *
+ * Each worker owns one TwoCameraSphericalMaxProjection, with its own
+ * maxima and statistics, and processes its frames in the order in which
+ * they were submitted; a stream of frames, i.e. a sample, angle and
+ * illumination, is always routed to the worker of its sample, since the
+ * angles and illuminations of a sample share the projection state.
+ *
+ * The frames waiting for any of the workers are held in one pool of
+ * buffers, whose size is given as a memory budget: claim() blocks if
+ * all buffers are in use, which in turn fills the camera FIFO and
+ * applies its OverflowPolicy.
+ *
+ * Usage:
+ *   pipeline.startStack(sample, nFrames, quality, reason);
+ *   for each frame:
+ *     short[] buffer = pipeline.claim();
+ *     ... fill buffer ...
+ *     pipeline.submit(sample, tp, aIndex, z, ill, buffer);
+ *
+ * Instead of filling the claimed buffer, it can be exchanged for a frame
+ * of the same size, e.g. with FIFO.detach(), which is then submitted.
+ */
+public class ProjectionPipeline {
+
+	private static final int FRAME = 0, STACK = 1, END = 2;
+
+	private static class Job {
+		final int type;
+		final int tp, aIndex, z, ill;
+		final short[] data;
+		// for STACK
+		final int nFrames, quality;
+		final String reason;
+		final long submitted = System.nanoTime();
+
+		Job(int type, int tp, int aIndex, int z, int ill, short[] data, int nFrames, int quality, String reason) {
+			this.type = type;
+			this.tp = tp;
+			this.aIndex = aIndex;
+			this.z = z;
+			this.ill = ill;
+			this.data = data;
+			this.nFrames = nFrames;
+			this.quality = quality;
+			this.reason = reason;
+		}
+	}
+
+	private static final Job END_JOB = new Job(END, 0, 0, 0, 0, null, 0, 0, null);
+
+	private class Worker extends Thread {
+		final int sample;
+		final TwoCameraSphericalMaxProjection tcsmp;
+		final BlockingQueue<Job> queue = new LinkedBlockingQueue<Job>();
+		final AtomicInteger pending = new AtomicInteger();
+		final AtomicLong nProcessed = new AtomicLong();
+
+		// Owned by the worker thread
+		private int framesLeft = 0;
+		private long stackStart;
+
+		Worker(int sample, TwoCameraSphericalMaxProjection tcsmp) {
+			super("Projection sample " + sample);
+			this.sample = sample;
+			this.tcsmp = tcsmp;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while(true) {
+				Job job;
+				try {
+					job = queue.take();
+				} catch(InterruptedException e) {
+					return;
+				}
+				if(job.type == END)
+					return;
+				// after an error, the frames are only handed back
+				if(error == null) {
+					try {
+						process(job);
+					} catch(Exception e) {
+						fail(sample, e);
+					}
+				}
+				if(job.data != null) {
+					long latency = System.nanoTime() - job.submitted;
+					totalLatency.addAndGet(latency);
+					if(latency > maxLatency)
+						maxLatency = latency;
+					nProcessed.incrementAndGet();
+					inUse.decrementAndGet();
+					pool.add(job.data);
+				}
+				pending.decrementAndGet();
+			}
+		}
+
+		private void process(Job job) {
+			if(job.type == STACK) {
+				if(job.quality >= 0)
+					tcsmp.setQuality(job.quality, job.reason);
+				framesLeft = job.nFrames;
+				stackStart = System.currentTimeMillis();
+				return;
+			}
+			tcsmp.process(job.data, job.tp, job.aIndex, job.z, job.ill);
+			if(--framesLeft == 0) {
+				long time = System.currentTimeMillis() - stackStart;
+				System.out.println("Sample " + sample + ": needed " + time + " ms for stack " +
+						job.aIndex + " of timepoint " + job.tp);
+				if(tcsmp.getWriter() != null)
+					System.out.println(tcsmp.getWriter());
+			}
+		}
+	}
+
+	private final int frameSize;
+	private final int nBuffers;
+	private final BlockingQueue<short[]> pool = new LinkedBlockingQueue<short[]>();
+	private final List<Worker> workers = new ArrayList<Worker>();
+	private boolean closed = false;
+
+	// Metrics
+	private final AtomicInteger inUse = new AtomicInteger();
+	private volatile int highWaterMark = 0;
+	private final AtomicLong totalLatency = new AtomicLong();
+	private volatile long maxLatency = 0;
+
+	private volatile Exception error = null;
+	private volatile int errorSample = -1;
+
+	/**
+	 * @param frameSize Number of pixels per frame.
+	 * @param memoryBudget Memory for the frames which wait to be
+	 *                     projected, in bytes, shared by all workers.
+	 */
+	public ProjectionPipeline(int frameSize, long memoryBudget) {
+		this.frameSize = frameSize;
+		this.nBuffers = (int)Math.min(Integer.MAX_VALUE, Math.max(1, memoryBudget / (2L * frameSize)));
+		for(int i = 0; i < nBuffers; i++)
+			pool.add(new short[frameSize]);
+	}
+
+	/**
+	 * Adds and starts a worker for the next sample, and returns the
+	 * index of the sample.
+	 */
+	public synchronized int addWorker(TwoCameraSphericalMaxProjection tcsmp) {
+		if(closed)
+			throw new IllegalStateException("Pipeline is closed");
+		Worker worker = new Worker(workers.size(), tcsmp);
+		workers.add(worker);
+		worker.start();
+		return worker.sample;
+	}
+
+	/**
+	 * Announces the next stack of sample, consisting of nFrames frames.
+	 * quality is passed to TwoCameraSphericalMaxProjection.setQuality()
+	 * before the stack is projected, unless it is negative.
+	 */
+	public void startStack(int sample, int nFrames, int quality, String reason) {
+		submit(sample, new Job(STACK, 0, 0, 0, 0, null, nFrames, quality, reason));
+	}
+
+	/**
+	 * Returns an empty frame, waiting until one is available if the
+	 * memory budget is used up.
+	 */
+	public short[] claim() throws InterruptedException {
+		checkError();
+		short[] frame = pool.take();
+		int n = inUse.incrementAndGet();
+		if(n > highWaterMark)
+			highWaterMark = n;
+		return frame;
+	}
+
+	/**
+	 * Hands a frame obtained from claim(), or exchanged for one, to the
+	 * worker of sample; it must not be used afterwards, since it is added
+	 * to the pool once it is projected.
+	 */
+	public void submit(int sample, int tp, int aIndex, int z, int ill, short[] frame) {
+		submit(sample, new Job(FRAME, tp, aIndex, z, ill, frame, 0, 0, null));
+	}
+
+	private void submit(int sample, Job job) {
+		checkError();
+		Worker worker;
+		synchronized(this) {
+			if(closed)
+				throw new IllegalStateException("Pipeline is closed");
+			worker = workers.get(sample);
+		}
+		worker.pending.incrementAndGet();
+		worker.queue.add(job);
+	}
+
+	/**
+	 * Projects the remaining frames and stops the workers. The
+	 * projections themselves are not closed.
+	 */
+	public void close() {
+		synchronized(this) {
+			if(closed)
+				return;
+			closed = true;
+		}
+		for(Worker worker : workers)
+			worker.queue.add(END_JOB);
+		try {
+			for(Worker worker : workers)
+				worker.join();
+		} catch(InterruptedException e) {
+			throw new RuntimeException("Interrupted while closing", e);
+		}
+		checkError();
+	}
+
+	private void checkError() {
+		if(error != null)
+			throw new RuntimeException("Projection of sample " + errorSample + " failed", error);
+	}
+
+	private void fail(int sample, Exception e) {
+		e.printStackTrace();
+		if(error == null) {
+			errorSample = sample;
+			error = e;
+		}
+	}
+
+	public int getFrameSize() {
+		return frameSize;
+	}
+
+	public int getNumBuffers() {
+		return nBuffers;
+	}
+
+	/**
+	 * Fraction of the memory budget which is in use, between 0 and 1.
+	 */
+	public double getOccupancy() {
+		return inUse.get() / (double)nBuffers;
+	}
+
+	/**
+	 * Number of frames and stacks waiting for the worker of sample.
+	 */
+	public int getPending(int sample) {
+		return workers.get(sample).pending.get();
+	}
+
+	/**
+	 * Mean time from submission until a frame was projected, in ms.
+	 */
+	public double getMeanLatency() {
+		long n = 0;
+		for(Worker worker : workers)
+			n += worker.nProcessed.get();
+		return n == 0 ? 0 : totalLatency.get() / 1e6 / n;
+	}
+
+	/**
+	 * Maximum time from submission until a frame was projected, in ms.
+	 */
+	public double getMaxLatency() {
+		return maxLatency / 1e6;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("Pipeline: %d of %d buffers in use, high-water mark %d, latency mean %.1f ms, max %.1f ms, pending",
+				inUse.get(), nBuffers, highWaterMark, getMeanLatency(), getMaxLatency()));
+		for(Worker worker : workers)
+			sb.append(' ').append(worker.pending.get());
+		return sb.toString();
+	}
+}
@@ -0,0 +1,396 @@
+package huisken.projection.acquisition;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records raw stacks in a background thread, one uncompressed 16-bit
+ * TIFF file per stack, instead of one file per plane.
+ *
+ * startStack() creates the file with its full size and writes the
+ * header and the image directories (IFDs) of all planes up front, so
+ * that the planes only need to be appended, and the file can be opened
+ * as a stack by ImageJ even if the recording was interrupted. With more
+ * than one channel, the planes are interleaved (channel varies fastest)
+ * and the file opens as a hyperstack.
+ *
+ * addPlane() copies a plane into one of nBuffers direct buffers and
+ * returns; it blocks only if all buffers are waiting to be written.
+ * The writer thread writes consecutive planes of a stack with a single
+ * gathering write.
+ */
+public class RawStackRecorder {
+
+	private static final int MAX_GATHER = 16;
+	private static final int DATA_ALIGNMENT = 4096;
+
+	private static final int START = 0, PLANE = 1, SKIP = 2, FINISH = 3, END = 4;
+
+	private static class Job {
+		final int type;
+		final File file;
+		final int nPlanes, nChannels;
+		final ByteBuffer buffer;
+
+		Job(int type, File file, int nPlanes, int nChannels, ByteBuffer buffer) {
+			this.type = type;
+			this.file = file;
+			this.nPlanes = nPlanes;
+			this.nChannels = nChannels;
+			this.buffer = buffer;
+		}
+	}
+
+	private final int w, h;
+	private final BlockingQueue<Job> queue = new LinkedBlockingQueue<Job>();
+	private final BlockingQueue<ByteBuffer> pool = new LinkedBlockingQueue<ByteBuffer>();
+	private final Thread thread;
+
+	// Owned by the calling thread
+	private int planesLeft = 0;
+	private boolean closed = false;
+
+	// Owned by the writer thread
+	private RandomAccessFile raf = null;
+	private FileChannel channel = null;
+	private File current = null;
+
+	// Metrics
+	private final AtomicInteger pending = new AtomicInteger();
+	private volatile int highWaterMark = 0;
+	private final AtomicLong nWritten = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private final AtomicLong writeTime = new AtomicLong();
+
+	private volatile Exception error = null;
+	private volatile File errorFile = null;
+
+	/**
+	 * @param w Width of the planes.
+	 * @param h Height of the planes.
+	 * @param nBuffers Number of planes which may wait to be written.
+	 */
+	public RawStackRecorder(int w, int h, int nBuffers) {
+		if(nBuffers < 1)
+			throw new IllegalArgumentException("Need at least one buffer");
+		this.w = w;
+		this.h = h;
+		if(2L * w * h > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Planes too large");
+		for(int i = 0; i < nBuffers; i++)
+			pool.add(ByteBuffer.allocateDirect(2 * w * h).order(ByteOrder.BIG_ENDIAN));
+
+		thread = new Thread("RawStackRecorder") {
+			@Override
+			public void run() {
+				work();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Returns the file of the given stack in dir.
+	 */
+	public static File getFile(File dir, int tp, int aIndex) {
+		return new File(dir, String.format("tp%04d_a%04d.tif", tp, aIndex));
+	}
+
+	/**
+	 * Starts a new stack of nPlanes planes, which are nChannels
+	 * interleaved channels, e.g. 2 for double-sided illumination.
+	 */
+	public void startStack(File file, int nPlanes, int nChannels) {
+		checkError();
+		if(planesLeft > 0)
+			throw new IllegalStateException("Previous stack is missing " + planesLeft + " planes");
+		if(nPlanes % nChannels != 0)
+			throw new IllegalArgumentException("#planes must be a multiple of #channels");
+		planesLeft = nPlanes;
+		submit(new Job(START, file, nPlanes, nChannels, null));
+	}
+
+	/**
+	 * Appends the next plane of the current stack; pixels can be reused
+	 * as soon as this method returns. The stack is finished after its
+	 * last plane.
+	 */
+	public void addPlane(short[] pixels) {
+		checkError();
+		if(planesLeft == 0)
+			throw new IllegalStateException("No stack started");
+		if(pixels.length != w * h)
+			throw new IllegalArgumentException("Expected " + (w * h) + " pixels, got " + pixels.length);
+		ByteBuffer buf;
+		try {
+			buf = pool.take();
+		} catch(InterruptedException e) {
+			throw new RuntimeException("Interrupted while waiting for a buffer", e);
+		}
+		buf.clear();
+		buf.asShortBuffer().put(pixels);
+		submit(new Job(PLANE, null, 0, 0, buf));
+		if(--planesLeft == 0)
+			submit(new Job(FINISH, null, 0, 0, null));
+	}
+
+	/**
+	 * Leaves the next n planes of the current stack blank, e.g. for
+	 * frames which were dropped.
+	 */
+	public void skipPlanes(int n) {
+		checkError();
+		if(n > planesLeft)
+			throw new IllegalStateException("Only " + planesLeft + " planes left");
+		submit(new Job(SKIP, null, n, 0, null));
+		planesLeft -= n;
+		if(planesLeft == 0)
+			submit(new Job(FINISH, null, 0, 0, null));
+	}
+
+	/**
+	 * Writes the remaining planes and stops the writer thread.
+	 */
+	public void close() {
+		if(closed)
+			return;
+		closed = true;
+		queue.add(new Job(END, null, 0, 0, null));
+		try {
+			thread.join();
+		} catch(InterruptedException e) {
+			throw new RuntimeException("Interrupted while closing", e);
+		}
+		checkError();
+	}
+
+	private void submit(Job job) {
+		if(closed)
+			throw new IllegalStateException("Recorder is closed");
+		int p = pending.incrementAndGet();
+		if(p > highWaterMark)
+			highWaterMark = p;
+		queue.add(job);
+	}
+
+	private void checkError() {
+		if(error != null)
+			throw new RuntimeException("Cannot record " + errorFile, error);
+	}
+
+	private void work() {
+		List<Job> batch = new ArrayList<Job>();
+		ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+		while(true) {
+			batch.clear();
+			try {
+				batch.add(queue.take());
+			} catch(InterruptedException e) {
+				return;
+			}
+			queue.drainTo(batch);
+
+			for(int i = 0; i < batch.size(); ) {
+				Job job = batch.get(i);
+				if(job.type == END) {
+					closeFile();
+					return;
+				}
+				if(job.type != PLANE) {
+					if(job.type == START)
+						openFile(job);
+					else if(job.type == SKIP)
+						skip(job.nPlanes);
+					else
+						closeFile();
+					pending.decrementAndGet();
+					i++;
+					continue;
+				}
+				// gather the consecutive planes
+				int n = 0;
+				while(i + n < batch.size() && n < MAX_GATHER && batch.get(i + n).type == PLANE) {
+					gather[n] = batch.get(i + n).buffer;
+					gather[n].clear();
+					n++;
+				}
+				writePlanes(gather, n);
+				for(int j = 0; j < n; j++) {
+					pool.add(gather[j]);
+					gather[j] = null;
+				}
+				pending.addAndGet(-n);
+				i += n;
+			}
+		}
+	}
+
+	private void openFile(Job job) {
+		closeFile();
+		current = job.file;
+		try {
+			raf = new RandomAccessFile(job.file, "rw");
+			channel = raf.getChannel();
+			ByteBuffer header = createHeader(job.nPlanes, job.nChannels);
+			long dataOffset = header.capacity();
+			raf.setLength(dataOffset + (long)job.nPlanes * 2 * w * h);
+			while(header.hasRemaining())
+				channel.write(header);
+			channel.position(dataOffset);
+		} catch(Exception e) {
+			fail(e);
+		}
+	}
+
+	private void writePlanes(ByteBuffer[] buffers, int n) {
+		if(channel == null)
+			return;
+		long start = System.nanoTime();
+		long bytes = (long)n * 2 * w * h;
+		try {
+			long written = 0;
+			while(written < bytes)
+				written += channel.write(buffers, 0, n);
+		} catch(Exception e) {
+			fail(e);
+			return;
+		}
+		writeTime.addAndGet(System.nanoTime() - start);
+		bytesWritten.addAndGet(bytes);
+		nWritten.addAndGet(n);
+	}
+
+	private void skip(int n) {
+		if(channel == null)
+			return;
+		// the file was created with its full size, so the skipped
+		// planes read as zeros
+		try {
+			channel.position(channel.position() + (long)n * 2 * w * h);
+		} catch(Exception e) {
+			fail(e);
+		}
+	}
+
+	private void closeFile() {
+		if(raf == null)
+			return;
+		try {
+			raf.close();
+		} catch(Exception e) {
+			fail(e);
+		}
+		raf = null;
+		channel = null;
+	}
+
+	private void fail(Exception e) {
+		e.printStackTrace();
+		if(error == null) {
+			errorFile = current;
+			error = e;
+		}
+		closeFile();
+	}
+
+	/*
+	 * Big-endian TIFF header, ImageJ description and one IFD per plane;
+	 * the pixel data follows at the end of the returned buffer, whose
+	 * size is a multiple of DATA_ALIGNMENT. Like ImageJ, stacks beyond
+	 * 4 GB only get the first IFD; ImageJ locates the other planes from
+	 * the description.
+	 */
+	private ByteBuffer createHeader(int nPlanes, int nChannels) {
+		StringBuilder sb = new StringBuilder("ImageJ=1.47\nimages=" + nPlanes + "\n");
+		if(nChannels > 1)
+			sb.append("channels=" + nChannels + "\n");
+		sb.append("slices=" + (nPlanes / nChannels) + "\n");
+		if(nChannels > 1)
+			sb.append("hyperstack=true\nmode=grayscale\n");
+		byte[] description = (sb.toString() + "\0").getBytes();
+
+		int descOffset = 8;
+		int ifdOffset = descOffset + (description.length + 1) / 2 * 2;
+		int firstIFDSize = 2 + 9 * 12 + 4;
+		int ifdSize = 2 + 8 * 12 + 4;
+		int planeSize = 2 * w * h;
+		long maxSize = ifdOffset + firstIFDSize + (nPlanes - 1) * ifdSize + DATA_ALIGNMENT + (long)nPlanes * planeSize;
+		int nIFDs = maxSize > 0xffffffffL ? 1 : nPlanes;
+		int headerSize = ifdOffset + firstIFDSize + (nIFDs - 1) * ifdSize;
+		int dataOffset = (headerSize + DATA_ALIGNMENT - 1) / DATA_ALIGNMENT * DATA_ALIGNMENT;
+
+		ByteBuffer buf = ByteBuffer.allocate(dataOffset).order(ByteOrder.BIG_ENDIAN);
+		buf.put((byte)'M').put((byte)'M').putShort((short)42).putInt(ifdOffset);
+		buf.put(description);
+
+		buf.position(ifdOffset);
+		for(int p = 0; p < nIFDs; p++) {
+			boolean first = p == 0;
+			int next = p == nIFDs - 1 ? 0 : buf.position() + (first ? firstIFDSize : ifdSize);
+			buf.putShort((short)(first ? 9 : 8));
+			putEntry(buf, 256, 4, w);              // ImageWidth
+			putEntry(buf, 257, 4, h);              // ImageLength
+			putEntry(buf, 258, 3, 16);             // BitsPerSample
+			putEntry(buf, 262, 3, 1);              // PhotometricInterpretation: black is zero
+			if(first)
+				putEntry(buf, 270, 2, description.length, descOffset); // ImageDescription
+			putEntry(buf, 273, 4, (int)(dataOffset + (long)p * planeSize)); // StripOffsets, unsigned
+			putEntry(buf, 277, 3, 1);              // SamplesPerPixel
+			putEntry(buf, 278, 4, h);              // RowsPerStrip
+			putEntry(buf, 279, 4, planeSize);      // StripByteCounts
+			buf.putInt(next);
+		}
+		buf.clear();
+		return buf;
+	}
+
+	/*
+	 * IFD entry with a single SHORT (3) or LONG (4) value.
+	 */
+	private static void putEntry(ByteBuffer buf, int tag, int type, int value) {
+		buf.putShort((short)tag).putShort((short)type).putInt(1);
+		if(type == 3)
+			buf.putShort((short)value).putShort((short)0);
+		else
+			buf.putInt(value);
+	}
+
+	private static void putEntry(ByteBuffer buf, int tag, int type, int count, int offset) {
+		buf.putShort((short)tag).putShort((short)type).putInt(count).putInt(offset);
+	}
+
+	/**
+	 * Number of planes which are added but not yet written.
+	 */
+	public int getPending() {
+		return pending.get();
+	}
+
+	public long getNWritten() {
+		return nWritten.get();
+	}
+
+	/**
+	 * Write throughput of the writer thread, in MB/s.
+	 */
+	public double getThroughput() {
+		long t = writeTime.get();
+		return t == 0 ? 0 : bytesWritten.get() / 1e6 / (t / 1e9);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Raw recorder: %d pending, high-water mark %d, %d planes written, %.1f MB/s",
+				getPending(), highWaterMark, nWritten.get(), getThroughput());
+	}
+}
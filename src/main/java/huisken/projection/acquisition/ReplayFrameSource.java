@@ -0,0 +1,164 @@
+package huisken.projection.acquisition;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Replays raw stacks recorded by RawStackRecorder, or other uncompressed
+ * 16-bit TIFF stacks whose planes are stored contiguously, at a given
+ * frame rate. The frames of all files are delivered one after the
+ * other, starting again with the first file after the last one.
+ */
+public class ReplayFrameSource extends PacedFrameSource {
+
+	private final RandomAccessFile[] files;
+	private final FileChannel[] channels;
+	private final long[] dataOffsets;
+	private final int[] nImages;
+	private final ByteOrder[] byteOrders;
+	private final int w, h;
+	private final int nFrames;
+	private final ByteBuffer buffer;
+
+	public ReplayFrameSource(File[] stacks, double fps, double jitterMillis, int nBuffers) throws IOException {
+		super(fps, jitterMillis, nBuffers);
+		int n = stacks.length;
+		files = new RandomAccessFile[n];
+		channels = new FileChannel[n];
+		dataOffsets = new long[n];
+		nImages = new int[n];
+		byteOrders = new ByteOrder[n];
+		int w = -1, h = -1, nFrames = 0;
+		for(int i = 0; i < n; i++) {
+			files[i] = new RandomAccessFile(stacks[i], "r");
+			channels[i] = files[i].getChannel();
+			int[] header = readHeader(channels[i], stacks[i]);
+			if(i == 0) {
+				w = header[0];
+				h = header[1];
+			} else if(header[0] != w || header[1] != h) {
+				throw new IOException(stacks[i] + " has a different size than " + stacks[0]);
+			}
+			dataOffsets[i] = header[2] & 0xffffffffL;
+			nImages[i] = header[3];
+			byteOrders[i] = header[4] == 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+			nFrames += nImages[i];
+		}
+		this.w = w;
+		this.h = h;
+		this.nFrames = nFrames;
+		this.buffer = ByteBuffer.allocateDirect(2 * w * h);
+	}
+
+	public int getWidth() {
+		return w;
+	}
+
+	public int getHeight() {
+		return h;
+	}
+
+	/**
+	 * Total number of frames of all files.
+	 */
+	public int getNFramesTotal() {
+		return nFrames;
+	}
+
+	@Override
+	protected void fill(short[] frame, int frameInStack, long index) {
+		int i = (int)(index % nFrames);
+		int f = 0;
+		while(i >= nImages[f])
+			i -= nImages[f++];
+		buffer.clear();
+		buffer.order(byteOrders[f]);
+		long pos = dataOffsets[f] + (long)i * 2 * w * h;
+		try {
+			while(buffer.hasRemaining()) {
+				int read = channels[f].read(buffer, pos + buffer.position());
+				if(read < 0)
+					throw new IOException("Unexpected end of file");
+			}
+		} catch(IOException e) {
+			throw new RuntimeException("Cannot read frame " + index, e);
+		}
+		buffer.flip();
+		buffer.asShortBuffer().get(frame, 0, w * h);
+	}
+
+	public void close() throws IOException {
+		for(RandomAccessFile f : files)
+			f.close();
+	}
+
+	/*
+	 * Returns { width, height, offset of the first plane, #images,
+	 * 0 for big endian or 1 for little endian }. The number of images
+	 * is taken from the ImageJ description if present, otherwise the
+	 * IFDs are counted.
+	 */
+	private static int[] readHeader(FileChannel channel, File file) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(8);
+		readFully(channel, buf, 0);
+		int order = buf.get(0) == 'M' ? 0 : 1;
+		buf.order(order == 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+		if(buf.getShort(2) != 42)
+			throw new IOException(file + " is not a TIFF file");
+		long ifd = buf.getInt(4) & 0xffffffffL;
+
+		int w = -1, h = -1, bits = -1, compression = 1, offset = -1, nImages = 0;
+		long firstIFD = ifd;
+		String description = null;
+		while(ifd != 0) {
+			nImages++;
+			ByteBuffer count = ByteBuffer.allocate(2).order(buf.order());
+			readFully(channel, count, ifd);
+			int nEntries = count.getShort(0) & 0xffff;
+			ByteBuffer entries = ByteBuffer.allocate(12 * nEntries + 4).order(buf.order());
+			readFully(channel, entries, ifd + 2);
+			if(ifd == firstIFD) {
+				for(int e = 0; e < nEntries; e++) {
+					int tag = entries.getShort(12 * e) & 0xffff;
+					int type = entries.getShort(12 * e + 2) & 0xffff;
+					int n = entries.getInt(12 * e + 4);
+					int value = type == 3 ? entries.getShort(12 * e + 8) & 0xffff : entries.getInt(12 * e + 8);
+					switch(tag) {
+					case 256: w = value; break;
+					case 257: h = value; break;
+					case 258: bits = value; break;
+					case 259: compression = value; break;
+					case 273: offset = value; break;
+					case 270:
+						ByteBuffer desc = ByteBuffer.allocate(n);
+						readFully(channel, desc, n <= 4 ? ifd + 2 + 12 * e + 8 : value & 0xffffffffL);
+						description = new String(desc.array());
+						break;
+					}
+				}
+				if(description != null && description.startsWith("ImageJ=")) {
+					int i = description.indexOf("images=");
+					if(i >= 0) {
+						int end = description.indexOf('\n', i);
+						nImages = Integer.parseInt(description.substring(i + 7, end < 0 ? description.length() : end).trim());
+						break;
+					}
+				}
+			}
+			ifd = entries.getInt(12 * nEntries) & 0xffffffffL;
+		}
+		if(bits != 16 || compression != 1 || w <= 0 || h <= 0 || offset == -1)
+			throw new IOException(file + " is not an uncompressed 16-bit stack");
+		return new int[] { w, h, offset, nImages, order };
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+		while(buf.hasRemaining())
+			if(channel.read(buf, position + buf.position()) < 0)
+				throw new IOException("Unexpected end of file");
+	}
+}
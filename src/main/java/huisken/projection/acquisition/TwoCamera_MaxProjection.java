@@ -1,13 +1,16 @@
 package huisken.projection.acquisition;
 
 import fiji.util.gui.GenericDialogPlus;
+import huisken.projection.processing.AsyncVerticesWriter;
+import huisken.projection.processing.LiveProjection;
+import huisken.projection.processing.LiveProjectionServer;
+import huisken.projection.processing.ProjectionStatistics;
 import huisken.projection.processing.TwoCameraSphericalMaxProjection;
+import huisken.projection.viz.SphereProjectionViewer;
 import huisken.util.Stage_Calibration;
 import ij.IJ;
-import ij.ImagePlus;
 import ij.Prefs;
 import ij.plugin.PlugIn;
-import ij.process.ShortProcessor;
 
 import java.awt.FlowLayout;
 import java.awt.event.ActionEvent;
@@ -40,6 +43,40 @@ public class TwoCamera_MaxProjection implements PlugIn {
 
 	private static final int PORT = 1236;
 
+	public TwoCamera_MaxProjection() {}
+
+	/**
+	 * Sets up the acquisition without the camera and the dialogs, to run
+	 * it with acquire(), e.g. from a simulated camera. The frames are
+	 * acquired in the order timepoint, sample, angle, plane,
+	 * illumination; d is the number of planes per illumination. If crop
+	 * is true, cropToLUT() must have been called on the projections.
+	 */
+	public TwoCamera_MaxProjection(TwoCameraSphericalMaxProjection[] mmsmp,
+			int nTimepoints, int nAngles,
+			int w, int h, int d,
+			boolean crop,
+			FIFO.OverflowPolicy overflowPolicy, File spillDir) {
+		this.mmsmp = mmsmp;
+		this.liveServers = new LiveProjectionServer[mmsmp.length];
+		this.nTimepoints = nTimepoints;
+		this.nSamples = mmsmp.length;
+		this.nAngles = nAngles;
+		this.w = w;
+		this.h = h;
+		this.d = d;
+		this.crop = crop;
+		this.overflowPolicy = overflowPolicy;
+		this.spillDir = spillDir;
+		frameSize = w * h;
+		if(crop) {
+			frameSize = 0;
+			for(TwoCameraSphericalMaxProjection tcsmp : mmsmp)
+				frameSize = Math.max(frameSize, tcsmp.getMaxCropSize());
+		}
+		fifo = createFIFO();
+	}
+
 	@Override
 	public void run(String arg) {
 		File defaultdir = new File("D:\\SPIMdata");
@@ -105,6 +142,27 @@ public class TwoCamera_MaxProjection implements PlugIn {
 			gd.addNumericField("Layer width", 140.00, 2);
 			gd.addNumericField("#Layers", 1, 0);
 			gd.addCheckbox("Save raw data", false);
+			gd.addCheckbox("Write projections to container file", false);
+			gd.addCheckbox("Only buffer pixels used for the projection", true);
+			gd.addNumericField("#Projection threads", 1, 0);
+			gd.addCheckbox("Save mean projection", false);
+			gd.addCheckbox("Save depth of maximum", false);
+			gd.addNumericField("Save k largest values (0 for none)", 0, 0);
+			String[] policies = new String[FIFO.OverflowPolicy.values().length];
+			for(int i = 0; i < policies.length; i++)
+				policies[i] = FIFO.OverflowPolicy.values()[i].toString();
+			gd.addChoice("Buffer overflow", policies, FIFO.OverflowPolicy.SPILL_TO_DISK.toString());
+			gd.addNumericField("Stacks written in the background (0 for none)", 2, 0);
+			String[] syncPolicies = new String[AsyncVerticesWriter.SyncPolicy.values().length];
+			for(int i = 0; i < syncPolicies.length; i++)
+				syncPolicies[i] = AsyncVerticesWriter.SyncPolicy.values()[i].toString();
+			gd.addChoice("Sync to disk", syncPolicies, AsyncVerticesWriter.SyncPolicy.NONE.toString());
+			gd.addCheckbox("Reduce quality while the projection falls behind", false);
+			gd.addCheckbox("Keep only the LUTs of the current and the next angle in memory", nAngles > 2);
+			gd.addCheckbox("Project samples in parallel", nSamples > 1);
+			gd.addNumericField("Memory for frames waiting to be projected (MB)", 1024, 0);
+			gd.addCheckbox("Show live preview", false);
+			gd.addNumericField("Live preview port (0 for none)", 0, 0);
 			gd.showDialog();
 			if(gd.wasCanceled())
 				return;
@@ -116,12 +174,40 @@ public class TwoCamera_MaxProjection implements PlugIn {
 			layerWidth = gd.getNextNumber();
 			nLayers = (int)gd.getNextNumber();
 			saveRaw = gd.getNextBoolean();
+			useContainer = gd.getNextBoolean();
+			crop = gd.getNextBoolean();
+			if(crop && saveRaw) {
+				IJ.log("Saving raw data needs full frames, not cropping");
+				crop = false;
+			}
+			nThreads = (int)gd.getNextNumber();
+			statistics = 0;
+			if(gd.getNextBoolean())
+				statistics |= ProjectionStatistics.MEAN;
+			if(gd.getNextBoolean())
+				statistics |= ProjectionStatistics.ARGMAX;
+			topK = (int)gd.getNextNumber();
+			if(topK > 0)
+				statistics |= ProjectionStatistics.TOPK;
+			// maxima, mean, depth and top k
+			int filesPerLayer = 1 + Integer.bitCount(statistics & ~ProjectionStatistics.TOPK) + Math.max(topK, 0);
+			overflowPolicy = FIFO.OverflowPolicy.values()[gd.getNextChoiceIndex()];
+			asyncStacks = (int)gd.getNextNumber();
+			syncPolicy = AsyncVerticesWriter.SyncPolicy.values()[gd.getNextChoiceIndex()];
+			adaptiveQuality = gd.getNextBoolean();
+			boolean lutResidency = gd.getNextBoolean();
+			parallelSamples = gd.getNextBoolean();
+			pipelineBudget = (long)gd.getNextNumber() << 20;
+			boolean showLive = gd.getNextBoolean();
+			int livePort = (int)gd.getNextNumber();
+			spillDir = outputdir;
 
 
 
 			nTimepoints    = timepoints;
 
 			mmsmp = new TwoCameraSphericalMaxProjection[nSamples];
+			liveServers = new LiveProjectionServer[nSamples];
 			for(int sample = 0; sample < nSamples; sample++) {
 				File sampledir = new File(outputdir, "sample" + sample);
 				FileInputStream config = new FileInputStream(new File(sampledir, "SMP.xml"));
@@ -161,7 +247,34 @@ public class TwoCamera_MaxProjection implements PlugIn {
 						pw, ph, pd,
 						center, radius,
 						layerWidth, nLayers,
-						trans);
+						trans,
+						// store the LUTs of each angle as soon as it is built
+						lutResidency ? new File(sampledir, "luts") : null);
+				mmsmp[sample].setNumThreads(nThreads);
+				mmsmp[sample].setUseContainer(useContainer);
+				mmsmp[sample].setStatistics(statistics, topK);
+				if(asyncStacks > 0)
+					mmsmp[sample].setAsyncWriting(asyncStacks * nLayers * filesPerLayer, syncPolicy);
+				if(crop)
+					mmsmp[sample].cropToLUT();
+				if(adaptiveQuality)
+					mmsmp[sample].setAdaptiveQuality(true);
+				if(showLive || livePort > 0) {
+					LiveProjection live = new LiveProjection();
+					mmsmp[sample].setLiveProjection(live);
+					// one port per sample
+					if(livePort > 0)
+						liveServers[sample] = new LiveProjectionServer(live, livePort + sample);
+					if(showLive)
+						SphereProjectionViewer.showLive(mmsmp[sample].createSphericalMaxProjection(), live, -1, -1, nLayers / 2);
+				}
+			}
+			frameSize = w * h;
+			if(crop) {
+				frameSize = 0;
+				for(TwoCameraSphericalMaxProjection tcsmp : mmsmp)
+					frameSize = Math.max(frameSize, tcsmp.getMaxCropSize());
+				IJ.log("Buffering " + frameSize + " of " + (w * h) + " pixels per frame");
 			}
 		} catch(Exception e) {
 			e.printStackTrace();
@@ -171,68 +284,304 @@ public class TwoCamera_MaxProjection implements PlugIn {
 	}
 
 	private TwoCameraSphericalMaxProjection[] mmsmp;
+	private LiveProjectionServer[] liveServers;
 	private CameraApp cameraApp;
 
 
-	protected int w, h, d, nTimepoints, nSamples, nAngles, nLayers;
+	protected int w, h, d, nTimepoints, nSamples, nAngles, nLayers, nThreads;
 	protected double layerWidth;
+	protected FIFO.OverflowPolicy overflowPolicy = FIFO.OverflowPolicy.BLOCK;
+	protected File spillDir;
 	private boolean saveRaw;
+	// number of raw planes which may wait to be written
+	private static final int RAW_BUFFERS = 16;
+	private boolean useContainer;
+	private boolean crop;
+	private int frameSize;
+	private int statistics, topK;
+	private int asyncStacks;
+	private AsyncVerticesWriter.SyncPolicy syncPolicy;
+	private boolean adaptiveQuality;
+	// if true, the samples are projected by a ProjectionPipeline
+	private boolean parallelSamples;
+	private long pipelineBudget;
 	private boolean cameraAcquiring = false;
 	protected FIFO fifo;
 
+	/**
+	 * Saves the raw stacks next to the projections; needs full frames.
+	 */
+	public void setSaveRaw(boolean saveRaw) {
+		if(saveRaw && crop)
+			throw new IllegalStateException("Saving raw data needs full frames, not cropping");
+		this.saveRaw = saveRaw;
+	}
+
+	/**
+	 * Reduces the projection quality while the projection falls behind,
+	 * see DegradationPolicy. The projections must have adaptive quality
+	 * enabled.
+	 */
+	public void setAdaptiveQuality(boolean adaptiveQuality) {
+		this.adaptiveQuality = adaptiveQuality;
+	}
+
+	/**
+	 * Projects the samples in parallel in a ProjectionPipeline with the
+	 * given memory budget (in bytes); 0 projects them one after the other.
+	 */
+	public void setParallelSamples(long pipelineBudget) {
+		this.parallelSamples = pipelineBudget > 0;
+		this.pipelineBudget = pipelineBudget;
+	}
+
+	public FIFO getFIFO() {
+		return fifo;
+	}
+
+	/**
+	 * Acquires all stacks from the given source while they are projected
+	 * in a second thread. Returns when all frames are projected and the
+	 * projections are closed.
+	 */
+	public void acquire(FrameSource source) {
+		Thread consumer = new Thread("Projection") {
+			@Override
+			public void run() {
+				consume();
+			}
+		};
+		consumer.start();
+		try {
+			produce(source);
+		} catch(RuntimeException e) {
+			consumer.interrupt();
+			throw e;
+		}
+		try {
+			consumer.join();
+		} catch(InterruptedException e) {
+			consumer.interrupt();
+			e.printStackTrace();
+		}
+	}
+
+	private FIFO createFIFO() {
+		return new FIFO(2 * d, frameSize, overflowPolicy, FIFO.WaitStrategy.BLOCK, spillDir, 4 * d);
+	}
+
 	private final void consume() {
-		final short[] toProcess = new short[w * h];
 		final int d2 = 2 * d;
-		for(int t = 0; t < nTimepoints; t++) {
-			for(int s = 0; s < nSamples; s++) {
-				for(int a = 0; a < nAngles; a++) {
-					long start =  System.currentTimeMillis();
-					File tpDir = null;
-					if(saveRaw) {
-						tpDir = new File(mmsmp[s].getOutputDirectory(), String.format("tp%04d_a%03d", t, a));
-						tpDir.mkdir();
+		RawStackRecorder recorder = saveRaw ? new RawStackRecorder(w, h, RAW_BUFFERS) : null;
+		DegradationPolicy degradation = adaptiveQuality ?
+				new DegradationPolicy(TwoCameraSphericalMaxProjection.LOWEST_QUALITY) : null;
+		ProjectionPipeline pipeline = null;
+		if(parallelSamples) {
+			pipeline = new ProjectionPipeline(frameSize, pipelineBudget);
+			for(TwoCameraSphericalMaxProjection tcsmp : mmsmp)
+				pipeline.addWorker(tcsmp);
+		}
+		// The producer commits the frames in the order of the loops
+		// in produce(), so the sequence number of a frame determines
+		// its timepoint, sample, angle, plane and illumination. With
+		// OverflowPolicy.DROP_OLDEST, frames may be missing; a stack
+		// with missing frames is not projected, since its projection
+		// would be incomplete.
+		long nFrames = (long)nTimepoints * nSamples * nAngles * d2;
+		long stack = -1;
+		boolean skipStack = false;
+		// next frame which is expected from the FIFO and the recorder
+		long expected = 0, recorded = 0;
+		long start = 0;
+		while(expected < nFrames) {
+			short[] toProcess;
+			try {
+				toProcess = fifo.take();
+			} catch(InterruptedException e) {
+				e.printStackTrace();
+				return;
+			}
+			long seq = fifo.getSequence();
+			if(seq != expected) {
+				System.out.println("Lost frames " + expected + " to " + (seq - 1));
+				// the rest of the current stack is skipped
+				if(expected / d2 == stack && !skipStack) {
+					skipStack = true;
+					System.out.println("Skipping " + getStackName(stack));
+				}
+			}
+			expected = seq + 1;
+
+			int i = (int)(seq % d2);
+			int f = i / 2, ill = i % 2;
+			int a = (int)(seq / d2 % nAngles);
+			int s = (int)(seq / d2 / nAngles % nSamples);
+			int t = (int)(seq / d2 / nAngles / nSamples);
+
+			if(seq / d2 != stack) {
+				stack = seq / d2;
+				start = System.currentTimeMillis();
+				skipStack = i != 0;
+				if(skipStack)
+					System.out.println("Skipping " + getStackName(stack));
+				else {
+					int quality = -1;
+					if(degradation != null) {
+						// frames waiting in the pipeline count as backlog, too
+						double occupancy = fifo.size() / (double)fifo.capacity();
+						if(pipeline != null)
+							occupancy = Math.max(occupancy, pipeline.getOccupancy());
+						quality = degradation.update(occupancy);
 					}
-					for(int f = 0; f < d; f++) {
-						for(int ill = 0; ill < 2; ill++) {
-							fifo.get(toProcess);
-							mmsmp[s].process(toProcess, t, a, f, ill);
-							if(saveRaw)
-								IJ.save(new ImagePlus("", new ShortProcessor(w, h, toProcess, null)), new File(tpDir, String.format("%04d_ill%d.tif", f, ill)).getAbsolutePath());
+					if(pipeline != null)
+						pipeline.startStack(s, d2, quality, degradation == null ? null : degradation.getReason());
+					else if(degradation != null)
+						mmsmp[s].setQuality(quality, degradation.getReason());
+				}
+			}
+
+			// raw stacks are recorded with blank planes for lost frames;
+			// if they cannot be written, the projection continues without
+			if(recorder != null) {
+				try {
+					while(recorded <= seq) {
+					long st = recorded / d2;
+						if(recorded % d2 == 0) {
+							File dir = new File(mmsmp[(int)(st / nAngles % nSamples)].getOutputDirectory());
+							recorder.startStack(RawStackRecorder.getFile(dir,
+									(int)(st / nAngles / nSamples), (int)(st % nAngles)), d2, 2);
+						}
+						if(recorded == seq) {
+							recorder.addPlane(toProcess);
+							recorded++;
+						} else {
+							int n = (int)(Math.min(seq, (st + 1) * d2) - recorded);
+							recorder.skipPlanes(n);
+							recorded += n;
 						}
 					}
-					long end = System.currentTimeMillis();
-					System.out.println("Processing: Needed " + (end - start) + "ms " + 1000f * d2 / (end - start) + " fps");
+				} catch(RuntimeException e) {
+					rawRecordingFailed(recorder, e);
+					recorder = null;
 				}
 			}
+
+			if(skipStack) {
+				fifo.release();
+			} else if(pipeline != null) {
+				// the frame is handed to the worker, and the FIFO
+				// gets an empty pipeline buffer in exchange
+				try {
+					short[] frame = fifo.detach(pipeline.claim());
+					pipeline.submit(s, t, a, f, ill, frame);
+				} catch(InterruptedException e) {
+					e.printStackTrace();
+					return;
+				}
+			} else {
+				mmsmp[s].process(toProcess, t, a, f, ill);
+				fifo.release();
+			}
+
+			if(i < d2 - 1)
+				continue;
+			long end = System.currentTimeMillis();
+			System.out.println((skipStack ? "Skipping" : pipeline != null ? "Dispatching" : "Processing") + ": Needed " +
+					(end - start) + "ms " + 1000f * d2 / (end - start) + " fps");
+			System.out.println(fifo);
+			if(pipeline != null)
+				System.out.println(pipeline);
+			if(degradation != null)
+				System.out.println(degradation);
+			if(recorder != null)
+				System.out.println(recorder);
+			if(pipeline == null && mmsmp[s].getWriter() != null)
+				System.out.println(mmsmp[s].getWriter());
+		}
+		if(pipeline != null)
+			pipeline.close();
+		for(TwoCameraSphericalMaxProjection tcsmp : mmsmp) {
+			tcsmp.close();
+			if(tcsmp.getLiveProjection() != null)
+				tcsmp.getLiveProjection().close();
+		}
+		for(LiveProjectionServer server : liveServers)
+			if(server != null)
+				server.close();
+		if(recorder != null) {
+			try {
+				recorder.close();
+			} catch(RuntimeException e) {
+				rawRecordingFailed(recorder, e);
+			}
 		}
+		try {
+			fifo.close();
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * Called if the raw stacks cannot be written: the recording is
+	 * stopped, but the acquisition and projection continue.
+	 */
+	private void rawRecordingFailed(RawStackRecorder recorder, RuntimeException e) {
+		e.printStackTrace();
+		System.out.println("Cannot save raw data, continuing without: " + e.getMessage());
+		try {
+			recorder.close();
+		} catch(RuntimeException ignored) {
+			// the error was reported above
+		}
+	}
+
+	private String getStackName(long stack) {
+		return "stack " + (stack % nAngles) + " of sample " + (stack / nAngles % nSamples) +
+				", timepoint " + (stack / nAngles / nSamples);
 	}
 
 	protected void produce() {
-		AT at = cameraApp.getAT();
-		final short[] cache = new short[w * h];
+		produce(new AndorFrameSource(cameraApp.getAT()));
+	}
+
+	protected void produce(FrameSource source) {
 		final int d2 = 2 * d;
+		// the camera always delivers full frames
+		short[] full = crop ? new short[w * h] : null;
 		for(int t = 0; t < nTimepoints; t++) {
 			long tStart = -1;
 			for(int s = 0; s < nSamples; s++) {
 				for(int a = 0; a < nAngles; a++) {
-					at.AT_SetInt("FrameCount", d2);
-					at.AT_Command("AcquisitionStart");
+					source.startStack(d2);
 
 					long start = -1;
 					for(int f = 0; f < d; f++) {
 						for(int ill = 0; ill < 2; ill++) {
-							at.AT_NextFrame(cache);
+							short[] frame;
+							try {
+								frame = fifo.claim();
+							} catch(InterruptedException e) {
+								e.printStackTrace();
+								return;
+							}
+							if(crop) {
+								source.nextFrame(full);
+								mmsmp[s].getCrop(a, ill, f).gather(full, frame);
+							} else {
+								source.nextFrame(frame);
+							}
 							cameraAcquiring = true;
 							if(start == -1)
 								start = System.currentTimeMillis();
 							if(tStart == -1)
 								tStart = start;
 
-							fifo.add(cache);
+							fifo.commit();
 							// System.out.println("--- buffer: " + fifo.size() + "/100");
 						}
 					}
-					at.AT_Command("AcquisitionStop");
+					source.stopStack();
 					cameraAcquiring = false;
 					long end = System.currentTimeMillis();
 					System.out.println("Acquisition: Needed " + (end - start) + "ms  " + 1000f * d2 / (end - start) + " fps");
@@ -247,7 +596,7 @@ public class TwoCamera_MaxProjection implements PlugIn {
 		exec.execute(new Runnable() {
 			@Override
 			public void run() {
-				fifo = new FIFO(2 * d, w * h);
+				fifo = createFIFO();
 				new Thread() {
 					@Override
 					public void run() {
@@ -0,0 +1,377 @@
+package huisken.projection.processing;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes per-vertex data in a background thread, so that a slow disk
+ * or network share does not stall the thread which calls write().
+ *
+ * write() takes ownership of the given buffer and returns an empty one
+ * from a pool of maxPending buffers, which is refilled when the writes
+ * are done. If all buffers are pending, write() blocks, which bounds
+ * the memory used.
+ *
+ * The writer thread takes all pending writes at once and writes them
+ * one after the other; depending on the SyncPolicy, the written data
+ * is forced to the storage device after each write or once per batch.
+ * Callbacks passed to run() are called on the writer thread, after all
+ * previous writes were written and synced.
+ *
+ * If appending to a VerticesContainer fails, the data is written to the
+ * given fallback file instead, as are all later writes to that container.
+ */
+public class AsyncVerticesWriter {
+
+	public static enum SyncPolicy {
+		/** Leave it to the operating system. */
+		NONE,
+		/** Sync all data written in a batch at its end. */
+		BATCH,
+		/** Sync each file or frame after writing it. */
+		EACH
+	}
+
+	private static class Job {
+		final String path;
+		final VerticesContainer container;
+		final int tp, aIndex, camera, ill, layer;
+		final short[] data;
+		final Runnable callback;
+		final long submitted = System.nanoTime();
+
+		Job(String path, VerticesContainer container, int tp, int aIndex, int camera, int ill, int layer, short[] data, Runnable callback) {
+			this.path = path;
+			this.container = container;
+			this.tp = tp;
+			this.aIndex = aIndex;
+			this.camera = camera;
+			this.ill = ill;
+			this.layer = layer;
+			this.data = data;
+			this.callback = callback;
+		}
+
+		@Override
+		public String toString() {
+			return container != null ?
+				container.getFile() + String.format(" (tp %d, angle %d, camera %d, ill %d, layer %d)", tp, aIndex, camera, ill, layer) :
+				path;
+		}
+	}
+
+	private static final Job END = new Job(null, null, 0, 0, 0, 0, 0, null, null);
+
+	private final int nVertices;
+	private final SyncPolicy policy;
+	private final BlockingQueue<Job> queue = new LinkedBlockingQueue<Job>();
+	private final BlockingQueue<short[]> pool;
+	private final Thread thread;
+
+	// Metrics
+	private final AtomicInteger pending = new AtomicInteger();
+	private volatile int highWaterMark = 0;
+	private final AtomicLong nWritten = new AtomicLong();
+	private final AtomicLong nBatches = new AtomicLong();
+	private final AtomicLong totalLatency = new AtomicLong();
+	private volatile long maxLatency = 0;
+
+	private volatile Exception error = null;
+	private volatile String errorTarget = null;
+	private boolean closed = false;
+
+	// Owned by the writer thread
+	private final Set<VerticesContainer> failedContainers = new HashSet<VerticesContainer>();
+
+	/**
+	 * @param nVertices Length of the buffers.
+	 * @param maxPending Maximum number of buffers which are waiting to be
+	 *                   written.
+	 */
+	public AsyncVerticesWriter(int nVertices, int maxPending, SyncPolicy policy) {
+		if(maxPending < 1)
+			throw new IllegalArgumentException("maxPending must be positive");
+		this.nVertices = nVertices;
+		this.policy = policy;
+		this.pool = new LinkedBlockingQueue<short[]>();
+		for(int i = 0; i < maxPending; i++)
+			pool.add(new short[nVertices]);
+
+		thread = new Thread("AsyncVerticesWriter") {
+			@Override
+			public void run() {
+				work();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Writes data to path, in the format of
+	 * SphericalMaxProjection.saveShortData(), and returns an empty
+	 * buffer. data must not be used afterwards.
+	 */
+	public short[] write(String path, short[] data) {
+		short[] ret = take();
+		submit(new Job(path, null, 0, 0, 0, 0, 0, data, null));
+		return ret;
+	}
+
+	/**
+	 * Appends data to container and returns an empty buffer. data must
+	 * not be used afterwards. If the container cannot be written, data
+	 * is written to fallbackPath instead.
+	 */
+	public short[] write(VerticesContainer container, String fallbackPath, int tp, int aIndex, int camera, int ill, int layer, short[] data) {
+		short[] ret = take();
+		submit(new Job(fallbackPath, container, tp, aIndex, camera, ill, layer, data, null));
+		return ret;
+	}
+
+	/**
+	 * Like write(String, short[]), for data which is still used by the
+	 * caller; data is copied into a buffer of the pool.
+	 */
+	public void writeCopy(String path, short[] data) {
+		short[] copy = take();
+		System.arraycopy(data, 0, copy, 0, nVertices);
+		submit(new Job(path, null, 0, 0, 0, 0, 0, copy, null));
+	}
+
+	/**
+	 * Like write(VerticesContainer, ...), for data which is still used
+	 * by the caller.
+	 */
+	public void writeCopy(VerticesContainer container, String fallbackPath, int tp, int aIndex, int camera, int ill, int layer, short[] data) {
+		short[] copy = take();
+		System.arraycopy(data, 0, copy, 0, nVertices);
+		submit(new Job(fallbackPath, container, tp, aIndex, camera, ill, layer, copy, null));
+	}
+
+	/**
+	 * Calls callback on the writer thread once everything submitted
+	 * before was written.
+	 */
+	public void run(Runnable callback) {
+		submit(new Job(null, null, 0, 0, 0, 0, 0, null, callback));
+	}
+
+	/**
+	 * Waits until everything submitted before was written.
+	 */
+	public void flush() {
+		synchronized(this) {
+			while(pending.get() > 0 && thread.isAlive()) {
+				try {
+					wait();
+				} catch(InterruptedException e) {
+					throw new RuntimeException("Interrupted while flushing", e);
+				}
+			}
+		}
+		checkError();
+	}
+
+	/**
+	 * Writes the remaining data and stops the writer thread.
+	 */
+	public void close() {
+		synchronized(this) {
+			if(closed)
+				return;
+			closed = true;
+		}
+		queue.add(END);
+		try {
+			thread.join();
+		} catch(InterruptedException e) {
+			throw new RuntimeException("Interrupted while closing", e);
+		}
+		checkError();
+	}
+
+	private short[] take() {
+		checkError();
+		try {
+			return pool.take();
+		} catch(InterruptedException e) {
+			throw new RuntimeException("Interrupted while waiting for a buffer", e);
+		}
+	}
+
+	private void submit(Job job) {
+		if(job.data != null && job.data.length != nVertices)
+			throw new IllegalArgumentException("Expected " + nVertices + " values, got " + job.data.length);
+		synchronized(this) {
+			if(closed)
+				throw new IllegalStateException("Writer is closed");
+		}
+		int p = pending.incrementAndGet();
+		if(p > highWaterMark)
+			highWaterMark = p;
+		queue.add(job);
+	}
+
+	private void checkError() {
+		if(error != null)
+			throw new RuntimeException("Cannot write " + errorTarget, error);
+	}
+
+	private void work() {
+		List<Job> batch = new ArrayList<Job>();
+		LinkedHashSet<Object> toSync = new LinkedHashSet<Object>();
+		boolean end = false;
+		while(!end) {
+			batch.clear();
+			try {
+				batch.add(queue.take());
+			} catch(InterruptedException e) {
+				return;
+			}
+			queue.drainTo(batch);
+
+			toSync.clear();
+			for(Job job : batch) {
+				if(job == END) {
+					end = true;
+					continue;
+				}
+				if(job.data == null)
+					continue;
+				try {
+					Object written = write(job);
+					if(policy == SyncPolicy.BATCH)
+						toSync.add(written);
+				} catch(Exception e) {
+					fail(job.toString(), e);
+				}
+			}
+			for(Object o : toSync) {
+				try {
+					sync(o);
+				} catch(Exception e) {
+					fail(o.toString(), e);
+				}
+			}
+
+			long now = System.nanoTime();
+			for(Job job : batch) {
+				if(job == END)
+					continue;
+				if(job.data != null) {
+					long latency = now - job.submitted;
+					totalLatency.addAndGet(latency);
+					if(latency > maxLatency)
+						maxLatency = latency;
+					nWritten.incrementAndGet();
+					pool.add(job.data);
+				}
+				if(job.callback != null) {
+					try {
+						job.callback.run();
+					} catch(Exception e) {
+						e.printStackTrace();
+					}
+				}
+				pending.decrementAndGet();
+			}
+			nBatches.incrementAndGet();
+			synchronized(this) {
+				notifyAll();
+			}
+		}
+	}
+
+	/*
+	 * Returns the container or path which was written.
+	 */
+	private Object write(Job job) throws IOException {
+		boolean sync = policy == SyncPolicy.EACH;
+		if(job.container != null && !failedContainers.contains(job.container)) {
+			try {
+				job.container.write(job.tp, job.aIndex, job.camera, job.ill, job.layer, job.data);
+				if(sync)
+					job.container.sync();
+				return job.container;
+			} catch(IOException e) {
+				if(job.path == null)
+					throw e;
+				// don't stop the acquisition: this and all later data
+				// of the container go to individual files
+				e.printStackTrace();
+				System.out.println("Cannot write to " + job.container.getFile() + ", writing individual files instead");
+				failedContainers.add(job.container);
+			}
+		}
+		SphericalMaxProjection.saveShortData(job.data, job.path, sync);
+		return job.path;
+	}
+
+	private static void sync(Object o) throws IOException {
+		if(o instanceof VerticesContainer) {
+			((VerticesContainer)o).sync();
+			return;
+		}
+		RandomAccessFile raf = new RandomAccessFile((String)o, "rw");
+		try {
+			raf.getChannel().force(true);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void fail(String target, Exception e) {
+		e.printStackTrace();
+		if(error == null) {
+			errorTarget = target;
+			error = e;
+		}
+	}
+
+	/**
+	 * Number of writes which are submitted but not yet done.
+	 */
+	public int getPending() {
+		return pending.get();
+	}
+
+	public int getHighWaterMark() {
+		return highWaterMark;
+	}
+
+	public long getNWritten() {
+		return nWritten.get();
+	}
+
+	/**
+	 * Mean time from submission to completion of a write, in ms.
+	 */
+	public double getMeanLatency() {
+		long n = nWritten.get();
+		return n == 0 ? 0 : totalLatency.get() / 1e6 / n;
+	}
+
+	/**
+	 * Maximum time from submission to completion of a write, in ms.
+	 */
+	public double getMaxLatency() {
+		return maxLatency / 1e6;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Writer: %d pending, high-water mark %d, written %d in %d batches, latency mean %.1f ms, max %.1f ms",
+				getPending(), highWaterMark, nWritten.get(), nBatches.get(),
+				getMeanLatency(), getMaxLatency());
+	}
+}
@@ -0,0 +1,57 @@
+package huisken.projection.processing;
+
+import fiji.util.gui.GenericDialogPlus;
+import ij.IJ;
+import ij.plugin.PlugIn;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Converts a folder of tpXXXX_aXXXX_lXX.vertices files into
+ * VerticesContainer files, one per camera.
+ */
+public class Convert_To_Container implements PlugIn {
+
+	@Override
+	public void run(String arg) {
+		GenericDialogPlus gd = new GenericDialogPlus("Convert to container");
+		gd.addDirectoryField("Data directory", "");
+		gd.addNumericField("#angles", 1, 0);
+		gd.addNumericField("#angleInc", 45, 0);
+		gd.addCheckbox("Delete converted files", false);
+		gd.showDialog();
+		if(gd.wasCanceled())
+			return;
+
+		String datadir = gd.getNextString();
+		int nAngles = (int)gd.getNextNumber();
+		int angleInc = (int)gd.getNextNumber();
+		boolean delete = gd.getNextBoolean();
+
+		try {
+			convert(new File(datadir), nAngles, angleInc, delete);
+		} catch(IOException e) {
+			e.printStackTrace();
+			IJ.error(e.getMessage());
+		}
+	}
+
+	public static void convert(File dir, int nAngles, int angleInc, boolean delete) throws IOException {
+		SphericalMaxProjection smp = new SphericalMaxProjection(new File(dir, "Sphere.obj").getAbsolutePath(),
+				SphericalMaxProjection.getMeshCacheDir(dir));
+		long start = System.currentTimeMillis();
+		int n = VerticesContainer.convert(dir, nAngles, angleInc, smp.getSphere().nVertices, delete);
+		long end = System.currentTimeMillis();
+		System.out.println("Converted " + n + " files in " + (end - start) + " ms");
+	}
+
+	public static void main(String[] args) throws IOException {
+		if(args.length < 3) {
+			System.out.println("Usage: Convert_To_Container <directory> <#angles> <angleInc> [-delete]");
+			return;
+		}
+		boolean delete = args.length > 3 && args[3].equals("-delete");
+		convert(new File(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]), delete);
+	}
+}
@@ -0,0 +1,181 @@
+package huisken.projection.processing;
+
+import javax.vecmath.Point3f;
+
+/**
+ * Balanced kd-tree of the face centroids of a triangle mesh, stored
+ * implicitly in flat arrays: the node of the index range [lo, hi) is
+ * its median (lo + hi) / 2, its children are the ranges left and right
+ * of it. Unlike fiji.util.KDTree, it does not create objects per
+ * query, since each thread re-uses its search state, and can be saved
+ * to and loaded from a mesh file.
+ */
+public class FaceKDTree {
+
+	// centroid coordinates, (x, y, z) per node
+	final float[] coords;
+	// face index (first index into the face array / 3) per node
+	final int[] faces;
+	// split dimension per node
+	final byte[] dims;
+
+	private final ThreadLocal<Search> search = new ThreadLocal<Search>() {
+		@Override
+		protected Search initialValue() {
+			return new Search();
+		}
+	};
+
+	public FaceKDTree(IndexedTriangleMesh mesh) {
+		int n = mesh.nFaces / 3;
+		coords = new float[3 * n];
+		faces = new int[n];
+		dims = new byte[n];
+
+		Point3f[] v = mesh.getVertices();
+		int[] f = mesh.getFaces();
+		for(int i = 0; i < n; i++) {
+			Point3f p1 = v[f[3 * i]];
+			Point3f p2 = v[f[3 * i + 1]];
+			Point3f p3 = v[f[3 * i + 2]];
+			coords[3 * i]     = (p1.x + p2.x + p3.x) / 3f;
+			coords[3 * i + 1] = (p1.y + p2.y + p3.y) / 3f;
+			coords[3 * i + 2] = (p1.z + p2.z + p3.z) / 3f;
+			faces[i] = i;
+		}
+		build(0, n);
+	}
+
+	FaceKDTree(float[] coords, int[] faces, byte[] dims) {
+		if(coords.length != 3 * faces.length || dims.length != faces.length)
+			throw new IllegalArgumentException("Inconsistent tree arrays");
+		this.coords = coords;
+		this.faces = faces;
+		this.dims = dims;
+	}
+
+	public int size() {
+		return faces.length;
+	}
+
+	/**
+	 * Returns the index of the face whose centroid is closest to
+	 * (x, y, z), or -1 if the tree is empty.
+	 */
+	public int findNearestFace(float x, float y, float z) {
+		Search s = search.get();
+		s.reset(x, y, z);
+		s.search(0, faces.length);
+		return s.best < 0 ? -1 : faces[s.best];
+	}
+
+	private final class Search {
+		private float x, y, z;
+		private int best;
+		private float bestDist2;
+
+		void reset(float x, float y, float z) {
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			best = -1;
+			bestDist2 = Float.POSITIVE_INFINITY;
+		}
+
+		void search(int lo, int hi) {
+			if(lo >= hi)
+				return;
+			int m = (lo + hi) >>> 1;
+			float dx = x - coords[3 * m];
+			float dy = y - coords[3 * m + 1];
+			float dz = z - coords[3 * m + 2];
+			float d2 = dx * dx + dy * dy + dz * dz;
+			if(d2 < bestDist2) {
+				bestDist2 = d2;
+				best = m;
+			}
+			int dim = dims[m];
+			float diff = dim == 0 ? dx : (dim == 1 ? dy : dz);
+			if(diff < 0) {
+				search(lo, m);
+				if(diff * diff < bestDist2)
+					search(m + 1, hi);
+			} else {
+				search(m + 1, hi);
+				if(diff * diff < bestDist2)
+					search(lo, m);
+			}
+		}
+	}
+
+	private void build(int lo, int hi) {
+		while(hi - lo > 1) {
+			// split along the dimension of largest extent
+			float minx = Float.POSITIVE_INFINITY, maxx = Float.NEGATIVE_INFINITY;
+			float miny = minx, maxy = maxx, minz = minx, maxz = maxx;
+			for(int i = lo; i < hi; i++) {
+				float x = coords[3 * i], y = coords[3 * i + 1], z = coords[3 * i + 2];
+				if(x < minx) minx = x;
+				if(x > maxx) maxx = x;
+				if(y < miny) miny = y;
+				if(y > maxy) maxy = y;
+				if(z < minz) minz = z;
+				if(z > maxz) maxz = z;
+			}
+			float ex = maxx - minx, ey = maxy - miny, ez = maxz - minz;
+			int dim = ex >= ey && ex >= ez ? 0 : (ey >= ez ? 1 : 2);
+
+			int m = (lo + hi) >>> 1;
+			select(lo, hi - 1, m, dim);
+			dims[m] = (byte)dim;
+
+			// recurse into the smaller half, iterate over the larger one
+			if(m - lo < hi - m - 1) {
+				build(lo, m);
+				lo = m + 1;
+			} else {
+				build(m + 1, hi);
+				hi = m;
+			}
+		}
+	}
+
+	/*
+	 * Partially sorts the nodes lo..hi (inclusive) along dim, such that
+	 * node k is at its sorted position.
+	 */
+	private void select(int lo, int hi, int k, int dim) {
+		while(hi > lo) {
+			float pivot = coords[3 * ((lo + hi) >>> 1) + dim];
+			int i = lo, j = hi;
+			while(i <= j) {
+				while(coords[3 * i + dim] < pivot)
+					i++;
+				while(coords[3 * j + dim] > pivot)
+					j--;
+				if(i <= j) {
+					swap(i, j);
+					i++;
+					j--;
+				}
+			}
+			if(k <= j)
+				hi = j;
+			else if(k >= i)
+				lo = i;
+			else
+				return;
+		}
+	}
+
+	private void swap(int i, int j) {
+		for(int d = 0; d < 3; d++) {
+			float t = coords[3 * i + d];
+			coords[3 * i + d] = coords[3 * j + d];
+			coords[3 * j + d] = t;
+		}
+		int t = faces[i];
+		faces[i] = faces[j];
+		faces[j] = t;
+	}
+}
@@ -2,10 +2,7 @@ package huisken.projection.processing;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Stack;
 
 public class Floodfill {
 
@@ -16,7 +13,9 @@ public class Floodfill {
 	private final int[] intensities;
 	private final int segmentation[];
 	private int segmentationCounter = 1;
-	private final int[][] neighbors;
+	// vertex adjacency, see IndexedTriangleMesh.getNeighbors()
+	private final int[] offsets;
+	private final int[] neighbors;
 	private int selectedVertex = -1;
 	private ArrayList<Integer> currentSegmentation = null;
 	private int lowerThreshold;
@@ -33,7 +32,8 @@ public class Floodfill {
 			if(v > segmentationCounter)
 				segmentationCounter = v;
 		}
-		neighbors = calculateNeighbors(this.itm.getFaces(), this.itm.getVertices().length);
+		offsets = itm.getNeighborOffsets();
+		neighbors = itm.getNeighbors();
 	}
 
 	public int[] getSegmentation() {
@@ -59,30 +59,33 @@ public class Floodfill {
 	private void fill() {
 		if(selectedVertex != -1)
 		{
-			LinkedList<Integer> selected = new LinkedList<Integer>();
-			Stack<Integer> tmp = new Stack<Integer>();
-			int vertex;
-			boolean[] painted = new boolean[itm.getVertices().length];
-
-			tmp.push(new Integer(selectedVertex));
-			while (!tmp.isEmpty()) {
-				vertex = tmp.pop();
-				if (!painted[vertex] && intensities[vertex] >= lowerThreshold) {
-					selected.push(vertex);
-					painted[vertex] = true;
-					for(int i=0; i<neighbors[vertex].length; ++i)
-					{
-						tmp.push(new Integer(neighbors[vertex][i]));
+			int nVertices = itm.getVertices().length;
+			boolean[] painted = new boolean[nVertices];
+			currentSegmentation = new ArrayList<Integer>();
+
+			// each vertex is pushed at most once
+			int[] stack = new int[nVertices];
+			int top = 0;
+			if(intensities[selectedVertex] >= lowerThreshold) {
+				painted[selectedVertex] = true;
+				stack[top++] = selectedVertex;
+			}
+			while(top > 0) {
+				int vertex = stack[--top];
+				currentSegmentation.add(vertex);
+				for(int i = offsets[vertex]; i < offsets[vertex + 1]; i++) {
+					int n = neighbors[i];
+					if(!painted[n] && intensities[n] >= lowerThreshold) {
+						painted[n] = true;
+						stack[top++] = n;
 					}
 				}
 			}
-			currentSegmentation = new ArrayList<Integer>(selected);
 
-			HashSet<Integer> curr = new HashSet<Integer>(selected);
 			outline = new ArrayList<Integer>();
 			for(int v : currentSegmentation) {
-				for(int i = 0; i < neighbors[v].length; i++) {
-					if(!curr.contains(neighbors[v][i])) {
+				for(int i = offsets[v]; i < offsets[v + 1]; i++) {
+					if(!painted[neighbors[i]]) {
 						outline.add(v);
 						break;
 					}
@@ -96,79 +99,26 @@ public class Floodfill {
 			Arrays.fill(result, false);
 			return;
 		}
-		Arrays.fill(result, false);
-		int[] faces = itm.getFaces();
-		for(int i = 0; i < itm.nFaces; i += 3) {
-			int f1 = faces[i];
-			int f2 = faces[i + 1];
-			int f3 = faces[i + 2];
-
-			int s1 = segmentation[f1];
-			int s2 = segmentation[f2];
-			int s3 = segmentation[f3];
-
-			if(s1 > 0 && (s2 == 0 || s3 == 0))
-				result[f1] = true;
-			if(s2 > 0 && (s1 == 0 || s3 == 0))
-				result[f2] = true;
-			if(s3 > 0 && (s1 == 0 || s2 == 0))
-				result[f3] = true;
-		}
+		for(int v = 0; v < result.length; v++)
+			result[v] = segmentation[v] > 0 && hasUnsegmentedNeighbor(v);
 	}
 
 	public ArrayList<Integer> calculateOutlines(int label) {
 		if(segmentation == null)
 			return null;
 
-		HashSet<Integer> outline = new HashSet<Integer>();
-
-		int[] faces = itm.getFaces();
-		for(int i = 0; i < itm.nFaces; i += 3) {
-			int f1 = faces[i];
-			int f2 = faces[i + 1];
-			int f3 = faces[i + 2];
-
-			int s1 = segmentation[f1];
-			int s2 = segmentation[f2];
-			int s3 = segmentation[f3];
-
-			if(s1 == label && (s2 == 0 || s3 == 0))
-				outline.add(f1);
-			if(s2 == label && (s1 == 0 || s3 == 0))
-				outline.add(f2);
-			if(s3 == label && (s1 == 0 || s2 == 0))
-				outline.add(f3);
-		}
-		return new ArrayList<Integer>(outline);
+		ArrayList<Integer> outline = new ArrayList<Integer>();
+		for(int v = 0; v < segmentation.length; v++)
+			if(segmentation[v] == label && hasUnsegmentedNeighbor(v))
+				outline.add(v);
+		return outline;
 	}
 
-	private int[][] calculateNeighbors(int[] faces, int nVertices) {
-		HashSet<Integer>[] set = new HashSet[nVertices];
-		for (int i = 0; i < nVertices; i++)
-			set[i] = new HashSet<Integer>();
-
-		for (int i = 0; i < faces.length; i += 3) {
-			int f1 = faces[i];
-			int f2 = faces[i + 1];
-			int f3 = faces[i + 2];
-			set[f1].add(f2);
-			set[f1].add(f3);
-
-			set[f2].add(f1);
-			set[f2].add(f3);
-
-			set[f3].add(f1);
-			set[f3].add(f2);
-		}
-
-		int[][] neigh = new int[nVertices][];
-		for (int i = 0; i < nVertices; i++) {
-			neigh[i] = new int[set[i].size()];
-			int n = 0;
-			for (int neighbor : set[i])
-				neigh[i][n++] = neighbor;
-		}
-		return neigh;
+	private boolean hasUnsegmentedNeighbor(int v) {
+		for(int i = offsets[v]; i < offsets[v + 1]; i++)
+			if(segmentation[neighbors[i]] == 0)
+				return true;
+		return false;
 	}
 
 	public void exec() {
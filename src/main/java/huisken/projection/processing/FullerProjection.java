@@ -88,7 +88,6 @@ public class FullerProjection extends GeneralProjProjection {
 		Point3f[] icosaVertices = icosa.getVertices();
 		int[] icosaFaces = icosa.getFaces();
 
-		Point3f[] vertices = smp.getSphere().getVertices();
 
 		for(int y = 0; y < h; y++) {
 			for(int x = 0; x < w; x++) {
@@ -133,16 +132,7 @@ public class FullerProjection extends GeneralProjProjection {
 				pointsOnSphere[index] = ptmp;
 
 
-				smp.getThreeNearestVertexIndices(ptmp, vIndices[index]);
-
-				// interpolate according to distance
-				float w0 = 1 / ptmp.distance(vertices[vIndices[index][0]]);
-				float w1 = 1 / ptmp.distance(vertices[vIndices[index][1]]);
-				float w2 = 1 / ptmp.distance(vertices[vIndices[index][2]]);
-				float sum = w0 + w1 + w2;
-				vertexWeights[index][0] = w0 / sum;
-				vertexWeights[index][1] = w1 / sum;
-				vertexWeights[index][2] = w2 / sum;
+				smp.getInterpolationWeights(ptmp, vIndices[index], vertexWeights[index]);
 			}
 		}
 
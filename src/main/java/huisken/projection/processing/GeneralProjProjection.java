@@ -230,7 +230,6 @@ public class GeneralProjProjection {
 		vIndices = new int[w * h][3];
 		vertexWeights = new float[w * h][3];
 		Point3f p = new Point3f();
-		Point3f[] vertices = smp.getSphere().getVertices();
 		int index = 0;
 		for(int y = maxy; y >= miny; y--) {
 			for(int x = minx; x <= maxx; x++) {
@@ -256,16 +255,7 @@ public class GeneralProjProjection {
 
 				smp.getPoint(sLon, cLon, sLat, cLat, p);
 
-				smp.getThreeNearestVertexIndices(p, vIndices[index]);
-
-				// interpolate according to distance
-				float d0 = 1 / p.distance(vertices[vIndices[index][0]]);
-				float d1 = 1 / p.distance(vertices[vIndices[index][1]]);
-				float d2 = 1 / p.distance(vertices[vIndices[index][2]]);
-				float sum = d0 + d1 + d2;
-				vertexWeights[index][0] = d0 / sum;
-				vertexWeights[index][1] = d1 / sum;
-				vertexWeights[index][2] = d2 / sum;
+				smp.getInterpolationWeights(p, vIndices[index], vertexWeights[index]);
 
 				index++;
 			}
@@ -0,0 +1,176 @@
+package huisken.projection.processing;
+
+import javax.vecmath.Point3f;
+
+/**
+ * Constant time point location on spheres created by
+ * Icosahedron.createBuckyball().
+ *
+ * Each of the 20 icosahedron faces is subdivided into subd x subd
+ * triangles, in the order of TriangleSubdivision.createTriangles(), and
+ * the vertices are projected radially onto the sphere. A point is
+ * therefore located by finding the icosahedron face whose cone contains
+ * it, intersecting the ray from the center with the (flat) icosahedron
+ * face and computing the sub-triangle from the barycentric coordinates.
+ *
+ * The icosahedron corners are taken from the mesh itself, so that the
+ * locator is also valid for rigidly transformed spheres. create()
+ * checks that every face is found at its own centroid and returns null
+ * for meshes which do not have the expected layout.
+ */
+public class IcosphereLocator {
+
+	private final int subd;
+	private final float cx, cy, cz;
+	private final float[] vertices;
+	private final int[] faces;
+
+	// per icosahedron face: corner A, edges B - A and C - A, outward normal
+	private final float[] ax = new float[20], ay = new float[20], az = new float[20];
+	private final float[] ux = new float[20], uy = new float[20], uz = new float[20];
+	private final float[] vx = new float[20], vy = new float[20], vz = new float[20];
+	private final float[] nx = new float[20], ny = new float[20], nz = new float[20];
+
+	private IcosphereLocator(IndexedTriangleMesh mesh, Point3f center, int subd) {
+		this.subd = subd;
+		this.cx = center.x;
+		this.cy = center.y;
+		this.cz = center.z;
+		this.faces = mesh.getFaces();
+
+		Point3f[] v = mesh.getVertices();
+		this.vertices = new float[3 * v.length];
+		for(int i = 0; i < v.length; i++) {
+			vertices[3 * i]     = v[i].x;
+			vertices[3 * i + 1] = v[i].y;
+			vertices[3 * i + 2] = v[i].z;
+		}
+
+		int nSub = subd * subd;
+		for(int b = 0; b < 20; b++) {
+			// corners (0, 0), (subd, 0) and (0, subd) of the subdivision
+			Point3f a = v[faces[3 * (b * nSub)]];
+			Point3f p = v[faces[3 * (b * nSub + 2 * (subd - 1)) + 1]];
+			Point3f q = v[faces[3 * (b * nSub + nSub - 1) + 2]];
+			ax[b] = a.x - cx; ay[b] = a.y - cy; az[b] = a.z - cz;
+			ux[b] = p.x - a.x; uy[b] = p.y - a.y; uz[b] = p.z - a.z;
+			vx[b] = q.x - a.x; vy[b] = q.y - a.y; vz[b] = q.z - a.z;
+			float x = uy[b] * vz[b] - uz[b] * vy[b];
+			float y = uz[b] * vx[b] - ux[b] * vz[b];
+			float z = ux[b] * vy[b] - uy[b] * vx[b];
+			float len = (float)Math.sqrt(x * x + y * y + z * z);
+			// orient outwards
+			if(x * ax[b] + y * ay[b] + z * az[b] < 0)
+				len = -len;
+			nx[b] = x / len; ny[b] = y / len; nz[b] = z / len;
+		}
+	}
+
+	/**
+	 * Returns a locator for the given sphere, or null if it was not
+	 * created by Icosahedron.createBuckyball().
+	 */
+	public static IcosphereLocator create(IndexedTriangleMesh mesh, Point3f center) {
+		int nFaces = mesh.getFaces().length / 3;
+		int subd = (int)Math.round(Math.sqrt(nFaces / 20.0));
+		if(subd < 2 || 20 * subd * subd != nFaces)
+			return null;
+
+		IcosphereLocator locator = new IcosphereLocator(mesh, center, subd);
+		float[] v = locator.vertices;
+		int[] f = locator.faces;
+		for(int i = 0; i < nFaces; i++) {
+			int i0 = 3 * f[3 * i], i1 = 3 * f[3 * i + 1], i2 = 3 * f[3 * i + 2];
+			float x = (v[i0]     + v[i1]     + v[i2])     / 3;
+			float y = (v[i0 + 1] + v[i1 + 1] + v[i2 + 1]) / 3;
+			float z = (v[i0 + 2] + v[i1 + 2] + v[i2 + 2]) / 3;
+			if(locator.findFace(x, y, z) != i)
+				return null;
+		}
+		return locator;
+	}
+
+	/**
+	 * Returns a locator for a copy of the mesh of this one, which was
+	 * transformed without changing its layout, e.g. rigidly or by
+	 * uniform scaling.
+	 */
+	IcosphereLocator copyFor(IndexedTriangleMesh mesh, Point3f center) {
+		return new IcosphereLocator(mesh, center, subd);
+	}
+
+	/**
+	 * Returns the index of the face which is hit by the ray from the
+	 * center through (x, y, z).
+	 */
+	public int findFace(float x, float y, float z) {
+		float dx = x - cx, dy = y - cy, dz = z - cz;
+
+		// the icosahedron face with the closest normal contains the ray
+		int b = 0;
+		float max = Float.NEGATIVE_INFINITY;
+		for(int i = 0; i < 20; i++) {
+			float dot = dx * nx[i] + dy * ny[i] + dz * nz[i];
+			if(dot > max) {
+				max = dot;
+				b = i;
+			}
+		}
+
+		// intersect with the plane of the icosahedron face
+		float t = (ax[b] * nx[b] + ay[b] * ny[b] + az[b] * nz[b]) / max;
+		float px = t * dx - ax[b], py = t * dy - ay[b], pz = t * dz - az[b];
+
+		// barycentric coordinates w.r.t. the edges u and v
+		float uu = ux[b] * ux[b] + uy[b] * uy[b] + uz[b] * uz[b];
+		float vv = vx[b] * vx[b] + vy[b] * vy[b] + vz[b] * vz[b];
+		float uv = ux[b] * vx[b] + uy[b] * vy[b] + uz[b] * vz[b];
+		float pu = px * ux[b] + py * uy[b] + pz * uz[b];
+		float pv = px * vx[b] + py * vy[b] + pz * vz[b];
+		float det = uu * vv - uv * uv;
+		float s = subd * (vv * pu - uv * pv) / det;
+		float r = subd * (uu * pv - uv * pu) / det;
+
+		int i1 = (int)Math.floor(s);
+		int i2 = (int)Math.floor(r);
+		i1 = Math.max(0, Math.min(subd - 1, i1));
+		i2 = Math.max(0, Math.min(subd - 1, i2));
+		if(i1 + i2 > subd - 1)
+			i1 = subd - 1 - i2;
+		boolean upper = i1 + i2 < subd - 1 && (s - i1) + (r - i2) > 1;
+
+		return b * subd * subd + i2 * (2 * subd - i2) + 2 * i1 + (upper ? 1 : 0);
+	}
+
+	/**
+	 * Like findFace(x, y, z), and stores the barycentric coordinates of
+	 * the intersection of the ray with the face in weights, in the order
+	 * of the face's vertices.
+	 */
+	public int findFace(float x, float y, float z, float[] weights) {
+		int f = findFace(x, y, z);
+		int i0 = 3 * faces[3 * f], i1 = 3 * faces[3 * f + 1], i2 = 3 * faces[3 * f + 2];
+
+		float dx = x - cx, dy = y - cy, dz = z - cz;
+		float ox = vertices[i0] - cx, oy = vertices[i0 + 1] - cy, oz = vertices[i0 + 2] - cz;
+		float e1x = vertices[i1] - vertices[i0], e1y = vertices[i1 + 1] - vertices[i0 + 1], e1z = vertices[i1 + 2] - vertices[i0 + 2];
+		float e2x = vertices[i2] - vertices[i0], e2y = vertices[i2 + 1] - vertices[i0 + 1], e2z = vertices[i2 + 2] - vertices[i0 + 2];
+
+		// intersect the ray with the face (Moeller-Trumbore), the
+		// origin of the ray being the center
+		float px = dy * e2z - dz * e2y, py = dz * e2x - dx * e2z, pz = dx * e2y - dy * e2x;
+		float det = e1x * px + e1y * py + e1z * pz;
+		float tx = -ox, ty = -oy, tz = -oz;
+		float w1 = (tx * px + ty * py + tz * pz) / det;
+		float qx = ty * e1z - tz * e1y, qy = tz * e1x - tx * e1z, qz = tx * e1y - ty * e1x;
+		float w2 = (dx * qx + dy * qy + dz * qz) / det;
+
+		// clamp rounding errors at the edges
+		w1 = Math.max(0, Math.min(1, w1));
+		w2 = Math.max(0, Math.min(1 - w1, w2));
+		weights[0] = 1 - w1 - w2;
+		weights[1] = w1;
+		weights[2] = w2;
+		return f;
+	}
+}
@@ -5,6 +5,7 @@ import ij.ImagePlus;
 import ij.ImageStack;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -21,6 +22,13 @@ public class IndexedTriangleMesh {
 	public final int nVertices;
 	public final int nFaces;
 
+	// vertex adjacency in compressed row format, see getNeighbors()
+	private int[] neighborOffsets = null;
+	private int[] neighbors = null;
+
+	// triangle adjacency, see getFaceNeighbors()
+	private int[] faceNeighbors = null;
+
 	private IndexedTriangleMesh(int nFaces, int nVertices) {
 		this.nFaces = nFaces;
 		this.nVertices = nVertices;
@@ -64,6 +72,115 @@ public class IndexedTriangleMesh {
 		return vertices;
 	}
 
+	/**
+	 * The neighbors of vertex v are getNeighbors()[getNeighborOffsets()[v]]
+	 * to getNeighbors()[getNeighborOffsets()[v + 1] - 1], in ascending order.
+	 * Calculated on first use.
+	 */
+	public int[] getNeighbors() {
+		calculateNeighbors();
+		return neighbors;
+	}
+
+	public int[] getNeighborOffsets() {
+		calculateNeighbors();
+		return neighborOffsets;
+	}
+
+	void setNeighbors(int[] neighborOffsets, int[] neighbors) {
+		if(neighborOffsets.length != nVertices + 1 || neighborOffsets[nVertices] != neighbors.length)
+			throw new IllegalArgumentException("Invalid adjacency");
+		synchronized(this) {
+			this.neighborOffsets = neighborOffsets;
+			this.neighbors = neighbors;
+		}
+	}
+
+	private synchronized void calculateNeighbors() {
+		if(neighbors != null)
+			return;
+
+		// each edge is listed once per adjacent face, in both directions
+		int[] offsets = new int[nVertices + 1];
+		for(int i = 0; i < nFaces; i++)
+			offsets[faces[i] + 1] += 2;
+		for(int v = 0; v < nVertices; v++)
+			offsets[v + 1] += offsets[v];
+
+		int[] pos = new int[nVertices];
+		System.arraycopy(offsets, 0, pos, 0, nVertices);
+		int[] nbs = new int[offsets[nVertices]];
+		for(int i = 0; i < nFaces; i += 3) {
+			int f1 = faces[i];
+			int f2 = faces[i + 1];
+			int f3 = faces[i + 2];
+			nbs[pos[f1]++] = f2;
+			nbs[pos[f1]++] = f3;
+			nbs[pos[f2]++] = f1;
+			nbs[pos[f2]++] = f3;
+			nbs[pos[f3]++] = f1;
+			nbs[pos[f3]++] = f2;
+		}
+
+		// sort and remove duplicates
+		int n = 0;
+		for(int v = 0; v < nVertices; v++) {
+			int start = offsets[v];
+			int end = offsets[v + 1];
+			Arrays.sort(nbs, start, end);
+			offsets[v] = n;
+			for(int i = start; i < end; i++)
+				if(i == start || nbs[i] != nbs[i - 1])
+					nbs[n++] = nbs[i];
+		}
+		offsets[nVertices] = n;
+
+		neighbors = new int[n];
+		System.arraycopy(nbs, 0, neighbors, 0, n);
+		neighborOffsets = offsets;
+	}
+
+	/**
+	 * For each entry faces[3 * t + k], the index of the triangle which
+	 * shares the edge opposite to vertex k with triangle t, or -1 if
+	 * there is none. Calculated on first use.
+	 */
+	public synchronized int[] getFaceNeighbors() {
+		if(faceNeighbors != null)
+			return faceNeighbors;
+
+		int nTriangles = nFaces / 3;
+
+		// triangles adjacent to each vertex, in compressed row format
+		int[] offsets = new int[nVertices + 1];
+		for(int i = 0; i < nFaces; i++)
+			offsets[faces[i] + 1]++;
+		for(int v = 0; v < nVertices; v++)
+			offsets[v + 1] += offsets[v];
+		int[] pos = new int[nVertices];
+		System.arraycopy(offsets, 0, pos, 0, nVertices);
+		int[] triangles = new int[nFaces];
+		for(int i = 0; i < nFaces; i++)
+			triangles[pos[faces[i]]++] = i / 3;
+
+		int[] fnbs = new int[nFaces];
+		for(int t = 0; t < nTriangles; t++) {
+			for(int k = 0; k < 3; k++) {
+				int a = faces[3 * t + (k + 1) % 3];
+				int b = faces[3 * t + (k + 2) % 3];
+				int nb = -1;
+				for(int i = offsets[a]; i < offsets[a + 1] && nb < 0; i++) {
+					int o = triangles[i];
+					if(o != t && (faces[3 * o] == b || faces[3 * o + 1] == b || faces[3 * o + 2] == b))
+						nb = o;
+				}
+				fnbs[3 * t + k] = nb;
+			}
+		}
+		faceNeighbors = fnbs;
+		return faceNeighbors;
+	}
+
 	public List<Point3f> createMesh() {
 		List<Point3f> mesh = new ArrayList<Point3f>(faces.length);
 		for(int i = 0; i < faces.length; i++)
@@ -130,6 +247,13 @@ public class IndexedTriangleMesh {
 		cp.vertices = new Point3f[nVertices];
 		for(int i = 0; i < nVertices; i++)
 			cp.vertices[i] = new Point3f(vertices[i]);
+
+		// the adjacency only depends on the faces and is not modified
+		synchronized(this) {
+			cp.neighborOffsets = neighborOffsets;
+			cp.neighbors = neighbors;
+			cp.faceNeighbors = faceNeighbors;
+		}
 		return cp;
 	}
 }
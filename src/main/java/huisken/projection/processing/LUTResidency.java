@@ -0,0 +1,166 @@
+package huisken.projection.processing;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Keeps the lookup tables of all angles in files, from which the
+ * tables of one angle are loaded when needed, so that only the angles
+ * which are currently used have to fit into memory.
+ *
+ * The files are read with ProjectionLUT.load(), which copies them onto
+ * the heap; the tables of an angle are freed once they are not used
+ * anymore. The files are not kept open or mapped, so that store() can
+ * replace them. prefetch() loads the tables of an angle in a
+ * low-priority background thread, e.g. for the next angle while the
+ * current one is acquired.
+ *
+ * The tables of an angle are given as one per quality level, where
+ * entries may be null. They are stored one angle at a time, so that
+ * the tables of all angles never need to be in memory at once.
+ */
+public class LUTResidency {
+
+	private final File dir;
+	private final int nAngles;
+	// which tables exist, per angle and level
+	private final boolean[][] stored;
+	private final Future<?>[] loading;
+	private final ExecutorService loader;
+
+	/**
+	 * Keeps the tables of nAngles angles in dir; the tables of each
+	 * angle must be passed to store() before they can be loaded.
+	 */
+	public LUTResidency(File dir, int nAngles) {
+		this.dir = dir;
+		this.nAngles = nAngles;
+		dir.mkdirs();
+		stored = new boolean[nAngles][0];
+		loading = new Future<?>[nAngles];
+		loader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "LUT prefetch");
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
+	}
+
+	private File getFile(int a, int level) {
+		return new File(dir, String.format("a%03d_q%d.lut", a, level));
+	}
+
+	/**
+	 * Stores the tables of angle a, replacing those stored before.
+	 */
+	public void store(int a, ProjectionLUT[] luts) throws IOException {
+		// a prefetch of the old tables must not read the files while
+		// they are replaced
+		Future<?> f;
+		synchronized(this) {
+			f = loading[a];
+			loading[a] = null;
+		}
+		if(f != null) {
+			try {
+				f.get();
+			} catch(Exception e) {
+				// the old tables are not needed anymore
+			}
+		}
+		write(a, luts);
+	}
+
+	private synchronized void write(int a, ProjectionLUT[] luts) throws IOException {
+		stored[a] = new boolean[luts.length];
+		for(int l = 0; l < luts.length; l++) {
+			File file = getFile(a, l);
+			if(luts[l] == null) {
+				file.delete();
+				continue;
+			}
+			luts[l].save(file);
+			stored[a][l] = true;
+		}
+	}
+
+	/**
+	 * Starts loading the tables of angle a in the background, unless
+	 * this is already done.
+	 */
+	public synchronized void prefetch(final int a) {
+		if(loading[a] != null)
+			return;
+		loading[a] = loader.submit(new Callable<ProjectionLUT[]>() {
+			@Override
+			public ProjectionLUT[] call() throws IOException {
+				return load(a);
+			}
+		});
+	}
+
+	/**
+	 * Returns the tables of angle a, from prefetch() if it was called,
+	 * otherwise they are loaded now. The tables are not kept, so that
+	 * they are freed once the caller drops them.
+	 */
+	public ProjectionLUT[] get(int a) {
+		Future<?> f;
+		synchronized(this) {
+			f = loading[a];
+			loading[a] = null;
+		}
+		long start = System.currentTimeMillis();
+		try {
+			if(f == null)
+				return load(a);
+			ProjectionLUT[] ret = (ProjectionLUT[])f.get();
+			long end = System.currentTimeMillis();
+			if(end - start > 10)
+				System.out.println("Waited " + (end - start) + " ms for the LUTs of angle " + a);
+			return ret;
+		} catch(Exception e) {
+			throw new RuntimeException("Cannot load the LUTs of angle " + a + " from " + dir, e);
+		}
+	}
+
+	private ProjectionLUT[] load(int a) throws IOException {
+		long start = System.currentTimeMillis();
+		boolean[] s;
+		synchronized(this) {
+			s = stored[a];
+		}
+		ProjectionLUT[] luts = new ProjectionLUT[s.length];
+		long bytes = 0;
+		for(int l = 0; l < s.length; l++) {
+			if(s[l]) {
+				luts[l] = ProjectionLUT.load(getFile(a, l));
+				bytes += luts[l].getSizeInBytes();
+			}
+		}
+		long end = System.currentTimeMillis();
+		System.out.println("Loaded the LUTs of angle " + a + " (" + (bytes >> 20) + " MB) in " + (end - start) + " ms");
+		return luts;
+	}
+
+	/**
+	 * Stops the background thread and deletes the files.
+	 */
+	public synchronized void close() {
+		loader.shutdownNow();
+		for(int a = 0; a < nAngles; a++) {
+			loading[a] = null;
+			for(int l = 0; l < stored[a].length; l++)
+				getFile(a, l).delete();
+		}
+		dir.delete();
+	}
+}
@@ -0,0 +1,201 @@
+package huisken.projection.processing;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the projections of completed stacks to subscribers in the
+ * same process, e.g. to preview a running acquisition without waiting
+ * for the .vertices files.
+ *
+ * Each subscriber is notified on its own thread. If a subscriber is
+ * slower than the acquisition, only the latest stack of each angle,
+ * camera and illumination is kept for it, and older ones are skipped;
+ * publish() therefore never blocks.
+ *
+ * See LiveProjectionServer and LiveProjectionClient for subscribers in
+ * another process.
+ */
+public class LiveProjection {
+
+	/**
+	 * The projection of one stack, indexed [layer][vertex]. The data is
+	 * shared between all subscribers and must not be modified.
+	 */
+	public static class Stack {
+		public final int tp, aIndex, camera, ill;
+		private final short[][] maxima;
+		// System.nanoTime() when the stack was published
+		public final long published;
+
+		public Stack(int tp, int aIndex, int camera, int ill, short[][] maxima) {
+			this.tp = tp;
+			this.aIndex = aIndex;
+			this.camera = camera;
+			this.ill = ill;
+			this.maxima = maxima;
+			this.published = System.nanoTime();
+		}
+
+		public int getNLayers() {
+			return maxima.length;
+		}
+
+		public short[] getMaxima(int layer) {
+			return maxima[layer];
+		}
+
+		/**
+		 * Whether this is a stack of the given angle and illumination,
+		 * where -1 matches any.
+		 */
+		public boolean matches(int aIndex, int ill) {
+			return (aIndex < 0 || aIndex == this.aIndex) && (ill < 0 || ill == this.ill);
+		}
+
+		int getKey() {
+			return (aIndex << 2) | (camera << 1) | ill;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("tp %d, angle %d, camera %d, ill %d", tp, aIndex, camera, ill);
+		}
+	}
+
+	public static interface Subscriber {
+		/**
+		 * Called on the thread of this subscriber, for each stack which
+		 * was not superseded by a newer one of the same angle, camera
+		 * and illumination in the meantime.
+		 */
+		public void stackPublished(Stack stack);
+	}
+
+	private class Subscription extends Thread {
+		final Subscriber subscriber;
+		// the latest undelivered stack per angle, camera and illumination
+		private final Map<Integer, Stack> pending = new LinkedHashMap<Integer, Stack>();
+		private boolean stopped = false;
+		final AtomicLong nDelivered = new AtomicLong();
+		final AtomicLong nSkipped = new AtomicLong();
+
+		Subscription(Subscriber subscriber) {
+			super("LiveProjection subscriber");
+			this.subscriber = subscriber;
+			setDaemon(true);
+		}
+
+		synchronized void offer(Stack stack) {
+			if(pending.remove(stack.getKey()) != null)
+				nSkipped.incrementAndGet();
+			pending.put(stack.getKey(), stack);
+			notifyAll();
+		}
+
+		synchronized void cancel() {
+			stopped = true;
+			notifyAll();
+		}
+
+		@Override
+		public void run() {
+			List<Stack> batch = new ArrayList<Stack>();
+			while(true) {
+				synchronized(this) {
+					while(pending.isEmpty() && !stopped) {
+						try {
+							wait();
+						} catch(InterruptedException e) {
+							return;
+						}
+					}
+					if(stopped)
+						return;
+					batch.addAll(pending.values());
+					pending.clear();
+				}
+				for(Stack stack : batch) {
+					try {
+						subscriber.stackPublished(stack);
+					} catch(Exception e) {
+						e.printStackTrace();
+					}
+					nDelivered.incrementAndGet();
+				}
+				batch.clear();
+			}
+		}
+	}
+
+	private final List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+	private volatile Stack latest = null;
+	private final AtomicLong nPublished = new AtomicLong();
+
+	public void subscribe(Subscriber subscriber) {
+		Subscription s = new Subscription(subscriber);
+		subscriptions.add(s);
+		s.start();
+	}
+
+	public void unsubscribe(Subscriber subscriber) {
+		for(Subscription s : subscriptions) {
+			if(s.subscriber == subscriber) {
+				subscriptions.remove(s);
+				s.cancel();
+			}
+		}
+	}
+
+	public boolean hasSubscribers() {
+		return !subscriptions.isEmpty();
+	}
+
+	/**
+	 * Publishes a copy of the given maxima, indexed [layer][vertex].
+	 */
+	public void publish(int tp, int aIndex, int camera, int ill, short[][] maxima) {
+		short[][] copy = new short[maxima.length][];
+		for(int l = 0; l < maxima.length; l++)
+			copy[l] = maxima[l].clone();
+		publish(new Stack(tp, aIndex, camera, ill, copy));
+	}
+
+	/**
+	 * Publishes stack, whose data must not be modified afterwards.
+	 */
+	public void publish(Stack stack) {
+		latest = stack;
+		nPublished.incrementAndGet();
+		for(Subscription s : subscriptions)
+			s.offer(stack);
+	}
+
+	/**
+	 * Returns the most recently published stack, or null.
+	 */
+	public Stack getLatest() {
+		return latest;
+	}
+
+	/**
+	 * Stops notifying all subscribers.
+	 */
+	public void close() {
+		for(Subscription s : subscriptions)
+			s.cancel();
+		subscriptions.clear();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("Live: " + nPublished.get() + " stacks published");
+		for(Subscription s : subscriptions)
+			sb.append(String.format(", %d delivered/%d skipped", s.nDelivered.get(), s.nSkipped.get()));
+		return sb.toString();
+	}
+}
@@ -0,0 +1,78 @@
+package huisken.projection.processing;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Receives the stacks sent by a LiveProjectionServer, e.g. in another
+ * Fiji instance than the acquisition, and publishes them to a local
+ * LiveProjection, to which viewers can subscribe as usual.
+ */
+public class LiveProjectionClient {
+
+	private final Socket socket;
+	private final LiveProjection live;
+	private final Thread reader;
+
+	public LiveProjectionClient(String host, int port, LiveProjection live) throws IOException {
+		this.socket = new Socket(host, port);
+		this.live = live;
+		reader = new Thread("LiveProjectionClient") {
+			@Override
+			public void run() {
+				read();
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	private void read() {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			byte[] buffer = new byte[0];
+			while(true) {
+				int magic = in.readInt();
+				if(magic != LiveProjectionServer.MAGIC)
+					throw new IOException("Unexpected data from " + socket.getRemoteSocketAddress());
+				int tp = in.readInt();
+				int aIndex = in.readInt();
+				int camera = in.readInt();
+				int ill = in.readInt();
+				int nLayers = in.readInt();
+				int nVertices = in.readInt();
+				if(buffer.length != 2 * nVertices)
+					buffer = new byte[2 * nVertices];
+				short[][] maxima = new short[nLayers][nVertices];
+				for(int l = 0; l < nLayers; l++) {
+					in.readFully(buffer);
+					ByteBuffer.wrap(buffer).order(ByteOrder.BIG_ENDIAN).asShortBuffer().get(maxima[l]);
+				}
+				live.publish(new LiveProjection.Stack(tp, aIndex, camera, ill, maxima));
+			}
+		} catch(EOFException e) {
+			System.out.println("Live preview server closed the connection");
+		} catch(IOException e) {
+			if(!socket.isClosed())
+				e.printStackTrace();
+		}
+		close();
+	}
+
+	public LiveProjection getLiveProjection() {
+		return live;
+	}
+
+	public void close() {
+		try {
+			socket.close();
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package huisken.projection.processing;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sends the stacks published to a LiveProjection to clients on the
+ * local machine, see LiveProjectionClient.
+ *
+ * Each client is a subscriber of its own, so a slow client only skips
+ * stacks itself, without blocking the acquisition or other clients.
+ *
+ * Each stack is sent as big-endian ints MAGIC, tp, aIndex, camera, ill,
+ * nLayers, nVertices, followed by the maxima as nLayers * nVertices
+ * big-endian shorts.
+ */
+public class LiveProjectionServer {
+
+	public static final int MAGIC = 0x4c495645; // "LIVE"
+	public static final int DEFAULT_PORT = 1237;
+
+	private final LiveProjection live;
+	private final ServerSocket server;
+	private final Thread acceptor;
+	private final List<Client> clients = new ArrayList<Client>();
+
+	private class Client implements LiveProjection.Subscriber {
+		final Socket socket;
+		final DataOutputStream out;
+		byte[] buffer = new byte[0];
+
+		Client(Socket socket) throws IOException {
+			this.socket = socket;
+			this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		}
+
+		@Override
+		public void stackPublished(LiveProjection.Stack stack) {
+			try {
+				int nLayers = stack.getNLayers();
+				int nVertices = stack.getMaxima(0).length;
+				out.writeInt(MAGIC);
+				out.writeInt(stack.tp);
+				out.writeInt(stack.aIndex);
+				out.writeInt(stack.camera);
+				out.writeInt(stack.ill);
+				out.writeInt(nLayers);
+				out.writeInt(nVertices);
+				if(buffer.length != 2 * nVertices)
+					buffer = new byte[2 * nVertices];
+				for(int l = 0; l < nLayers; l++) {
+					ByteBuffer.wrap(buffer).order(ByteOrder.BIG_ENDIAN).asShortBuffer().put(stack.getMaxima(l));
+					out.write(buffer);
+				}
+				out.flush();
+			} catch(IOException e) {
+				System.out.println("Live preview client " + socket.getRemoteSocketAddress() + " disconnected");
+				remove(this);
+			}
+		}
+	}
+
+	/**
+	 * Accepts clients on the loopback interface at the given port.
+	 */
+	public LiveProjectionServer(LiveProjection live, int port) throws IOException {
+		this.live = live;
+		this.server = new ServerSocket(port, 0, InetAddress.getByName(null));
+		acceptor = new Thread("LiveProjectionServer") {
+			@Override
+			public void run() {
+				accept();
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	private void accept() {
+		while(!server.isClosed()) {
+			try {
+				Socket socket = server.accept();
+				socket.setTcpNoDelay(true);
+				Client client = new Client(socket);
+				synchronized(clients) {
+					clients.add(client);
+				}
+				live.subscribe(client);
+				System.out.println("Live preview client " + socket.getRemoteSocketAddress() + " connected");
+			} catch(IOException e) {
+				if(!server.isClosed())
+					e.printStackTrace();
+			}
+		}
+	}
+
+	private void remove(Client client) {
+		live.unsubscribe(client);
+		synchronized(clients) {
+			clients.remove(client);
+		}
+		try {
+			client.socket.close();
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	public int getNumClients() {
+		synchronized(clients) {
+			return clients.size();
+		}
+	}
+
+	/**
+	 * Stops accepting clients and disconnects the connected ones.
+	 */
+	public void close() {
+		try {
+			server.close();
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+		List<Client> c;
+		synchronized(clients) {
+			c = new ArrayList<Client>(clients);
+		}
+		for(Client client : c)
+			remove(client);
+	}
+}
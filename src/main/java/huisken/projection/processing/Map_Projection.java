@@ -150,11 +150,16 @@ public class Map_Projection implements PlugIn {
 	private GeneralProjProjection proj;
 	private File datadir, outputdir;
 	private int nVertices;
+
+	// per-thread buffers for the data of project()
+	private final ThreadLocal<short[]> maximaBuffer = new ThreadLocal<short[]>();
+	private final ThreadLocal<int[]> contribBuffer = new ThreadLocal<int[]>();
 	private boolean doContributions, doLines;
 	private Matrix4f initial;
 
 	public void prepareForProjection(final File datadir, final Matrix4f initial, final int maptype, final File outputdir, final boolean doCoast, final boolean doLines, final boolean doContributions, final int tgtWidth) throws IOException {
-		this.smp = new SphericalMaxProjection(new File(datadir, "Sphere.obj").getAbsolutePath(), initial);
+		this.smp = new SphericalMaxProjection(new File(datadir, "Sphere.obj").getAbsolutePath(), initial,
+				SphericalMaxProjection.getMeshCacheDir(datadir));
 		this.nVertices = smp.getSphere().nVertices;
 		this.doLines = doLines;
 		this.doContributions = doContributions;
@@ -163,17 +168,7 @@ public class Map_Projection implements PlugIn {
 		this.outputdir = outputdir;
 		if(!outputdir.exists())
 			outputdir.mkdirs();
-		switch(maptype) {
-			case MERCATOR:              proj = new GeneralProjProjection(new MercatorProjection());   break;
-			case GALLPETER:             proj = new GeneralProjProjection(new GallProjection()); break;
-			case KAVRAYSKIY:            proj = new GeneralProjProjection(new Kavraisky7Projection()); break;
-			case WINKEL_TRIPEL:         proj = new GeneralProjProjection(new WinkelTripelProjection()); break;
-			case AUGUSTUS_EPICYCLOIDAL: proj = new GeneralProjProjection(new AugustProjection()); break;
-			case BONNE:                 proj = new GeneralProjProjection(new BonneProjection()); break;
-			case ORTHO_AZIMUTAL:        proj = new GeneralProjProjection(new OrthographicAzimuthalProjection()); break;
-			case FULLER:                proj = new FullerProjection(); break;
-			default: throw new IllegalArgumentException("Unsupported map type: " + maptype);
-		}
+		proj = createProjection(maptype);
 		proj.prepareForProjection(smp, tgtWidth);
 
 		if(doCoast) {
@@ -191,6 +186,23 @@ public class Map_Projection implements PlugIn {
 		}
 	}
 
+	/**
+	 * Returns an unprepared projection of the given type, one of MAP_TYPES.
+	 */
+	public static GeneralProjProjection createProjection(int maptype) {
+		switch(maptype) {
+			case MERCATOR:              return new GeneralProjProjection(new MercatorProjection());
+			case GALLPETER:             return new GeneralProjProjection(new GallProjection());
+			case KAVRAYSKIY:            return new GeneralProjProjection(new Kavraisky7Projection());
+			case WINKEL_TRIPEL:         return new GeneralProjProjection(new WinkelTripelProjection());
+			case AUGUSTUS_EPICYCLOIDAL: return new GeneralProjProjection(new AugustProjection());
+			case BONNE:                 return new GeneralProjProjection(new BonneProjection());
+			case ORTHO_AZIMUTAL:        return new GeneralProjProjection(new OrthographicAzimuthalProjection());
+			case FULLER:                return new FullerProjection();
+			default: throw new IllegalArgumentException("Unsupported map type: " + maptype);
+		}
+	}
+
 	public void project(int tp, int nLayers) throws IOException {
 		String basename = String.format("tp%04d", tp);
 
@@ -211,7 +223,12 @@ public class Map_Projection implements PlugIn {
 			File outfile = new File(outputdir, String.format("tp%04d_%02d.tif", tp, l));
 			File infile = new File(datadir, String.format("tp%04d_%02d.vertices", tp, l));
 
-			short[] maxima = SphericalMaxProjection.loadShortData(infile.getAbsolutePath(), nVertices);
+			short[] maxima = maximaBuffer.get();
+			if(maxima == null || maxima.length != nVertices) {
+				maxima = new short[nVertices];
+				maximaBuffer.set(maxima);
+			}
+			SphericalMaxProjection.loadShortData(infile.getAbsolutePath(), maxima);
 
 			// maxima = smp.applyTransform(get90DegRot(smp), maxima);
 			ImageProcessor ip = proj.project(maxima);
@@ -238,7 +255,12 @@ public class Map_Projection implements PlugIn {
 			IJ.save(new ImagePlus("", lip), linesout.getAbsolutePath());
 		}
 		if(doContributions) {
-			int[] contribs = SphericalMaxProjection.loadIntData(contribin.getAbsolutePath(), nVertices);
+			int[] contribs = contribBuffer.get();
+			if(contribs == null || contribs.length != nVertices) {
+				contribs = new int[nVertices];
+				contribBuffer.set(contribs);
+			}
+			SphericalMaxProjection.loadIntData(contribin.getAbsolutePath(), contribs);
 			ImageProcessor overlay = proj.projectColor(contribs);
 			IJ.save(new ImagePlus("", overlay), contribout.getAbsolutePath());
 		}
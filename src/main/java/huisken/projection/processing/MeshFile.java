@@ -0,0 +1,198 @@
+package huisken.projection.processing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import javax.vecmath.Point3f;
+
+/**
+ * Binary mesh format, which caches an OBJ file in a cache directory, see
+ * SphericalMaxProjection.loadMeshFile(). Besides vertices and faces,
+ * it contains the vertex adjacency and the face kd-tree, so that neither
+ * needs to be re-computed.
+ *
+ * Layout (little endian): a header of magic, version, #vertices,
+ * #face indices, #neighbors, #tree nodes and a CRC32 of the payload,
+ * followed by the vertices (3 floats each), the face indices, the
+ * neighbor offsets (#vertices + 1), the neighbors, the tree centroids
+ * (3 floats each), the tree face indices and the tree split dimensions
+ * (one byte each).
+ */
+public class MeshFile {
+
+	private static final int MAGIC = 0x4853454d; // "MESH"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 6 * 4 + 8;
+
+	private final IndexedTriangleMesh mesh;
+	private final FaceKDTree tree;
+
+	public MeshFile(IndexedTriangleMesh mesh, FaceKDTree tree) {
+		this.mesh = mesh;
+		this.tree = tree;
+	}
+
+	public IndexedTriangleMesh getMesh() {
+		return mesh;
+	}
+
+	public FaceKDTree getTree() {
+		return tree;
+	}
+
+	/**
+	 * Returns the binary mesh file in cacheDir belonging to the given OBJ
+	 * file. Its name depends on the path, size and modification time of
+	 * the OBJ file, so that a changed OBJ file gets a new cache file.
+	 */
+	public static File getMeshFile(File cacheDir, String objpath) {
+		File objfile = new File(objpath);
+		String name = objfile.getName();
+		if(name.toLowerCase().endsWith(".obj"))
+			name = name.substring(0, name.length() - 4);
+		String key = objfile.getAbsolutePath() + ":" + objfile.length() + ":" + objfile.lastModified();
+		return new File(cacheDir, String.format("%s-%08x.mesh", name, key.hashCode()));
+	}
+
+	public void save(File file) throws IOException {
+		int[] offsets = mesh.getNeighborOffsets();
+		int[] neighbors = mesh.getNeighbors();
+		Point3f[] vertices = mesh.getVertices();
+		int[] faces = mesh.getFaces();
+		int nNodes = tree.size();
+
+		long size = HEADER_SIZE +
+				12L * vertices.length +
+				4L * faces.length +
+				4L * offsets.length +
+				4L * neighbors.length +
+				17L * nNodes;
+		if(size > Integer.MAX_VALUE)
+			throw new IOException("Mesh too large for " + file);
+
+		ByteBuffer buf = ByteBuffer.allocate((int)size).order(ByteOrder.LITTLE_ENDIAN);
+		buf.position(HEADER_SIZE);
+		for(Point3f v : vertices)
+			buf.putFloat(v.x).putFloat(v.y).putFloat(v.z);
+		buf.asIntBuffer().put(faces);
+		buf.position(buf.position() + 4 * faces.length);
+		buf.asIntBuffer().put(offsets);
+		buf.position(buf.position() + 4 * offsets.length);
+		buf.asIntBuffer().put(neighbors);
+		buf.position(buf.position() + 4 * neighbors.length);
+		buf.asFloatBuffer().put(tree.coords);
+		buf.position(buf.position() + 4 * tree.coords.length);
+		buf.asIntBuffer().put(tree.faces);
+		buf.position(buf.position() + 4 * tree.faces.length);
+		buf.put(tree.dims);
+
+		CRC32 crc = new CRC32();
+		crc.update(buf.array(), HEADER_SIZE, (int)size - HEADER_SIZE);
+
+		buf.position(0);
+		buf.putInt(MAGIC).putInt(VERSION)
+			.putInt(vertices.length).putInt(faces.length)
+			.putInt(neighbors.length).putInt(nNodes)
+			.putLong(crc.getValue());
+		buf.position(0);
+
+		File tmp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+		RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			while(buf.hasRemaining())
+				channel.write(buf);
+		} finally {
+			raf.close();
+		}
+		// on Windows, renameTo() does not replace existing files
+		if(!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+			tmp.delete();
+			throw new IOException("Cannot rename " + tmp + " to " + file);
+		}
+	}
+
+	public static MeshFile load(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			if(size < HEADER_SIZE || size > Integer.MAX_VALUE)
+				throw new IOException(file + " is not a mesh file");
+			// read instead of mapping: a mapping would keep the file
+			// from being replaced on Windows until it is collected
+			ByteBuffer buf = ByteBuffer.allocate((int)size).order(ByteOrder.LITTLE_ENDIAN);
+			while(buf.hasRemaining())
+				if(channel.read(buf) < 0)
+					throw new IOException(file + " is truncated");
+			buf.flip();
+
+			if(buf.getInt() != MAGIC)
+				throw new IOException(file + " is not a mesh file");
+			int version = buf.getInt();
+			if(version != VERSION)
+				throw new IOException(file + ": unsupported mesh version " + version);
+			int nVertices = buf.getInt();
+			int nFaces = buf.getInt();
+			int nNeighbors = buf.getInt();
+			int nNodes = buf.getInt();
+			long checksum = buf.getLong();
+
+			long expected = HEADER_SIZE +
+					12L * nVertices +
+					4L * nFaces +
+					4L * (nVertices + 1) +
+					4L * nNeighbors +
+					17L * nNodes;
+			if(nVertices < 0 || nFaces < 0 || nNeighbors < 0 || nNodes < 0 || expected != size)
+				throw new IOException(file + " is truncated");
+
+			CRC32 crc = new CRC32();
+			crc.update(buf.array(), HEADER_SIZE, (int)size - HEADER_SIZE);
+			if(crc.getValue() != checksum)
+				throw new IOException(file + " is corrupt (checksum mismatch)");
+
+			float[] xyz = new float[3 * nVertices];
+			buf.asFloatBuffer().get(xyz);
+			buf.position(buf.position() + 4 * xyz.length);
+			Point3f[] vertices = new Point3f[nVertices];
+			for(int i = 0; i < nVertices; i++)
+				vertices[i] = new Point3f(xyz[3 * i], xyz[3 * i + 1], xyz[3 * i + 2]);
+			xyz = null;
+
+			int[] faces = new int[nFaces];
+			buf.asIntBuffer().get(faces);
+			buf.position(buf.position() + 4 * nFaces);
+
+			int[] offsets = new int[nVertices + 1];
+			buf.asIntBuffer().get(offsets);
+			buf.position(buf.position() + 4 * offsets.length);
+
+			int[] neighbors = new int[nNeighbors];
+			buf.asIntBuffer().get(neighbors);
+			buf.position(buf.position() + 4 * nNeighbors);
+
+			float[] coords = new float[3 * nNodes];
+			buf.asFloatBuffer().get(coords);
+			buf.position(buf.position() + 4 * coords.length);
+
+			int[] treeFaces = new int[nNodes];
+			buf.asIntBuffer().get(treeFaces);
+			buf.position(buf.position() + 4 * nNodes);
+
+			byte[] dims = new byte[nNodes];
+			buf.get(dims);
+
+			IndexedTriangleMesh mesh = new IndexedTriangleMesh(vertices, faces);
+			mesh.setNeighbors(offsets, neighbors);
+			return new MeshFile(mesh, new FaceKDTree(coords, treeFaces, dims));
+		} finally {
+			raf.close();
+		}
+	}
+}
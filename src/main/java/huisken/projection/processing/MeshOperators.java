@@ -0,0 +1,265 @@
+package huisken.projection.processing;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.vecmath.Point3f;
+
+/**
+ * Operators on per-vertex data, based on the vertex adjacency of
+ * IndexedTriangleMesh.getNeighbors(). The vertices are split into one
+ * contiguous range per thread; the worker threads and the scratch
+ * buffer of smooth() are kept for subsequent calls.
+ */
+public class MeshOperators {
+
+	private final int nVertices;
+	private final int[] offsets;
+	private final int[] neighbors;
+	private final float[] vertices;
+	private final int nThreads;
+
+	private ExecutorService exec = null;
+	private short[] scratch = null;
+
+	public MeshOperators(IndexedTriangleMesh mesh, int nThreads) {
+		this.nVertices = mesh.nVertices;
+		this.offsets = mesh.getNeighborOffsets();
+		this.neighbors = mesh.getNeighbors();
+		this.nThreads = Math.max(1, nThreads);
+		Point3f[] v = mesh.getVertices();
+		this.vertices = new float[3 * v.length];
+		for(int i = 0; i < v.length; i++) {
+			vertices[3 * i]     = v[i].x;
+			vertices[3 * i + 1] = v[i].y;
+			vertices[3 * i + 2] = v[i].z;
+		}
+	}
+
+	/*
+	 * Operation on the vertices start to end - 1.
+	 */
+	private interface RangeOp {
+		public void run(int start, int end);
+	}
+
+	private void forEach(final RangeOp op) {
+		if(nThreads == 1) {
+			op.run(0, nVertices);
+			return;
+		}
+		ExecutorService exec = getExecutor();
+		int nVerticesPerThread = (int)Math.ceil(nVertices / (double)nThreads);
+		Future<?>[] futures = new Future<?>[nThreads];
+		for(int p = 0; p < nThreads; p++) {
+			final int start = Math.min(nVertices, p * nVerticesPerThread);
+			final int end = Math.min(nVertices, (p + 1) * nVerticesPerThread);
+			futures[p] = exec.submit(new Runnable() {
+				@Override
+				public void run() {
+					op.run(start, end);
+				}
+			});
+		}
+		try {
+			for(Future<?> f : futures)
+				f.get();
+		} catch(Exception e) {
+			throw new RuntimeException("Cannot process mesh", e);
+		}
+	}
+
+	private synchronized ExecutorService getExecutor() {
+		if(exec == null) {
+			exec = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "MeshOperators");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return exec;
+	}
+
+	/**
+	 * Stops the worker threads; they are re-created when needed.
+	 */
+	public synchronized void shutdown() {
+		if(exec != null) {
+			exec.shutdown();
+			exec = null;
+		}
+	}
+
+	/**
+	 * Replaces each value by the weighted mean of itself, with weight
+	 * selfWeight, and its neighbors, with weight 1. The values are
+	 * unsigned; the result is truncated.
+	 */
+	public synchronized void smooth(short[] data, float selfWeight, int iterations) {
+		if(scratch == null)
+			scratch = new short[nVertices];
+		short[] in = data, out = scratch;
+		for(int i = 0; i < iterations; i++) {
+			smooth(in, out, selfWeight);
+			short[] tmp = in;
+			in = out;
+			out = tmp;
+		}
+		if(in != data)
+			System.arraycopy(in, 0, data, 0, nVertices);
+	}
+
+	/**
+	 * Like smooth(short[], float, int), for one iteration, writing the
+	 * result to out, which must not be data.
+	 */
+	public void smooth(final short[] data, final short[] out, final float selfWeight) {
+		forEach(new RangeOp() {
+			@Override
+			public void run(int start, int end) {
+				for(int v = start; v < end; v++) {
+					int from = offsets[v], to = offsets[v + 1];
+					float sum = selfWeight * (data[v] & 0xffff);
+					for(int i = from; i < to; i++)
+						sum += data[neighbors[i]] & 0xffff;
+					out[v] = (short)(sum / (selfWeight + to - from));
+				}
+			}
+		});
+	}
+
+	/**
+	 * Sets result[v] to whether data[v] is larger than the values of all
+	 * neighbors of v.
+	 */
+	public void isMaximum(final short[] data, final boolean[] result) {
+		forEach(new RangeOp() {
+			@Override
+			public void run(int start, int end) {
+				for(int v = start; v < end; v++) {
+					int value = data[v] & 0xffff;
+					boolean max = true;
+					for(int i = offsets[v]; i < offsets[v + 1] && max; i++)
+						max = value > (data[neighbors[i]] & 0xffff);
+					result[v] = max;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Estimates the magnitude of the gradient at each vertex from the
+	 * finite differences along its edges. For edge directions which are
+	 * evenly distributed in the tangent plane, the mean squared
+	 * directional derivative is half the squared gradient magnitude.
+	 */
+	public void gradientMagnitude(final short[] data, final float[] result) {
+		forEach(new RangeOp() {
+			@Override
+			public void run(int start, int end) {
+				for(int v = start; v < end; v++) {
+					int from = offsets[v], to = offsets[v + 1];
+					if(from == to) {
+						result[v] = 0;
+						continue;
+					}
+					int value = data[v] & 0xffff;
+					double sum = 0;
+					for(int i = from; i < to; i++) {
+						int n = neighbors[i];
+						float dx = vertices[3 * n] - vertices[3 * v];
+						float dy = vertices[3 * n + 1] - vertices[3 * v + 1];
+						float dz = vertices[3 * n + 2] - vertices[3 * v + 2];
+						double diff = (data[n] & 0xffff) - value;
+						sum += diff * diff / (dx * dx + dy * dy + dz * dz);
+					}
+					result[v] = (float)Math.sqrt(2 * sum / (to - from));
+				}
+			}
+		});
+	}
+
+	/**
+	 * Creates a collector for k-ring neighborhoods. Each thread needs its
+	 * own one.
+	 */
+	public KRing createKRing() {
+		return new KRing(nVertices, offsets, neighbors);
+	}
+
+	/**
+	 * Collects the vertices which are at most k edges away from a given
+	 * vertex, in breadth-first order, starting with the vertex itself.
+	 * The buffers are reused for subsequent calls.
+	 */
+	public static class KRing {
+
+		private final int[] offsets;
+		private final int[] neighbors;
+		// per vertex, the call in which it was collected
+		private final int[] visited;
+		private int stamp = 0;
+		private int[] ring = new int[64];
+		private int size = 0;
+
+		private KRing(int nVertices, int[] offsets, int[] neighbors) {
+			this.offsets = offsets;
+			this.neighbors = neighbors;
+			this.visited = new int[nVertices];
+		}
+
+		/**
+		 * Collects the k-ring around v and returns its size.
+		 */
+		public int collect(int v, int k) {
+			if(++stamp == 0) {
+				Arrays.fill(visited, 0);
+				stamp = 1;
+			}
+			size = 0;
+			add(v);
+			int ringStart = 0;
+			for(int r = 0; r < k; r++) {
+				int ringEnd = size;
+				for(int i = ringStart; i < ringEnd; i++) {
+					int u = ring[i];
+					for(int j = offsets[u]; j < offsets[u + 1]; j++)
+						if(visited[neighbors[j]] != stamp)
+							add(neighbors[j]);
+				}
+				if(ringEnd == size)
+					break;
+				ringStart = ringEnd;
+			}
+			return size;
+		}
+
+		private void add(int v) {
+			if(size == ring.length)
+				ring = Arrays.copyOf(ring, 2 * size);
+			visited[v] = stamp;
+			ring[size++] = v;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public int get(int i) {
+			return ring[i];
+		}
+
+		/**
+		 * The collected vertices are the first size() elements.
+		 */
+		public int[] getVertices() {
+			return ring;
+		}
+	}
+}
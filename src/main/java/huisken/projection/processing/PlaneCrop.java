@@ -0,0 +1,166 @@
+package huisken.projection.processing;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ * The pixels of a plane which are used by a lookup table, as a list of
+ * row spans. gather() copies these spans of a full frame into a compact
+ * buffer, in which the spans are stored one after the other; the
+ * lookup table is then remapped with ProjectionLUT.remap().
+ *
+ * The pixels of a plane form a shell around the sphere, so rows usually
+ * consist of one or two spans. Spans in the same row which are less
+ * than MIN_GAP pixels apart are merged, so that short gaps are copied
+ * instead of splitting the copy.
+ */
+public class PlaneCrop {
+
+	private static final int MIN_GAP = 32;
+
+	private final int w;
+	// (start pixel, length) pairs, in increasing order of start pixel
+	private final int[] spans;
+	// offset of each span in the compact buffer
+	private final int[] offsets;
+	private final int size;
+	private final Rectangle bounds;
+
+	private PlaneCrop(int w, int[] spans) {
+		this.w = w;
+		this.spans = spans;
+		int nSpans = spans.length / 2;
+		this.offsets = new int[nSpans];
+		int o = 0;
+		int x0 = Integer.MAX_VALUE, y0 = Integer.MAX_VALUE, x1 = -1, y1 = -1;
+		for(int s = 0; s < nSpans; s++) {
+			offsets[s] = o;
+			o += spans[2 * s + 1];
+			int start = spans[2 * s], end = start + spans[2 * s + 1] - 1;
+			x0 = Math.min(x0, start % w);
+			x1 = Math.max(x1, end % w);
+			y0 = Math.min(y0, start / w);
+			y1 = Math.max(y1, end / w);
+		}
+		this.size = o;
+		this.bounds = nSpans == 0 ? new Rectangle() : new Rectangle(x0, y0, x1 - x0 + 1, y1 - y0 + 1);
+	}
+
+	/**
+	 * Creates the crop for the (pixel, target) pairs of a LUT plane,
+	 * for frames of width w.
+	 */
+	public static PlaneCrop create(int[] entries, int w) {
+		int n = entries.length / 2;
+		int[] pixels = new int[n];
+		for(int i = 0; i < n; i++)
+			pixels[i] = entries[2 * i];
+		Arrays.sort(pixels);
+
+		int[] spans = new int[16];
+		int nSpans = 0;
+		int start = -1, end = -1;
+		for(int i = 0; i < n; i++) {
+			int p = pixels[i];
+			if(p < end)
+				continue;
+			if(start >= 0 && p / w == start / w && p - end < MIN_GAP) {
+				end = p + 1;
+				continue;
+			}
+			if(start >= 0) {
+				if(2 * nSpans + 2 > spans.length)
+					spans = Arrays.copyOf(spans, 2 * spans.length);
+				spans[2 * nSpans] = start;
+				spans[2 * nSpans + 1] = end - start;
+				nSpans++;
+			}
+			start = p;
+			end = p + 1;
+		}
+		if(start >= 0) {
+			spans = Arrays.copyOf(spans, 2 * nSpans + 2);
+			spans[2 * nSpans] = start;
+			spans[2 * nSpans + 1] = end - start;
+			nSpans++;
+		}
+		return new PlaneCrop(w, Arrays.copyOf(spans, 2 * nSpans));
+	}
+
+	/**
+	 * Number of pixels of the compact buffer.
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Bounding box of all used pixels.
+	 */
+	public Rectangle getBounds() {
+		return bounds;
+	}
+
+	public int getWidth() {
+		return w;
+	}
+
+	public int getNSpans() {
+		return spans.length / 2;
+	}
+
+	/**
+	 * Index of the first pixel of span s in the full frame (y * w + x).
+	 */
+	public int getSpanStart(int s) {
+		return spans[2 * s];
+	}
+
+	public int getSpanLength(int s) {
+		return spans[2 * s + 1];
+	}
+
+	/**
+	 * Copies the used pixels of frame into compact, which must have at
+	 * least getSize() elements.
+	 */
+	public void gather(short[] frame, short[] compact) {
+		for(int s = 0; s < offsets.length; s++)
+			System.arraycopy(frame, spans[2 * s], compact, offsets[s], spans[2 * s + 1]);
+	}
+
+	/**
+	 * Returns the index in the compact buffer of the given pixel of the
+	 * full frame, or -1 if it is not contained in any span.
+	 */
+	public int toCompact(int pixel) {
+		int lo = 0, hi = offsets.length - 1;
+		while(lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int start = spans[2 * mid];
+			if(pixel < start)
+				hi = mid - 1;
+			else if(pixel >= start + spans[2 * mid + 1])
+				lo = mid + 1;
+			else
+				return offsets[mid] + pixel - start;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the index in the full frame of the given index of the
+	 * compact buffer.
+	 */
+	public int toFull(int compact) {
+		int lo = 0, hi = offsets.length - 1;
+		while(lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if(offsets[mid] <= compact)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+		return spans[2 * lo] + compact - offsets[lo];
+	}
+}
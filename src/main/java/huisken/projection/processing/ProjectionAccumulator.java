@@ -0,0 +1,25 @@
+package huisken.projection.processing;
+
+/**
+ * Per-vertex statistic which is accumulated while projecting a stack,
+ * see SphericalMaxProjection.projectPlane(int, short[], ProjectionAccumulator).
+ *
+ * accumulate() receives the LUT entries of one plane as packed
+ * (pixel, target) pairs, so that implementations can use a primitive
+ * inner loop; the target packs the layer into the bits above
+ * vertexBits and the vertex into the bits below.
+ */
+public abstract class ProjectionAccumulator {
+
+	/**
+	 * Clears the statistic at the start of a stack.
+	 */
+	public abstract void reset();
+
+	/**
+	 * Accumulates the pairs from (inclusive) to to (exclusive) of plane
+	 * z. Different partitions of a partitioned LUT may be accumulated
+	 * concurrently.
+	 */
+	public abstract void accumulate(int z, short[] ip, int[] entries, int from, int to, int vertexBits);
+}
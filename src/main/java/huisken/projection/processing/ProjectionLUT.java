@@ -0,0 +1,626 @@
+package huisken.projection.processing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Packed per-plane lookup table, mapping image pixels to sphere vertices.
+ *
+ * Each plane is stored as a single int array of (pixel, target) pairs,
+ * sorted by pixel. The target packs the layer index into the upper bits
+ * and the vertex index into the lower bits of one int. Compared to three
+ * separate int arrays for pixel, layer and vertex, this needs a third
+ * less memory and reads both the lookup table and the image sequentially.
+ *
+ * A LUT can serve both illumination sides of an angle, see
+ * setSideMasks(): each ray sample is then stored once, and the entries
+ * of each side form a contiguous range.
+ */
+public class ProjectionLUT {
+
+	private final int[][] entries;
+
+	/*
+	 * The entries of each plane are ordered in blocks: by partition,
+	 * and within a partition by side (see sideMasks), and sorted by
+	 * pixel within each block. Block b of plane z consists of the pairs
+	 * blockStarts[z][b] to blockStarts[z][b + 1] - 1; null if there is
+	 * only one block.
+	 */
+	private int[][] blockStarts = null;
+	private int nPartitions = 1;
+
+	/*
+	 * If not null, bit ill of sideMasks[v] is set if vertex v is
+	 * projected from illumination ill. Each partition then consists of
+	 * three blocks, with the vertices of LEFT only, of both sides and
+	 * of RIGHT only, so that each side projects two adjacent blocks.
+	 */
+	private byte[] sideMasks = null;
+	private static final int N_SIDE_BLOCKS = 3;
+
+	/*
+	 * Vertices are assigned to partitions in blocks of
+	 * 2^PARTITION_BLOCK_BITS, so that different partitions
+	 * rarely write to the same cache line.
+	 */
+	private static final int PARTITION_BLOCK_BITS = 8;
+
+	private final int nVertices;
+	private final int nLayers;
+	private final int vertexBits;
+	private final int vertexMask;
+
+	/**
+	 * @param d Number of planes.
+	 * @param nVertices Number of vertices of the sphere.
+	 * @param nLayers Number of layers.
+	 */
+	public ProjectionLUT(int d, int nVertices, int nLayers) {
+		this.nVertices = nVertices;
+		this.nLayers = nLayers;
+		this.vertexBits = bitsFor(nVertices);
+		this.vertexMask = (1 << vertexBits) - 1;
+		if(vertexBits + bitsFor(nLayers) > 31)
+			throw new IllegalArgumentException("Cannot pack " + nLayers +
+					" layers of " + nVertices + " vertices into 31 bits");
+		entries = new int[d][];
+		int[] empty = new int[0];
+		for(int z = 0; z < d; z++)
+			entries[z] = empty;
+	}
+
+	private static final int MAGIC = 0x504c5554; // "PLUT"
+	// version 2 adds the partitions, version 3 the side masks
+	private static final int VERSION = 3;
+	private static final int HEADER_INTS = 7;
+	// the byte order of the acquisition PCs, which allows plain copies
+	private static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+	/**
+	 * Writes the LUT to a binary file, which can be read back with
+	 * load(), including its partitions and side masks. The file is
+	 * first written under a temporary name and then renamed, so that
+	 * concurrent readers never see a partial file.
+	 */
+	public void save(File file) throws IOException {
+		int d = entries.length;
+		File tmp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+		RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(BYTE_ORDER);
+			IntBuffer ib = buffer.asIntBuffer();
+			ib.put(MAGIC).put(VERSION).put(d).put(nVertices).put(nLayers).put(nPartitions).put(sideMasks == null ? 0 : 1);
+			for(int z = 0; z < d; z++)
+				write(channel, buffer, ib, new int[] { entries[z].length }, 0, 1);
+			if(sideMasks != null) {
+				int[] packed = new int[(nVertices + 3) / 4];
+				for(int v = 0; v < nVertices; v++)
+					packed[v / 4] |= (sideMasks[v] & 0xff) << (8 * (v % 4));
+				write(channel, buffer, ib, packed, 0, packed.length);
+			}
+			if(blockStarts != null)
+				for(int z = 0; z < d; z++)
+					write(channel, buffer, ib, blockStarts[z], 0, getNBlocks() + 1);
+			for(int z = 0; z < d; z++)
+				write(channel, buffer, ib, entries[z], 0, entries[z].length);
+			flush(channel, buffer, ib);
+		} finally {
+			raf.close();
+		}
+		// on Windows, renameTo() does not replace existing files
+		if(!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+			tmp.delete();
+			throw new IOException("Cannot rename " + tmp + " to " + file);
+		}
+	}
+
+	private static void write(FileChannel channel, ByteBuffer buffer, IntBuffer ib, int[] data, int offset, int length) throws IOException {
+		while(length > 0) {
+			if(!ib.hasRemaining())
+				flush(channel, buffer, ib);
+			int n = Math.min(length, ib.remaining());
+			ib.put(data, offset, n);
+			offset += n;
+			length -= n;
+		}
+	}
+
+	private static void flush(FileChannel channel, ByteBuffer buffer, IntBuffer ib) throws IOException {
+		buffer.limit(4 * ib.position());
+		buffer.position(0);
+		while(buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+		ib.clear();
+	}
+
+	// for reading in bulk, see load()
+	private static final int READ_CHUNK_SIZE = 1 << 20;
+	private static final ThreadLocal<ByteBuffer> readBuffer = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(READ_CHUNK_SIZE).order(BYTE_ORDER);
+		}
+	};
+
+	/**
+	 * Reads a LUT written by save(). The planes are read in bulk through
+	 * a re-used buffer, so that loading is limited by the disk or page
+	 * cache rather than by parsing. The file is not memory-mapped, since
+	 * a mapping would keep it from being replaced by save() on Windows.
+	 */
+	public static ProjectionLUT load(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			if(size < 4 * 5)
+				throw new IOException(file + " is not a LUT file");
+			int[] header = new int[2];
+			read(channel, size, 0, header, file);
+			if(header[0] != MAGIC)
+				throw new IOException(file + " is not a LUT file");
+			int version = header[1];
+			if(version < 1 || version > VERSION)
+				throw new IOException(file + ": unsupported LUT version " + version);
+			// versions 1 and 2 have a shorter header
+			int headerInts = version == 1 ? 5 : version == 2 ? 6 : HEADER_INTS;
+			if(size < 4 * headerInts)
+				throw new IOException(file + " is truncated");
+			header = new int[headerInts];
+			read(channel, size, 0, header, file);
+			int d = header[2];
+			ProjectionLUT lut = new ProjectionLUT(d, header[3], header[4]);
+			int nPartitions = version == 1 ? 1 : header[5];
+			boolean sides = version >= 3 && header[6] != 0;
+			if(nPartitions < 1)
+				throw new IOException(file + ": invalid number of partitions " + nPartitions);
+			lut.nPartitions = nPartitions;
+
+			long offset = 4 * headerInts;
+			int[] lengths = new int[d];
+			offset = read(channel, size, offset, lengths, file);
+			if(sides) {
+				int[] packed = new int[(lut.nVertices + 3) / 4];
+				offset = read(channel, size, offset, packed, file);
+				lut.sideMasks = new byte[lut.nVertices];
+				for(int v = 0; v < lut.nVertices; v++)
+					lut.sideMasks[v] = (byte)(packed[v / 4] >>> (8 * (v % 4)));
+			}
+			int nBlocks = lut.getNBlocks();
+			if(nBlocks > 1) {
+				lut.blockStarts = new int[d][nBlocks + 1];
+				for(int z = 0; z < d; z++)
+					offset = read(channel, size, offset, lut.blockStarts[z], file);
+			}
+			for(int z = 0; z < d; z++) {
+				if(lengths[z] < 0)
+					throw new IOException(file + " is corrupt");
+				lut.entries[z] = new int[lengths[z]];
+				offset = read(channel, size, offset, lut.entries[z], file);
+			}
+			return lut;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/*
+	 * Reads data.length ints at offset and returns the offset behind them.
+	 */
+	private static long read(FileChannel channel, long size, long offset, int[] data, File file) throws IOException {
+		long length = 4L * data.length;
+		if(offset + length > size)
+			throw new IOException(file + " is truncated");
+		ByteBuffer buffer = readBuffer.get();
+		for(int done = 0; done < data.length; ) {
+			int n = Math.min(data.length - done, READ_CHUNK_SIZE / 4);
+			buffer.clear();
+			buffer.limit(4 * n);
+			while(buffer.hasRemaining())
+				if(channel.read(buffer, offset + buffer.position()) < 0)
+					throw new IOException(file + " is truncated");
+			buffer.flip();
+			buffer.asIntBuffer().get(data, done, n);
+			done += n;
+			offset += 4L * n;
+		}
+		return offset;
+	}
+
+	private static int bitsFor(int n) {
+		return n <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(n - 1);
+	}
+
+	public int getNPlanes() {
+		return entries.length;
+	}
+
+	public int getNVertices() {
+		return nVertices;
+	}
+
+	public int getNLayers() {
+		return nLayers;
+	}
+
+	public int pack(int layer, int vertex) {
+		return (layer << vertexBits) | vertex;
+	}
+
+	public int getLayer(int target) {
+		return target >>> vertexBits;
+	}
+
+	public int getVertex(int target) {
+		return target & vertexMask;
+	}
+
+	/**
+	 * (pixel, target) pairs of plane z, sorted by pixel (y * w + x).
+	 */
+	public int[] getEntries(int z) {
+		return entries[z];
+	}
+
+	/**
+	 * Total number of (pixel, target) pairs over all planes.
+	 */
+	public long size() {
+		long n = 0;
+		for(int[] e : entries)
+			n += e.length / 2;
+		return n;
+	}
+
+	/**
+	 * Approximate memory footprint in bytes.
+	 */
+	public long getSizeInBytes() {
+		long n = 0;
+		for(int[] e : entries)
+			n += 4L * e.length;
+		return n;
+	}
+
+	/**
+	 * Sets plane z from a list of entries, each created with
+	 * createKey(). The list is sorted in place; duplicate entries
+	 * are removed. Only the first n entries of keys are used.
+	 */
+	public void setPlane(int z, long[] keys, int n) {
+		Arrays.sort(keys, 0, n);
+
+		int nUnique = 0;
+		for(int i = 0; i < n; i++)
+			if(nUnique == 0 || keys[i] != keys[nUnique - 1])
+				keys[nUnique++] = keys[i];
+
+		if(blockStarts != null) {
+			arrange(z, keys, nUnique);
+			return;
+		}
+		int[] e = new int[2 * nUnique];
+		for(int i = 0; i < nUnique; i++) {
+			e[2 * i]     = (int)(keys[i] >>> 32);
+			e[2 * i + 1] = (int)keys[i];
+		}
+		entries[z] = e;
+	}
+
+	public int getNPartitions() {
+		return nPartitions;
+	}
+
+	/**
+	 * Re-orders the entries of each plane into n partitions such that
+	 * no two partitions contain the same vertex. Within a partition,
+	 * entries remain sorted by pixel. Different partitions of the same
+	 * plane can then be projected concurrently without synchronization.
+	 */
+	public synchronized void partition(int n) {
+		if(n < 1)
+			throw new IllegalArgumentException("Need at least one partition");
+		nPartitions = n;
+		arrangeAll();
+	}
+
+	/**
+	 * Lets this LUT serve both illumination sides: bit ill of masks[v]
+	 * is set if vertex v is projected from illumination ill, i.e. for
+	 * the entries of v, see projectPlane(z, ip, maxima, partition, ill).
+	 * null lets all entries be projected from any illumination.
+	 */
+	public synchronized void setSideMasks(byte[] masks) {
+		if(masks != null && masks.length != nVertices)
+			throw new IllegalArgumentException("Expected " + nVertices + " masks, got " + masks.length);
+		sideMasks = masks;
+		arrangeAll();
+	}
+
+	/**
+	 * Returns the side masks, see setSideMasks(), or null.
+	 */
+	public byte[] getSideMasks() {
+		return sideMasks;
+	}
+
+	private int getNBlocks() {
+		return sideMasks == null ? nPartitions : N_SIDE_BLOCKS * nPartitions;
+	}
+
+	private int blockOf(int target) {
+		int p = partitionOf(target, nPartitions);
+		if(sideMasks == null)
+			return p;
+		// LEFT only, both, RIGHT only
+		switch(sideMasks[target & vertexMask]) {
+			case 1:  return N_SIDE_BLOCKS * p;
+			case 2:  return N_SIDE_BLOCKS * p + 2;
+			default: return N_SIDE_BLOCKS * p + 1;
+		}
+	}
+
+	private void arrangeAll() {
+		int d = entries.length;
+		blockStarts = getNBlocks() == 1 ? null : new int[d][];
+		for(int z = 0; z < d; z++) {
+			int[] e = entries[z];
+			int nPairs = e.length / 2;
+
+			// restore the global order by pixel
+			long[] keys = new long[nPairs];
+			for(int i = 0; i < nPairs; i++)
+				keys[i] = ((long)e[2 * i] << 32) | e[2 * i + 1];
+			Arrays.sort(keys);
+			if(blockStarts != null) {
+				arrange(z, keys, nPairs);
+			} else {
+				// a new table, since copies may share the old one
+				int[] ne = new int[2 * nPairs];
+				for(int i = 0; i < nPairs; i++) {
+					ne[2 * i]     = (int)(keys[i] >>> 32);
+					ne[2 * i + 1] = (int)keys[i];
+				}
+				entries[z] = ne;
+			}
+		}
+	}
+
+	/*
+	 * Sets plane z from the first n keys, which are sorted, ordered in
+	 * blocks.
+	 */
+	private void arrange(int z, long[] keys, int n) {
+		int nBlocks = getNBlocks();
+		int[] st = new int[nBlocks + 1];
+		for(int i = 0; i < n; i++)
+			st[blockOf((int)keys[i]) + 1]++;
+		for(int b = 0; b < nBlocks; b++)
+			st[b + 1] += st[b];
+
+		int[] pos = new int[nBlocks];
+		System.arraycopy(st, 0, pos, 0, nBlocks);
+		int[] ne = new int[2 * n];
+		for(int i = 0; i < n; i++) {
+			int target = (int)keys[i];
+			int k = pos[blockOf(target)]++;
+			ne[2 * k]     = (int)(keys[i] >>> 32);
+			ne[2 * k + 1] = target;
+		}
+		entries[z] = ne;
+		blockStarts[z] = st;
+	}
+
+	/**
+	 * Returns the pixels used by each plane, for frames of width w.
+	 */
+	public PlaneCrop[] getCrops(int w) {
+		PlaneCrop[] crops = new PlaneCrop[entries.length];
+		for(int z = 0; z < entries.length; z++)
+			crops[z] = PlaneCrop.create(entries[z], w);
+		return crops;
+	}
+
+	/**
+	 * Returns a copy of this LUT whose pixel indices refer to the
+	 * compact buffers filled by crops[z].gather() instead of to full
+	 * frames. The partitions are retained; since the remapping preserves
+	 * the order of pixels, the entries of each partition remain sorted.
+	 */
+	public synchronized ProjectionLUT remap(PlaneCrop[] crops) {
+		ProjectionLUT cp = new ProjectionLUT(entries.length, nVertices, nLayers);
+		for(int z = 0; z < entries.length; z++) {
+			int[] e = entries[z];
+			int[] ne = new int[e.length];
+			for(int i = 0; i < e.length; i += 2) {
+				int pixel = crops[z].toCompact(e[i]);
+				if(pixel < 0)
+					throw new IllegalArgumentException("Pixel " + e[i] + " of plane " + z + " is not cropped");
+				ne[i]     = pixel;
+				ne[i + 1] = e[i + 1];
+			}
+			cp.entries[z] = ne;
+		}
+		cp.blockStarts = blockStarts == null ? null : blockStarts.clone();
+		cp.nPartitions = nPartitions;
+		cp.sideMasks = sideMasks;
+		return cp;
+	}
+
+	/**
+	 * Returns a copy of this LUT. The tables of the planes are shared
+	 * with this LUT, since they are replaced, not modified, by
+	 * setPlane(), partition() and setSideMasks(), so that calling these
+	 * on either LUT does not affect the other one.
+	 */
+	public synchronized ProjectionLUT copy() {
+		ProjectionLUT cp = new ProjectionLUT(entries.length, nVertices, nLayers);
+		System.arraycopy(entries, 0, cp.entries, 0, entries.length);
+		cp.blockStarts = blockStarts == null ? null : blockStarts.clone();
+		cp.nPartitions = nPartitions;
+		cp.sideMasks = sideMasks;
+		return cp;
+	}
+
+	/**
+	 * Decides which entries are kept by select().
+	 */
+	public static interface EntryFilter {
+		public boolean accept(int z, int pixel, int target);
+	}
+
+	/**
+	 * Returns a copy of this LUT which only contains the entries
+	 * accepted by filter. The partitions and side masks are retained,
+	 * and the entries of each partition remain sorted.
+	 */
+	public synchronized ProjectionLUT select(EntryFilter filter) {
+		int d = entries.length;
+		int nBlocks = getNBlocks();
+		ProjectionLUT cp = new ProjectionLUT(d, nVertices, nLayers);
+		int[][] starts = blockStarts == null ? null : new int[d][nBlocks + 1];
+		for(int z = 0; z < d; z++) {
+			int[] e = entries[z];
+			int[] ne = new int[e.length];
+			int n = 0;
+			int b = 0;
+			for(int i = 0; i < e.length; i += 2) {
+				if(starts != null) {
+					while(i >= 2 * blockStarts[z][b + 1])
+						starts[z][++b] = n / 2;
+				}
+				if(filter.accept(z, e[i], e[i + 1])) {
+					ne[n++] = e[i];
+					ne[n++] = e[i + 1];
+				}
+			}
+			if(starts != null)
+				while(b < nBlocks)
+					starts[z][++b] = n / 2;
+			cp.entries[z] = Arrays.copyOf(ne, n);
+		}
+		cp.blockStarts = starts;
+		cp.nPartitions = nPartitions;
+		cp.sideMasks = sideMasks;
+		return cp;
+	}
+
+	private int partitionOf(int target, int n) {
+		return ((target & vertexMask) >>> PARTITION_BLOCK_BITS) % n;
+	}
+
+	/**
+	 * Creates a sortable key for setPlane().
+	 */
+	public long createKey(int pixel, int layer, int vertex) {
+		return ((long)pixel << 32) | pack(layer, vertex);
+	}
+
+	/*
+	 * Start of the entries of the given partition and illumination in
+	 * plane z, or of the whole partition if ill is negative or the LUT
+	 * has no side masks.
+	 */
+	private int getStart(int z, int partition, int ill) {
+		if(blockStarts == null)
+			return partition == 0 ? 0 : entries[z].length / 2;
+		if(sideMasks == null)
+			return blockStarts[z][partition];
+		// LEFT: LEFT only and both, RIGHT: both and RIGHT only
+		int offset = ill == 1 ? 1 : 0;
+		return blockStarts[z][N_SIDE_BLOCKS * partition + offset];
+	}
+
+	private int getEnd(int z, int partition, int ill) {
+		if(blockStarts == null || sideMasks == null || ill < 0)
+			return getStart(z, partition + 1, ill);
+		// LEFT ends before the RIGHT only block, RIGHT at the end of the partition
+		return blockStarts[z][N_SIDE_BLOCKS * partition + (ill == 1 ? 3 : 2)];
+	}
+
+	/*
+	 * z starts with 0;
+	 */
+	public void projectPlane(int z, short[] ip, short[][] maxima) {
+		projectRange(z, ip, maxima, 0, entries[z].length / 2);
+	}
+
+	/**
+	 * Projects plane z of a single-layer LUT into maxima.
+	 */
+	public void projectPlane(int z, short[] ip, short[] maxima) {
+		if(nLayers != 1)
+			throw new IllegalStateException("Need a single layer, have " + nLayers);
+		final int[] e = entries[z];
+		final int end = e.length;
+		// the layer bits of all entries are 0
+		for(int i = 0; i < end; i += 2) {
+			final int v = ip[e[i]] & 0xffff;
+			final int vIndex = e[i + 1];
+			if(v > (maxima[vIndex] & 0xffff))
+				maxima[vIndex] = (short)v;
+		}
+	}
+
+	/*
+	 * Only projects the entries of the given partition.
+	 */
+	public void projectPlane(int z, short[] ip, short[][] maxima, int partition) {
+		projectPlane(z, ip, maxima, partition, -1);
+	}
+
+	/**
+	 * Only projects the entries of the given partition which are used
+	 * by illumination ill, see setSideMasks(); all entries of the
+	 * partition if ill is negative.
+	 */
+	public void projectPlane(int z, short[] ip, short[][] maxima, int partition, int ill) {
+		projectRange(z, ip, maxima, getStart(z, partition, ill), getEnd(z, partition, ill));
+	}
+
+	private void projectRange(int z, short[] ip, short[][] maxima, int from, int to) {
+		final int[] e = entries[z];
+		final int shift = vertexBits;
+		final int mask = vertexMask;
+		final int end = 2 * to;
+		for(int i = 2 * from; i < end; i += 2) {
+			final int v = ip[e[i]] & 0xffff;
+			final int target = e[i + 1];
+			final short[] m = maxima[target >>> shift];
+			final int vIndex = target & mask;
+			if(v > (m[vIndex] & 0xffff))
+				m[vIndex] = (short)v;
+		}
+	}
+
+	/**
+	 * Accumulates all entries of plane z.
+	 */
+	public void projectPlane(int z, short[] ip, ProjectionAccumulator acc) {
+		acc.accumulate(z, ip, entries[z], 0, entries[z].length / 2, vertexBits);
+	}
+
+	/**
+	 * Only accumulates the entries of the given partition.
+	 */
+	public void projectPlane(int z, short[] ip, ProjectionAccumulator acc, int partition) {
+		projectPlane(z, ip, acc, partition, -1);
+	}
+
+	/**
+	 * Only accumulates the entries of the given partition which are
+	 * used by illumination ill; all of them if ill is negative.
+	 */
+	public void projectPlane(int z, short[] ip, ProjectionAccumulator acc, int partition, int ill) {
+		acc.accumulate(z, ip, entries[z], getStart(z, partition, ill), getEnd(z, partition, ill), vertexBits);
+	}
+}
@@ -0,0 +1,233 @@
+package huisken.projection.processing;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Calculates any combination of maximum, mean, the depth of the maximum
+ * and the k largest values of each vertex and layer in a single pass
+ * over the lookup table.
+ */
+public class ProjectionStatistics extends ProjectionAccumulator {
+
+	public static final int MAX    = 1;
+	public static final int MEAN   = 2;
+	public static final int ARGMAX = 4;
+	public static final int TOPK   = 8;
+
+	private final int modes;
+	private final int nLayers, nVertices, k;
+
+	/**
+	 * Converts the position of a maximum, given by its plane and its
+	 * pixel in the lookup table, into the depth which is saved for
+	 * ARGMAX, e.g. its distance from the sphere center.
+	 */
+	public static interface DepthMeasure {
+		public short getDepth(int z, int pixel);
+	}
+
+	// [layer][vertex]
+	private final short[][] max;
+	// position of the maximum, -1 for none
+	private final short[][] argmaxPlane;
+	private final int[][] argmaxPixel;
+	private DepthMeasure depthMeasure = null;
+	private final long[][] sum;
+	private final int[][] count;
+	// [layer][vertex * k + rank], descending
+	private final short[][] top;
+
+	/**
+	 * @param modes Combination of MAX, MEAN, ARGMAX and TOPK.
+	 * @param k Number of values for TOPK.
+	 */
+	public ProjectionStatistics(int modes, int nLayers, int nVertices, int k) {
+		if((modes & TOPK) != 0 && k < 1)
+			throw new IllegalArgumentException("k must be positive");
+		this.modes = modes;
+		this.nLayers = nLayers;
+		this.nVertices = nVertices;
+		this.k = (modes & TOPK) != 0 ? k : 0;
+		// the depth of the maximum needs the maximum
+		max    = (modes & (MAX | ARGMAX)) != 0 ? new short[nLayers][nVertices] : null;
+		argmaxPlane = (modes & ARGMAX) != 0 ? new short[nLayers][nVertices] : null;
+		argmaxPixel = (modes & ARGMAX) != 0 ? new int[nLayers][nVertices] : null;
+		sum    = (modes & MEAN) != 0 ? new long[nLayers][nVertices] : null;
+		count  = (modes & MEAN) != 0 ? new int[nLayers][nVertices] : null;
+		top    = (modes & TOPK) != 0 ? new short[nLayers][nVertices * k] : null;
+	}
+
+	public int getModes() {
+		return modes;
+	}
+
+	public boolean has(int mode) {
+		return (modes & mode) != 0;
+	}
+
+	@Override
+	public void reset() {
+		for(int l = 0; l < nLayers; l++) {
+			if(max != null)
+				Arrays.fill(max[l], (short)0);
+			if(argmaxPixel != null)
+				Arrays.fill(argmaxPixel[l], -1);
+			if(sum != null) {
+				Arrays.fill(sum[l], 0);
+				Arrays.fill(count[l], 0);
+			}
+			if(top != null)
+				Arrays.fill(top[l], (short)0);
+		}
+	}
+
+	@Override
+	public void accumulate(int z, short[] ip, int[] e, int from, int to, int vertexBits) {
+		final short[][] max = this.max;
+		final short[][] argmaxPlane = this.argmaxPlane;
+		final int[][] argmaxPixel = this.argmaxPixel;
+		final long[][] sum = this.sum;
+		final int[][] count = this.count;
+		final short[][] top = this.top;
+		final int k = this.k;
+		final short zs = (short)z;
+		final int shift = vertexBits;
+		final int mask = (1 << vertexBits) - 1;
+		final int end = 2 * to;
+		for(int i = 2 * from; i < end; i += 2) {
+			final int v = ip[e[i]] & 0xffff;
+			final int target = e[i + 1];
+			final int layer = target >>> shift;
+			final int vIndex = target & mask;
+			if(max != null) {
+				final short[] m = max[layer];
+				if(v > (m[vIndex] & 0xffff)) {
+					m[vIndex] = (short)v;
+					if(argmaxPixel != null) {
+						argmaxPlane[layer][vIndex] = zs;
+						argmaxPixel[layer][vIndex] = e[i];
+					}
+				}
+			}
+			if(sum != null) {
+				sum[layer][vIndex] += v;
+				count[layer][vIndex]++;
+			}
+			if(top != null) {
+				final short[] t = top[layer];
+				final int o = vIndex * k;
+				if(v > (t[o + k - 1] & 0xffff)) {
+					// insertion into the sorted list
+					int r = o + k - 1;
+					while(r > o && v > (t[r - 1] & 0xffff)) {
+						t[r] = t[r - 1];
+						r--;
+					}
+					t[r] = (short)v;
+				}
+			}
+		}
+	}
+
+	public short[] getMaxima(int layer) {
+		return max[layer];
+	}
+
+	/**
+	 * Sets how getArgmax() converts the position of a maximum into its
+	 * depth; the position depends on the geometry of the stack, so
+	 * this is usually set at the start of each stack.
+	 */
+	public void setDepthMeasure(DepthMeasure measure) {
+		this.depthMeasure = measure;
+	}
+
+	/**
+	 * Returns the depth at which the maximum occurred, see
+	 * setDepthMeasure(), or 0 for vertices without maximum.
+	 */
+	public short[] getArgmax(int layer) {
+		DepthMeasure measure = depthMeasure;
+		if(measure == null)
+			throw new IllegalStateException("No depth measure set");
+		short[] depth = new short[nVertices];
+		short[] planes = argmaxPlane[layer];
+		int[] pixels = argmaxPixel[layer];
+		for(int v = 0; v < nVertices; v++)
+			if(pixels[v] >= 0)
+				depth[v] = measure.getDepth(planes[v], pixels[v]);
+		return depth;
+	}
+
+	public short[] getMean(int layer) {
+		short[] mean = new short[nVertices];
+		long[] s = sum[layer];
+		int[] c = count[layer];
+		for(int v = 0; v < nVertices; v++)
+			mean[v] = c[v] == 0 ? 0 : (short)Math.round(s[v] / (double)c[v]);
+		return mean;
+	}
+
+	/**
+	 * Returns the rank-th largest value (starting with 0) of each vertex.
+	 */
+	public short[] getTopK(int layer, int rank) {
+		short[] ret = new short[nVertices];
+		short[] t = top[layer];
+		for(int v = 0; v < nVertices; v++)
+			ret[v] = t[v * k + rank];
+		return ret;
+	}
+
+	/**
+	 * Saves each statistic of the given layer as a .vertices file. The
+	 * maximum is saved to path, all other statistics to files with the
+	 * extension replaced by _mean.vertices, _argmax.vertices and
+	 * _topN.vertices (N starting with 1).
+	 */
+	public void save(int layer, String path, boolean saveMaxima) throws IOException {
+		save(layer, path, saveMaxima, null);
+	}
+
+	/**
+	 * Like save(int, String, boolean), but hands the data to writer
+	 * instead of writing it on the calling thread, if writer is not null.
+	 */
+	public void save(int layer, String path, boolean saveMaxima, AsyncVerticesWriter writer) throws IOException {
+		if(saveMaxima && has(MAX))
+			save(getMaxima(layer), path, writer);
+		if(has(MEAN))
+			save(getMean(layer), getPath(path, "mean"), writer);
+		if(has(ARGMAX))
+			save(getArgmax(layer), getPath(path, "argmax"), writer);
+		if(has(TOPK))
+			for(int r = 0; r < k; r++)
+				save(getTopK(layer, r), getPath(path, "top" + (r + 1)), writer);
+	}
+
+	private static void save(short[] data, String path, AsyncVerticesWriter writer) throws IOException {
+		if(writer != null)
+			writer.writeCopy(path, data);
+		else
+			SphericalMaxProjection.saveShortData(data, path);
+	}
+
+	/**
+	 * Returns the path of the given statistic, for the path of the
+	 * maxima.
+	 */
+	public static String getPath(String path, String statistic) {
+		if(path.endsWith(".vertices"))
+			path = path.substring(0, path.length() - ".vertices".length());
+		return path + "_" + statistic + ".vertices";
+	}
+
+	/**
+	 * Like getPath(), for the file name of the maxima in dir.
+	 */
+	public static File getFile(File dir, String filename, String statistic) {
+		return new File(getPath(new File(dir, filename).getAbsolutePath(), statistic));
+	}
+}
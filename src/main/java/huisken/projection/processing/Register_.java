@@ -90,7 +90,8 @@ public class Register_ implements PlugIn {
 		this.matrixDirectory = new File(outputDirectory, "transformations");
 		matrixDirectory.mkdir();
 
-		this.smp = new SphericalMaxProjection(objfile.getAbsolutePath());
+		this.smp = new SphericalMaxProjection(objfile.getAbsolutePath(),
+				SphericalMaxProjection.getMeshCacheDir(dataDirectory));
 		this.nVertices = smp.getSphere().nVertices;
 		smp.saveSphere(new File(outputDirectory, "Sphere.obj").getAbsolutePath());
 
@@ -146,15 +147,17 @@ public class Register_ implements PlugIn {
 			overall = loadTransform(new File(matrixDirectory, matName).getAbsolutePath());
 		}
 
-		if(!outputfile.exists()) {
-			maxima = smp.applyTransform(overall, maxima);
-			SphericalMaxProjection.saveShortData(maxima, outputfile.getAbsolutePath());
-		}
+		// resample maxima and contributions in one pass
+		short[] newmaxima = outputfile.exists() ? null : new short[nVertices];
+		int[] con = contributionsfile.exists() ? null : new int[nVertices];
+		if(newmaxima != null || con != null)
+			smp.getResampler().resample(overall, maxima, newmaxima, contributions, con);
 
-		if(!contributionsfile.exists()) {
-			int[] con = smp.applyTransformNearestNeighbor(overall, contributions);
+		if(newmaxima != null)
+			SphericalMaxProjection.saveShortData(newmaxima, outputfile.getAbsolutePath());
+
+		if(con != null)
 			SphericalMaxProjection.saveIntData(con, contributionsfile.getAbsolutePath());
-		}
 
 		tgtPts = nextTgtPts;
 	}
@@ -42,32 +42,55 @@ public class ResampleSMP implements PlugIn {
 	private int subd;
 	IndexedTriangleMesh sphere;
 	int[] indices;
+	private SpherePyramid pyramid;
 
 	public void prepareResampling(File inputdir, File outputdir, int f) throws IOException {
 		this.inputdir = inputdir;
 		this.outputdir = outputdir;
 		this.factor = f;
-		this.smp = new SphericalMaxProjection(new File(inputdir, "Sphere.obj").getAbsolutePath());
+		this.smp = new SphericalMaxProjection(new File(inputdir, "Sphere.obj").getAbsolutePath(),
+				SphericalMaxProjection.getMeshCacheDir(inputdir));
 
 		int n = smp.getSphere().nVertices;
 		float radius = smp.getRadius();
 		Point3f center = smp.getCenter();
 
-		subd = (int)((-20 + Math.sqrt(400 - 40 * (12 - n))) / 20 + 1);
-		subd /= factor;
+		subd = SpherePyramid.getSubdivisions(smp.getSphere());
+		if(subd < 0)
+			subd = (int)((-20 + Math.sqrt(400 - 40 * (12 - n))) / 20 + 1);
+
+		// If the coarse sphere is nested in the original one, average over
+		// the exact parent/child relations instead of smoothing and
+		// searching the nearest neighbors.
+		pyramid = null;
+		if(subd % factor == 0 && subd / factor >= 2) {
+			try {
+				IJ.showStatus("Creating sphere pyramid");
+				pyramid = new SpherePyramid(smp.getSphere(), factor, 2);
+			} catch(IllegalArgumentException e) {
+				pyramid = null;
+			}
+		}
+
+		if(pyramid != null) {
+			sphere = pyramid.getMesh(1);
+			indices = pyramid.getVertexMap(1);
+		} else {
+			subd /= factor;
 
-		IJ.showStatus("Creating icosahedron");
-		Icosahedron icosa = new Icosahedron(radius);
+			IJ.showStatus("Creating icosahedron");
+			Icosahedron icosa = new Icosahedron(radius);
 
-		IJ.showStatus("Creating buckyball");
-		sphere = icosa.createBuckyball(radius, subd);
-		for(Point3f p : sphere.getVertices())
-			p.add(center);
+			IJ.showStatus("Creating buckyball");
+			sphere = icosa.createBuckyball(radius, subd);
+			for(Point3f p : sphere.getVertices())
+				p.add(center);
 
-		IJ.showStatus("Creating indices");
-		indices = new int[sphere.nVertices];
-		for(int i = 0; i < indices.length; i++)
-			indices[i] = smp.getNearestNeighbor(sphere.getVertices()[i]);
+			IJ.showStatus("Creating indices");
+			indices = new int[sphere.nVertices];
+			for(int i = 0; i < indices.length; i++)
+				indices[i] = smp.getNearestNeighbor(sphere.getVertices()[i]);
+		}
 
 		if(!outputdir.exists())
 			outputdir.mkdir();
@@ -99,12 +122,17 @@ public class ResampleSMP implements PlugIn {
 				continue;
 
 			short[] maxima = smp.loadMaxima(infile.getAbsolutePath());
-			for(int j = 0; j < factor; j++)
-				smp.smooth(maxima);
-
-			short[] resampled = new short[sphere.nVertices];
-			for(int j = 0; j < indices.length; j++)
-				resampled[j] = maxima[indices[j]];
+			short[] resampled;
+			if(pyramid != null) {
+				resampled = pyramid.restrict(maxima, 1);
+			} else {
+				for(int j = 0; j < factor; j++)
+					smp.smooth(maxima);
+
+				resampled = new short[sphere.nVertices];
+				for(int j = 0; j < indices.length; j++)
+					resampled[j] = maxima[indices[j]];
+			}
 
 			SphericalMaxProjection.saveShortData(resampled, outfile.getAbsolutePath());
 		}
@@ -0,0 +1,367 @@
+package huisken.projection.processing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.vecmath.Point3f;
+
+/**
+ * Coarser versions of a sphere created by Icosahedron.createBuckyball().
+ *
+ * The vertices of such a sphere lie on a triangular lattice on each of
+ * the 20 icosahedron faces, subdivided subd times, and the faces are
+ * listed in the order of TriangleSubdivision.createTriangles(). The
+ * lattice coordinates of each vertex are therefore known from the face
+ * list alone. If subd is divisible by factor, the sphere with subd /
+ * factor subdivisions consists of every factor-th lattice point, so
+ * that each coarse vertex is also a fine vertex, and each fine vertex
+ * lies in a coarse triangle with known barycentric coordinates.
+ *
+ * Level 0 is the given sphere; level l + 1 has factor times fewer
+ * subdivisions than level l, as long as the number of subdivisions is
+ * divisible by factor and at least 2. The coarse meshes use the vertex
+ * positions of the fine one and the face order of createBuckyball().
+ *
+ * prolong() interpolates linearly within the coarse triangles, and
+ * restrict() is its normalized transpose, i.e. a weighted average of
+ * the fine vertices around each coarse vertex.
+ */
+public class SpherePyramid {
+
+	private final int factor;
+	private final IndexedTriangleMesh[] meshes;
+	private final int[] subds;
+
+	// per level > 0, for each vertex the index of the same vertex in level - 1
+	private final int[][] children;
+
+	// per level < nLevels - 1, for each vertex the three vertices of the
+	// coarse triangle in level + 1 and the interpolation weights
+	private final int[][] parents;
+	private final float[][] weights;
+	// per level > 0, the sum of the weights of each vertex in prolong()
+	private final float[][] norms;
+
+	/**
+	 * Creates all levels which can be derived from sphere.
+	 * @throws IllegalArgumentException if sphere was not created by
+	 *         Icosahedron.createBuckyball().
+	 */
+	public SpherePyramid(IndexedTriangleMesh sphere, int factor) {
+		this(sphere, factor, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Creates at most maxLevels levels, including the given sphere.
+	 */
+	public SpherePyramid(IndexedTriangleMesh sphere, int factor, int maxLevels) {
+		if(factor < 2)
+			throw new IllegalArgumentException("factor must be at least 2");
+		this.factor = factor;
+		int subd = getSubdivisions(sphere);
+		if(subd < 0)
+			throw new IllegalArgumentException("Not an icosahedron subdivision");
+
+		List<Integer> s = new ArrayList<Integer>();
+		s.add(subd);
+		while(s.size() < maxLevels && subd % factor == 0 && subd / factor >= 2) {
+			subd /= factor;
+			s.add(subd);
+		}
+		int nLevels = s.size();
+		subds = new int[nLevels];
+		for(int l = 0; l < nLevels; l++)
+			subds[l] = s.get(l);
+
+		meshes = new IndexedTriangleMesh[nLevels];
+		children = new int[nLevels][];
+		parents = new int[nLevels][];
+		weights = new float[nLevels][];
+		norms = new float[nLevels][];
+
+		meshes[0] = sphere;
+		int[] lattice = createLattice(sphere, subds[0]);
+		for(int l = 1; l < nLevels; l++) {
+			int[] coarseLattice = createLevel(l, lattice);
+			createProlongation(l - 1, lattice, coarseLattice);
+			lattice = coarseLattice;
+		}
+	}
+
+	/**
+	 * Returns the number of subdivisions of the icosahedron faces, or -1
+	 * if the number of faces does not match an icosahedron subdivision.
+	 */
+	public static int getSubdivisions(IndexedTriangleMesh sphere) {
+		int nTriangles = sphere.getFaces().length / 3;
+		int subd = (int)Math.round(Math.sqrt(nTriangles / 20.0));
+		return subd >= 2 && 20 * subd * subd == nTriangles ? subd : -1;
+	}
+
+	public int getNLevels() {
+		return meshes.length;
+	}
+
+	public int getFactor() {
+		return factor;
+	}
+
+	public IndexedTriangleMesh getMesh(int level) {
+		return meshes[level];
+	}
+
+	public int getSubdivisions(int level) {
+		return subds[level];
+	}
+
+	/**
+	 * For each vertex of level, the index of the same vertex in level 0.
+	 */
+	public int[] getVertexMap(int level) {
+		int[] map = new int[meshes[level].nVertices];
+		for(int v = 0; v < map.length; v++) {
+			int idx = v;
+			for(int l = level; l > 0; l--)
+				idx = children[l][idx];
+			map[v] = idx;
+		}
+		return map;
+	}
+
+	/**
+	 * For each vertex of level (> 0), the index of the same vertex in
+	 * level - 1.
+	 */
+	public int[] getChildren(int level) {
+		return children[level];
+	}
+
+	/*
+	 * Index of lattice point (i, j) of icosahedron face b, i + j <= subd.
+	 */
+	private static int latticeIndex(int subd, int b, int i, int j) {
+		return (b * (subd + 1) + j) * (subd + 1) + i;
+	}
+
+	/*
+	 * Calls visit() for the corners of each triangle, in the order of
+	 * Icosahedron.createBuckyball(), as lattice coordinates.
+	 */
+	private static abstract class TriangleVisitor {
+		abstract void visit(int t, int b, int i0, int j0, int i1, int j1, int i2, int j2);
+
+		void run(int subd) {
+			int t = 0;
+			for(int b = 0; b < 20; b++) {
+				for(int j = 0; j < subd; j++) {
+					for(int i = 0; i < subd - j; i++) {
+						visit(t++, b, i, j, i + 1, j, i, j + 1);
+						if(i < subd - j - 1)
+							visit(t++, b, i + 1, j, i + 1, j + 1, i, j + 1);
+					}
+				}
+			}
+		}
+	}
+
+	/*
+	 * Returns the vertex index at each lattice point of sphere.
+	 */
+	private static int[] createLattice(IndexedTriangleMesh sphere, final int subd) {
+		final int[] faces = sphere.getFaces();
+		final int[] lattice = new int[20 * (subd + 1) * (subd + 1)];
+		Arrays.fill(lattice, -1);
+		new TriangleVisitor() {
+			@Override
+			void visit(int t, int b, int i0, int j0, int i1, int j1, int i2, int j2) {
+				set(b, i0, j0, faces[3 * t]);
+				set(b, i1, j1, faces[3 * t + 1]);
+				set(b, i2, j2, faces[3 * t + 2]);
+			}
+
+			private void set(int b, int i, int j, int v) {
+				int idx = latticeIndex(subd, b, i, j);
+				if(lattice[idx] != -1 && lattice[idx] != v)
+					throw new IllegalArgumentException("Not an icosahedron subdivision");
+				lattice[idx] = v;
+			}
+		}.run(subd);
+		return lattice;
+	}
+
+	/*
+	 * Creates the mesh of the given level from every factor-th lattice
+	 * point of level - 1, and returns its lattice.
+	 */
+	private int[] createLevel(final int level, final int[] fineLattice) {
+		final int fineSubd = subds[level - 1];
+		final int subd = subds[level];
+		final Point3f[] fineVertices = meshes[level - 1].getVertices();
+
+		final int[] lattice = new int[20 * (subd + 1) * (subd + 1)];
+		Arrays.fill(lattice, -1);
+		final int[] faces = new int[3 * 20 * subd * subd];
+		final int[] fineToCoarse = new int[fineVertices.length];
+		Arrays.fill(fineToCoarse, -1);
+		final List<Point3f> vertices = new ArrayList<Point3f>();
+		final List<Integer> child = new ArrayList<Integer>();
+
+		new TriangleVisitor() {
+			@Override
+			void visit(int t, int b, int i0, int j0, int i1, int j1, int i2, int j2) {
+				faces[3 * t]     = get(b, i0, j0);
+				faces[3 * t + 1] = get(b, i1, j1);
+				faces[3 * t + 2] = get(b, i2, j2);
+			}
+
+			// vertices are numbered in the order of their first occurrence,
+			// like in IndexedTriangleMesh(List)
+			private int get(int b, int i, int j) {
+				int fine = fineLattice[latticeIndex(fineSubd, b, factor * i, factor * j)];
+				if(fineToCoarse[fine] < 0) {
+					fineToCoarse[fine] = vertices.size();
+					vertices.add(new Point3f(fineVertices[fine]));
+					child.add(fine);
+				}
+				lattice[latticeIndex(subd, b, i, j)] = fineToCoarse[fine];
+				return fineToCoarse[fine];
+			}
+		}.run(subd);
+
+		Point3f[] v = new Point3f[vertices.size()];
+		vertices.toArray(v);
+		meshes[level] = new IndexedTriangleMesh(v, faces);
+		children[level] = new int[v.length];
+		for(int i = 0; i < v.length; i++)
+			children[level][i] = child.get(i);
+		return lattice;
+	}
+
+	/*
+	 * Calculates the coarse triangle and the barycentric coordinates of
+	 * each vertex of level, w.r.t. level + 1.
+	 */
+	private void createProlongation(final int level, int[] fineLattice, int[] coarseLattice) {
+		final int fineSubd = subds[level];
+		final int subd = subds[level + 1];
+		int nFine = meshes[level].nVertices;
+		int[] p = new int[3 * nFine];
+		float[] w = new float[3 * nFine];
+		boolean[] done = new boolean[nFine];
+
+		for(int b = 0; b < 20; b++) {
+			for(int j = 0; j <= fineSubd; j++) {
+				for(int i = 0; i <= fineSubd - j; i++) {
+					int v = fineLattice[latticeIndex(fineSubd, b, i, j)];
+					if(done[v])
+						continue;
+					done[v] = true;
+
+					// the coarse lattice cell and the position within it
+					int ci = Math.min(i / factor, subd - 1);
+					int cj = Math.min(j / factor, subd - 1);
+					int a = i - factor * ci;
+					int c = j - factor * cj;
+					if(ci + cj > subd - 1) {
+						// on the outer edge of the icosahedron face
+						ci = subd - 1 - cj;
+						a = i - factor * ci;
+					}
+					int o = 3 * v;
+					if(a + c <= factor) {
+						p[o]     = coarseLattice[latticeIndex(subd, b, ci, cj)];
+						p[o + 1] = coarseLattice[latticeIndex(subd, b, ci + 1, cj)];
+						p[o + 2] = coarseLattice[latticeIndex(subd, b, ci, cj + 1)];
+						w[o]     = (factor - a - c) / (float)factor;
+						w[o + 1] = a / (float)factor;
+						w[o + 2] = c / (float)factor;
+					} else {
+						p[o]     = coarseLattice[latticeIndex(subd, b, ci + 1, cj + 1)];
+						p[o + 1] = coarseLattice[latticeIndex(subd, b, ci + 1, cj)];
+						p[o + 2] = coarseLattice[latticeIndex(subd, b, ci, cj + 1)];
+						w[o]     = (a + c - factor) / (float)factor;
+						w[o + 1] = (factor - c) / (float)factor;
+						w[o + 2] = (factor - a) / (float)factor;
+					}
+				}
+			}
+		}
+
+		float[] norm = new float[meshes[level + 1].nVertices];
+		for(int k = 0; k < p.length; k++)
+			norm[p[k]] += w[k];
+
+		parents[level] = p;
+		weights[level] = w;
+		norms[level + 1] = norm;
+	}
+
+	/**
+	 * Averages data of level into coarse, of level + 1.
+	 */
+	public void restrict(int level, short[] data, short[] coarse) {
+		int[] p = parents[level];
+		float[] w = weights[level];
+		float[] norm = norms[level + 1];
+		float[] sum = new float[coarse.length];
+		for(int v = 0, o = 0; v < data.length; v++, o += 3) {
+			float value = data[v] & 0xffff;
+			sum[p[o]]     += w[o] * value;
+			sum[p[o + 1]] += w[o + 1] * value;
+			sum[p[o + 2]] += w[o + 2] * value;
+		}
+		for(int c = 0; c < coarse.length; c++)
+			coarse[c] = (short)Math.round(sum[c] / norm[c]);
+	}
+
+	/**
+	 * Averages data of level 0 down to the given level.
+	 */
+	public short[] restrict(short[] data, int level) {
+		for(int l = 0; l < level; l++) {
+			short[] coarse = new short[meshes[l + 1].nVertices];
+			restrict(l, data, coarse);
+			data = coarse;
+		}
+		return data;
+	}
+
+	/**
+	 * Interpolates data of level + 1 into fine, of level.
+	 */
+	public void prolong(int level, short[] data, short[] fine) {
+		int[] p = parents[level];
+		float[] w = weights[level];
+		for(int v = 0, o = 0; v < fine.length; v++, o += 3) {
+			fine[v] = (short)Math.round(
+					w[o]     * (data[p[o]]     & 0xffff) +
+					w[o + 1] * (data[p[o + 1]] & 0xffff) +
+					w[o + 2] * (data[p[o + 2]] & 0xffff));
+		}
+	}
+
+	/**
+	 * Interpolates data of the given level up to level 0.
+	 */
+	public short[] prolong(short[] data, int level) {
+		for(int l = level - 1; l >= 0; l--) {
+			short[] fine = new short[meshes[l].nVertices];
+			prolong(l, data, fine);
+			data = fine;
+		}
+		return data;
+	}
+
+	/**
+	 * Samples data of level 0 at the vertices of the given level, e.g.
+	 * for labels, which cannot be averaged.
+	 */
+	public int[] sample(int[] data, int level) {
+		int[] map = getVertexMap(level);
+		int[] ret = new int[map.length];
+		for(int v = 0; v < map.length; v++)
+			ret[v] = data[map[v]];
+		return ret;
+	}
+}
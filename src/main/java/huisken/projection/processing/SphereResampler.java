@@ -0,0 +1,207 @@
+package huisken.projection.processing;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.vecmath.Matrix4f;
+import javax.vecmath.Point3f;
+
+/**
+ * Resamples data on a sphere after a rigid transformation.
+ *
+ * Consecutive vertices are close to each other, so the triangle
+ * containing the next transformed vertex is found by walking over the
+ * mesh, starting at the triangle of the previous one; only the first
+ * vertex of each thread is located with SphericalMaxProjection.
+ * Interpolated and nearest neighbor values are calculated in the same
+ * pass. The worker threads are kept for subsequent calls.
+ */
+public class SphereResampler {
+
+	private static final int MAX_STEPS = 64;
+	private static final float EPS = 1e-6f;
+
+	private final SphericalMaxProjection smp;
+	private final float[] vertices;
+	private final int[] faces;
+	private final int[] faceNeighbors;
+	private final float cx, cy, cz;
+	private final int nThreads;
+
+	private ExecutorService exec = null;
+
+	public SphereResampler(SphericalMaxProjection smp, int nThreads) {
+		this.smp = smp;
+		this.nThreads = nThreads;
+		IndexedTriangleMesh sphere = smp.getSphere();
+		this.faces = sphere.getFaces();
+		this.faceNeighbors = sphere.getFaceNeighbors();
+		Point3f[] v = sphere.getVertices();
+		this.vertices = new float[3 * v.length];
+		for(int i = 0; i < v.length; i++) {
+			vertices[3 * i]     = v[i].x;
+			vertices[3 * i + 1] = v[i].y;
+			vertices[3 * i + 2] = v[i].z;
+		}
+		Point3f c = smp.getCenter();
+		this.cx = c.x;
+		this.cy = c.y;
+		this.cz = c.z;
+	}
+
+	/**
+	 * Resamples data after transforming it with matrix.
+	 * @see #resampleInverse(Matrix4f, short[], short[], int[], int[])
+	 */
+	public void resample(Matrix4f matrix, short[] data, short[] interpolated, int[] nnData, int[] nearest) {
+		Matrix4f inverse = new Matrix4f(matrix);
+		inverse.invert();
+		resampleInverse(inverse, data, interpolated, nnData, nearest);
+	}
+
+	/**
+	 * For each vertex v, interpolates data at inverse(v) and stores the
+	 * result in interpolated[v], and stores the value of nnData at the
+	 * vertex nearest to inverse(v) in nearest[v]. Either pair of arrays
+	 * may be null.
+	 */
+	public void resampleInverse(final Matrix4f inverse, final short[] data, final short[] interpolated, final int[] nnData, final int[] nearest) {
+		final int nVertices = vertices.length / 3;
+		if(nThreads == 1) {
+			resample(0, nVertices, inverse, data, interpolated, nnData, nearest);
+			return;
+		}
+
+		ExecutorService exec = getExecutor();
+		int nVerticesPerThread = (int)Math.ceil(nVertices / (double)nThreads);
+		Future<?>[] futures = new Future<?>[nThreads];
+		for(int p = 0; p < nThreads; p++) {
+			final int start = p * nVerticesPerThread;
+			final int end = Math.min(nVertices, (p + 1) * nVerticesPerThread);
+			futures[p] = exec.submit(new Runnable() {
+				@Override
+				public void run() {
+					resample(start, end, inverse, data, interpolated, nnData, nearest);
+				}
+			});
+		}
+		try {
+			for(Future<?> f : futures)
+				f.get();
+		} catch(Exception e) {
+			throw new RuntimeException("Cannot resample", e);
+		}
+	}
+
+	private synchronized ExecutorService getExecutor() {
+		if(exec == null) {
+			exec = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "SphereResampler");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return exec;
+	}
+
+	/**
+	 * Stops the worker threads; they are re-created when needed.
+	 */
+	public synchronized void shutdown() {
+		if(exec != null) {
+			exec.shutdown();
+			exec = null;
+		}
+	}
+
+	private void resample(int start, int end, Matrix4f inverse, short[] data, short[] interpolated, int[] nnData, int[] nearest) {
+		Point3f p = new Point3f();
+		float[] w = new float[3];
+		int[] vIdx = new int[3];
+		int face = -1;
+		for(int v = start; v < end; v++) {
+			p.set(vertices[3 * v], vertices[3 * v + 1], vertices[3 * v + 2]);
+			inverse.transform(p);
+
+			if(face >= 0)
+				face = walk(face, p.x, p.y, p.z, w);
+			if(face < 0)
+				face = walk(smp.findFace(p), p.x, p.y, p.z, w);
+
+			if(face >= 0) {
+				vIdx[0] = faces[3 * face];
+				vIdx[1] = faces[3 * face + 1];
+				vIdx[2] = faces[3 * face + 2];
+			} else {
+				// not a closed mesh
+				smp.getInterpolationWeights(p, vIdx, w);
+			}
+
+			if(interpolated != null)
+				interpolated[v] = (short)(w[0] * data[vIdx[0]] + w[1] * data[vIdx[1]] + w[2] * data[vIdx[2]]);
+
+			if(nearest != null) {
+				int nn = vIdx[0];
+				float minDist = Float.MAX_VALUE;
+				for(int i = 0; i < 3; i++) {
+					int o = 3 * vIdx[i];
+					float dx = p.x - vertices[o], dy = p.y - vertices[o + 1], dz = p.z - vertices[o + 2];
+					float dist = dx * dx + dy * dy + dz * dz;
+					if(dist < minDist) {
+						minDist = dist;
+						nn = vIdx[i];
+					}
+				}
+				nearest[v] = nnData[nn];
+			}
+		}
+	}
+
+	/**
+	 * Walks from triangle face towards the triangle which is hit by the
+	 * ray from the center through (x, y, z), and stores the barycentric
+	 * coordinates of the intersection in w. Returns the triangle index,
+	 * or -1 if it could not be found.
+	 */
+	private int walk(int face, float x, float y, float z, float[] w) {
+		float dx = x - cx, dy = y - cy, dz = z - cz;
+		for(int step = 0; step < MAX_STEPS && face >= 0; step++) {
+			int i0 = 3 * faces[3 * face], i1 = 3 * faces[3 * face + 1], i2 = 3 * faces[3 * face + 2];
+			float ox = vertices[i0] - cx, oy = vertices[i0 + 1] - cy, oz = vertices[i0 + 2] - cz;
+			float e1x = vertices[i1] - vertices[i0], e1y = vertices[i1 + 1] - vertices[i0 + 1], e1z = vertices[i1 + 2] - vertices[i0 + 2];
+			float e2x = vertices[i2] - vertices[i0], e2y = vertices[i2 + 1] - vertices[i0 + 1], e2z = vertices[i2 + 2] - vertices[i0 + 2];
+
+			// Moeller-Trumbore, see IcosphereLocator
+			float px = dy * e2z - dz * e2y, py = dz * e2x - dx * e2z, pz = dx * e2y - dy * e2x;
+			float det = e1x * px + e1y * py + e1z * pz;
+			float tx = -ox, ty = -oy, tz = -oz;
+			float w1 = (tx * px + ty * py + tz * pz) / det;
+			float qx = ty * e1z - tz * e1y, qy = tz * e1x - tx * e1z, qz = tx * e1y - ty * e1x;
+			float w2 = (dx * qx + dy * qy + dz * qz) / det;
+			float w0 = 1 - w1 - w2;
+
+			// the line also hits the opposite side of the sphere
+			if((e2x * qx + e2y * qy + e2z * qz) / det <= 0)
+				return -1;
+
+			if(w0 >= -EPS && w1 >= -EPS && w2 >= -EPS) {
+				w1 = Math.max(0, Math.min(1, w1));
+				w2 = Math.max(0, Math.min(1 - w1, w2));
+				w[0] = 1 - w1 - w2;
+				w[1] = w1;
+				w[2] = w2;
+				return face;
+			}
+
+			// cross the edge opposite to the most negative coordinate
+			int k = w0 < w1 ? (w0 < w2 ? 0 : 2) : (w1 < w2 ? 1 : 2);
+			face = faceNeighbors[3 * face + k];
+		}
+		return -1;
+	}
+}
@@ -1,13 +1,8 @@
 package huisken.projection.processing;
 
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -15,29 +10,33 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.vecmath.Matrix4f;
 import javax.vecmath.Point2f;
 import javax.vecmath.Point3f;
-import javax.vecmath.Point3i;
-import javax.vecmath.Point4i;
 import javax.vecmath.Vector3f;
 
-import fiji.util.KDTree;
-import fiji.util.NearestNeighborSearch;
-import fiji.util.node.Leaf;
-
 public class SphericalMaxProjection {
 
-	// These fields are set in prepareForProjection();
-	private int[][] lutxy;
-	private int[][] luti;
-	private int[][] luts;
+	// This field is set in prepareForProjection();
+	private ProjectionLUT lut;
+	// Set in prepareForProjectionNew(), needed by retarget()
+	private LUTParameters params = null;
+	// Set in cropToLUT()
+	private PlaneCrop[] crops = null;
 	// private short[] maxima;
 
 	// These fields must be set in the constructor and
@@ -45,7 +44,14 @@ public class SphericalMaxProjection {
 	final Point3f center;
 	final float radius;
 	private final IndexedTriangleMesh sphere;
-	private final KDTree<Node3D> tree;
+	// null if the sphere is not an icosphere, see IcosphereLocator
+	private final IcosphereLocator locator;
+	// created lazily if the locator can be used, see getTree()
+	private FaceKDTree tree;
+	// created lazily, see getResampler()
+	private SphereResampler resampler = null;
+	// created lazily, see getOperators()
+	private MeshOperators operators = null;
 
 	public SphericalMaxProjection(IndexedTriangleMesh sphere, Point3f center, float radius) {
 		this(sphere, center, radius, null);
@@ -63,23 +69,25 @@ public class SphericalMaxProjection {
 			transform.transform(center);
 		}
 
-		ArrayList<Node3D> nodes = new ArrayList<Node3D>(sphere.nFaces / 3);
-		for(int i = 0; i < sphere.nFaces / 3; i++)
-			nodes.add(new Node3D(calculateCOG(i), i));
-		tree = new KDTree<Node3D>(nodes);
+		locator = IcosphereLocator.create(sphere, center);
+		tree = locator == null ? new FaceKDTree(sphere) : null;
 	}
 
-	private Point3f calculateCOG(int triangle) {
-		Point3f[] v = sphere.getVertices();
-		int[] faces = sphere.getFaces();
-		int f1 = faces[triangle * 3];
-		int f2 = faces[triangle * 3 + 1];
-		int f3 = faces[triangle * 3 + 2];
-		Point3f p = new Point3f();
-		p.x = (v[f1].x + v[f2].x + v[f3].x) / 3f;
-		p.y = (v[f1].y + v[f2].y + v[f3].y) / 3f;
-		p.z = (v[f1].z + v[f2].z + v[f3].z) / 3f;
-		return p;
+	/*
+	 * Copy of template with a translated and uniformly scaled sphere,
+	 * which keeps the layout of the mesh, so that the locator does not
+	 * need to be checked again.
+	 */
+	private SphericalMaxProjection(SphericalMaxProjection template, Matrix4f transform, float radius) {
+		this.center = new Point3f(template.center);
+		this.radius = radius;
+		this.sphere = (IndexedTriangleMesh)template.sphere.clone();
+		for(Point3f v : sphere.getVertices())
+			transform.transform(v);
+		transform.transform(center);
+
+		locator = template.locator == null ? null : template.locator.copyFor(sphere, center);
+		tree = locator == null ? new FaceKDTree(sphere) : null;
 	}
 
 	public float[] createLines(float tolInDegree, float value) {
@@ -103,11 +111,24 @@ public class SphericalMaxProjection {
 	}
 
 	public SphericalMaxProjection(String objfile) throws IOException {
-		this(objfile, null);
+		this(objfile, null, null);
 	}
 
 	public SphericalMaxProjection(String objfile, Matrix4f transform) throws IOException {
-		this.sphere = loadSphere(objfile);
+		this(objfile, transform, null);
+	}
+
+	/**
+	 * Loads the sphere from objfile, using the binary mesh file cached in
+	 * meshCacheDir if there is one, see loadMeshFile().
+	 */
+	public SphericalMaxProjection(String objfile, File meshCacheDir) throws IOException {
+		this(objfile, null, meshCacheDir);
+	}
+
+	public SphericalMaxProjection(String objfile, Matrix4f transform, File meshCacheDir) throws IOException {
+		MeshFile meshfile = loadMeshFile(objfile, meshCacheDir);
+		this.sphere = meshfile.getMesh();
 		if(transform != null) {
 			for(Point3f v : sphere.getVertices())
 				transform.transform(v);
@@ -125,11 +146,18 @@ public class SphericalMaxProjection {
 			(float)(mz / sphere.nVertices));
 		this.radius = sphere.getVertices()[0].distance(center);
 
-		ArrayList<Node3D> nodes = new ArrayList<Node3D>(sphere.nFaces / 3);
-		for(int i = 0; i < sphere.nFaces / 3; i++)
-			nodes.add(new Node3D(calculateCOG(i), i));
+		locator = IcosphereLocator.create(sphere, center);
+		// the stored tree is only valid for the untransformed sphere
+		if(transform == null)
+			tree = meshfile.getTree();
+		else
+			tree = locator == null ? new FaceKDTree(sphere) : null;
+	}
 
-		tree = new KDTree<Node3D>(nodes);
+	private synchronized FaceKDTree getTree() {
+		if(tree == null)
+			tree = new FaceKDTree(sphere);
+		return tree;
 	}
 
 	public Point3f getCenter() {
@@ -140,6 +168,9 @@ public class SphericalMaxProjection {
 		return radius;
 	}
 
+	/**
+	 * Saves the sphere as OBJ file.
+	 */
 	public static void saveSphere(IndexedTriangleMesh sphere, String objpath) throws IOException {
 		PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(objpath)));
 		out.println("# OBJ File");
@@ -158,6 +189,45 @@ public class SphericalMaxProjection {
 	}
 
 	public static IndexedTriangleMesh loadSphere(String objpath) throws IOException {
+		return loadMeshFile(objpath, null).getMesh();
+	}
+
+	/**
+	 * The directory in which the binary mesh files of the spheres in the
+	 * data directory dir are cached, see loadMeshFile().
+	 */
+	public static File getMeshCacheDir(File dir) {
+		return new File(dir, ".meshcache");
+	}
+
+	/**
+	 * Loads the binary mesh file (see MeshFile) of the given OBJ file
+	 * cached in cacheDir if there is one. Otherwise, reads the OBJ file
+	 * and, unless cacheDir is null, tries to cache it for the next time.
+	 */
+	public static MeshFile loadMeshFile(String objpath, File cacheDir) throws IOException {
+		File meshfile = cacheDir == null ? null : MeshFile.getMeshFile(cacheDir, objpath);
+		if(meshfile != null && meshfile.exists()) {
+			try {
+				return MeshFile.load(meshfile);
+			} catch(IOException e) {
+				System.out.println("Cannot read " + meshfile + ", reading " + objpath + " instead: " + e.getMessage());
+			}
+		}
+		IndexedTriangleMesh sphere = readObj(objpath);
+		MeshFile mf = new MeshFile(sphere, new FaceKDTree(sphere));
+		if(meshfile != null) {
+			try {
+				cacheDir.mkdirs();
+				mf.save(meshfile);
+			} catch(IOException e) {
+				System.out.println("Cannot write " + meshfile + ": " + e.getMessage());
+			}
+		}
+		return mf;
+	}
+
+	private static IndexedTriangleMesh readObj(String objpath) throws IOException {
 		BufferedReader in = new BufferedReader(new FileReader(objpath));
 		ArrayList<Point3f> points = new ArrayList<Point3f>();
 		ArrayList<Integer> faces = new ArrayList<Integer>();
@@ -203,28 +273,92 @@ public class SphericalMaxProjection {
 		saveShortData(maxima, path);
 	}
 
+	/*
+	 * Per-thread direct buffer for reading and writing .vertices files
+	 * in chunks. The data is stored big-endian, as by DataOutputStream.
+	 */
+	private static final int IO_CHUNK_SIZE = 1 << 20;
+	private static final ThreadLocal<ByteBuffer> ioBuffer = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(IO_CHUNK_SIZE);
+		}
+	};
+
 	public static void saveIntData(int[] data, String path) throws IOException {
-		DataOutputStream out = new DataOutputStream(
-			new BufferedOutputStream(
-				new FileOutputStream(path)));
-		for(int f : data)
-			out.writeInt(f);
-		out.close();
+		FileOutputStream out = new FileOutputStream(path);
+		try {
+			FileChannel channel = out.getChannel();
+			ByteBuffer buf = ioBuffer.get();
+			for(int offset = 0; offset < data.length; ) {
+				int n = Math.min(data.length - offset, IO_CHUNK_SIZE / 4);
+				buf.clear();
+				buf.asIntBuffer().put(data, offset, n);
+				buf.limit(4 * n);
+				writeFully(channel, buf);
+				offset += n;
+			}
+		} finally {
+			out.close();
+		}
 	}
 
 	public static void saveShortData(short[] data, String path) throws IOException {
-		DataOutputStream out = new DataOutputStream(
-			new BufferedOutputStream(
-				new FileOutputStream(path)));
-		for(short f : data)
-			out.writeShort(f);
-		out.close();
+		saveShortData(data, path, false);
+	}
+
+	/**
+	 * Like saveShortData(short[], String), but if sync is true, waits
+	 * until the data is on the storage device.
+	 */
+	public static void saveShortData(short[] data, String path, boolean sync) throws IOException {
+		FileOutputStream out = new FileOutputStream(path);
+		try {
+			FileChannel channel = out.getChannel();
+			ByteBuffer buf = ioBuffer.get();
+			for(int offset = 0; offset < data.length; ) {
+				int n = Math.min(data.length - offset, IO_CHUNK_SIZE / 2);
+				buf.clear();
+				buf.asShortBuffer().put(data, offset, n);
+				buf.limit(2 * n);
+				writeFully(channel, buf);
+				offset += n;
+			}
+			if(sync)
+				channel.force(true);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+		while(buf.hasRemaining())
+			channel.write(buf);
+	}
+
+	/*
+	 * Reads the next nBytes bytes (at most IO_CHUNK_SIZE) into the
+	 * per-thread buffer and returns it, flipped for reading. It holds
+	 * less than nBytes only at the end of the file.
+	 */
+	private static ByteBuffer readChunk(FileChannel channel, int nBytes) throws IOException {
+		ByteBuffer buf = ioBuffer.get();
+		buf.clear();
+		buf.limit(nBytes);
+		while(buf.hasRemaining() && channel.read(buf) >= 0)
+			;
+		buf.flip();
+		return buf;
 	}
 
 	public short[] loadMaxima(String file) throws IOException {
 		return loadShortData(file, sphere.nVertices);
 	}
 
+	public short[] loadMaxima(String file, short[] data) throws IOException {
+		return loadShortData(file, data);
+	}
+
 //	public void loadMaxima(String file) throws IOException {
 //		maxima = loadShortData(file, sphere.nVertices);
 //	}
@@ -238,49 +372,76 @@ public class SphericalMaxProjection {
 	 * @throws IOException
 	 */
 	public static short[] loadShortData(String file, int n) throws IOException {
-		File f = new File(file);
-		DataInputStream in = new DataInputStream(
-			new BufferedInputStream(
-				new FileInputStream(f)));
-
-		long nBytes = f.length();
-		short[] data = new short[n];
-
-		// legacy: read float data
-		if(nBytes == n * 4) {
-			for(int i = 0; i < n; i++) {
-				try {
-					data[i] = (short)in.readFloat();
-				} catch(EOFException e) {
-					break;
+		return loadShortData(file, new short[n]);
+	}
+
+	/**
+	 * Like loadShortData(String, int), but reads into the given array,
+	 * which allows to re-use it for many files. Values missing at the
+	 * end of the file are set to 0.
+	 * @return data
+	 */
+	public static short[] loadShortData(String file, short[] data) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			long nBytes = channel.size();
+			int n = data.length;
+			int offset = 0;
+
+			// legacy: read float data
+			if(nBytes == 4L * n) {
+				while(offset < n) {
+					FloatBuffer fb = readChunk(channel, 4 * Math.min(n - offset, IO_CHUNK_SIZE / 4)).asFloatBuffer();
+					if(!fb.hasRemaining())
+						break;
+					while(fb.hasRemaining())
+						data[offset++] = (short)fb.get();
 				}
-			}
-		} else {
-			for(int i = 0; i < n; i++) {
-				try {
-					data[i] = in.readShort();
-				} catch(EOFException e) {
-					break;
+			} else {
+				while(offset < n) {
+					ShortBuffer sb = readChunk(channel, 2 * Math.min(n - offset, IO_CHUNK_SIZE / 2)).asShortBuffer();
+					int read = sb.remaining();
+					if(read == 0)
+						break;
+					sb.get(data, offset, read);
+					offset += read;
 				}
 			}
+			Arrays.fill(data, offset, n, (short)0);
+		} finally {
+			in.close();
 		}
-		in.close();
 		return data;
 	}
 
 	public static int[] loadIntData(String file, int n) throws IOException {
-		int[] data = new int[n];
-		DataInputStream in = new DataInputStream(
-			new BufferedInputStream(
-				new FileInputStream(file)));
-		for(int i = 0; i < data.length; i++) {
-			try {
-				data[i] = in.readInt();
-			} catch(EOFException e) {
-				break;
+		return loadIntData(file, new int[n]);
+	}
+
+	/**
+	 * Like loadIntData(String, int), but reads into the given array.
+	 * Values missing at the end of the file are set to 0.
+	 * @return data
+	 */
+	public static int[] loadIntData(String file, int[] data) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			int n = data.length;
+			int offset = 0;
+			while(offset < n) {
+				IntBuffer ib = readChunk(channel, 4 * Math.min(n - offset, IO_CHUNK_SIZE / 4)).asIntBuffer();
+				int read = ib.remaining();
+				if(read == 0)
+					break;
+				ib.get(data, offset, read);
+				offset += read;
 			}
+			Arrays.fill(data, offset, n, 0);
+		} finally {
+			in.close();
 		}
-		in.close();
 		return data;
 	}
 
@@ -340,29 +501,12 @@ public class SphericalMaxProjection {
 //		smooth(maxima);
 //	}
 
+	/**
+	 * Replaces each value by the mean of itself and its neighbors, where
+	 * each neighbor has twice the weight of the vertex itself.
+	 */
 	public void smooth(short[] maxima) {
-		int[] nNeighbors = new int[maxima.length];
-		float[] newMaxima = new float[maxima.length];
-		for(int i = 0; i < maxima.length; i++)
-			newMaxima[i] = maxima[i];
-
-		int[] faces = sphere.getFaces();
-		for(int i = 0; i < sphere.nFaces; i += 3) {
-			int f1 = faces[i];
-			int f2 = faces[i + 1];
-			int f3 = faces[i + 2];
-			nNeighbors[f1] += 2;
-			newMaxima[f1] += (maxima[f2] & 0xffff);
-			newMaxima[f1] += (maxima[f3] & 0xffff);
-			nNeighbors[f2] += 2;
-			newMaxima[f2] += (maxima[f1] & 0xffff);
-			newMaxima[f2] += (maxima[f3] & 0xffff);
-			nNeighbors[f3] += 2;
-			newMaxima[f3] += (maxima[f1] & 0xffff);
-			newMaxima[f3] += (maxima[f2] & 0xffff);
-		}
-		for(int i = 0; i < newMaxima.length; i++)
-			maxima[i] = (short)(newMaxima[i] / (nNeighbors[i] + 1));
+		getOperators().smooth(maxima, 0.5f, 1);
 	}
 
 	/**
@@ -384,24 +528,7 @@ public class SphericalMaxProjection {
 
 	public boolean[] isMaximum(short[] maxima) {
 		boolean[] maxs = new boolean[maxima.length];
-		for(int i = 0; i < maxs.length; i++)
-			maxs[i] = true;
-		int[] faces = sphere.getFaces();
-		for(int i = 0; i < sphere.nFaces; i += 3) {
-			int f1 = faces[i];
-			int f2 = faces[i + 1];
-			int f3 = faces[i + 2];
-			float m1 = (maxima[f1] & 0xffff);
-			float m2 = (maxima[f2] & 0xffff);
-			float m3 = (maxima[f3] & 0xffff);
-
-			if(m1 <= m2 || m1 <= m3)
-				maxs[f1] = false;
-			if(m2 <= m1 || m2 <= m3)
-				maxs[f2] = false;
-			if(m3 <= m1 || m3 <= m1)
-				maxs[f3] = false;
-		}
+		getOperators().isMaximum(maxima, maxs);
 		return maxs;
 	}
 
@@ -424,191 +551,602 @@ public class SphericalMaxProjection {
 	}
 
 	public int[] applyInverseTransformNearestNeighbor(final Matrix4f inverse, final int[] data) {
-		final int[] newmaxima = new int[sphere.nVertices];
-		final Point3f[] vertices = sphere.getVertices();
+		int[] newmaxima = new int[sphere.nVertices];
+		getResampler().resampleInverse(inverse, null, null, data, newmaxima);
+		return newmaxima;
+	}
 
-		final int nProcessors = Runtime.getRuntime().availableProcessors();
-		ExecutorService exec = Executors.newFixedThreadPool(nProcessors);
+	public short[] applyInverseTransform(final Matrix4f inverse, final short[] data) {
+		short[] newmaxima = new short[sphere.nVertices];
+		getResampler().resampleInverse(inverse, data, newmaxima, null, null);
+		return newmaxima;
+	}
 
-		int nVerticesPerThread = (int)Math.ceil(vertices.length / (double)nProcessors);
-		for(int p = 0; p < nProcessors; p++) {
-			final int start = p * nVerticesPerThread;
-			final int end = Math.min(vertices.length, (p + 1) * nVerticesPerThread);
+	/**
+	 * Returns a SphereResampler for this sphere, which uses all
+	 * available processors and is created on first use.
+	 */
+	public synchronized SphereResampler getResampler() {
+		if(resampler == null)
+			resampler = new SphereResampler(this, Runtime.getRuntime().availableProcessors());
+		return resampler;
+	}
 
-			exec.submit(new Runnable() {
-				@Override
-				public void run() {
-					Point3f p = new Point3f();
-					for(int i = start; i < end; i++) {
-						p.set(vertices[i]);
-						inverse.transform(p);
-						newmaxima[i] = (int)getNearestNeighborValue(p, data);
-					}
-				}
-			});
-		}
-		try {
-			exec.shutdown();
-			exec.awaitTermination(300, TimeUnit.MINUTES);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		}
-		return newmaxima;
+	/**
+	 * Returns MeshOperators for this sphere, which use all available
+	 * processors and are created on first use.
+	 */
+	public synchronized MeshOperators getOperators() {
+		if(operators == null)
+			operators = new MeshOperators(sphere, Runtime.getRuntime().availableProcessors());
+		return operators;
 	}
 
-	public short[] applyInverseTransform(final Matrix4f inverse, final short[] data) {
-		final short[] newmaxima = new short[sphere.nVertices];
-		final Point3f[] vertices = sphere.getVertices();
+//	public void applyInverseTransform(final Matrix4f inverse) {
+//		maxima = applyInverseTransform(inverse, maxima);
+//	}
 
-		final int nProcessors = Runtime.getRuntime().availableProcessors();
-		ExecutorService exec = Executors.newFixedThreadPool(nProcessors);
+	/**
+	 * Like prepareForProjectionNew(), but first looks for a previously
+	 * computed LUT in cacheDir. The cache file name is a hash of all
+	 * parameters the LUT depends on, including the (transformed) sphere
+	 * vertices and the vertices admitted by the weighter. Newly computed
+	 * LUTs are saved to cacheDir. If cacheDir is null, nothing is cached.
+	 */
+	public void prepareForProjectionNew(int w, int h, int d, double pw, double ph, double pd, double layerWidth, int nLayers, FusionWeight weighter, File cacheDir) {
+		prepareForProjectionNew(w, h, d, pw, ph, pd, layerWidth, nLayers, new FusionWeight[] { weighter }, cacheDir);
+	}
 
-		int nVerticesPerThread = (int)Math.ceil(vertices.length / (double)nProcessors);
-		for(int p = 0; p < nProcessors; p++) {
-			final int start = p * nVerticesPerThread;
-			final int end = Math.min(vertices.length, (p + 1) * nVerticesPerThread);
+	/**
+	 * Like prepareForProjectionNew(..., FusionWeight, File), but creates
+	 * a single LUT for several illumination sides, where side i projects
+	 * the vertices admitted by weighters[i], see
+	 * ProjectionLUT.setSideMasks(). Rays of vertices seen by both sides
+	 * are only traced and stored once.
+	 */
+	public void prepareForProjectionNew(int w, int h, int d, double pw, double ph, double pd, double layerWidth, int nLayers, FusionWeight[] weighters, File cacheDir) {
+		if(cacheDir == null) {
+			prepareForProjectionNew(w, h, d, pw, ph, pd, layerWidth, nLayers, weighters);
+			return;
+		}
 
-			exec.submit(new Runnable() {
-				@Override
-				public void run() {
-					Point3f p = new Point3f();
-					for(int i = start; i < end; i++) {
-						p.set(vertices[i]);
-						inverse.transform(p);
-						newmaxima[i] = (short)getInterpolatedValue(p, data);
-					}
+		File cacheFile = new File(cacheDir, createLUTKey(w, h, d, pw, ph, pd, layerWidth, nLayers, weighters) + ".lut");
+		if(cacheFile.exists()) {
+			long start = System.currentTimeMillis();
+			try {
+				ProjectionLUT cached = ProjectionLUT.load(cacheFile);
+				if(cached.getNPlanes() == d && cached.getNVertices() == sphere.nVertices && cached.getNLayers() == nLayers &&
+						(cached.getSideMasks() != null) == (weighters.length > 1)) {
+					lut = cached;
+					crops = null;
+					params = new LUTParameters(w, h, d, pw, ph, pd, layerWidth, nLayers, weighters);
+					long end = System.currentTimeMillis();
+					System.out.println("Loaded LUT from " + cacheFile.getName() + " in " + (end - start) + " ms");
+					return;
 				}
-			});
+				System.out.println("Ignoring mismatching LUT cache " + cacheFile);
+			} catch(IOException e) {
+				System.out.println("Cannot read LUT cache " + cacheFile + ": " + e.getMessage());
+			}
 		}
+
+		prepareForProjectionNew(w, h, d, pw, ph, pd, layerWidth, nLayers, weighters);
+
 		try {
-			exec.shutdown();
-			exec.awaitTermination(300, TimeUnit.MINUTES);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+			cacheDir.mkdirs();
+			lut.save(cacheFile);
+		} catch(IOException e) {
+			System.out.println("Cannot write LUT cache " + cacheFile + ": " + e.getMessage());
 		}
-		return newmaxima;
 	}
 
-//	public void applyInverseTransform(final Matrix4f inverse) {
-//		maxima = applyInverseTransform(inverse, maxima);
-//	}
+	private String createLUTKey(int w, int h, int d, double pw, double ph, double pd, double layerWidth, int nLayers, FusionWeight[] weighters) {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+		} catch(NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+		buf.putInt(1); // increment if the way LUTs are computed changes
+		buf.putInt(w).putInt(h).putInt(d);
+		buf.putDouble(pw).putDouble(ph).putDouble(pd);
+		buf.putDouble(layerWidth).putInt(nLayers);
+		buf.putFloat(center.x).putFloat(center.y).putFloat(center.z).putFloat(radius);
+		buf.putInt(sphere.nVertices);
+		if(weighters.length > 1)
+			buf.putInt(weighters.length);
+		for(Point3f v : sphere.getVertices()) {
+			if(buf.remaining() < 13) {
+				md.update(buf.array(), 0, buf.position());
+				buf.clear();
+			}
+			buf.putFloat(v.x).putFloat(v.y).putFloat(v.z);
+			buf.put(getSideMask(weighters, v));
+		}
+		md.update(buf.array(), 0, buf.position());
+
+		StringBuffer key = new StringBuffer();
+		for(byte b : md.digest())
+			key.append(String.format("%02x", b & 0xff));
+		return key.toString();
+	}
 
 	public void prepareForProjectionNew(final int w, final int h, final int d, final double pw, final double ph, final double pd, final double layerWidth, final int nLayers, final FusionWeight weighter) {
+		prepareForProjectionNew(w, h, d, pw, ph, pd, layerWidth, nLayers, new FusionWeight[] { weighter });
+	}
 
-		final int nProcessors = Runtime.getRuntime().availableProcessors();
-		ExecutorService exec = Executors.newFixedThreadPool(nProcessors);
+	public void prepareForProjectionNew(final int w, final int h, final int d, final double pw, final double ph, final double pd, final double layerWidth, final int nLayers, final FusionWeight[] weighters) {
 
-		@SuppressWarnings("unchecked")
-		final ArrayList<Point4i>[] all_correspondences = new ArrayList[d];
-		for(int i = 0; i < d; i++)
-			all_correspondences[i] = new ArrayList<Point4i>();
+		final LUTParameters p = new LUTParameters(w, h, d, pw, ph, pd, layerWidth, nLayers, weighters);
 
-		final double t2 = nLayers * layerWidth / 2;
+		createLUT(d, nLayers, weighters, new RayTracer() {
+			@Override
+			public void trace(int vIndex, Point3f vertex, Vector3f dx, Point3f pos, KeyCollector keys) {
+				traceLayers(lut, p, vIndex, vertex, dx, pos, keys, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+			}
+		});
+		params = p;
+	}
 
-		for(int proc = 0; proc < nProcessors; proc++) {
-			final int currentProc = proc;
-			exec.execute(new Runnable() {
-				@Override
-				public void run() {
-					Vector3f dx = new Vector3f();
-					Point3f pos = new Point3f();
+	/*
+	 * Emits the LUT entries of the multi-layer ray of a vertex, only
+	 * for the samples whose offset from the vertex lies within
+	 * [from, to].
+	 */
+	private static void traceLayers(ProjectionLUT lut, LUTParameters p, int vIndex, Point3f vertex, Vector3f dx, Point3f pos, KeyCollector keys, double from, double to) {
+		final double t2 = p.nLayers * p.layerWidth / 2;
+
+		// calculate the distance needed to move to the neighbor pixel
+		// double dmax = Math.max(dx.x / pw, Math.max(dx.y / ph, dx.z / pd));
+		// double ddx = dx.x / dmax;
+		// double ddy = dx.y / dmax;
+		// double ddz = dx.z / dmax;
+		// float scale = (float)(ddx * ddx + ddy * ddy + ddz * ddz);
+		double scale = 1.0 / Math.max(Math.abs(dx.x / p.pw), Math.max(
+				Math.abs(dx.y / p.ph), Math.abs(dx.z / p.pd)));
+
+		for(int s = 0; s < p.nLayers; s++) {
+			double start = s * p.layerWidth - t2;
+			double end = Math.min(to, start + p.layerWidth);
+
+			double i = start;
+			if(from > start)
+				i += Math.ceil((from - start) / scale) * scale;
+			for(; i <= end; i += scale) {
+				pos.scaleAdd((float)i, dx, vertex);
+
+				// nearest neighbor in pixel dims
+				int x = (int)Math.round(pos.x / p.pw);
+				int y = (int)Math.round(pos.y / p.ph);
+				int z = (int)Math.round(pos.z / p.pd);
+
+				// only add it if the pixel is inside the image
+				if(x >= 0 && x < p.w && y >= 0 && y < p.h && z >= 0 && z < p.d)
+					keys.add(z, lut.createKey(y * p.w + x, s, vIndex));
+			}
+		}
+	}
 
-					@SuppressWarnings("unchecked")
-					HashSet<Point4i>[] correspondences = new HashSet[d];
-					for(int i = 0; i < d; i++)
-						correspondences[i] = new HashSet<Point4i>();
+	/*
+	 * The parameters of prepareForProjectionNew().
+	 */
+	private static final class LUTParameters {
+		final int w, h, d;
+		final double pw, ph, pd;
+		final double layerWidth;
+		final int nLayers;
+		final FusionWeight[] weighters;
+		// vertices admitted by any of the weighters, calculated by retarget()
+		boolean[] visible;
+
+		LUTParameters(int w, int h, int d, double pw, double ph, double pd, double layerWidth, int nLayers, FusionWeight[] weighters) {
+			this.w = w;
+			this.h = h;
+			this.d = d;
+			this.pw = pw;
+			this.ph = ph;
+			this.pd = pd;
+			this.layerWidth = layerWidth;
+			this.nLayers = nLayers;
+			this.weighters = weighters;
+		}
+	}
 
-					int nVerticesPerThread = (int)Math.ceil(sphere.nVertices / (double)nProcessors);
-					int startV = currentProc * nVerticesPerThread;
-					int lenV = Math.min((currentProc + 1) * nVerticesPerThread, sphere.nVertices);
-					for(int vIndex = startV; vIndex < lenV; vIndex++) {
-						Point3f vertex = sphere.getVertices()[vIndex];
-						float weight = weighter.getWeight(vertex.x, vertex.y, vertex.z);
-						if(weight == 0)
-							continue;
+	/*
+	 * Bit i is set if weighters[i] admits v.
+	 */
+	private static byte getSideMask(FusionWeight[] weighters, Point3f v) {
+		int mask = 0;
+		for(int i = 0; i < weighters.length; i++)
+			if(weighters[i].getWeight(v.x, v.y, v.z) != 0)
+				mask |= 1 << i;
+		return (byte)mask;
+	}
 
-						dx.sub(vertex, center);
-						dx.normalize();
+	public void prepareForProjection(final int w, final int h, final int d, final double pw, final double ph, final double pd, final FusionWeight weighter) {
 
-						// calculate the distance needed to move to the neighbor pixel
-						// double dmax = Math.max(dx.x / pw, Math.max(dx.y / ph, dx.z / pd));
-						// double ddx = dx.x / dmax;
-						// double ddy = dx.y / dmax;
-						// double ddz = dx.z / dmax;
-						// float scale = (float)(ddx * ddx + ddy * ddy + ddz * ddz);
-						double scale = 1.0 / Math.max(Math.abs(dx.x / pw), Math.max(
-								Math.abs(dx.y / ph), Math.abs(dx.z / pd)));
-
-						for(int s = 0; s < nLayers; s++) {
-							double start = s * layerWidth - t2;
-							double end = start + layerWidth;
-
-							for(double i = start; i <= end; i += scale) {
-								pos.scaleAdd((float)i, dx, vertex);
-
-								// nearest neighbor in pixel dims
-								int x = (int)Math.round(pos.x / pw);
-								int y = (int)Math.round(pos.y / ph);
-								int z = (int)Math.round(pos.z / pd);
-
-								// only add it if the pixel is inside the image
-								if(x >= 0 && x < w && y >= 0 && y < h && z >= 0 && z < d)
-									correspondences[z].add(new Point4i(x, y, s, vIndex));
-							}
+		createLUT(d, 1, new FusionWeight[] { weighter }, new RayTracer() {
+			@Override
+			public void trace(int vIndex, Point3f vertex, Vector3f dx, Point3f pos, KeyCollector keys) {
+				// calculate the distance needed to move to the neighbor pixel
+				double dmax = Math.max(dx.x / pw, Math.max(dx.y / ph, dx.z / pd));
+				double ddx = dx.x / dmax;
+				double ddy = dx.y / dmax;
+				double ddz = dx.z / dmax;
+				float scale = (float)(ddx * ddx + ddy * ddy + ddz * ddz);
+
+				int k = Math.round(0.2f * radius / scale);
+
+				for(int i = -k; i <= k; i++) {
+					pos.scaleAdd(i * scale, dx, vertex);
+
+					// calculate the position in pixel dims
+					int x = (int)Math.round(pos.x / pw);
+					int y = (int)Math.round(pos.y / ph);
+					int z = (int)Math.round(pos.z / pd);
+
+					// only add it if the pixel is inside the image
+					if(x >= 0 && x < w && y >= 0 && y < h && z >= 0 && z < d)
+						keys.add(z, lut.createKey(y * w + x, 0, vIndex));
+				}
+			}
+		});
+	}
+
+	/*
+	 * Emits the LUT entries of a single vertex. dx is the normalized
+	 * direction from the center to the vertex, pos is a temporary.
+	 */
+	private interface RayTracer {
+		public void trace(int vIndex, Point3f vertex, Vector3f dx, Point3f pos, KeyCollector keys);
+	}
+
+	/*
+	 * Either only counts entries per plane (keys == null), or writes
+	 * them to keys[z], starting at the given per-plane offsets. Samples
+	 * along a ray which fall into the same pixel are consecutive, so
+	 * comparing to the previous key is sufficient to drop most duplicates.
+	 */
+	private static final class KeyCollector {
+		private final int[] next;
+		private final long[][] keys;
+		private final boolean grow;
+		private int lastZ = -1;
+		private long lastKey;
+
+		KeyCollector(int[] next, long[][] keys) {
+			this.next = next;
+			this.keys = keys;
+			this.grow = false;
+		}
+
+		/*
+		 * Collects into per-plane arrays which grow as needed.
+		 */
+		KeyCollector(int d) {
+			this.next = new int[d];
+			this.keys = new long[d][16];
+			this.grow = true;
+		}
+
+		void add(int z, long key) {
+			if(z == lastZ && key == lastKey)
+				return;
+			lastZ = z;
+			lastKey = key;
+			if(keys != null) {
+				if(grow && next[z] == keys[z].length)
+					keys[z] = Arrays.copyOf(keys[z], 2 * next[z]);
+				keys[z][next[z]] = key;
+			}
+			next[z]++;
+		}
+	}
+
+	/*
+	 * Builds the LUT in two passes over the vertices: the first pass
+	 * counts the entries per plane and thread, the second one writes
+	 * them as packed long keys into preallocated arrays. Each plane
+	 * is then sorted and deduplicated by ProjectionLUT.setPlane().
+	 */
+	private void createLUT(final int d, int nLayers, final FusionWeight[] weighters, final RayTracer tracer) {
+		long startTime = System.currentTimeMillis();
+		lut = new ProjectionLUT(d, sphere.nVertices, nLayers);
+
+		final int nProcessors = Runtime.getRuntime().availableProcessors();
+		final int nVerticesPerThread = (int)Math.ceil(sphere.nVertices / (double)nProcessors);
+		final Point3f[] vertices = sphere.getVertices();
+		final byte[] sides = new byte[sphere.nVertices];
+
+		// the first pass counts, the second one fills
+		final int[][] counts = new int[nProcessors][d];
+		final long[][] keys = new long[d][];
+		for(int pass = 0; pass < 2; pass++) {
+			final boolean fill = pass == 1;
+			ExecutorService exec = Executors.newFixedThreadPool(nProcessors);
+			for(int proc = 0; proc < nProcessors; proc++) {
+				final int currentProc = proc;
+				exec.execute(new Runnable() {
+					@Override
+					public void run() {
+						Vector3f dx = new Vector3f();
+						Point3f pos = new Point3f();
+						KeyCollector collector = new KeyCollector(counts[currentProc], fill ? keys : null);
+
+						int startV = currentProc * nVerticesPerThread;
+						int lenV = Math.min((currentProc + 1) * nVerticesPerThread, sphere.nVertices);
+						for(int vIndex = startV; vIndex < lenV; vIndex++) {
+							Point3f vertex = vertices[vIndex];
+							if(!fill)
+								sides[vIndex] = getSideMask(weighters, vertex);
+							if(sides[vIndex] == 0)
+								continue;
+
+							dx.sub(vertex, center);
+							dx.normalize();
+							tracer.trace(vIndex, vertex, dx, pos, collector);
 						}
 					}
-					synchronized(SphericalMaxProjection.this) {
-						System.out.println("processor " + currentProc + ": before" + SphericalMaxProjection.this.hashCode());
-						for(int i = 0; i < d; i++) {
-							try {
-								all_correspondences[i].addAll(correspondences[i]);
-							} catch(Throwable t) {
-								System.out.println("i = " + i);
-								System.out.println(all_correspondences[i].size());
-								System.out.println(correspondences[i].size());
-							}
-						}
-						System.out.println("processor " + currentProc + ": after " + SphericalMaxProjection.this.hashCode());
+				});
+			}
+			awaitTermination(exec);
+
+			if(fill)
+				break;
+
+			// the blocks of the sides are arranged by setPlane()
+			if(weighters.length > 1)
+				lut.setSideMasks(sides);
+
+			// turn the counts into offsets and allocate the planes
+			for(int z = 0; z < d; z++) {
+				int offset = 0;
+				for(int proc = 0; proc < nProcessors; proc++) {
+					int n = counts[proc][z];
+					counts[proc][z] = offset;
+					offset += n;
+				}
+				keys[z] = new long[offset];
+			}
+		}
+
+		int[] lengths = new int[d];
+		for(int z = 0; z < d; z++)
+			lengths[z] = keys[z].length;
+		setPlanes(lut, keys, lengths);
+
+		long endTime = System.currentTimeMillis();
+		System.out.println("Created LUT with " + lut.size() + " entries (" +
+				(lut.getSizeInBytes() >> 20) + " MB) in " + (endTime - startTime) + " ms");
+	}
+
+	/*
+	 * Sorts and deduplicates each plane in parallel, see
+	 * ProjectionLUT.setPlane().
+	 */
+	private static void setPlanes(final ProjectionLUT lut, final long[][] keys, final int[] lengths) {
+		final int d = keys.length;
+		final int nProcessors = Runtime.getRuntime().availableProcessors();
+		final AtomicInteger nextPlane = new AtomicInteger(0);
+		ExecutorService exec = Executors.newFixedThreadPool(nProcessors);
+		for(int proc = 0; proc < nProcessors; proc++) {
+			exec.execute(new Runnable() {
+				@Override
+				public void run() {
+					int z;
+					while((z = nextPlane.getAndIncrement()) < d) {
+						lut.setPlane(z, keys[z], lengths[z]);
+						keys[z] = null;
 					}
 				}
 			});
 		}
+		awaitTermination(exec);
+	}
 
+	private static void awaitTermination(ExecutorService exec) {
 		try {
 			exec.shutdown();
 			exec.awaitTermination(30, TimeUnit.MINUTES);
 		} catch (InterruptedException e) {
 			e.printStackTrace();
 		}
+	}
+
+	public ProjectionLUT getLUT() {
+		return lut;
+	}
+
+	/**
+	 * Replaces the lookup table by one which was saved and loaded again,
+	 * or drops it with null, to free the memory while it is not used.
+	 */
+	public void setLUT(ProjectionLUT lut) {
+		if(lut != null && lut.getNVertices() != sphere.nVertices)
+			throw new IllegalArgumentException("LUT has " + lut.getNVertices() + " vertices, expected " + sphere.nVertices);
+		this.lut = lut;
+	}
+
+	/**
+	 * Replaces the lookup table by one which projects compact frames,
+	 * containing only the pixels used in each plane. Returns the crop of
+	 * each plane, with which the compact frames are created from full
+	 * frames of width w, see PlaneCrop.gather().
+	 */
+	public PlaneCrop[] cropToLUT(int w) {
+		PlaneCrop[] c = lut.getCrops(w);
+		lut = lut.remap(c);
+		crops = c;
+		return c;
+	}
 
-		lutxy = new int[d][];
-		luti = new int[d][];
-		luts = new int[d][];
-		for(int i = 0; i < d; i++) {
-			int l = all_correspondences[i].size();
-			lutxy[i] = new int[l];
-			luti[i] = new int[l];
-			luts[i] = new int[l];
-
-			for(int j = 0; j < l; j++) {
-				Point4i p = all_correspondences[i].get(j);
-				lutxy[i][j] = p.y * w + p.x;
-				luts[i][j] = p.z;
-				luti[i][j] = p.w;
+	/**
+	 * Returns a copy of the lookup table which projects faster at lower
+	 * quality, for keeping up with the acquisition under load.
+	 *
+	 * If layer is not negative, only the entries of this layer are kept.
+	 * If decimate is set, only every other sample of each ray is kept:
+	 * consecutive samples of a ray differ by one pixel along the axis in
+	 * which the ray advances fastest, so the samples with an even
+	 * coordinate along this axis are retained.
+	 *
+	 * Needs a lookup table created by prepareForProjectionNew(); crops
+	 * and partitions are retained.
+	 */
+	public ProjectionLUT createReducedLUT(final int layer, final boolean decimate) {
+		if(params == null)
+			throw new IllegalStateException("createReducedLUT() needs a LUT created by prepareForProjectionNew()");
+		final ProjectionLUT l = lut;
+		final int w = params.w;
+		final PlaneCrop[] c = crops;
+
+		// per vertex, the axis along which the ray advances by one pixel per sample
+		final byte[] axis = new byte[sphere.nVertices];
+		if(decimate) {
+			Point3f[] vertices = sphere.getVertices();
+			Vector3f dx = new Vector3f();
+			for(int v = 0; v < sphere.nVertices; v++) {
+				dx.sub(vertices[v], center);
+				double ax = Math.abs(dx.x / params.pw);
+				double ay = Math.abs(dx.y / params.ph);
+				double az = Math.abs(dx.z / params.pd);
+				axis[v] = (byte)(ax >= ay && ax >= az ? 0 : ay >= az ? 1 : 2);
 			}
 		}
+
+		return l.select(new ProjectionLUT.EntryFilter() {
+			@Override
+			public boolean accept(int z, int pixel, int target) {
+				if(layer >= 0 && l.getLayer(target) != layer)
+					return false;
+				if(!decimate)
+					return true;
+				if(c != null)
+					pixel = c[z].toFull(pixel);
+				switch(axis[l.getVertex(target)]) {
+					case 0:  return (pixel % w) % 2 == 0;
+					case 1:  return (pixel / w) % 2 == 0;
+					default: return z % 2 == 0;
+				}
+			}
+		});
 	}
 
-	public void prepareForProjection(final int w, final int h, final int d, final double pw, final double ph, final double pd, final FusionWeight weighter) {
+	/**
+	 * Returns a SphericalMaxProjection for the sphere translated by
+	 * (sx, sy, sz) pixels and scaled to newRadius, for following a
+	 * drifting sample between timepoints. Vertex indices are retained.
+	 *
+	 * The lookup table is derived from this one instead of being traced
+	 * again: entries are shifted by whole pixels, which is exact, and
+	 * only the rays which were clipped by the image border are traced
+	 * again. For a changed radius, the shifted entries are re-assigned to
+	 * the layers by their distance to the new vertex, and only the part
+	 * of each ray which was not covered before is traced. Radius changes
+	 * of more than half the layer stack are traced from scratch.
+	 *
+	 * Needs a lookup table created by prepareForProjectionNew(). The
+	 * partitions are retained; if this was cropped, the returned one is
+	 * not, call cropToLUT() again.
+	 */
+	public SphericalMaxProjection retarget(final int sx, final int sy, final int sz, float newRadius) {
+		if(params == null)
+			throw new IllegalStateException("retarget() needs a LUT created by prepareForProjectionNew()");
+		long startTime = System.currentTimeMillis();
+		final LUTParameters p = params;
+		final int nVertices = sphere.nVertices;
+		final boolean[] visible = getVisible();
+		final double t2 = p.nLayers * p.layerWidth / 2;
+		final double dr = newRadius - radius;
+
+		// scale around the old center and translate
+		float s = newRadius / radius;
+		float tx = (float)(sx * p.pw) + center.x * (1 - s);
+		float ty = (float)(sy * p.ph) + center.y * (1 - s);
+		float tz = (float)(sz * p.pd) + center.z * (1 - s);
+		Matrix4f transform = new Matrix4f(
+				s, 0, 0, tx,
+				0, s, 0, ty,
+				0, 0, s, tz,
+				0, 0, 0, 1);
+		final SphericalMaxProjection ret = new SphericalMaxProjection(this, transform, newRadius);
+		final Point3f[] newVertices = ret.sphere.getVertices();
+		final Point3f newCenter = ret.center;
+
+		// per vertex, the ray direction and whether it has to be traced
+		// again, because the old one was clipped by the image border
+		final float[] dirs = new float[3 * nVertices];
+		final boolean[] retrace = new boolean[nVertices];
+		Point3f[] vertices = sphere.getVertices();
+		Vector3f dx = new Vector3f();
+		Point3f pos = new Point3f();
+		boolean retraceAll = Math.abs(dr) > t2;
+		for(int v = 0; v < nVertices; v++) {
+			if(!visible[v])
+				continue;
+			dx.sub(vertices[v], center);
+			dx.normalize();
+			dirs[3 * v] = dx.x;
+			dirs[3 * v + 1] = dx.y;
+			dirs[3 * v + 2] = dx.z;
+			// all samples lie between the end points
+			pos.scaleAdd((float)-t2, dx, vertices[v]);
+			boolean inside = isInside(pos, p);
+			pos.scaleAdd((float)t2, dx, vertices[v]);
+			retrace[v] = retraceAll || !inside || !isInside(pos, p);
+		}
 
+		final ProjectionLUT newLut = new ProjectionLUT(p.d, nVertices, p.nLayers);
+		final ProjectionLUT old = lut;
+		newLut.setSideMasks(old.getSideMasks());
+		final PlaneCrop[] oldCrops = crops;
 		final int nProcessors = Runtime.getRuntime().availableProcessors();
-		ExecutorService exec = Executors.newFixedThreadPool(nProcessors);
 
-		@SuppressWarnings("unchecked")
-		final ArrayList<Point3i>[] all_correspondences = new ArrayList[d];
-		for(int i = 0; i < d; i++)
-			all_correspondences[i] = new ArrayList<Point3i>();
+		// shift the entries of the remaining vertices, in parallel over planes
+		final long[][] keys = new long[p.d][];
+		final int[] lengths = new int[p.d];
+		final AtomicInteger nextPlane = new AtomicInteger(0);
+		ExecutorService exec = Executors.newFixedThreadPool(nProcessors);
+		for(int proc = 0; proc < nProcessors; proc++) {
+			exec.execute(new Runnable() {
+				@Override
+				public void run() {
+					int z;
+					while((z = nextPlane.getAndIncrement()) < p.d) {
+						int oz = z - sz;
+						int[] e = oz >= 0 && oz < p.d ? old.getEntries(oz) : new int[0];
+						long[] k = new long[e.length / 2];
+						int n = 0;
+						for(int i = 0; i < e.length; i += 2) {
+							int vIndex = old.getVertex(e[i + 1]);
+							if(retrace[vIndex])
+								continue;
+							int pixel = oldCrops == null ? e[i] : oldCrops[oz].toFull(e[i]);
+							int x = pixel % p.w + sx;
+							int y = pixel / p.w + sy;
+							if(x < 0 || x >= p.w || y < 0 || y >= p.h)
+								continue;
+							int layer = old.getLayer(e[i + 1]);
+							if(dr != 0) {
+								layer = getLayer(x, y, z, newVertices[vIndex], dirs, vIndex, p, t2);
+								if(layer < 0)
+									continue;
+							}
+							k[n++] = newLut.createKey(y * p.w + x, layer, vIndex);
+						}
+						keys[z] = k;
+						lengths[z] = n;
+					}
+				}
+			});
+		}
+		awaitTermination(exec);
 
+		// trace the clipped rays and the uncovered parts of the others
+		final int nVerticesPerThread = (int)Math.ceil(nVertices / (double)nProcessors);
+		final KeyCollector[] patches = new KeyCollector[nProcessors];
+		exec = Executors.newFixedThreadPool(nProcessors);
 		for(int proc = 0; proc < nProcessors; proc++) {
 			final int currentProc = proc;
 			exec.execute(new Runnable() {
@@ -616,83 +1154,105 @@ public class SphericalMaxProjection {
 				public void run() {
 					Vector3f dx = new Vector3f();
 					Point3f pos = new Point3f();
-
-					@SuppressWarnings("unchecked")
-					ArrayList<Point3i>[] correspondences = new ArrayList[d];
-					for(int i = 0; i < d; i++)
-						correspondences[i] = new ArrayList<Point3i>();
-
-					int nVerticesPerThread = (int)Math.ceil(sphere.nVertices / (double)nProcessors);
+					KeyCollector collector = new KeyCollector(p.d);
 					int startV = currentProc * nVerticesPerThread;
-					int lenV = Math.min((currentProc + 1) * nVerticesPerThread, sphere.nVertices);
+					int lenV = Math.min((currentProc + 1) * nVerticesPerThread, nVertices);
 					for(int vIndex = startV; vIndex < lenV; vIndex++) {
-						Point3f vertex = sphere.getVertices()[vIndex];
-						float weight = weighter.getWeight(vertex.x, vertex.y, vertex.z);
-						if(weight == 0)
+						if(!visible[vIndex])
 							continue;
-
-						dx.sub(vertex, center);
+						dx.sub(newVertices[vIndex], newCenter);
 						dx.normalize();
-
-						// calculate the distance needed to move to the neighbor pixel
-						double dmax = Math.max(dx.x / pw, Math.max(dx.y / ph, dx.z / pd));
-						double ddx = dx.x / dmax;
-						double ddy = dx.y / dmax;
-						double ddz = dx.z / dmax;
-						float scale = (float)(ddx * ddx + ddy * ddy + ddz * ddz);
-
-						int k = Math.round(0.2f * radius / scale);
-
-						for(int i = -k; i <= k; i++) {
-							pos.scaleAdd(i * scale, dx, vertex);
-
-							// calculate the position in pixel dims
-							int x = (int)Math.round(pos.x / pw);
-							int y = (int)Math.round(pos.y / ph);
-							int z = (int)Math.round(pos.z / pd);
-
-							// only add it if the pixel is inside the image
-							if(x >= 0 && x < w && y >= 0 && y < h && z >= 0 && z < d)
-								correspondences[z].add(new Point3i(x, y, vIndex));
+						if(retrace[vIndex]) {
+							traceLayers(newLut, p, vIndex, newVertices[vIndex], dx, pos, collector,
+									Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+						} else if(dr != 0) {
+							double tol = getTolerance(dirs, vIndex, p);
+							if(dr > 0)
+								traceLayers(newLut, p, vIndex, newVertices[vIndex], dx, pos, collector, t2 - dr - tol, t2);
+							else
+								traceLayers(newLut, p, vIndex, newVertices[vIndex], dx, pos, collector, -t2, -t2 - dr + tol);
 						}
 					}
-					synchronized(SphericalMaxProjection.this) {
-						System.out.println("processor " + currentProc + ": before" + SphericalMaxProjection.this.hashCode());
-						for(int i = 0; i < d; i++) {
-							try {
-								all_correspondences[i].addAll(correspondences[i]);
-							} catch(Throwable t) {
-								System.out.println("i = " + i);
-								System.out.println(all_correspondences[i].size());
-								System.out.println(correspondences[i].size());
-							}
-						}
-						System.out.println("processor " + currentProc + ": after " + SphericalMaxProjection.this.hashCode());
-					}
+					patches[currentProc] = collector;
 				}
 			});
 		}
+		awaitTermination(exec);
+
+		for(int z = 0; z < p.d; z++) {
+			int n = lengths[z];
+			for(KeyCollector c : patches)
+				n += c.next[z];
+			long[] k = Arrays.copyOf(keys[z], n);
+			n = lengths[z];
+			for(KeyCollector c : patches) {
+				System.arraycopy(c.keys[z], 0, k, n, c.next[z]);
+				n += c.next[z];
+			}
+			// the shifted entries are still sorted (per partition), so
+			// that setPlane() only has to merge a few sorted runs
+			Arrays.sort(k, lengths[z], n);
+			keys[z] = k;
+			lengths[z] = n;
+		}
+		setPlanes(newLut, keys, lengths);
+		if(old.getNPartitions() > 1)
+			newLut.partition(old.getNPartitions());
+
+		ret.lut = newLut;
+		ret.params = new LUTParameters(p.w, p.h, p.d, p.pw, p.ph, p.pd, p.layerWidth, p.nLayers, null);
+		ret.params.visible = visible;
+
+		int nRetraced = 0;
+		for(boolean b : retrace)
+			if(b)
+				nRetraced++;
+		long endTime = System.currentTimeMillis();
+		System.out.println("Retargeted LUT by (" + sx + ", " + sy + ", " + sz + ") pixels to radius " + newRadius +
+				", traced " + nRetraced + " rays again, in " + (endTime - startTime) + " ms");
+		return ret;
+	}
 
-		try {
-			exec.shutdown();
-			exec.awaitTermination(30, TimeUnit.MINUTES);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+	private boolean[] getVisible() {
+		if(params.visible == null) {
+			Point3f[] vertices = sphere.getVertices();
+			boolean[] visible = new boolean[sphere.nVertices];
+			for(int v = 0; v < visible.length; v++)
+				visible[v] = getSideMask(params.weighters, vertices[v]) != 0;
+			params.visible = visible;
 		}
+		return params.visible;
+	}
 
-		lutxy = new int[d][];
-		luti = new int[d][];
-		for(int i = 0; i < d; i++) {
-			int l = all_correspondences[i].size();
-			lutxy[i] = new int[l];
-			luti[i] = new int[l];
+	private static boolean isInside(Point3f pos, LUTParameters p) {
+		int x = (int)Math.round(pos.x / p.pw);
+		int y = (int)Math.round(pos.y / p.ph);
+		int z = (int)Math.round(pos.z / p.pd);
+		return x >= 0 && x < p.w && y >= 0 && y < p.h && z >= 0 && z < p.d;
+	}
 
-			for(int j = 0; j < l; j++) {
-				Point3i p = all_correspondences[i].get(j);
-				lutxy[i][j] = p.y * w + p.x;
-				luti[i][j] = p.z;
-			}
-		}
+	/*
+	 * Half the extent of a pixel along the ray of vertex v.
+	 */
+	private static double getTolerance(float[] dirs, int v, LUTParameters p) {
+		return 0.5 * (Math.abs(dirs[3 * v]) * p.pw + Math.abs(dirs[3 * v + 1]) * p.ph + Math.abs(dirs[3 * v + 2]) * p.pd);
+	}
+
+	/*
+	 * Returns the layer of pixel (x, y, z) on the ray of the given vertex,
+	 * from the distance of the pixel center to the vertex, or -1 if it is
+	 * not within the layers. Since the ray was sampled, pixels up to half
+	 * a pixel beyond the outer layers are accepted.
+	 */
+	private static int getLayer(int x, int y, int z, Point3f vertex, float[] dirs, int v, LUTParameters p, double t2) {
+		double t = (x * p.pw - vertex.x) * dirs[3 * v]
+				+ (y * p.ph - vertex.y) * dirs[3 * v + 1]
+				+ (z * p.pd - vertex.z) * dirs[3 * v + 2];
+		double tol = getTolerance(dirs, v, p);
+		if(t < -t2 - tol || t > t2 + tol)
+			return -1;
+		int layer = (int)Math.floor((t + t2) / p.layerWidth);
+		return Math.max(0, Math.min(p.nLayers - 1, layer));
 	}
 
 	public void resetMaxima(short[] maxima) {
@@ -704,29 +1264,45 @@ public class SphericalMaxProjection {
 	 * z starts with 0;
 	 */
 	public void projectPlane(int z, short[] ip, short[] maxima) {
-		for(int i = 0; i < luti[z].length; i++) {
-			float v = ip[lutxy[z][i]] & 0xffff;
-			if(v > (maxima[luti[z][i]] & 0xffff))
-				maxima[luti[z][i]] = (short)v;
-		}
+		lut.projectPlane(z, ip, maxima);
 	}
 
 	public void projectPlaneMultilayer(int z, short[] ip, short[][] maxima) {
-		for(int i = 0; i < luti[z].length; i++) {
-			try {
-				float v = ip[lutxy[z][i]] & 0xffff;
-				if(v > (maxima[luts[z][i]][luti[z][i]] & 0xffff))
-					maxima[luts[z][i]][luti[z][i]] = (short)v;
-			} catch(RuntimeException e) {
-				System.out.println("z = " + z);
-				System.out.println("i = " + i);
-				System.out.println("luts[z][i] = " + luts[z][i]);
-				System.out.println("luti[z][i] = " + luti[z][i]);
-				System.out.println("nVertices = " + sphere.nVertices);
-
-				throw e;
-			}
-		}
+		lut.projectPlane(z, ip, maxima);
+	}
+
+	/**
+	 * Projects only the given partition of the lookup table, see
+	 * ProjectionLUT.partition(). Different partitions may be projected
+	 * concurrently into the same maxima.
+	 */
+	public void projectPlaneMultilayer(int z, short[] ip, short[][] maxima, int partition) {
+		lut.projectPlane(z, ip, maxima, partition);
+	}
+
+	/**
+	 * Projects a frame taken with illumination ill, for a lookup table
+	 * created for several illumination sides; only the vertices of this
+	 * side are updated.
+	 */
+	public void projectPlaneMultilayer(int z, short[] ip, short[][] maxima, int partition, int ill) {
+		lut.projectPlane(z, ip, maxima, partition, ill);
+	}
+
+	/**
+	 * Accumulates plane z into acc, e.g. a ProjectionStatistics for
+	 * calculating several statistics in the same pass.
+	 */
+	public void projectPlane(int z, short[] ip, ProjectionAccumulator acc) {
+		lut.projectPlane(z, ip, acc);
+	}
+
+	public void projectPlane(int z, short[] ip, ProjectionAccumulator acc, int partition) {
+		lut.projectPlane(z, ip, acc, partition);
+	}
+
+	public void projectPlane(int z, short[] ip, ProjectionAccumulator acc, int partition, int ill) {
+		lut.projectPlane(z, ip, acc, partition, ill);
 	}
 
 	// in rad
@@ -808,40 +1384,60 @@ public class SphericalMaxProjection {
 //	}
 
 	public float getInterpolatedValue(Point3f p, short[] maxima) {
-		// get three nearest neighbors
 		int[] nn = new int[3];
-		getThreeNearestVertexIndices(p, nn);
-		Point3f[] vertices = sphere.getVertices();
+		float[] w = new float[3];
+		getInterpolationWeights(p, nn, w);
+		return w[0] * maxima[nn[0]] + w[1] * maxima[nn[1]] + w[2] * maxima[nn[2]];
+	}
 
-		int i0 = nn[0];
-		int i1 = nn[1];
-		int i2 = nn[2];
+	/**
+	 * Returns the vertex indices of the triangle containing p and the
+	 * weights to interpolate their values at p. For icospheres, these are
+	 * the barycentric coordinates of p (projected radially onto the
+	 * triangle); otherwise, the triangle with the nearest centroid is
+	 * used and weighted by inverse distance.
+	 */
+	public void getInterpolationWeights(Point3f p, int[] vIndices, float[] weights) {
+		int[] faces = sphere.getFaces();
+		if(locator != null) {
+			int f = locator.findFace(p.x, p.y, p.z, weights);
+			vIndices[0] = faces[3 * f];
+			vIndices[1] = faces[3 * f + 1];
+			vIndices[2] = faces[3 * f + 2];
+			return;
+		}
+
+		getThreeNearestVertexIndices(p, vIndices);
+		Point3f[] vertices = sphere.getVertices();
 
 		// interpolate according to distance
-		float d0 = p.distance(vertices[i0]);
-		float d1 = p.distance(vertices[i1]);
-		float d2 = p.distance(vertices[i2]);
-
-		if(d0 == 0) return maxima[i0];
-		if(d1 == 0) return maxima[i1];
-		if(d2 == 0) return maxima[i2];
-
-		float sum = 1 / d0 + 1 / d1 + 1 / d2;
-
-		d0 = 1 / d0 / sum;
-		d1 = 1 / d1 / sum;
-		d2 = 1 / d2 / sum;
-		float v0 = d0 * maxima[i0];
-		float v1 = d1 * maxima[i1];
-		float v2 = d2 * maxima[i2];
-		float ret = v0 + v1 + v2;
-		return ret;
+		float sum = 0;
+		for(int i = 0; i < 3; i++) {
+			float d = p.distance(vertices[vIndices[i]]);
+			if(d == 0) {
+				weights[0] = weights[1] = weights[2] = 0;
+				weights[i] = 1;
+				return;
+			}
+			weights[i] = 1 / d;
+			sum += weights[i];
+		}
+		for(int i = 0; i < 3; i++)
+			weights[i] /= sum;
+	}
+
+	/**
+	 * Returns the index of the triangle containing p or, if the sphere
+	 * is not an icosphere, the one with the nearest centroid.
+	 */
+	int findFace(Point3f p) {
+		return locator != null
+				? locator.findFace(p.x, p.y, p.z)
+				: getTree().findNearestFace(p.x, p.y, p.z);
 	}
 
 	public void getThreeNearestVertexIndices(Point3f p, int[] ret) {
-		NearestNeighborSearch<Node3D> nnSearch = new NearestNeighborSearch<Node3D>(tree);
-		Node3D nearest = nnSearch.findNearestNeighbor(new Node3D(p, -1));
-		int triangleIdx = nearest.triangleIdx;
+		int triangleIdx = findFace(p);
 		int[] faces = sphere.getFaces();
 		ret[0] = faces[triangleIdx * 3];
 		ret[1] = faces[triangleIdx * 3 + 1];
@@ -855,75 +1451,9 @@ public class SphericalMaxProjection {
 //			cp.maxima = new short[this.maxima.length];
 //			System.arraycopy(this.maxima, 0, cp.maxima, 0, this.maxima.length);
 //		}
-		if(this.luti != null) {
-			int l = this.luti.length;
-			cp.luti = new int[l][];
-			cp.lutxy = new int[l][];
-			for(int z = 0; z < l; z++) {
-				int lz = this.luti[z].length;
-				cp.luti[z] = new int[lz];
-				cp.lutxy[z] = new int[lz];
-				System.arraycopy(this.luti[z], 0, cp.luti[z], 0, lz);
-				System.arraycopy(this.lutxy[z], 0, cp.lutxy[z], 0, lz);
-			}
-		}
+		// partition() and setSideMasks() must not affect the clone
+		if(this.lut != null)
+			cp.lut = this.lut.copy();
 		return cp;
 	}
-
-	private static class Node3D implements Leaf<Node3D> {
-
-		final Point3f p;
-		final int triangleIdx;
-
-		public Node3D(final Point3f p, final int triangleIdx) {
-			this.p = p;
-			this.triangleIdx = triangleIdx;
-		}
-
-		@SuppressWarnings("unused")
-		public Node3D(final Node3D node) {
-			this.p = (Point3f)node.p.clone();
-			this.triangleIdx = node.triangleIdx;
-		}
-
-		@Override
-		public boolean isLeaf() {
-			return true;
-		}
-
-		@SuppressWarnings("unused")
-		public boolean equals(final Node3D o) {
-			return p.equals(o.p);
-		}
-
-		@Override
-		public float distanceTo(final Node3D o) {
-			return p.distance(o.p);
-		}
-
-		@Override
-		public float get(final int k) {
-			switch(k) {
-			case 0: return p.x;
-			case 1: return p.y;
-			case 2: return p.z;
-			}
-			return 0f;
-		}
-
-		@Override
-		public String toString() {
-			return p.toString();
-		}
-
-		@Override
-		public Node3D[] createArray(final int n) {
-			return new Node3D[n];
-		}
-
-		@Override
-		public int getNumDimensions() {
-			return 3;
-		}
-	}
 }
@@ -0,0 +1,310 @@
+package huisken.projection.processing;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fuses each timepoint as soon as the stacks of all cameras,
+ * illuminations and angles are available, while the acquisition is
+ * still running.
+ *
+ * Completed stacks are either reported in-process, by registering this
+ * as a StackListener with the TwoCameraSphericalMaxProjections, or, if
+ * the projection runs in another process or on another machine,
+ * detected by startPolling().
+ *
+ * Complete timepoints are queued and fused by a fixed number of worker
+ * threads, in the order in which they became complete. Timepoints which
+ * are still incomplete when the acquisition ends, see acquisitionFinished(),
+ * are reported and not fused.
+ */
+public class StreamingFusion implements TwoCameraSphericalMaxProjection.StackListener {
+
+	private static final int END = -1;
+	// see awaitCompletion(long, TimeUnit)
+	private static final int IDLE_INTERVALS = 3;
+
+	private final TwoCameraFusion tcf;
+	private final int nTimepoints;
+	private final int nAngles;
+
+	// per timepoint, which stacks were reported by stackFinished()
+	private final boolean[][] finished;
+	private final int[] nFinished;
+	private final boolean[] queued;
+	private int nQueued = 0;
+	private final List<Integer> incomplete = new ArrayList<Integer>();
+
+	private final BlockingQueue<Integer> queue;
+	// counted down for each timepoint which was fused or skipped
+	private final CountDownLatch done;
+	private final AtomicInteger nFused = new AtomicInteger();
+	// System.nanoTime() when the last timepoint was queued or fused
+	private volatile long lastProgress = System.nanoTime();
+	// System.nanoTime() when the last timepoint was queued, and the
+	// longest time between two timepoints becoming complete so far
+	private long lastQueued = -1;
+	private long maxInterval = 0;
+	private final ExecutorService exec;
+	private final int nThreads;
+
+	private Thread poller = null;
+	private volatile boolean stopped = false;
+	private volatile boolean acquisitionFinished = false;
+
+	/**
+	 * @param tcf A TwoCameraFusion, on which prepareFusion() was called.
+	 * @param nTimepoints The number of timepoints of the acquisition.
+	 * @param nThreads Number of fusion threads.
+	 */
+	public StreamingFusion(TwoCameraFusion tcf, int nTimepoints, int nThreads) {
+		this.tcf = tcf;
+		this.nTimepoints = nTimepoints;
+		this.nAngles = tcf.getNumAngles();
+		this.nThreads = nThreads;
+		this.finished = new boolean[nTimepoints][4 * nAngles];
+		this.nFinished = new int[nTimepoints];
+		this.queued = new boolean[nTimepoints];
+		// each timepoint is queued once, so this never blocks
+		this.queue = new ArrayBlockingQueue<Integer>(nTimepoints + nThreads);
+		this.done = new CountDownLatch(nTimepoints);
+
+		exec = Executors.newFixedThreadPool(nThreads);
+		for(int i = 0; i < nThreads; i++) {
+			exec.submit(new Runnable() {
+				@Override
+				public void run() {
+					work();
+				}
+			});
+		}
+	}
+
+	private void work() {
+		while(true) {
+			int tp;
+			try {
+				tp = queue.take();
+			} catch(InterruptedException e) {
+				return;
+			}
+			if(tp == END)
+				return;
+			long start = System.currentTimeMillis();
+			try {
+				tcf.refreshInput();
+				tcf.fuse(tp);
+				long end = System.currentTimeMillis();
+				System.out.println("Fused timepoint " + tp + " in " + (end - start) + " ms");
+			} catch(Exception e) {
+				e.printStackTrace();
+				System.out.println("Couldn't fuse timepoint " + tp);
+			}
+			nFused.incrementAndGet();
+			lastProgress = System.nanoTime();
+			done.countDown();
+		}
+	}
+
+	@Override
+	public void stackFinished(int tp, int aIndex, int camera, int ill) {
+		if(tp < 0 || tp >= nTimepoints)
+			return;
+		int stack = (2 * camera + ill) * nAngles + aIndex;
+		boolean complete;
+		synchronized(this) {
+			if(finished[tp][stack])
+				return;
+			finished[tp][stack] = true;
+			complete = ++nFinished[tp] == finished[tp].length;
+		}
+		if(complete)
+			enqueue(tp);
+	}
+
+	private synchronized void enqueue(int tp) {
+		if(queued[tp] || stopped)
+			return;
+		queued[tp] = true;
+		nQueued++;
+		long now = System.nanoTime();
+		if(lastQueued >= 0)
+			maxInterval = Math.max(maxInterval, now - lastQueued);
+		lastQueued = now;
+		lastProgress = now;
+		queue.add(tp);
+	}
+
+	private synchronized boolean skip(int tp) {
+		if(queued[tp])
+			return false;
+		queued[tp] = true;
+		incomplete.add(tp);
+		done.countDown();
+		return true;
+	}
+
+	/**
+	 * Checks the input folders every intervalMillis for timepoints
+	 * which became complete, for projections running in another
+	 * process.
+	 */
+	public synchronized void startPolling(final long intervalMillis) {
+		if(poller != null)
+			return;
+		poller = new Thread("StreamingFusion poller") {
+			@Override
+			public void run() {
+				int next = 0;
+				while(!stopped && !acquisitionFinished && next < nTimepoints) {
+					try {
+						tcf.refreshInput();
+						// timepoints are acquired in order
+						while(next < nTimepoints && tcf.isComplete(next))
+							enqueue(next++);
+					} catch(IOException e) {
+						e.printStackTrace();
+					}
+					if(next < nTimepoints) {
+						try {
+							Thread.sleep(intervalMillis);
+						} catch(InterruptedException e) {
+							return;
+						}
+					}
+				}
+			}
+		};
+		poller.setDaemon(true);
+		poller.start();
+	}
+
+	/**
+	 * Signals that no more stacks will be added: timepoints which are
+	 * complete by now are still fused, the others are reported and
+	 * skipped, so that awaitCompletion() returns.
+	 */
+	public void acquisitionFinished() {
+		acquisitionFinished = true;
+		try {
+			tcf.refreshInput();
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+		List<Integer> skipped = new ArrayList<Integer>();
+		for(int tp = 0; tp < nTimepoints; tp++) {
+			synchronized(this) {
+				if(queued[tp])
+					continue;
+			}
+			boolean complete = false;
+			try {
+				complete = tcf.isComplete(tp);
+			} catch(IOException e) {
+				e.printStackTrace();
+			}
+			if(complete)
+				enqueue(tp);
+			else if(skip(tp))
+				skipped.add(tp);
+		}
+		if(!skipped.isEmpty())
+			System.out.println("Not fusing incomplete timepoint(s) " + skipped);
+	}
+
+	/**
+	 * Returns the longest time in ns between two timepoints becoming
+	 * complete so far, or 0 if less than two timepoints are complete.
+	 */
+	public synchronized long getMaxInterval() {
+		return maxInterval;
+	}
+
+	/**
+	 * Returns the number of timepoints fused so far.
+	 */
+	public int getNumFused() {
+		return nFused.get();
+	}
+
+	/**
+	 * Returns the timepoints which were skipped by acquisitionFinished()
+	 * because they were incomplete.
+	 */
+	public synchronized List<Integer> getIncompleteTimepoints() {
+		return new ArrayList<Integer>(incomplete);
+	}
+
+	/**
+	 * Waits until all timepoints are fused, or skipped after
+	 * acquisitionFinished() was called, then stops the threads.
+	 */
+	public void awaitCompletion() throws InterruptedException {
+		done.await();
+		stop();
+	}
+
+	/**
+	 * Like awaitCompletion(), for acquisitions which do not signal their
+	 * end by acquisitionFinished(): if no timepoint became complete or
+	 * was fused for IDLE_INTERVALS times the interval between two
+	 * timepoints, e.g. because the acquisition was aborted, it is assumed
+	 * to be finished. The interval is the given one of the time-lapse,
+	 * or the longest one observed so far, if that is longer.
+	 * Returns false if not all timepoints were fused.
+	 */
+	public boolean awaitCompletion(long interval, TimeUnit unit) throws InterruptedException {
+		long given = unit.toNanos(interval);
+		long idle;
+		while(true) {
+			idle = IDLE_INTERVALS * Math.max(given, getMaxInterval());
+			long left = lastProgress + idle - System.nanoTime();
+			if(left <= 0) {
+				// a timepoint which is being fused is progress, too
+				synchronized(this) {
+					if(nQueued == nFused.get())
+						break;
+				}
+				left = idle;
+			}
+			if(done.await(left, TimeUnit.NANOSECONDS)) {
+				stop();
+				return getIncompleteTimepoints().isEmpty();
+			}
+		}
+		System.out.println("No timepoint completed for " + TimeUnit.NANOSECONDS.toSeconds(idle) +
+				" s, assuming the acquisition is finished");
+		acquisitionFinished();
+		awaitCompletion();
+		return getIncompleteTimepoints().isEmpty();
+	}
+
+	/**
+	 * Stops polling and fusion; timepoints which are currently being
+	 * fused are finished.
+	 */
+	public void stop() {
+		synchronized(this) {
+			stopped = true;
+			queue.clear();
+			for(int i = 0; i < nThreads; i++)
+				queue.add(END);
+		}
+		if(poller != null)
+			poller.interrupt();
+		exec.shutdown();
+		try {
+			exec.awaitTermination(300, TimeUnit.MINUTES);
+		} catch(InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+}
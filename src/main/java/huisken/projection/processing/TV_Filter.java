@@ -6,7 +6,6 @@ import ij.plugin.PlugIn;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.HashSet;
 
 import javax.vecmath.Point3f;
 
@@ -42,10 +41,12 @@ public class TV_Filter implements PlugIn {
 		File outdir = new File(dir, "filtered");
 		outdir.mkdir();
 		String objfile = new File(dataf, "Sphere.obj").getAbsolutePath();
-		SphericalMaxProjection smp = new SphericalMaxProjection(objfile);
+		SphericalMaxProjection smp = new SphericalMaxProjection(objfile, SphericalMaxProjection.getMeshCacheDir(dataf));
 		Point3f[] vertices = smp.getSphere().getVertices();
-		int[] faces = smp.getSphere().getFaces();
-		int[][] neighbors = calculateNeighbors(faces, vertices.length);
+		int[] offsets = smp.getSphere().getNeighborOffsets();
+		int[] neighbors = smp.getSphere().getNeighbors();
+		float[] lv = new float[vertices.length];
+		float[] next = new float[vertices.length];
 
 		File[] files = dataf.listFiles();
 		for(int i = 0; i < files.length; i++) {
@@ -59,9 +60,10 @@ public class TV_Filter implements PlugIn {
 				current[c] = original[c];
 			int iter = 0;
 			do {
-				float[] next = new float[vertices.length];
-				diff = step(neighbors, current, next, original, lambda, a);
+				diff = step(offsets, neighbors, current, next, lv, original, lambda, a);
+				float[] tmp = current;
 				current = next;
+				next = tmp;
 				iter++;
 			} while(diff > tolerance);
 
@@ -73,49 +75,20 @@ public class TV_Filter implements PlugIn {
 		}
 	}
 
-	@SuppressWarnings("unchecked")
-	private int[][] calculateNeighbors(int[] faces, int nVertices) {
-		HashSet<Integer>[] set = new HashSet[nVertices];
-		for(int i = 0; i < nVertices; i++)
-			set[i] = new HashSet<Integer>();
-
-		for(int i = 0; i < faces.length; i += 3) {
-			int f1 = faces[i];
-			int f2 = faces[i + 1];
-			int f3 = faces[i + 2];
-			set[f1].add(f2);
-			set[f1].add(f3);
-
-			set[f2].add(f1);
-			set[f2].add(f3);
-
-			set[f3].add(f1);
-			set[f3].add(f2);
-		}
-
-		int[][] neigh = new int[nVertices][];
-		for(int i = 0; i < nVertices; i++) {
-			neigh[i] = new int[set[i].size()];
-			int n = 0;
-			for(int neighbor : set[i])
-				neigh[i][n++] = neighbor;
-		}
-		return neigh;
-	}
-
-	private double step(int[][] neighbors, float[] u, float[] unext, short[] orig, double lambda, double a) {
-		float[] lv = calculateLocalVariation(neighbors, u, a);
+	private double step(int[] offsets, int[] neighbors, float[] u, float[] unext, float[] lv, short[] orig, double lambda, double a) {
+		calculateLocalVariation(offsets, neighbors, u, lv, a);
 
 		double diff = 0;
-		for(int v = 0; v < neighbors.length; v++) {
+		for(int v = 0; v < unext.length; v++) {
 			double w_ag = 0;
-			for(int n : neighbors[v])
-				w_ag += 1 / lv[n] + 1 / lv[v];
+			for(int i = offsets[v]; i < offsets[v + 1]; i++)
+				w_ag += 1 / lv[neighbors[i]] + 1 / lv[v];
 
 			double h_aa = lambda / (lambda + w_ag);
 			double F = h_aa * (orig[v] & 0xffff);
 
-			for(int n : neighbors[v]) {
+			for(int i = offsets[v]; i < offsets[v + 1]; i++) {
+				int n = neighbors[i];
 				double w_ab = 1.0 / lv[v] + 1.0 / lv[n];
 				double h_ab = w_ab / (lambda + w_ag);
 				F += h_ab * u[n];
@@ -126,14 +99,14 @@ public class TV_Filter implements PlugIn {
 		return diff;
 	}
 
-	private float[] calculateLocalVariation(int[][] neighbors, float[] data, double a) {
-		float[] newdata = new float[data.length];
-		for(int v = 0; v < neighbors.length; v++) {
+	private void calculateLocalVariation(int[] offsets, int[] neighbors, float[] data, float[] lv, double a) {
+		for(int v = 0; v < lv.length; v++) {
 			double sum = a * a;
-			for(int n : neighbors[v])
-				sum += Math.pow(data[n] - data[v], 2);
-			newdata[v] = (float)Math.sqrt(sum);
+			for(int i = offsets[v]; i < offsets[v + 1]; i++) {
+				double diff = data[neighbors[i]] - data[v];
+				sum += diff * diff;
+			}
+			lv[v] = (float)Math.sqrt(sum);
 		}
-		return newdata;
 	}
 }
@@ -5,9 +5,14 @@ import ij.IJ;
 import ij.plugin.PlugIn;
 
 import java.awt.Color;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.ExecutorService;
@@ -38,26 +43,62 @@ public class TwoCameraFusion implements PlugIn {
 	// private static final String format = "tp%04d_a%04d.vertices";
 	private static final boolean adjustModes = false;
 
+	// normalized weight of each input per vertex, indexed by getInputIndex()
+	private float[][] fusionWeights;
+
+	// maximum number of timepoints fused per pass in fuse(String, ...),
+	// see getBatchSize()
+	private static final int FUSE_BATCH = 4;
+	// number of vertices per block in fuse(int[])
+	private static final int FUSE_BLOCK = 1 << 12;
+
+	// buffers of fuse(), re-used for all timepoints of a thread
+	private final ThreadLocal<FuseBuffers> fuseBuffers = new ThreadLocal<FuseBuffers>();
+
+	private static class FuseBuffers {
+		// input data, indexed by [timepoint][layer][input]
+		final short[][][][] input;
+		final float[][] sum;
+		// sum of the weights of the inputs which were projected
+		final float[][] weightSum;
+		final short[] output;
+
+		FuseBuffers(int nTimepoints, int nLayers, int nInputs, int nVertices) {
+			input = new short[nTimepoints][nLayers][nInputs][nVertices];
+			sum = new float[nTimepoints][nVertices];
+			weightSum = new float[nTimepoints][nVertices];
+			output = new short[nVertices];
+		}
+	}
+
 
 	@Override
 	public void run(String args) {
 		GenericDialogPlus gd = new GenericDialogPlus("Fuse from 2 cameras");
 		gd.addDirectoryField("Input folder", "");
+		gd.addDirectoryField("Camera 2 folder (if not in the input folder)", "");
 		gd.addNumericField("#angles", 1, 0);
 		gd.addNumericField("#angleInc", 45, 0);
 		gd.addNumericField("#layers", 1, 0);
 		gd.addFileField("Transformations", "");
 		gd.addCheckbox("Adjust modes to compensate for intensity differences", false);
+		gd.addCheckbox("Fuse while acquisition is running", false);
+		gd.addNumericField("#timepoints (while running)", 1, 0);
+		gd.addNumericField("Interval between timepoints (minutes, while running)", 10, 0);
 		gd.showDialog();
 		if(gd.wasCanceled())
 			return;
 
 		String folder = gd.getNextString();
+		String cam2Folder = gd.getNextString();
 		int nAngles = (int)gd.getNextNumber();
 		int angleInc = (int)gd.getNextNumber();
 		int nLayers = (int)gd.getNextNumber();
 		String transformationFile = gd.getNextString();
 		boolean adjustModes = gd.getNextBoolean();
+		boolean streaming = gd.getNextBoolean();
+		int nTimepoints = (int)gd.getNextNumber();
+		int intervalMinutes = (int)gd.getNextNumber();
 
 		Matrix4f[] transformations = new Matrix4f[1];
 		if(nAngles > 1) {
@@ -105,7 +146,17 @@ public class TwoCameraFusion implements PlugIn {
 //		colors[CAMERA2][LEFT] [1] = colors[CAMERA2][RIGHT][1] = new Color(42, 76, 149).getRGB();
 
 		try {
-			fuse(folder, nAngles, angleInc, nLayers, transformations, adjustModes, colors, true);
+			if(cam2Folder.length() > 0) {
+				File cam1 = new File(folder), cam2 = new File(cam2Folder), out = new File(cam1, "fused");
+				if(streaming)
+					fuseStreaming(cam1, cam2, out, nAngles, angleInc, nLayers, transformations, colors, nTimepoints, intervalMinutes);
+				else
+					fuse(cam1, cam2, out, nAngles, angleInc, nLayers, transformations, adjustModes, colors, true);
+			}
+			else if(streaming)
+				fuseStreaming(folder, nAngles, angleInc, nLayers, transformations, colors, nTimepoints, intervalMinutes);
+			else
+				fuse(folder, nAngles, angleInc, nLayers, transformations, adjustModes, colors, true);
 		} catch(Exception e) {
 			IJ.error(e.getMessage());
 			e.printStackTrace();
@@ -117,19 +168,25 @@ public class TwoCameraFusion implements PlugIn {
 			indir += File.separator;
 		final String inputdir = indir;
 
-		final TwoCameraFusion tcf = new TwoCameraFusion();
+		TwoCameraFusion tcf = new TwoCameraFusion();
 		tcf.prepareFusion(inputdir, nAngles, angleInc, nLayers, transformations, saveOutput);
+		fuseAll(tcf, colors);
+	}
+
+	/**
+	 * Fuses the timepoints in two input folders, one per camera.
+	 */
+	public static void fuse(File cam1Folder, File cam2Folder, File outputdir, int nAngles, int angleInc, int nLayers, final Matrix4f[] transformations, final  boolean adjustModes, int[][][] colors, boolean saveOutput) throws IOException {
+		TwoCameraFusion tcf = new TwoCameraFusion();
+		tcf.prepareFusion(cam1Folder, cam2Folder, outputdir, nAngles, angleInc, nLayers, transformations, saveOutput);
+		fuseAll(tcf, colors);
+	}
+
+	private static void fuseAll(final TwoCameraFusion tcf, int[][][] colors) throws IOException {
 		tcf.indicateCameraContributions(colors);
 		tcf.testCameraFusion();
 
-		final Set<Integer> tps = new TreeSet<Integer>();
-		for(File f : new File(inputdir).listFiles()) {
-			String name = f.getName();
-			if(name.startsWith("tp") && name.endsWith(".vertices")) {
-				int n = Integer.parseInt(name.substring(2, 6));
-				tps.add(n);
-			}
-		}
+		final Set<Integer> tps = tcf.inputdir.getTimepoints();
 
 
 		int nTimepoints = tps.size();
@@ -138,6 +195,8 @@ public class TwoCameraFusion implements PlugIn {
 		final int nProcessors = Runtime.getRuntime().availableProcessors();
 		ExecutorService exec = Executors.newFixedThreadPool(nProcessors);
 		int nTimepointsPerThread = (int)Math.ceil(nTimepoints / (double)nProcessors);
+		final int batchSize = tcf.getBatchSize(nProcessors);
+		System.out.println("Fusing " + batchSize + " timepoint(s) per pass");
 		for(int p = 0; p < nProcessors; p++) {
 			final int start = p * nTimepointsPerThread;
 			final int end = Math.min(nTimepoints, (p + 1) * nTimepointsPerThread);
@@ -145,12 +204,15 @@ public class TwoCameraFusion implements PlugIn {
 			exec.submit(new Runnable() {
 				@Override
 				public void run() {
-					for(int tp = start; tp < end; tp++) {
+					for(int tp = start; tp < end; tp += batchSize) {
+						int[] batch = new int[Math.min(batchSize, end - tp)];
+						for(int i = 0; i < batch.length; i++)
+							batch[i] = timepoints.get(tp + i);
 						try {
-							tcf.fuse(timepoints.get(tp));
+							tcf.fuse(batch);
 						} catch(Exception e) {
 							e.printStackTrace();
-							System.out.println("Couldn't fuse timepoint " + tp);
+							System.out.println("Couldn't fuse timepoints " + Arrays.toString(batch));
 						}
 					}
 				}
@@ -164,6 +226,44 @@ public class TwoCameraFusion implements PlugIn {
 		}
 	}
 
+	/**
+	 * Fuses the timepoints in indir as soon as they are complete, while
+	 * the projection is still writing to it, and returns when all
+	 * nTimepoints are fused, or when no new data arrived for several
+	 * intervals between timepoints, see
+	 * StreamingFusion.awaitCompletion(long, TimeUnit); timepoints which
+	 * are incomplete by then are reported and not fused.
+	 */
+	public static void fuseStreaming(String indir, int nAngles, int angleInc, int nLayers, Matrix4f[] transformations, int[][][] colors, int nTimepoints, int intervalMinutes) throws IOException {
+		TwoCameraFusion tcf = new TwoCameraFusion();
+		tcf.prepareFusion(indir, nAngles, angleInc, nLayers, transformations, true);
+		fuseStreaming(tcf, colors, nTimepoints, intervalMinutes);
+	}
+
+	/**
+	 * Like fuseStreaming(String, ...), for two input folders, one per
+	 * camera.
+	 */
+	public static void fuseStreaming(File cam1Folder, File cam2Folder, File outputdir, int nAngles, int angleInc, int nLayers, Matrix4f[] transformations, int[][][] colors, int nTimepoints, int intervalMinutes) throws IOException {
+		TwoCameraFusion tcf = new TwoCameraFusion();
+		tcf.prepareFusion(cam1Folder, cam2Folder, outputdir, nAngles, angleInc, nLayers, transformations, true);
+		fuseStreaming(tcf, colors, nTimepoints, intervalMinutes);
+	}
+
+	private static void fuseStreaming(TwoCameraFusion tcf, int[][][] colors, int nTimepoints, int intervalMinutes) throws IOException {
+		tcf.indicateCameraContributions(colors);
+		tcf.testCameraFusion();
+
+		StreamingFusion sf = new StreamingFusion(tcf, nTimepoints, Runtime.getRuntime().availableProcessors());
+		sf.startPolling(1000);
+		try {
+			sf.awaitCompletion(intervalMinutes, TimeUnit.MINUTES);
+		} catch(InterruptedException e) {
+			sf.stop();
+			e.printStackTrace();
+		}
+	}
+
 	/**
 	 * Prepare fusion, using a single input folder.
 	 * @param indir
@@ -178,7 +278,7 @@ public class TwoCameraFusion implements PlugIn {
 			indir += File.separator;
 		this.inputdir = new SingleInputFolder(new File(indir));
 		this.saveOutput = saveOutput;
-		this.smp = new SphericalMaxProjection(indir + "Sphere.obj");
+		this.smp = new SphericalMaxProjection(indir + "Sphere.obj", SphericalMaxProjection.getMeshCacheDir(new File(indir)));
 		this.outputdir = new File(indir, "fused");
 		this.angleInc = angleInc;
 		this.nAngles = nAngles;
@@ -208,15 +308,22 @@ public class TwoCameraFusion implements PlugIn {
 			weights[CAMERA2][LEFT] [a] = new AngleWeighter2(AngleWeighter2.X_AXIS,   45, aperture, new Point3f(cen));
 			weights[CAMERA2][RIGHT][a] = new AngleWeighter2(AngleWeighter2.X_AXIS,  -45, aperture, new Point3f(cen));
 		}
+		calculateFusionWeights();
 	}
 
 	public void prepareFusion(File cam1Folder, File cam2Folder, File outputdir, int nAngles, int angleInc, Matrix4f[] transformations, boolean saveOutput) throws IOException {
+		prepareFusion(cam1Folder, cam2Folder, outputdir, nAngles, angleInc, 1, transformations, saveOutput);
+	}
+
+	public void prepareFusion(File cam1Folder, File cam2Folder, File outputdir, int nAngles, int angleInc, int nLayers, Matrix4f[] transformations, boolean saveOutput) throws IOException {
 		this.inputdir = new DoubleInputFolder(cam1Folder, cam2Folder);
 		this.saveOutput = saveOutput;
-		this.smp = new SphericalMaxProjection(new File(cam1Folder, "Sphere.obj").getAbsolutePath());
+		this.smp = new SphericalMaxProjection(new File(cam1Folder, "Sphere.obj").getAbsolutePath(),
+				SphericalMaxProjection.getMeshCacheDir(cam1Folder));
 		this.outputdir = outputdir;
 		this.angleInc = angleInc;
 		this.nAngles = nAngles;
+		this.nLayers = nLayers;
 		this.transforms = transformations;
 
 		// see TwoCameraSphericalMaxProjection.initSphericalMaximumProjection
@@ -242,6 +349,38 @@ public class TwoCameraFusion implements PlugIn {
 			weights[CAMERA2][LEFT] [a] = new AngleWeighter2(AngleWeighter2.X_AXIS,   45, aperture, new Point3f(cen));
 			weights[CAMERA2][RIGHT][a] = new AngleWeighter2(AngleWeighter2.X_AXIS,  -45, aperture, new Point3f(cen));
 		}
+		calculateFusionWeights();
+	}
+
+	private int getInputIndex(int aIndex, int camera, int ill) {
+		return 4 * aIndex + 2 * camera + ill;
+	}
+
+	/**
+	 * Evaluates the weights of all inputs once per vertex and normalizes
+	 * them to sum up to 1, so that fuse() is a plain weighted sum.
+	 */
+	private void calculateFusionWeights() {
+		Point3f[] vertices = smp.getSphere().getVertices();
+		fusionWeights = new float[4 * nAngles][vertices.length];
+		Point3f xvtx = new Point3f();
+		for(int v = 0; v < vertices.length; v++) {
+			float sum = 0;
+			for(int a = 0; a < nAngles; a++) {
+				xvtx.set(vertices[v]);
+				if(transforms[a] != null)
+					transforms[a].transform(xvtx);
+				for(int cam = CAMERA1; cam <= CAMERA2; cam++) {
+					for(int ill = LEFT; ill <= RIGHT; ill++) {
+						float w = weights[cam][ill][a].getWeight(xvtx.x, xvtx.y, xvtx.z);
+						fusionWeights[getInputIndex(a, cam, ill)][v] = w;
+						sum += w;
+					}
+				}
+			}
+			for(int i = 0; i < fusionWeights.length; i++)
+				fusionWeights[i][v] = sum == 0 ? 0 : fusionWeights[i][v] / sum;
+		}
 	}
 
 	public void testCameraFusion() throws IOException {
@@ -325,90 +464,303 @@ public class TwoCameraFusion implements PlugIn {
 		return TwoCameraSphericalMaxProjection.getFileName(tp, aIndex, angleInc, camera, ill, layer);
 	}
 
+	public int getNumAngles() {
+		return nAngles;
+	}
+
+	/**
+	 * Returns true if all input stacks of the given timepoint are
+	 * available, without waiting for them.
+	 */
+	public boolean isComplete(int tp) throws IOException {
+		int nVertices = smp.getSphere().nVertices;
+		for(int cam = CAMERA1; cam <= CAMERA2; cam++)
+			for(int ill = LEFT; ill <= RIGHT; ill++)
+				for(int a = 0; a < nAngles; a++)
+					for(int l = 0; l < nLayers; l++)
+						if(inputdir.isProjected(tp, a, cam, ill, l, nLayers) &&
+								!inputdir.isAvailable(tp, a, angleInc, cam, ill, l, nVertices))
+							return false;
+		return true;
+	}
+
+	/**
+	 * Picks up data that was appended to the input containers, and
+	 * stacks which were added to the manifests, since the last call.
+	 */
+	public void refreshInput() throws IOException {
+		inputdir.refresh();
+	}
+
 	public void fuse(int tp) throws IOException {
-		boolean done = true;
-		for(int l = 0; l < nLayers; l++) {
-			if(!new File(outputdir, String.format("tp%04d_%02d.vertices", tp, l)).exists()) {
-				done = false;
-				break;
-			}
-		}
-		if(done)
+		fuse(new int[] { tp });
+	}
+
+	private boolean isFused(int tp) {
+		for(int l = 0; l < nLayers; l++)
+			if(!new File(outputdir, String.format("tp%04d_%02d.vertices", tp, l)).exists())
+				return false;
+		return true;
+	}
+
+	/**
+	 * Number of timepoints which each of nThreads threads can fuse in
+	 * one pass, such that the input buffers of all threads take at
+	 * most half of the free heap; at least 1 and at most FUSE_BATCH.
+	 */
+	int getBatchSize(int nThreads) {
+		Runtime rt = Runtime.getRuntime();
+		long free = rt.maxMemory() - rt.totalMemory() + rt.freeMemory();
+		// input data, sums and output
+		long perTimepoint = smp.getSphere().nVertices * (2L * nLayers * fusionWeights.length + 8);
+		long n = free / 2 / nThreads / perTimepoint;
+		return (int)Math.max(1, Math.min(FUSE_BATCH, n));
+	}
+
+	/**
+	 * Fuses several timepoints in one pass over the weight tables; the
+	 * input of all of them is held in memory at once, see getBatchSize().
+	 */
+	public void fuse(int[] timepoints) throws IOException {
+		int nTimepoints = 0;
+		int[] tps = new int[timepoints.length];
+		for(int tp : timepoints)
+			if(!isFused(tp))
+				tps[nTimepoints++] = tp;
+		if(nTimepoints == 0)
 			return;
 
 		int nVertices = smp.getSphere().nVertices;
+		int nInputs = fusionWeights.length;
 
-		short[][][][][] m = new short[2][2][nAngles][nLayers][];
-		for(int a = 0; a < nAngles; a++) {
-			for(int l = 0; l < nLayers; l++) {
-				m[CAMERA1][LEFT] [a][l] = SphericalMaxProjection.loadShortData(inputdir.getFile(CAMERA1, getFile(tp, a, angleInc, CAMERA1, LEFT, l)).getAbsolutePath(),  nVertices);
-				m[CAMERA1][RIGHT][a][l] = SphericalMaxProjection.loadShortData(inputdir.getFile(CAMERA1, getFile(tp, a, angleInc, CAMERA1, RIGHT, l)).getAbsolutePath(), nVertices);
-				m[CAMERA2][LEFT] [a][l] = SphericalMaxProjection.loadShortData(inputdir.getFile(CAMERA2, getFile(tp, a, angleInc, CAMERA2, LEFT, l)).getAbsolutePath(),  nVertices);
-				m[CAMERA2][RIGHT][a][l] = SphericalMaxProjection.loadShortData(inputdir.getFile(CAMERA2, getFile(tp, a, angleInc, CAMERA2, RIGHT, l)).getAbsolutePath(), nVertices);
-			}
+		FuseBuffers buffers = fuseBuffers.get();
+		if(buffers == null || buffers.input.length < nTimepoints) {
+			buffers = new FuseBuffers(nTimepoints, nLayers, nInputs, nVertices);
+			fuseBuffers.set(buffers);
 		}
+		short[][][][] m = buffers.input;
 
+		// inputs which were not projected at reduced quality are left
+		// out, and the weights of the others are normalized again
+		boolean[][][] missing = new boolean[nTimepoints][nLayers][nInputs];
+		boolean[] incomplete = new boolean[nTimepoints];
+		for(int t = 0; t < nTimepoints; t++) {
+			for(int a = 0; a < nAngles; a++) {
+				for(int l = 0; l < nLayers; l++) {
+					for(int cam = CAMERA1; cam <= CAMERA2; cam++) {
+						for(int ill = LEFT; ill <= RIGHT; ill++) {
+							int i = getInputIndex(a, cam, ill);
+							if(inputdir.isProjected(tps[t], a, cam, ill, l, nLayers)) {
+								inputdir.load(tps[t], a, angleInc, cam, ill, l, m[t][l][i]);
+							} else {
+								missing[t][l][i] = true;
+								incomplete[t] = true;
+							}
+						}
+					}
+				}
+			}
+		}
 
 		if(adjustModes) {
-			float refmode = SphericalMaxProjection.getMode(m[CAMERA1][LEFT][0][0]);
-			for(int a = 0; a < nAngles; a++) {
-				short[] data = m[CAMERA1][LEFT][a][0];
-				float mode = SphericalMaxProjection.getMode(data);
-				SphericalMaxProjection.add(data, (short)(refmode - mode));
+			for(int t = 0; t < nTimepoints; t++) {
+				if(missing[t][0][getInputIndex(0, CAMERA1, LEFT)])
+					continue;
+				float refmode = SphericalMaxProjection.getMode(m[t][0][getInputIndex(0, CAMERA1, LEFT)]);
+				for(int i = 0; i < nInputs; i++) {
+					if(missing[t][0][i])
+						continue;
+					short[] data = m[t][0][i];
+					float mode = SphericalMaxProjection.getMode(data);
+					SphericalMaxProjection.add(data, (short)(refmode - mode));
+				}
+			}
+		}
+
+		float[][] sum = buffers.sum;
+		float[][] weightSum = buffers.weightSum;
+		short[] sData = buffers.output;
+		for(int l = 0; l < nLayers; l++) {
+			for(int t = 0; t < nTimepoints; t++) {
+				Arrays.fill(sum[t], 0, nVertices, 0);
+				if(incomplete[t])
+					Arrays.fill(weightSum[t], 0, nVertices, 0);
+			}
+
+			// process the vertices in blocks, so that each block of
+			// weights is re-used for all timepoints while in the cache
+			for(int start = 0; start < nVertices; start += FUSE_BLOCK) {
+				int end = Math.min(nVertices, start + FUSE_BLOCK);
+				for(int i = 0; i < nInputs; i++) {
+					float[] w = fusionWeights[i];
+					for(int t = 0; t < nTimepoints; t++) {
+						if(missing[t][l][i])
+							continue;
+						short[] in = m[t][l][i];
+						float[] res = sum[t];
+						for(int v = start; v < end; v++)
+							res[v] += w[v] * (in[v] & 0xffff);
+						if(incomplete[t]) {
+							float[] ws = weightSum[t];
+							for(int v = start; v < end; v++)
+								ws[v] += w[v];
+						}
+					}
+				}
+			}
 
-				data = m[CAMERA1][RIGHT][a][0];
-				mode = SphericalMaxProjection.getMode(data);
-				SphericalMaxProjection.add(data, (short)(refmode - mode));
+			for(int t = 0; t < nTimepoints; t++) {
+				float[] res = sum[t];
+				if(incomplete[t]) {
+					float[] ws = weightSum[t];
+					for(int v = 0; v < nVertices; v++)
+						sData[v] = ws[v] == 0 ? 0 : (short)(res[v] / ws[v]);
+				} else {
+					for(int v = 0; v < nVertices; v++)
+						sData[v] = (short)res[v];
+				}
 
-				data = m[CAMERA2][LEFT][a][0];
-				mode = SphericalMaxProjection.getMode(data);
-				SphericalMaxProjection.add(data, (short)(refmode - mode));
+				File out = new File(outputdir, String.format("tp%04d_%02d.vertices", tps[t], l));
+				if(saveOutput)
+					SphericalMaxProjection.saveShortData(sData, out.getAbsolutePath());
+			}
+		}
+	}
 
-				data = m[CAMERA2][RIGHT][a][0];
-				mode = SphericalMaxProjection.getMode(data);
-				SphericalMaxProjection.add(data, (short)(refmode - mode));
+	/**
+	 * Provides the projected data, either from a VerticesContainer or,
+	 * if there is none, from the individual .vertices files.
+	 */
+	static abstract class InputFolder {
+
+		private final VerticesContainer[] containers = new VerticesContainer[2];
+
+		// quality of the stacks listed in the manifests, see
+		// TwoCameraSphericalMaxProjection.MANIFEST
+		private final Map<Long, Integer> degraded = new HashMap<Long, Integer>();
+		private boolean manifestsRead = false;
+
+		abstract File getFolder(int camera);
+
+		/**
+		 * Returns the container of the given camera, or null if
+		 * there is none.
+		 */
+		synchronized VerticesContainer getContainer(int camera) throws IOException {
+			if(containers[camera] == null) {
+				File f = VerticesContainer.getFile(getFolder(camera), camera);
+				if(f.exists())
+					containers[camera] = VerticesContainer.openForReading(f);
 			}
+			return containers[camera];
 		}
 
-		for(int l = 0; l < nLayers; l++) {
-			File out = new File(outputdir, String.format("tp%04d_%02d.vertices", tp, l));
-			Point3f[] vertices = smp.getSphere().getVertices();
-			float[] res = new float[vertices.length];
-			for(int v = 0; v < vertices.length; v++) {
-				Point3f vertex = vertices[v];
-				float sum = 0;
-				res[v] = 0;
-				for(int a = 0; a < nAngles; a++) {
-					Point3f xvtx = new Point3f(vertex);
-					if(transforms[a] != null)
-						transforms[a].transform(xvtx);
-					float w1 = weights[CAMERA1][LEFT ][a].getWeight(xvtx.x, xvtx.y, xvtx.z);
-					float w2 = weights[CAMERA1][RIGHT][a].getWeight(xvtx.x, xvtx.y, xvtx.z);
-					float w3 = weights[CAMERA2][LEFT ][a].getWeight(xvtx.x, xvtx.y, xvtx.z);
-					float w4 = weights[CAMERA2][RIGHT][a].getWeight(xvtx.x, xvtx.y, xvtx.z);
-					float m1 = (m[CAMERA1][LEFT ][a][l][v] & 0xffff);
-					float m2 = (m[CAMERA1][RIGHT][a][l][v] & 0xffff);
-					float m3 = (m[CAMERA2][LEFT ][a][l][v] & 0xffff);
-					float m4 = (m[CAMERA2][RIGHT][a][l][v] & 0xffff);
-					sum += w1 + w2 + w3 + w4;
-					res[v] += (w1 * m1 + w2 * m2 + w3 * m3 + w4 * m4);
+		/**
+		 * Reads the data of the specified stack into data; returns
+		 * false if it is not available (yet).
+		 */
+		boolean read(int tp, int aIndex, int angleInc, int camera, int ill, int layer, short[] data) throws IOException {
+			VerticesContainer c = getContainer(camera);
+			if(c != null && c.read(tp, aIndex, camera, ill, layer, data) != null)
+				return true;
+			File f = new File(getFolder(camera), TwoCameraSphericalMaxProjection.getFileName(tp, aIndex, angleInc, camera, ill, layer));
+			if(!f.exists())
+				return false;
+			SphericalMaxProjection.loadShortData(f.getAbsolutePath(), data);
+			return true;
+		}
+
+		/**
+		 * Returns true if the specified stack is completely written.
+		 */
+		boolean isAvailable(int tp, int aIndex, int angleInc, int camera, int ill, int layer, int nVertices) throws IOException {
+			VerticesContainer c = getContainer(camera);
+			if(c != null && c.contains(tp, aIndex, camera, ill, layer))
+				return true;
+			File f = new File(getFolder(camera), TwoCameraSphericalMaxProjection.getFileName(tp, aIndex, angleInc, camera, ill, layer));
+			return f.length() >= 2L * nVertices;
+		}
+
+		void refresh() throws IOException {
+			for(int cam = CAMERA1; cam <= CAMERA2; cam++) {
+				VerticesContainer c = getContainer(cam);
+				if(c != null)
+					c.refresh();
+			}
+			readManifests();
+		}
+
+		/**
+		 * Returns false if the specified layer was not projected, because
+		 * its stack was processed at reduced quality; such stacks are
+		 * listed in the manifest and have no data.
+		 */
+		synchronized boolean isProjected(int tp, int aIndex, int camera, int ill, int layer, int nLayers) throws IOException {
+			if(!manifestsRead)
+				readManifests();
+			Integer quality = degraded.get(getStackKey(tp, aIndex, camera, ill));
+			return quality == null || TwoCameraSphericalMaxProjection.isProjected(quality, nLayers, ill, layer);
+		}
+
+		private static long getStackKey(int tp, int aIndex, int camera, int ill) {
+			return ((long)tp << 32) | ((long)aIndex << 2) | (camera << 1) | ill;
+		}
+
+		synchronized void readManifests() throws IOException {
+			degraded.clear();
+			for(int cam = CAMERA1; cam <= CAMERA2; cam++) {
+				if(cam == CAMERA2 && getFolder(CAMERA2).equals(getFolder(CAMERA1)))
+					break;
+				File f = new File(getFolder(cam), TwoCameraSphericalMaxProjection.MANIFEST);
+				if(!f.exists())
+					continue;
+				BufferedReader in = new BufferedReader(new FileReader(f));
+				String line;
+				while((line = in.readLine()) != null) {
+					if(line.startsWith("#"))
+						continue;
+					// tp, angle index, angle, camera, illumination, quality, ...
+					String[] fields = line.split("\t");
+					try {
+						degraded.put(getStackKey(
+								Integer.parseInt(fields[0]),
+								Integer.parseInt(fields[1]),
+								Integer.parseInt(fields[3]),
+								Integer.parseInt(fields[4])),
+								Integer.parseInt(fields[5]));
+					} catch(RuntimeException e) {
+						// a line which is still being written
+					}
 				}
-				res[v] = sum == 0 ? 0 : res[v] / sum;
+				in.close();
 			}
-			short[] sData = new short[res.length];
-			for(int v = 0; v < res.length; v++)
-				sData[v] = (short)res[v];
+			manifestsRead = true;
+		}
 
-			if(saveOutput)
-				SphericalMaxProjection.saveShortData(sData, out.getAbsolutePath());
+		void load(int tp, int aIndex, int angleInc, int camera, int ill, int layer, short[] data) throws IOException {
+			if(!read(tp, aIndex, angleInc, camera, ill, layer, data))
+				throw new IOException("No data for timepoint " + tp + " in " + getFolder(camera));
 		}
-	}
 
-	static interface InputFolder {
-		File getFile(int camera, String filename);
+		/**
+		 * Returns all timepoints with data of camera 1.
+		 */
+		Set<Integer> getTimepoints() throws IOException {
+			Set<Integer> tps = new TreeSet<Integer>();
+			for(File f : getFolder(CAMERA1).listFiles()) {
+				String name = f.getName();
+				if(name.startsWith("tp") && name.endsWith(".vertices"))
+					tps.add(Integer.parseInt(name.substring(2, 6)));
+			}
+			VerticesContainer c = getContainer(CAMERA1);
+			if(c != null)
+				for(int tp : c.getTimepoints())
+					tps.add(tp);
+			return tps;
+		}
 	}
 
-	static class SingleInputFolder implements InputFolder {
+	static class SingleInputFolder extends InputFolder {
 
 		private final File folder;
 
@@ -417,12 +769,18 @@ public class TwoCameraFusion implements PlugIn {
 		}
 
 		@Override
-		public File getFile(int camera, String file) {
-			return new File(folder, file);
+		File getFolder(int camera) {
+			return folder;
 		}
 	}
 
-	static class DoubleInputFolder implements InputFolder {
+	/**
+	 * Separate input folders for the two cameras. Data which is still
+	 * being written is picked up by refresh(); use isComplete() or a
+	 * StreamingFusion to fuse a timepoint only when all of its data is
+	 * available.
+	 */
+	static class DoubleInputFolder extends InputFolder {
 
 		private final File cam1Folder, cam2Folder;
 
@@ -432,16 +790,8 @@ public class TwoCameraFusion implements PlugIn {
 		}
 
 		@Override
-		public File getFile(int camera, String file) {
-			File f = new File(camera == CAMERA1 ? cam1Folder : cam2Folder, file);
-			while(!f.exists()) {
-				try {
-					Thread.sleep(5000);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-			}
-			return f;
+		File getFolder(int camera) {
+			return camera == CAMERA1 ? cam1Folder : cam2Folder;
 		}
 	}
 }
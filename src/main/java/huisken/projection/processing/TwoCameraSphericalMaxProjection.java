@@ -7,9 +7,15 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.vecmath.Matrix4f;
 import javax.vecmath.Point3f;
+import javax.vecmath.Vector3f;
 
 /**
  * This class assumes we have two cameras and two angles
@@ -21,18 +27,90 @@ public class TwoCameraSphericalMaxProjection {
 	private final String outputdir;
 	private final int nAngles, angleInc;
 	private final int nPlanes;
+	private final int w;
+	private final double pw, ph, pd;
+	private final Matrix4f[] transforms;
 	private final int nLayers;
 	private final int camera;
 
-	private final SphericalMaxProjection[][] smp;
-	private final short[][][][] maxima;
+	// one per angle, for both illuminations, see initSphericalMaximumProjection()
+	private final SphericalMaxProjection[] smp;
+	// per illumination and layer; angles are processed one after the other
+	private final short[][][] maxima;
 
+	// Only used for multi-threaded projection, see setNumThreads()
+	private ExecutorService exec = null;
+	private int nThreads = 1;
+
+	// Projection timing of the current stack, in ns, per illumination,
+	// since the frames of both illuminations are interleaved
+	private final long[] stackProjectionTime = new long[2];
+	private final long[] maxPlaneProjectionTime = new long[2];
+	// illumination of the most recently finished stack
+	private int lastFinishedIll = LEFT;
+
+	// If not null, the maxima are appended to it instead of saved as files
+	private VerticesContainer container = null;
+
+	// If not null, the results are written in the background, see setAsyncWriting()
+	private AsyncVerticesWriter writer = null;
+
+	// If not null, process() expects compact frames, see cropToLUT()
+	private PlaneCrop[][] crops = null;
+
+	// If not null, additional statistics are calculated, see setStatistics()
+	private ProjectionStatistics[] statistics = null;
+
+	// If not null, the LUTs of the reduced qualities, see setAdaptiveQuality()
+	private ProjectionLUT[][] reducedLUTs = null;
+	private int quality = FULL_QUALITY;
+	private String qualityReason = null;
+	// the quality of the stack currently processed, per angle and illumination
+	private final int[][] stackQuality;
+	private final String[][] stackReason;
+	// per illumination, whether a stack was started but not finished
+	private final boolean[] stackOpen = new boolean[2];
+	private PrintWriter manifest = null;
+
+	// If not null, only the LUTs of the current and the next angle are in memory, see setLUTResidency()
+	private LUTResidency residency = null;
+	private File residencyDir = null;
+	private int residentAngle = -1;
+
+	private final List<StackListener> listeners = new CopyOnWriteArrayList<StackListener>();
+
+	// If not null, completed stacks are published, see setLiveProjection()
+	private LiveProjection live = null;
+
+	/**
+	 * Notified from process() after the maxima of a stack were saved,
+	 * or from the writer thread if the maxima are written in the
+	 * background.
+	 */
+	public static interface StackListener {
+		public void stackFinished(int tp, int aIndex, int camera, int ill);
+	}
 
 	public static final int LEFT  = 0;
 	public static final int RIGHT = 1;
 	public static final int CAMERA1 = 0;
 	public static final int CAMERA2 = 1;
 
+	/**
+	 * Quality levels, see setQuality(). Each level includes the
+	 * reductions of the previous ones.
+	 */
+	public static final int FULL_QUALITY  = 0;
+	/** Only the middle layer is projected. */
+	public static final int SINGLE_LAYER  = 1;
+	/** Only every other sample along each ray is projected. */
+	public static final int DECIMATED     = 2;
+	/** Only the left illumination is projected. */
+	public static final int SINGLE_SIDE   = 3;
+	public static final int LOWEST_QUALITY = SINGLE_SIDE;
+
+	public static final String MANIFEST = "degraded.txt";
+
 	/**
 	 *
 	 * @param outputdir Output directory.
@@ -58,6 +136,28 @@ public class TwoCameraSphericalMaxProjection {
 			double layerWidth,
 			int nLayers,
 			Matrix4f[] transforms) {
+		this(outputdir, camera, angleInc, nAngles, w, h, d, pw, ph, pd,
+				center, radius, layerWidth, nLayers, transforms, null);
+	}
+
+	/**
+	 * Like the constructor above, but keeps the lookup tables in lutDir
+	 * from the start, see setLUTResidency(): the lookup tables of each
+	 * angle are stored as soon as they are built, so that those of all
+	 * angles are never in memory at once.
+	 * @param lutDir Directory for the lookup tables, or null to keep all
+	 *               of them in memory.
+	 */
+	public TwoCameraSphericalMaxProjection(String outputdir,
+			int camera,
+			int angleInc, int nAngles,
+			int w, int h, int d,
+			double pw, double ph, double pd,
+			Point3f center, float radius,
+			double layerWidth,
+			int nLayers,
+			Matrix4f[] transforms,
+			File lutDir) {
 
 		if(!outputdir.endsWith(File.separator))
 			outputdir += File.separator;
@@ -66,8 +166,20 @@ public class TwoCameraSphericalMaxProjection {
 		this.angleInc = angleInc;
 		this.nAngles = nAngles;
 		this.nPlanes = d;
+		this.w = w;
+		this.pw = pw;
+		this.ph = ph;
+		this.pd = pd;
+		this.transforms = transforms;
 		this.camera = camera;
 		this.nLayers = nLayers;
+		this.stackQuality = new int[nAngles][2];
+		this.stackReason = new String[nAngles][2];
+		if(lutDir != null && nAngles > 1) {
+			residency = new LUTResidency(lutDir, nAngles);
+			residencyDir = lutDir;
+			residentAngle = 0;
+		}
 
 		try {
 			// initialize the maximum projections
@@ -77,7 +189,7 @@ public class TwoCameraSphericalMaxProjection {
 					w, h, d, pw, ph, pd,
 					layerWidth, nLayers,
 					transforms);
-			this.maxima = new short[nAngles][2][nLayers][smp[0][0].getSphere().nVertices];
+			this.maxima = new short[2][nLayers][smp[0].getSphere().nVertices];
 		} catch(Exception e) {
 			throw new RuntimeException("Cannot load transformations.", e);
 		}
@@ -85,7 +197,7 @@ public class TwoCameraSphericalMaxProjection {
 		// save the sphere geometry
 		String spherepath = new File(outputdir, "Sphere.obj").getAbsolutePath();
 		try {
-			smp[0][0].saveSphere(spherepath);
+			smp[0].saveSphere(spherepath);
 		} catch(Exception e) {
 			throw new RuntimeException("Cannot save sphere: " + spherepath, e);
 		}
@@ -99,34 +211,703 @@ public class TwoCameraSphericalMaxProjection {
 		return outputdir;
 	}
 
+	/**
+	 * Project each plane with the given number of threads. The lookup
+	 * tables are split into vertex-disjoint partitions, one per thread,
+	 * so that the threads can update the maxima without locking.
+	 * Must not be called while process() is running.
+	 * @param nThreads Number of threads; 1 projects on the calling thread.
+	 */
+	public void setNumThreads(int nThreads) {
+		if(nThreads < 1)
+			throw new IllegalArgumentException("Need at least one thread");
+		shutdown();
+		final int n = nThreads;
+		updateLUTs(new LUTUpdate() {
+			@Override
+			public void update(int a) {
+				smp[a].getLUT().partition(n);
+				if(reducedLUTs != null)
+					createReducedLUTs(a);
+			}
+		});
+		this.nThreads = nThreads;
+		if(nThreads > 1)
+			exec = Executors.newFixedThreadPool(nThreads - 1);
+	}
+
+	public int getNumThreads() {
+		return nThreads;
+	}
+
+	/**
+	 * Stops the projection threads, if any.
+	 */
+	public void shutdown() {
+		if(exec != null) {
+			exec.shutdown();
+			exec = null;
+		}
+	}
+
+	/**
+	 * Append the projected maxima to a VerticesContainer in the output
+	 * directory instead of writing one .vertices file per stack and layer.
+	 * If the container cannot be written, the acquisition continues with
+	 * individual files.
+	 */
+	public void setUseContainer(boolean useContainer) {
+		if(useContainer == (container != null))
+			return;
+		if(writer != null)
+			writer.flush();
+		try {
+			if(useContainer) {
+				File file = VerticesContainer.getFile(new File(outputdir), camera);
+				container = VerticesContainer.openForWriting(file, smp[0].getSphere().nVertices);
+			} else {
+				container.close();
+				container = null;
+			}
+		} catch(IOException e) {
+			throw new RuntimeException("Cannot open container in " + outputdir, e);
+		}
+	}
+
+	/*
+	 * Called if the container cannot be written: the current and all
+	 * later stacks are saved as individual files instead.
+	 */
+	private void containerFailed(IOException e) {
+		e.printStackTrace();
+		System.out.println("Cannot write to " + container.getFile() + ", saving individual files instead");
+		try {
+			container.close();
+		} catch(IOException ce) {
+			ce.printStackTrace();
+		}
+		container = null;
+	}
+
+	/**
+	 * Write the results of each stack in a background thread instead of
+	 * the thread calling process(). The maxima buffers are handed over
+	 * to the writer and replaced by empty ones, see AsyncVerticesWriter.
+	 * @param maxPending Maximum number of buffers waiting to be written,
+	 *                   after which process() blocks; 0 to write the
+	 *                   results synchronously again.
+	 */
+	public void setAsyncWriting(int maxPending, AsyncVerticesWriter.SyncPolicy policy) {
+		if(writer != null) {
+			writer.close();
+			writer = null;
+		}
+		if(maxPending > 0)
+			writer = new AsyncVerticesWriter(smp[0].getSphere().nVertices, maxPending, policy);
+	}
+
+	/**
+	 * Returns the background writer, or null, see setAsyncWriting().
+	 */
+	public AsyncVerticesWriter getWriter() {
+		return writer;
+	}
+
+	/**
+	 * Publishes the maxima (or the statistics' maxima) of each completed
+	 * stack to live, before they are saved; null to stop publishing.
+	 * Stacks are only copied and published while live has subscribers.
+	 */
+	public void setLiveProjection(LiveProjection live) {
+		this.live = live;
+	}
+
+	public LiveProjection getLiveProjection() {
+		return live;
+	}
+
+	/**
+	 * Returns a SphericalMaxProjection of the sphere onto which the
+	 * results are projected, without lookup tables, e.g. to display
+	 * the published stacks.
+	 */
+	public SphericalMaxProjection createSphericalMaxProjection() {
+		return new SphericalMaxProjection(smp[0].getSphere(), smp[0].getCenter(), smp[0].getRadius());
+	}
+
+	/**
+	 * Calculate additional statistics in the same pass as the maxima,
+	 * and save each of them to its own .vertices file next to the maxima,
+	 * see ProjectionStatistics.save().
+	 * @param modes Combination of ProjectionStatistics.MEAN, ARGMAX and
+	 *              TOPK, or 0 for only calculating the maxima. ARGMAX
+	 *              saves the distance of the maximum from the sphere
+	 *              center, in tenths of the calibrated unit.
+	 * @param k Number of values for TOPK.
+	 */
+	public void setStatistics(int modes, int k) {
+		modes &= ~ProjectionStatistics.MAX;
+		if(modes == 0) {
+			statistics = null;
+			return;
+		}
+		int nVertices = smp[0].getSphere().nVertices;
+		statistics = new ProjectionStatistics[2];
+		for(int ill = 0; ill < 2; ill++)
+			statistics[ill] = new ProjectionStatistics(
+					modes | ProjectionStatistics.MAX, nLayers, nVertices, k);
+	}
+
+	/*
+	 * Measures the depth of a maximum of angle aIndex as its distance
+	 * from the sphere center, in tenths of the calibrated unit.
+	 */
+	private ProjectionStatistics.DepthMeasure createDepthMeasure(int aIndex) {
+		final Point3f c = new Point3f(smp[aIndex].getCenter());
+		final PlaneCrop[] planeCrops = crops == null ? null : crops[aIndex];
+		return new ProjectionStatistics.DepthMeasure() {
+			@Override
+			public short getDepth(int z, int pixel) {
+				if(planeCrops != null)
+					pixel = planeCrops[z].toFull(pixel);
+				double dx = (pixel % w) * pw - c.x;
+				double dy = (pixel / w) * ph - c.y;
+				double dz = z * pd - c.z;
+				long depth = Math.round(10 * Math.sqrt(dx * dx + dy * dy + dz * dz));
+				return (short)Math.min(depth, 0xffff);
+			}
+		};
+	}
+
+	/**
+	 * Changes process() to expect compact frames which only contain the
+	 * pixels used by the projection, as created by
+	 * getCrop(aIndex, ill, z).gather(frame, compact). The crops contain
+	 * the pixels of both illuminations.
+	 */
+	public void cropToLUT() {
+		if(crops != null)
+			return;
+		final PlaneCrop[][] c = new PlaneCrop[nAngles][];
+		updateLUTs(new LUTUpdate() {
+			@Override
+			public void update(int a) {
+				c[a] = smp[a].cropToLUT(w);
+				if(reducedLUTs != null)
+					createReducedLUTs(a);
+			}
+		});
+		crops = c;
+	}
+
+	/**
+	 * Returns the crop of plane z, or null if cropToLUT() was not called.
+	 */
+	public PlaneCrop getCrop(int aIndex, int ill, int z) {
+		return crops == null ? null : crops[aIndex][z];
+	}
+
+	/**
+	 * Returns the maximum number of pixels of a compact frame.
+	 */
+	public int getMaxCropSize() {
+		int max = 0;
+		for(int a = 0; a < nAngles; a++)
+			for(PlaneCrop pc : crops[a])
+				max = Math.max(max, pc.getSize());
+		return max;
+	}
+
+	/**
+	 * Follows a drift of the sample without computing the lookup
+	 * tables again, see SphericalMaxProjection.retarget(). The shift is
+	 * rotated into the coordinates of each angle and rounded to whole
+	 * pixels. With setLUTResidency(), the lookup tables of one angle at
+	 * a time are loaded for this.
+	 *
+	 * This is for offline use only, between stacks, on the thread which
+	 * calls process(): after cropToLUT(), the crops change and may grow
+	 * beyond the previous getMaxCropSize(), so compact frames which were
+	 * gathered before, or into buffers of the previous size, cannot be
+	 * processed anymore. An acquisition with a fixed frame size must
+	 * not call this.
+	 * @throws IllegalStateException if a stack is being processed.
+	 * @param shift Translation of the sphere center in the coordinates
+	 *              of the first angle, in calibrated units.
+	 * @param newRadius The new radius of the sphere.
+	 */
+	public void retarget(final Vector3f shift, final float newRadius) {
+		if(stackOpen[LEFT] || stackOpen[RIGHT])
+			throw new IllegalStateException("Cannot retarget while a stack is being processed");
+		final PlaneCrop[][] c = crops == null ? null : new PlaneCrop[nAngles][];
+		updateLUTs(new LUTUpdate() {
+			@Override
+			public void update(int a) {
+				Vector3f t = new Vector3f(shift);
+				if(a > 0)
+					transforms[a].transform(t);
+				int sx = (int)Math.round(t.x / pw);
+				int sy = (int)Math.round(t.y / ph);
+				int sz = (int)Math.round(t.z / pd);
+				smp[a] = smp[a].retarget(sx, sy, sz, newRadius);
+				if(c != null)
+					c[a] = smp[a].cropToLUT(w);
+				if(reducedLUTs != null)
+					createReducedLUTs(a);
+			}
+		});
+		if(c != null)
+			crops = c;
+	}
+
+	/**
+	 * Keeps the lookup tables of all angles in files in dir, and only
+	 * those of the angle being processed and of the next one in memory,
+	 * see LUTResidency. The lookup tables of the next angle are loaded
+	 * in the background when process() starts a new angle.
+	 * setNumThreads(), cropToLUT() and setAdaptiveQuality() then change
+	 * the lookup tables of one angle at a time. To avoid building the
+	 * lookup tables of all angles in memory in the first place, pass
+	 * dir to the constructor instead.
+	 * @param dir Directory for the lookup tables, or null to keep all
+	 *            of them in memory again.
+	 */
+	public void setLUTResidency(File dir) {
+		if(dir != null && dir.equals(residencyDir))
+			return;
+		suspendLUTResidency();
+		if(dir == null || nAngles < 2)
+			return;
+		residency = new LUTResidency(dir, nAngles);
+		residencyDir = dir;
+		residentAngle = 0;
+		for(int a = 0; a < nAngles; a++) {
+			storeLUTs(a);
+			if(a != residentAngle)
+				setLUTs(a, null);
+		}
+		residency.prefetch(1);
+	}
+
+	/*
+	 * Loads the lookup tables of all angles and stops keeping them in
+	 * files.
+	 */
+	private void suspendLUTResidency() {
+		if(residency == null)
+			return;
+		for(int a = 0; a < nAngles; a++)
+			if(a != residentAngle)
+				setLUTs(a, residency.get(a));
+		residency.close();
+		residency = null;
+		residentAngle = -1;
+		residencyDir = null;
+	}
+
+	private static interface LUTUpdate {
+		public void update(int a);
+	}
+
+	/*
+	 * Calls update for each angle. With setLUTResidency(), the lookup
+	 * tables of one angle at a time are loaded, updated, stored and
+	 * dropped again, so that they never need to be in memory at once.
+	 */
+	private void updateLUTs(LUTUpdate update) {
+		for(int a = 0; a < nAngles; a++) {
+			boolean load = residency != null && a != residentAngle;
+			if(load)
+				setLUTs(a, residency.get(a));
+			update.update(a);
+			if(residency != null)
+				storeLUTs(a);
+			if(load)
+				setLUTs(a, null);
+		}
+		if(residency != null)
+			residency.prefetch((residentAngle + 1) % nAngles);
+	}
+
+	private void storeLUTs(int a) {
+		try {
+			residency.store(a, getLUTs(a));
+		} catch(IOException e) {
+			throw new RuntimeException("Cannot write LUTs to " + residencyDir, e);
+		}
+	}
+
+	/*
+	 * The lookup tables of angle a, indexed by quality, where only the
+	 * full quality exists without setAdaptiveQuality().
+	 */
+	private ProjectionLUT[] getLUTs(int a) {
+		return reducedLUTs != null ?
+				reducedLUTs[a].clone() :
+				new ProjectionLUT[] { smp[a].getLUT() };
+	}
+
+	/*
+	 * Installs the lookup tables of angle a, or drops them if luts is null.
+	 */
+	private void setLUTs(int a, ProjectionLUT[] luts) {
+		smp[a].setLUT(luts == null ? null : luts[FULL_QUALITY]);
+		if(reducedLUTs != null)
+			reducedLUTs[a] = luts;
+	}
+
+	/*
+	 * Makes the lookup tables of angle a resident, drops those of the
+	 * previous angle and starts loading those of the next one.
+	 */
+	private void activateAngle(int a) {
+		if(residency == null || residentAngle == a)
+			return;
+		setLUTs(a, residency.get(a));
+		setLUTs(residentAngle, null);
+		residentAngle = a;
+		residency.prefetch((a + 1) % nAngles);
+	}
+
+	/**
+	 * Prepares the lookup tables for projecting at reduced quality, so
+	 * that setQuality() can be used to keep up with the acquisition when
+	 * the projection falls behind. Stacks processed at reduced quality
+	 * are listed in the file MANIFEST in the output directory.
+	 */
+	public void setAdaptiveQuality(boolean adaptive) {
+		if(adaptive == (reducedLUTs != null))
+			return;
+		if(adaptive) {
+			long start = System.currentTimeMillis();
+			reducedLUTs = new ProjectionLUT[nAngles][];
+			updateLUTs(new LUTUpdate() {
+				@Override
+				public void update(int a) {
+					createReducedLUTs(a);
+				}
+			});
+			long end = System.currentTimeMillis();
+			System.out.println("Prepared reduced LUTs in " + (end - start) + " ms");
+		} else {
+			updateLUTs(new LUTUpdate() {
+				@Override
+				public void update(int a) {
+					if(reducedLUTs[a] != null)
+						reducedLUTs[a] = new ProjectionLUT[] { smp[a].getLUT() };
+				}
+			});
+			reducedLUTs = null;
+			quality = FULL_QUALITY;
+		}
+	}
+
+	private void createReducedLUTs(int a) {
+		SphericalMaxProjection s = smp[a];
+		ProjectionLUT[] r = new ProjectionLUT[DECIMATED + 1];
+		r[FULL_QUALITY] = s.getLUT();
+		// with a single layer, SINGLE_LAYER is the full quality
+		r[SINGLE_LAYER] = nLayers > 1 ? s.createReducedLUT(nLayers / 2, false) : null;
+		r[DECIMATED] = s.createReducedLUT(nLayers > 1 ? nLayers / 2 : -1, true);
+		reducedLUTs[a] = r;
+		if(a == 0)
+			System.out.println("Reduced LUTs: " + r[DECIMATED].size() + " of " +
+					r[FULL_QUALITY].size() + " entries at the lowest quality");
+	}
+
+	/**
+	 * Sets the quality at which the following stacks are projected,
+	 * one of FULL_QUALITY to LOWEST_QUALITY. The quality of a stack is
+	 * fixed when its first plane is processed. Needs
+	 * setAdaptiveQuality(true).
+	 * @param reason Why the quality is reduced, for the manifest.
+	 */
+	public void setQuality(int quality, String reason) {
+		if(quality < FULL_QUALITY || quality > LOWEST_QUALITY)
+			throw new IllegalArgumentException("Invalid quality: " + quality);
+		if(quality != FULL_QUALITY && reducedLUTs == null)
+			throw new IllegalStateException("setAdaptiveQuality(true) was not called");
+		this.quality = quality;
+		this.qualityReason = reason;
+	}
+
+	public int getQuality() {
+		return quality;
+	}
+
+	/**
+	 * Describes what is projected at the given quality.
+	 */
+	public String getQualityDescription(int quality, int ill) {
+		if(quality == FULL_QUALITY)
+			return "full quality";
+		if(quality >= SINGLE_SIDE && ill != LEFT)
+			return "not projected";
+		String desc = nLayers > 1 ? "layer " + (nLayers / 2) + " of " + nLayers : "all layers";
+		if(quality >= DECIMATED)
+			desc += ", every other sample";
+		return desc;
+	}
+
+	/**
+	 * Whether the given layer of a stack of the given illumination is
+	 * projected at the given quality; the outputs of layers which are
+	 * not projected are not written, but listed in the MANIFEST.
+	 */
+	public static boolean isProjected(int quality, int nLayers, int ill, int layer) {
+		if(quality >= SINGLE_SIDE && ill != LEFT)
+			return false;
+		if(quality >= SINGLE_LAYER && nLayers > 1 && layer != nLayers / 2)
+			return false;
+		return true;
+	}
+
+	/*
+	 * Appends a line to the manifest for a stack which was processed
+	 * at reduced quality.
+	 */
+	private void recordDegradedStack(int tp, int aIndex, int ill) {
+		try {
+			if(manifest == null) {
+				File file = new File(outputdir, MANIFEST);
+				boolean exists = file.exists();
+				manifest = new PrintWriter(new FileWriter(file, true));
+				if(!exists)
+					manifest.println("# tp\tangle index\tangle\tcamera\tillumination\tquality\tprojected\treason");
+			}
+			int q = stackQuality[aIndex][ill];
+			manifest.println(tp + "\t" + aIndex + "\t" + getAngle(aIndex, angleInc, camera, ill) + "\t" +
+					camera + "\t" + ill + "\t" + q + "\t" + getQualityDescription(q, ill) + "\t" +
+					(stackReason[aIndex][ill] == null ? "" : stackReason[aIndex][ill]));
+			manifest.flush();
+		} catch(IOException e) {
+			throw new RuntimeException("Cannot write " + new File(outputdir, MANIFEST), e);
+		}
+	}
+
+	public void addStackListener(StackListener l) {
+		listeners.add(l);
+	}
+
+	public void removeStackListener(StackListener l) {
+		listeners.remove(l);
+	}
+
+	/**
+	 * Stops the projection threads and closes the container, if any.
+	 */
+	public void close() {
+		shutdown();
+		if(writer != null) {
+			writer.close();
+			writer = null;
+		}
+		setUseContainer(false);
+		if(residency != null) {
+			residency.close();
+			residency = null;
+		}
+		if(manifest != null) {
+			manifest.close();
+			manifest = null;
+		}
+	}
+
 	/**
 	 * Process the next image, given in form of a short[] array
-	 * @param ip image as short[] array.
+	 * @param ip image as short[] array; a compact frame if cropToLUT()
+	 *           was called.
 	 */
 	public void process(short[] ip, int tp, int aIndex, int z, int ill) {
 
 		// Start of stack
-		if(z == 0)
-			for(int s = 0; s < nLayers; s++)
-				smp[aIndex][ill].resetMaxima(maxima[aIndex][ill][s]);
+		ProjectionStatistics stats = statistics == null ? null : statistics[ill];
+		if(z == 0) {
+			activateAngle(aIndex);
+			if(stats != null) {
+				stats.reset();
+				if(stats.has(ProjectionStatistics.ARGMAX))
+					stats.setDepthMeasure(createDepthMeasure(aIndex));
+			} else
+				for(int s = 0; s < nLayers; s++)
+					smp[aIndex].resetMaxima(maxima[ill][s]);
+			stackProjectionTime[ill] = 0;
+			maxPlaneProjectionTime[ill] = 0;
+			int q = reducedLUTs == null ? FULL_QUALITY : quality;
+			// with a single layer, SINGLE_LAYER projects everything
+			if(q == SINGLE_LAYER && nLayers == 1)
+				q = FULL_QUALITY;
+			stackQuality[aIndex][ill] = q;
+			stackReason[aIndex][ill] = qualityReason;
+			stackOpen[ill] = true;
+		}
 
-		// do the projection
-		smp[aIndex][ill].projectPlaneMultilayer(z, ip, maxima[aIndex][ill]);
+		// do the projection; at SINGLE_SIDE, the right illumination is
+		// skipped and its reset maxima are saved
+		int q = stackQuality[aIndex][ill];
+		if(q < SINGLE_SIDE || ill == LEFT) {
+			ProjectionLUT lut = q == FULL_QUALITY ?
+					smp[aIndex].getLUT() :
+					reducedLUTs[aIndex][Math.min(q, DECIMATED)];
+			long start = System.nanoTime();
+			if(stats != null && exec == null)
+				lut.projectPlane(z, ip, stats, 0, ill);
+			else if(stats != null)
+				projectParallel(lut, z, ip, ill, stats);
+			else if(exec == null)
+				lut.projectPlane(z, ip, maxima[ill], 0, ill);
+			else
+				projectParallel(lut, z, ip, ill, maxima[ill]);
+			long time = System.nanoTime() - start;
+			stackProjectionTime[ill] += time;
+			maxPlaneProjectionTime[ill] = Math.max(maxPlaneProjectionTime[ill], time);
+		}
 
 		// Not end of stack: nothing else to do
 		if(z < nPlanes - 1)
 			return;
+		stackOpen[ill] = false;
+		lastFinishedIll = ill;
+
+		System.out.println(String.format("Projection (%d threads, ill %d): mean %.2f ms/plane, max %.2f ms/plane%s",
+				nThreads, ill,
+				stackProjectionTime[ill] / 1e6 / nPlanes,
+				maxPlaneProjectionTime[ill] / 1e6,
+				q == FULL_QUALITY ? "" : " (" + getQualityDescription(q, ill) + ")"));
+		if(q != FULL_QUALITY)
+			recordDegradedStack(tp, aIndex, ill);
+
+		// publish a copy before the maxima are handed to the writer,
+		// unless nobody is watching; nothing to show for an illumination
+		// which was not projected, and layers which were not projected
+		// are empty
+		if(live != null && live.hasSubscribers() && isProjected(q, nLayers, ill, nLayers / 2)) {
+			short[][] m = new short[nLayers][];
+			for(int l = 0; l < nLayers; l++)
+				m[l] = stats != null ? stats.getMaxima(l) : maxima[ill][l];
+			live.publish(tp, aIndex, camera, ill, m);
+		}
 
-		// save the result
+		// save the result; layers which were not projected are only
+		// listed in the manifest
 		for(int l = 0; l < nLayers; l++) {
+			if(!isProjected(q, nLayers, ill, l))
+				continue;
+			short[] m = stats != null ? stats.getMaxima(l) : maxima[ill][l];
 			String filename = getFileName(tp, aIndex, angleInc, camera, ill, l);
 			String vpath = new File(outputdir, filename).getAbsolutePath();
-			try {
-				smp[aIndex][ill].saveMaxima(vpath, maxima[aIndex][ill][l]);
-			} catch(Exception e) {
-				throw new RuntimeException("Cannot save " + vpath);
+			if(writer != null) {
+				// the statistics keep their buffers
+				if(container != null && stats != null)
+					writer.writeCopy(container, vpath, tp, aIndex, camera, ill, l, m);
+				else if(container != null)
+					maxima[ill][l] = writer.write(container, vpath, tp, aIndex, camera, ill, l, m);
+				else if(stats != null)
+					writer.writeCopy(vpath, m);
+				else
+					maxima[ill][l] = writer.write(vpath, m);
+			} else {
+				if(container != null) {
+					try {
+						container.write(tp, aIndex, camera, ill, l, m);
+					} catch(IOException e) {
+						containerFailed(e);
+					}
+				}
+				if(container == null) {
+					try {
+						smp[aIndex].saveMaxima(vpath, m);
+					} catch(Exception e) {
+						throw new RuntimeException("Cannot save " + vpath);
+					}
+				}
+			}
+			if(stats != null) {
+				try {
+					stats.save(l, vpath, false, writer);
+				} catch(Exception e) {
+					throw new RuntimeException("Cannot save statistics for " + vpath, e);
+				}
 			}
 		}
+
+		if(writer != null) {
+			final int ftp = tp, fa = aIndex, fill = ill;
+			writer.run(new Runnable() {
+				@Override
+				public void run() {
+					for(StackListener l : listeners)
+						l.stackFinished(ftp, fa, camera, fill);
+				}
+			});
+		} else {
+			for(StackListener l : listeners)
+				l.stackFinished(tp, aIndex, camera, ill);
+		}
+	}
+
+	/**
+	 * Projects partition 0 on the calling thread and all other
+	 * partitions in the thread pool.
+	 */
+	private void projectParallel(final ProjectionLUT lut, final int z, final short[] ip, final int ill, final short[][] m) {
+		Future<?>[] futures = new Future<?>[nThreads - 1];
+		for(int p = 1; p < nThreads; p++) {
+			final int partition = p;
+			futures[p - 1] = exec.submit(new Runnable() {
+				@Override
+				public void run() {
+					lut.projectPlane(z, ip, m, partition, ill);
+				}
+			});
+		}
+		lut.projectPlane(z, ip, m, 0, ill);
+		try {
+			for(Future<?> f : futures)
+				f.get();
+		} catch(Exception e) {
+			throw new RuntimeException("Cannot project plane " + z, e);
+		}
+	}
+
+	/**
+	 * Like projectParallel(ProjectionLUT, int, short[], int, short[][]),
+	 * for accumulating statistics.
+	 */
+	private void projectParallel(final ProjectionLUT lut, final int z, final short[] ip, final int ill, final ProjectionAccumulator acc) {
+		Future<?>[] futures = new Future<?>[nThreads - 1];
+		for(int p = 1; p < nThreads; p++) {
+			final int partition = p;
+			futures[p - 1] = exec.submit(new Runnable() {
+				@Override
+				public void run() {
+					lut.projectPlane(z, ip, acc, partition, ill);
+				}
+			});
+		}
+		lut.projectPlane(z, ip, acc, 0, ill);
+		try {
+			for(Future<?> f : futures)
+				f.get();
+		} catch(Exception e) {
+			throw new RuntimeException("Cannot project plane " + z, e);
+		}
+	}
+
+	/**
+	 * Returns the mean projection time per plane of the most recently
+	 * finished stack, in milliseconds.
+	 */
+	public double getMeanPlaneProjectionTime() {
+		return stackProjectionTime[lastFinishedIll] / 1e6 / nPlanes;
+	}
+
+	/**
+	 * Returns the maximum projection time per plane of the most recently
+	 * finished stack, in milliseconds.
+	 */
+	public double getMaxPlaneProjectionTime() {
+		return maxPlaneProjectionTime[lastFinishedIll] / 1e6;
 	}
 
 	public static String getFileName(int tp, int aIndex, int angleInc, int camera, int ill, int layer) {
@@ -158,7 +939,7 @@ public class TwoCameraSphericalMaxProjection {
 	 * called twice with 2 transforms:
 	 * 	- [I], [a1->a0]
 	 */
-	private SphericalMaxProjection[][] initSphericalMaximumProjection(
+	private SphericalMaxProjection[] initSphericalMaximumProjection(
 			Point3f center, float radius,
 			int camera,
 			int w, int h, int d,
@@ -171,13 +952,15 @@ public class TwoCameraSphericalMaxProjection {
 
 		IndexedTriangleMesh sphere = createSphere(center, radius, subd);
 
-		SphericalMaxProjection[][] smp = new SphericalMaxProjection[nAngles][2];
+		SphericalMaxProjection[] smp = new SphericalMaxProjection[nAngles];
 		int aperture = 90 / nAngles;
 		int angle = camera == CAMERA1 ? 135 : 45;
 
 		if(nAngles > 1)
 			writeTransformations(new File(outputdir, "transformations").getAbsolutePath(), transforms);
 
+		File lutCache = new File(outputdir, "lutcache");
+		long start = System.currentTimeMillis();
 		for(int a = 0; a < nAngles; a++) {
 			Matrix4f transform = null;
 			if(a > 0)
@@ -186,15 +969,24 @@ public class TwoCameraSphericalMaxProjection {
 			if(a > 0)
 				transform.transform(cen);
 
-			// left illumination
-			smp[a][LEFT] = new SphericalMaxProjection(sphere, center, radius, transform);
-			smp[a][LEFT].prepareForProjectionNew(w, h, d, pw, ph, pd, layerWidth, nLayers, new AngleWeighter2(AngleWeighter2.X_AXIS, angle, aperture, cen));
-
-			// right illumination
-			smp[a][RIGHT] = new SphericalMaxProjection(sphere, center, radius, transform);
-			smp[a][RIGHT].prepareForProjectionNew(w, h, d, pw, ph, pd, layerWidth, nLayers, new AngleWeighter2(AngleWeighter2.X_AXIS, -angle, aperture, cen));
-
+			// one LUT for the left and the right illumination
+			FusionWeight[] weighters = new FusionWeight[2];
+			weighters[LEFT]  = new AngleWeighter2(AngleWeighter2.X_AXIS, angle, aperture, cen);
+			weighters[RIGHT] = new AngleWeighter2(AngleWeighter2.X_AXIS, -angle, aperture, cen);
+			smp[a] = new SphericalMaxProjection(sphere, center, radius, transform);
+			smp[a].prepareForProjectionNew(w, h, d, pw, ph, pd, layerWidth, nLayers, weighters, lutCache);
+			if(residency != null) {
+				residency.store(a, new ProjectionLUT[] { smp[a].getLUT() });
+				if(a != residentAngle)
+					smp[a].setLUT(null);
+			}
 		}
+		if(residency != null)
+			residency.prefetch(1);
+		long end = System.currentTimeMillis();
+		Runtime rt = Runtime.getRuntime();
+		System.out.println("Prepared " + nAngles + " LUTs in " + (end - start) + " ms, heap " +
+				((rt.totalMemory() - rt.freeMemory()) >> 20) + " MB used, " + (rt.maxMemory() >> 20) + " MB max");
 		return smp;
 	}
 
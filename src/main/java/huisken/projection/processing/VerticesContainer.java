@@ -0,0 +1,401 @@
+package huisken.projection.processing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Append-only container for the projected data of one camera, which
+ * replaces the individual tpXXXX_aXXXX_lXX.vertices files.
+ *
+ * The file starts with a header (magic, version, #vertices). Each
+ * frame follows as a chunk with a 28 byte header (magic, timepoint,
+ * angle index, camera, illumination, layer, codec, #values, compressed
+ * length, CRC32 of the uncompressed data) and the compressed data.
+ * Frames are delta-coded along the vertex index, split into high and
+ * low byte planes and deflated.
+ *
+ * The offset index is re-built by scanning the chunk headers when the
+ * container is opened; an incomplete chunk at the end, e.g. after a
+ * crash, is ignored and overwritten by the next write.
+ */
+public class VerticesContainer {
+
+	public static final int CODEC_RAW = 0;
+	public static final int CODEC_DELTA_DEFLATE = 1;
+
+	private static final int MAGIC = 0x56434f4e; // "VCON"
+	private static final int CHUNK_MAGIC = 0x43484e4b; // "CHNK"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 12;
+	private static final int CHUNK_HEADER_SIZE = 28;
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final boolean writable;
+	private final int nVertices;
+
+	// key -> { offset of the chunk header, compressed length, codec }
+	private final HashMap<Long, long[]> index = new HashMap<Long, long[]>();
+	private final TreeSet<Integer> timepoints = new TreeSet<Integer>();
+	// end of the last complete chunk
+	private long end;
+
+	private final Deflater deflater;
+
+	/**
+	 * Returns the container file for the given camera in dir.
+	 */
+	public static File getFile(File dir, int camera) {
+		return new File(dir, String.format("maxima_camera%d.container", camera + 1));
+	}
+
+	/**
+	 * Opens an existing container or creates a new one.
+	 */
+	public static VerticesContainer openForWriting(File file, int nVertices) throws IOException {
+		return new VerticesContainer(file, nVertices, true);
+	}
+
+	public static VerticesContainer openForReading(File file) throws IOException {
+		return new VerticesContainer(file, -1, false);
+	}
+
+	private VerticesContainer(File file, int nVertices, boolean writable) throws IOException {
+		this.file = file;
+		this.writable = writable;
+		this.raf = new RandomAccessFile(file, writable ? "rw" : "r");
+		this.channel = raf.getChannel();
+		try {
+			if(channel.size() == 0 && writable) {
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				header.putInt(MAGIC).putInt(VERSION).putInt(nVertices);
+				header.flip();
+				writeFully(header, 0);
+			}
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			readFully(header, 0);
+			header.flip();
+			if(header.getInt() != MAGIC)
+				throw new IOException(file + " is not a container file");
+			int version = header.getInt();
+			if(version != VERSION)
+				throw new IOException(file + ": unsupported container version " + version);
+			this.nVertices = header.getInt();
+			if(writable && nVertices != this.nVertices)
+				throw new IOException(file + " contains " + this.nVertices + " instead of " + nVertices + " vertices");
+			this.end = HEADER_SIZE;
+			refresh();
+		} catch(IOException e) {
+			raf.close();
+			throw e;
+		}
+		this.deflater = writable ? new Deflater(Deflater.BEST_SPEED) : null;
+		// LZ matching gains little on delta-coded byte planes
+		if(deflater != null)
+			deflater.setStrategy(Deflater.HUFFMAN_ONLY);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public int getNVertices() {
+		return nVertices;
+	}
+
+	/**
+	 * Reads the headers of chunks appended since the last call, e.g.
+	 * by another process that is still writing.
+	 */
+	public synchronized void refresh() throws IOException {
+		long size = channel.size();
+		ByteBuffer header = ByteBuffer.allocate(CHUNK_HEADER_SIZE);
+		while(end + CHUNK_HEADER_SIZE <= size) {
+			header.clear();
+			readFully(header, end);
+			header.flip();
+			if(header.getInt() != CHUNK_MAGIC)
+				break;
+			int tp = header.getInt();
+			int aIndex = header.getShort();
+			int camera = header.get();
+			int ill = header.get();
+			int layer = header.getShort();
+			int codec = header.get();
+			header.get();
+			header.getInt(); // number of values
+			int length = header.getInt();
+			long next = end + CHUNK_HEADER_SIZE + length;
+			if(length < 0 || next > size)
+				break;
+			index.put(createKey(tp, aIndex, camera, ill, layer), new long[] { end, length, codec });
+			timepoints.add(tp);
+			end = next;
+		}
+	}
+
+	private static long createKey(int tp, int aIndex, int camera, int ill, int layer) {
+		return ((long)tp << 32) | ((long)(aIndex & 0xffff) << 16) | ((camera & 0xf) << 12) | ((ill & 0xf) << 8) | (layer & 0xff);
+	}
+
+	public synchronized boolean contains(int tp, int aIndex, int camera, int ill, int layer) {
+		return index.containsKey(createKey(tp, aIndex, camera, ill, layer));
+	}
+
+	/**
+	 * Returns the sorted timepoints with at least one frame.
+	 */
+	public synchronized int[] getTimepoints() {
+		int[] ret = new int[timepoints.size()];
+		int i = 0;
+		for(int tp : timepoints)
+			ret[i++] = tp;
+		return ret;
+	}
+
+	public synchronized int size() {
+		return index.size();
+	}
+
+	/**
+	 * Appends a frame. If the same frame is written twice, the later
+	 * one replaces the earlier one in the index.
+	 */
+	public synchronized void write(int tp, int aIndex, int camera, int ill, int layer, short[] data) throws IOException {
+		if(!writable)
+			throw new IOException(file + " is opened for reading");
+		if(data.length != nVertices)
+			throw new IllegalArgumentException("Expected " + nVertices + " values, got " + data.length);
+		if(layer > 0xff || camera > 0xf || ill > 0xf || aIndex > 0xffff)
+			throw new IllegalArgumentException("Index out of range");
+
+		byte[] raw = encode(data);
+		CRC32 crc = new CRC32();
+		crc.update(raw);
+
+		deflater.reset();
+		deflater.setInput(raw);
+		deflater.finish();
+		byte[] compressed = new byte[raw.length + 64];
+		int length = 0;
+		while(!deflater.finished() && length < compressed.length)
+			length += deflater.deflate(compressed, length, compressed.length - length);
+
+		int codec = CODEC_DELTA_DEFLATE;
+		if(!deflater.finished() || length >= raw.length) {
+			codec = CODEC_RAW;
+			compressed = raw;
+			length = raw.length;
+		}
+
+		ByteBuffer buf = ByteBuffer.allocate(CHUNK_HEADER_SIZE + length);
+		buf.putInt(CHUNK_MAGIC).putInt(tp)
+			.putShort((short)aIndex).put((byte)camera).put((byte)ill)
+			.putShort((short)layer).put((byte)codec).put((byte)0)
+			.putInt(data.length).putInt(length).putInt((int)crc.getValue());
+		buf.put(compressed, 0, length);
+		buf.flip();
+		writeFully(buf, end);
+
+		index.put(createKey(tp, aIndex, camera, ill, layer), new long[] { end, length, codec });
+		timepoints.add(tp);
+		end += CHUNK_HEADER_SIZE + length;
+	}
+
+	/**
+	 * Reads a frame into data, which may be null. Returns null if the
+	 * frame is not contained. May be called concurrently.
+	 */
+	public short[] read(int tp, int aIndex, int camera, int ill, int layer, short[] data) throws IOException {
+		long[] entry;
+		synchronized(this) {
+			entry = index.get(createKey(tp, aIndex, camera, ill, layer));
+		}
+		if(entry == null)
+			return null;
+		if(data == null)
+			data = new short[nVertices];
+		else if(data.length != nVertices)
+			throw new IllegalArgumentException("Expected an array of length " + nVertices);
+
+		long offset = entry[0];
+		int length = (int)entry[1];
+		int codec = (int)entry[2];
+
+		ByteBuffer buf = ByteBuffer.allocate(CHUNK_HEADER_SIZE + length);
+		readFully(buf, offset);
+		buf.flip();
+		buf.position(CHUNK_HEADER_SIZE - 4);
+		int crcValue = buf.getInt();
+
+		byte[] raw;
+		if(codec == CODEC_RAW) {
+			raw = new byte[length];
+			buf.get(raw);
+		} else if(codec == CODEC_DELTA_DEFLATE) {
+			raw = new byte[2 * nVertices];
+			Inflater inflater = new Inflater();
+			try {
+				inflater.setInput(buf.array(), CHUNK_HEADER_SIZE, length);
+				int n = 0;
+				while(n < raw.length && !inflater.finished()) {
+					int r = inflater.inflate(raw, n, raw.length - n);
+					if(r == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+						break;
+					n += r;
+				}
+				if(n != raw.length)
+					throw new IOException(file + ": incomplete frame at " + offset);
+			} catch(DataFormatException e) {
+				throw new IOException(file + ": corrupt frame at " + offset, e);
+			} finally {
+				inflater.end();
+			}
+		} else {
+			throw new IOException(file + ": unknown codec " + codec);
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(raw);
+		if((int)crc.getValue() != crcValue)
+			throw new IOException(file + ": checksum mismatch at " + offset);
+
+		decode(raw, data);
+		return data;
+	}
+
+	/*
+	 * Delta coding along the vertex index, high bytes first,
+	 * then low bytes.
+	 */
+	private static byte[] encode(short[] data) {
+		int n = data.length;
+		byte[] raw = new byte[2 * n];
+		short prev = 0;
+		for(int i = 0; i < n; i++) {
+			short d = (short)(data[i] - prev);
+			prev = data[i];
+			raw[i] = (byte)(d >> 8);
+			raw[n + i] = (byte)d;
+		}
+		return raw;
+	}
+
+	private static void decode(byte[] raw, short[] data) {
+		int n = data.length;
+		short prev = 0;
+		for(int i = 0; i < n; i++) {
+			short d = (short)((raw[i] << 8) | (raw[n + i] & 0xff));
+			prev = (short)(prev + d);
+			data[i] = prev;
+		}
+	}
+
+	private void readFully(ByteBuffer buf, long position) throws IOException {
+		while(buf.hasRemaining()) {
+			int r = channel.read(buf, position);
+			if(r < 0)
+				throw new IOException(file + ": unexpected end of file");
+			position += r;
+		}
+	}
+
+	private void writeFully(ByteBuffer buf, long position) throws IOException {
+		while(buf.hasRemaining())
+			position += channel.write(buf, position);
+	}
+
+	/**
+	 * Waits until all written frames are on the storage device.
+	 */
+	public synchronized void sync() throws IOException {
+		channel.force(true);
+	}
+
+	public synchronized void close() throws IOException {
+		if(deflater != null)
+			deflater.end();
+		if(writable)
+			channel.truncate(end);
+		raf.close();
+	}
+
+	/**
+	 * Copies all tpXXXX_aXXXX_lXX.vertices files in dir into the
+	 * containers of both cameras. The camera, illumination and angle
+	 * index of each file are derived from the angle in its name, see
+	 * TwoCameraSphericalMaxProjection.getAngle(). Returns the number
+	 * of converted files.
+	 */
+	public static int convert(File dir, int nAngles, int angleInc, int nVertices, boolean deleteFiles) throws IOException {
+		String[] files = dir.list();
+		if(files == null)
+			throw new IOException("Cannot list " + dir);
+		Arrays.sort(files);
+
+		VerticesContainer[] containers = new VerticesContainer[2];
+		short[] data = new short[nVertices];
+		int nConverted = 0;
+		try {
+			for(String name : files) {
+				if(!name.matches("tp\\d{4}_a\\d{4}_l\\d{2}\\.vertices"))
+					continue;
+				int tp = Integer.parseInt(name.substring(2, 6));
+				int angle = Integer.parseInt(name.substring(8, 12));
+				int layer = Integer.parseInt(name.substring(14, 16));
+
+				int[] key = findAngle(angle, nAngles, angleInc);
+				if(key == null) {
+					System.out.println("Cannot assign " + name + " to a camera and illumination");
+					continue;
+				}
+				int camera = key[0], ill = key[1], aIndex = key[2];
+
+				if(containers[camera] == null)
+					containers[camera] = openForWriting(getFile(dir, camera), nVertices);
+				File f = new File(dir, name);
+				SphericalMaxProjection.loadShortData(f.getAbsolutePath(), data);
+				containers[camera].write(tp, aIndex, camera, ill, layer, data);
+				nConverted++;
+			}
+		} finally {
+			for(VerticesContainer c : containers)
+				if(c != null)
+					c.close();
+		}
+
+		if(deleteFiles) {
+			for(String name : files) {
+				if(name.matches("tp\\d{4}_a\\d{4}_l\\d{2}\\.vertices")) {
+					int angle = Integer.parseInt(name.substring(8, 12));
+					if(findAngle(angle, nAngles, angleInc) != null)
+						new File(dir, name).delete();
+				}
+			}
+		}
+		return nConverted;
+	}
+
+	/*
+	 * Returns { camera, illumination, angle index } for the given angle.
+	 */
+	private static int[] findAngle(int angle, int nAngles, int angleInc) {
+		for(int camera = TwoCameraSphericalMaxProjection.CAMERA1; camera <= TwoCameraSphericalMaxProjection.CAMERA2; camera++)
+			for(int ill = TwoCameraSphericalMaxProjection.LEFT; ill <= TwoCameraSphericalMaxProjection.RIGHT; ill++)
+				for(int a = 0; a < nAngles; a++)
+					if(TwoCameraSphericalMaxProjection.getAngle(a, angleInc, camera, ill) == angle)
+						return new int[] { camera, ill, a };
+		return null;
+	}
+}
@@ -0,0 +1,209 @@
+package huisken.projection.test;
+
+import huisken.projection.acquisition.FIFO;
+import huisken.projection.acquisition.FrameSource;
+import huisken.projection.acquisition.PacedFrameSource;
+import huisken.projection.acquisition.ReplayFrameSource;
+import huisken.projection.acquisition.TwoCamera_MaxProjection;
+import huisken.projection.processing.AsyncVerticesWriter;
+import huisken.projection.processing.TwoCameraSphericalMaxProjection;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.vecmath.Matrix4f;
+import javax.vecmath.Point3f;
+
+/**
+ * Runs the acquisition of TwoCamera_MaxProjection, i.e.
+ * camera -> FIFO -> projection -> writer, headless with a simulated
+ * camera, and reports the sustained frame rate, the latency from the
+ * acquisition of the last frame of a stack until its projection is
+ * saved, and the number of dropped frames.
+ *
+ * The frames are either synthesized (SyntheticFrameSource) or replayed
+ * from raw stacks (ReplayFrameSource). The acquisition time of a frame
+ * is looked up by its FIFO sequence number, so that the latency can be
+ * measured even if the FIFO drops frames.
+ *
+ * Usage: AcquisitionBenchmark outputdir [fps [timepoints [#threads [crop [raw stacks...]]]]]
+ *
+ * The remaining parameters can be set with system properties, e.g.
+ * -Dw=1024 -Dh=1024 -Dd=200 -Djitter=1 -Dpolicy=DROP_OLDEST -Dasync=2;
+ * -Dadaptive=true reduces the projection quality under load, see
+ * DegradationPolicy. -Dsamples=n acquires n samples one after the other,
+ * each into its own subdirectory, and -Dpipeline=MB projects them in
+ * parallel in a ProjectionPipeline with the given memory budget.
+ * -Draw=true saves the raw stacks, too.
+ */
+public class AcquisitionBenchmark {
+
+	int w = Integer.getInteger("w", 512);
+	int h = Integer.getInteger("h", 512);
+	int d = Integer.getInteger("d", 128);
+	double pw = 1, ph = 1, pd = 2;
+	int nLayers = Integer.getInteger("layers", 1);
+	double jitter = Double.parseDouble(System.getProperty("jitter", "0"));
+	int nCameraBuffers = Integer.getInteger("buffers", 10);
+	int asyncStacks = Integer.getInteger("async", 2);
+	FIFO.OverflowPolicy policy = FIFO.OverflowPolicy.valueOf(System.getProperty("policy", "BLOCK"));
+	boolean adaptive = Boolean.getBoolean("adaptive");
+	int nSamples = Integer.getInteger("samples", 1);
+	long pipelineBudget = Long.getLong("pipeline", 0) << 20;
+	boolean saveRaw = Boolean.getBoolean("raw");
+
+	double fps = 100;
+	int nTimepoints = 3;
+	int nThreads = 1;
+	boolean crop = false;
+	File[] replay = null;
+
+	private TwoCameraSphericalMaxProjection[] tcsmp;
+	private PacedFrameSource source;
+	private TwoCamera_MaxProjection acquisition;
+
+	// per frame, indexed by sequence number
+	private long[] timestamps;
+	private int nAcquired = 0;
+	// from the acquisition of the last frame of a stack until it was saved
+	private long[] stackLatencies;
+	private int nStacksFinished = 0;
+
+	public static void main(String[] args) throws Exception {
+		if(args.length < 1) {
+			System.out.println("Usage: AcquisitionBenchmark outputdir [fps [timepoints [#threads [crop [raw stacks...]]]]]");
+			return;
+		}
+		AcquisitionBenchmark bm = new AcquisitionBenchmark();
+		File outputdir = new File(args[0]);
+		if(args.length > 1)
+			bm.fps = Double.parseDouble(args[1]);
+		if(args.length > 2)
+			bm.nTimepoints = Integer.parseInt(args[2]);
+		if(args.length > 3)
+			bm.nThreads = Integer.parseInt(args[3]);
+		if(args.length > 4)
+			bm.crop = Boolean.parseBoolean(args[4]);
+		if(args.length > 5) {
+			bm.replay = new File[args.length - 5];
+			for(int i = 5; i < args.length; i++)
+				bm.replay[i - 5] = new File(args[i]);
+		}
+		bm.prepare(outputdir);
+		bm.run();
+	}
+
+	public void prepare(File outputdir) throws IOException {
+		if(replay != null) {
+			ReplayFrameSource r = new ReplayFrameSource(replay, fps, jitter, nCameraBuffers);
+			w = r.getWidth();
+			h = r.getHeight();
+			// stacks are recorded with both illuminations interleaved
+			d = r.getNFramesTotal() / replay.length / 2;
+			source = r;
+		}
+		Point3f center = new Point3f((float)(w * pw / 2), (float)(h * ph / 2), (float)(d * pd / 2));
+		float radius = (float)(0.4 * Math.min(w * pw, Math.min(h * ph, d * pd)));
+		if(source == null)
+			source = new SyntheticFrameSource(w, h, pw, ph, pd, center, radius, fps, jitter, nCameraBuffers);
+
+		outputdir.mkdirs();
+		long start = System.currentTimeMillis();
+		tcsmp = new TwoCameraSphericalMaxProjection[nSamples];
+		for(int s = 0; s < nSamples; s++) {
+			File dir = nSamples == 1 ? outputdir : new File(outputdir, "sample" + s);
+			dir.mkdirs();
+			tcsmp[s] = new TwoCameraSphericalMaxProjection(
+					dir.getAbsolutePath(),
+					TwoCameraSphericalMaxProjection.CAMERA1,
+					90, 1,
+					w, h, d,
+					pw, ph, pd,
+					center, radius,
+					0.4 * radius, nLayers,
+					new Matrix4f[1]);
+			tcsmp[s].setNumThreads(nThreads);
+			if(asyncStacks > 0)
+				tcsmp[s].setAsyncWriting(asyncStacks * nLayers, AsyncVerticesWriter.SyncPolicy.NONE);
+			if(crop)
+				tcsmp[s].cropToLUT();
+			if(adaptive)
+				tcsmp[s].setAdaptiveQuality(true);
+			final int sample = s;
+			tcsmp[s].addStackListener(new TwoCameraSphericalMaxProjection.StackListener() {
+				@Override
+				public void stackFinished(int tp, int aIndex, int camera, int ill) {
+					int last = ((tp * nSamples + sample) * d + d - 1) * 2 + ill;
+					addStackLatency(System.nanoTime() - timestamps[last]);
+				}
+			});
+		}
+		acquisition = new TwoCamera_MaxProjection(tcsmp, nTimepoints, 1, w, h, d, crop, policy, outputdir);
+		acquisition.setAdaptiveQuality(adaptive);
+		acquisition.setParallelSamples(pipelineBudget);
+		acquisition.setSaveRaw(saveRaw);
+		long end = System.currentTimeMillis();
+		System.out.println("Prepared projection in " + (end - start) + " ms");
+
+		timestamps = new long[nTimepoints * nSamples * 2 * d];
+		stackLatencies = new long[nTimepoints * nSamples * 2];
+	}
+
+	private synchronized void addStackLatency(long latency) {
+		stackLatencies[nStacksFinished++] = latency;
+	}
+
+	public void run() {
+		// records the acquisition time of each frame
+		acquisition.acquire(new FrameSource() {
+			@Override
+			public void startStack(int nFrames) {
+				source.startStack(nFrames);
+			}
+
+			@Override
+			public void nextFrame(short[] frame) {
+				source.nextFrame(frame);
+				timestamps[nAcquired++] = source.getTimestamp();
+			}
+
+			@Override
+			public long getTimestamp() {
+				return source.getTimestamp();
+			}
+
+			@Override
+			public void stopStack() {
+				source.stopStack();
+			}
+		});
+		long end = System.nanoTime();
+
+		FIFO fifo = acquisition.getFIFO();
+		long nFrames = source.getNFrames();
+		// each finished stack holds the d planes of one illumination
+		long nProjected = (long)nStacksFinished * d;
+		double seconds = (end - timestamps[0]) / 1e9;
+		System.out.println(String.format("%dx%dx%d, %d samples, %s, %d threads, crop %b, raw %b, %d layers, target %.1f fps",
+				w, h, d, nSamples, pipelineBudget > 0 ? "pipeline" : "serial", nThreads, crop, saveRaw, nLayers, fps));
+		System.out.println(String.format("Frames: %d acquired, %d projected, %d dropped by the FIFO, %d camera overruns",
+				nFrames, nProjected, fifo.getDropped(), source.getOverruns()));
+		System.out.println(String.format("Sustained: %.1f fps", nProjected / seconds));
+		long[] stacks = Arrays.copyOf(stackLatencies, nStacksFinished);
+		Arrays.sort(stacks);
+		System.out.println(String.format("Stack latency: median %.1f ms, 90%% %.1f ms, 99%% %.1f ms, max %.1f ms",
+				percentile(stacks, 50), percentile(stacks, 90),
+				percentile(stacks, 99), percentile(stacks, 100)));
+	}
+
+	/*
+	 * p-th percentile of the sorted values, in ms.
+	 */
+	private static double percentile(long[] sorted, double p) {
+		if(sorted.length == 0)
+			return 0;
+		int i = (int)Math.ceil(p / 100 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, i))] / 1e6;
+	}
+}
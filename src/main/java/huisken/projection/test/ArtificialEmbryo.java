@@ -1,5 +1,6 @@
 package huisken.projection.test;
 
+import huisken.projection.processing.TwoCameraSphericalMaxProjection;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.measure.Calibration;
@@ -88,9 +89,7 @@ public class ArtificialEmbryo {
 
 	public static ImagePlus createCamera1Left() {
 		Helper e1 = new Helper();
-		for(int lo = -18; lo <= 0; lo++)
-			for(int la = -9; la <= 0; la++)
-				e1.drawSphere(10 * lo * Math.PI / 180.0, 10 * la * Math.PI / 180.0, cx, cy, cz, radius);
+		e1.drawSpheres(getBeadCenters(TwoCameraSphericalMaxProjection.CAMERA1, TwoCameraSphericalMaxProjection.LEFT, cx, cy, cz, radius));
 
 		//addDuplicate(e1.imp, d, 30000);
 		//addDuplicate(e1.imp, d, 15000);
@@ -99,9 +98,7 @@ public class ArtificialEmbryo {
 
 	public static ImagePlus createCamera2Left() {
 		Helper e1 = new Helper();
-		for(int lo = 0; lo <= 18; lo++)
-			for(int la = -9; la <= 0; la++)
-				e1.drawSphere(10 * lo * Math.PI / 180.0, 10 * la * Math.PI / 180.0, cx, cy, cz, radius);
+		e1.drawSpheres(getBeadCenters(TwoCameraSphericalMaxProjection.CAMERA2, TwoCameraSphericalMaxProjection.LEFT, cx, cy, cz, radius));
 
 		//addDuplicate(e1.imp, d, 30000);
 		//addDuplicate(e1.imp, d, 15000);
@@ -110,9 +107,7 @@ public class ArtificialEmbryo {
 
 	public static ImagePlus createCamera1Right() {
 		Helper e1 = new Helper();
-		for(int lo = -18; lo <= 0; lo++)
-			for(int la = 0; la <= 9; la++)
-				e1.drawSphere(10 * lo * Math.PI / 180.0, 10 * la * Math.PI / 180.0, cx, cy, cz, radius);
+		e1.drawSpheres(getBeadCenters(TwoCameraSphericalMaxProjection.CAMERA1, TwoCameraSphericalMaxProjection.RIGHT, cx, cy, cz, radius));
 
 		//addDuplicate(e1.imp, d, 30000);
 		//addDuplicate(e1.imp, d, 15000);
@@ -121,15 +116,38 @@ public class ArtificialEmbryo {
 
 	public static ImagePlus createCamera2Right() {
 		Helper e1 = new Helper();
-		for(int lo = 0; lo <= 18; lo++)
-			for(int la = 0; la <= 9; la++)
-				e1.drawSphere(10 * lo * Math.PI / 180.0, 10 * la * Math.PI / 180.0, cx, cy, cz, radius);
+		e1.drawSpheres(getBeadCenters(TwoCameraSphericalMaxProjection.CAMERA2, TwoCameraSphericalMaxProjection.RIGHT, cx, cy, cz, radius));
 
 		//addDuplicate(e1.imp, d, 30000);
 		//addDuplicate(e1.imp, d, 15000);
 		return e1.imp;
 	}
 
+	/**
+	 * Returns the centers of the beads which are seen by the given camera
+	 * with the given illumination, as x, y, z triples in calibrated units:
+	 * the beads lie on a 10 degree grid of longitude and latitude, camera 1
+	 * sees longitudes <= 0, camera 2 longitudes >= 0, the left illumination
+	 * latitudes <= 0 and the right one latitudes >= 0.
+	 */
+	public static float[] getBeadCenters(int camera, int ill, float cx, float cy, float cz, float radius) {
+		int lo0 = camera == TwoCameraSphericalMaxProjection.CAMERA1 ? -18 : 0;
+		int la0 = ill == TwoCameraSphericalMaxProjection.LEFT ? -9 : 0;
+		float[] centers = new float[3 * 19 * 10];
+		int i = 0;
+		for(int lo = lo0; lo <= lo0 + 18; lo++) {
+			for(int la = la0; la <= la0 + 9; la++) {
+				double longitude = 10 * lo * Math.PI / 180.0;
+				double latitude = 10 * la * Math.PI / 180.0;
+				double ca = Math.cos(latitude);
+				centers[i++] = (float)(cx + radius * ca * Math.cos(longitude));
+				centers[i++] = (float)(cy - radius * Math.sin(latitude));
+				centers[i++] = (float)(cz - radius * ca * Math.sin(longitude));
+			}
+		}
+		return centers;
+	}
+
 	static void addDuplicate(ImagePlus imp, int d, int value) {
 		int[] lut = new int[65536];
 		lut[lut.length - 1] = value;
@@ -182,15 +200,13 @@ public class ArtificialEmbryo {
 			}
 		}
 
-		void drawSphere(double longitude, double latitude, float cx, float cy, float cz, float radius) {
-			double so = Math.sin(longitude);
-			double sa = Math.sin(latitude);
-			double co = Math.cos(longitude);
-			double ca = Math.cos(latitude);
-			int x = (int)Math.round((cx + radius * ca * co) / pw);
-			int z = (int)Math.round((cz - radius * ca * so) / pd);
-			int y = (int)Math.round((cy - radius * sa) / ph);
-			drawSphere(x, y, z, 3);
+		void drawSpheres(float[] centers) {
+			for(int i = 0; i < centers.length; i += 3) {
+				int x = (int)Math.round(centers[i] / pw);
+				int y = (int)Math.round(centers[i + 1] / ph);
+				int z = (int)Math.round(centers[i + 2] / pd);
+				drawSphere(x, y, z, 3);
+			}
 		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,152 @@
+package huisken.projection.test;
+
+import huisken.projection.processing.AngleWeighter2;
+import huisken.projection.processing.Icosahedron;
+import huisken.projection.processing.IndexedTriangleMesh;
+import huisken.projection.processing.ProjectionLUT;
+import huisken.projection.processing.SphericalMaxProjection;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.vecmath.Point3f;
+
+/**
+ * Compares the projection speed of the packed ProjectionLUT with the
+ * previous layout of three parallel int arrays per plane, on the same sphere.
+ *
+ * Usage: ProjectionLUTBenchmark [nLayers [iterations]]
+ */
+public class ProjectionLUTBenchmark {
+
+	private final int w = 256;
+	private final int h = 256;
+	private final int d = 128;
+	private final double pw = 1.0;
+	private final double ph = 1.0;
+	private final double pd = 2.0;
+	private final Point3f center = new Point3f(128, 128, 128);
+	private final float radius = 100f;
+
+	private SphericalMaxProjection smp;
+	private int[][] lutxy, luts, luti;
+	private short[][] planes;
+
+	public static void main(String[] args) {
+		int nLayers = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		ProjectionLUTBenchmark bm = new ProjectionLUTBenchmark();
+		bm.prepare(nLayers);
+		bm.run(nLayers, iterations);
+	}
+
+	public void prepare(int nLayers) {
+		int subd = (int)Math.round(radius / (Math.min(pw, Math.min(ph, pd))));
+		Icosahedron icosa = new Icosahedron(radius);
+		IndexedTriangleMesh sphere = icosa.createBuckyball(radius, subd);
+		for(Point3f p : sphere.getVertices())
+			p.add(center);
+
+		long start = System.currentTimeMillis();
+		smp = new SphericalMaxProjection(sphere, center, radius);
+		smp.prepareForProjectionNew(w, h, d, pw, ph, pd, 0.4 * radius, nLayers,
+				new AngleWeighter2(AngleWeighter2.X_AXIS, 135, 90, center));
+		long end = System.currentTimeMillis();
+		System.out.println("Created LUT in " + (end - start) + "ms");
+
+		createUnpackedLUT(smp.getLUT());
+
+		Random random = new Random(42);
+		planes = new short[d][w * h];
+		for(short[] plane : planes)
+			for(int i = 0; i < plane.length; i++)
+				plane[i] = (short)random.nextInt(65536);
+	}
+
+	/*
+	 * Re-creates the previous layout, with entries ordered by vertex,
+	 * as they were generated.
+	 */
+	private void createUnpackedLUT(ProjectionLUT lut) {
+		lutxy = new int[d][];
+		luts = new int[d][];
+		luti = new int[d][];
+		for(int z = 0; z < d; z++) {
+			int[] entries = lut.getEntries(z);
+			int n = entries.length / 2;
+			long[] order = new long[n];
+			for(int j = 0; j < n; j++)
+				order[j] = ((long)lut.getVertex(entries[2 * j + 1]) << 32) | j;
+			Arrays.sort(order);
+			lutxy[z] = new int[n];
+			luts[z] = new int[n];
+			luti[z] = new int[n];
+			for(int i = 0; i < n; i++) {
+				int j = (int)order[i];
+				lutxy[z][i] = entries[2 * j];
+				luts[z][i] = lut.getLayer(entries[2 * j + 1]);
+				luti[z][i] = lut.getVertex(entries[2 * j + 1]);
+			}
+		}
+	}
+
+	private void projectUnpacked(int z, short[] ip, short[][] maxima) {
+		for(int i = 0; i < luti[z].length; i++) {
+			float v = ip[lutxy[z][i]] & 0xffff;
+			if(v > (maxima[luts[z][i]][luti[z][i]] & 0xffff))
+				maxima[luts[z][i]][luti[z][i]] = (short)v;
+		}
+	}
+
+	private long timeUnpacked(short[][] maxima) {
+		for(short[] m : maxima)
+			Arrays.fill(m, (short)0);
+		long start = System.nanoTime();
+		for(int z = 0; z < d; z++)
+			projectUnpacked(z, planes[z], maxima);
+		return System.nanoTime() - start;
+	}
+
+	private long timePacked(short[][] maxima) {
+		for(short[] m : maxima)
+			Arrays.fill(m, (short)0);
+		long start = System.nanoTime();
+		for(int z = 0; z < d; z++)
+			smp.projectPlaneMultilayer(z, planes[z], maxima);
+		return System.nanoTime() - start;
+	}
+
+	public void run(int nLayers, int iterations) {
+		int nVertices = smp.getSphere().nVertices;
+		short[][] m1 = new short[nLayers][nVertices];
+		short[][] m2 = new short[nLayers][nVertices];
+
+		ProjectionLUT lut = smp.getLUT();
+		long nEntries = lut.size();
+		System.out.println(nVertices + " vertices, " + nEntries + " LUT entries");
+		System.out.println("unpacked LUT: " + (12 * nEntries >> 20) + " MB");
+		System.out.println("packed LUT:   " + (lut.getSizeInBytes() >> 20) + " MB");
+
+		// warm up
+		for(int i = 0; i < 5; i++) {
+			timeUnpacked(m1);
+			timePacked(m2);
+		}
+
+		long tUnpacked = 0, tPacked = 0;
+		for(int i = 0; i < iterations; i++) {
+			tUnpacked += timeUnpacked(m1);
+			tPacked += timePacked(m2);
+		}
+
+		for(int l = 0; l < nLayers; l++)
+			if(!Arrays.equals(m1[l], m2[l]))
+				throw new RuntimeException("Results differ in layer " + l);
+
+		double nsUnpacked = tUnpacked / (double)iterations / d;
+		double nsPacked = tPacked / (double)iterations / d;
+		System.out.println(String.format("unpacked: %.1f us/plane", nsUnpacked / 1000));
+		System.out.println(String.format("packed:   %.1f us/plane", nsPacked / 1000));
+		System.out.println(String.format("speedup:  %.2f", nsUnpacked / nsPacked));
+	}
+}
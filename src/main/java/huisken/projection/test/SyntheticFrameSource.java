@@ -0,0 +1,90 @@
+package huisken.projection.test;
+
+import huisken.projection.acquisition.PacedFrameSource;
+import huisken.projection.processing.TwoCameraSphericalMaxProjection;
+
+import java.util.Random;
+
+import javax.vecmath.Point3f;
+
+/**
+ * Synthesizes frames of the beads of an ArtificialEmbryo, seen by both
+ * cameras, on a noisy background. The frames of a stack alternate
+ * between the two illumination sides, the left one showing the beads of
+ * the lower hemisphere (latitude <= 0), the right one those of the upper
+ * one.
+ */
+public class SyntheticFrameSource extends PacedFrameSource {
+
+	private static final int N_NOISE_FRAMES = 4;
+	private static final int BACKGROUND = 100;
+	private static final int NOISE = 20;
+
+	private final int w, h;
+	private final double pw, ph, pd;
+	private final float beadRadius;
+
+	// bead centers in calibrated units, per illumination
+	private final float[][] beads;
+
+	// background frames, copied into each frame
+	private final short[][] noise;
+
+	public SyntheticFrameSource(int w, int h,
+			double pw, double ph, double pd,
+			Point3f center, float radius,
+			double fps, double jitterMillis, int nBuffers) {
+		super(fps, jitterMillis, nBuffers);
+		this.w = w;
+		this.h = h;
+		this.pw = pw;
+		this.ph = ph;
+		this.pd = pd;
+		this.beadRadius = (float)(3 * pw);
+
+		beads = new float[2][];
+		for(int ill = 0; ill < 2; ill++) {
+			float[] b1 = ArtificialEmbryo.getBeadCenters(TwoCameraSphericalMaxProjection.CAMERA1, ill,
+					center.x, center.y, center.z, radius);
+			float[] b2 = ArtificialEmbryo.getBeadCenters(TwoCameraSphericalMaxProjection.CAMERA2, ill,
+					center.x, center.y, center.z, radius);
+			beads[ill] = new float[b1.length + b2.length];
+			System.arraycopy(b1, 0, beads[ill], 0, b1.length);
+			System.arraycopy(b2, 0, beads[ill], b1.length, b2.length);
+		}
+
+		Random random = new Random(1);
+		noise = new short[N_NOISE_FRAMES][w * h];
+		for(short[] n : noise)
+			for(int i = 0; i < n.length; i++)
+				n[i] = (short)(BACKGROUND + random.nextInt(NOISE));
+	}
+
+	/**
+	 * Plane z is given by frameInStack / 2, the illumination by
+	 * frameInStack % 2.
+	 */
+	@Override
+	protected void fill(short[] frame, int frameInStack, long index) {
+		System.arraycopy(noise[(int)(index % N_NOISE_FRAMES)], 0, frame, 0, w * h);
+		float z = (float)(frameInStack / 2 * pd);
+		float[] b = beads[frameInStack % 2];
+		float r2 = beadRadius * beadRadius;
+		for(int i = 0; i < b.length; i += 3) {
+			float dz = b[i + 2] - z;
+			if(dz * dz > r2)
+				continue;
+			float r = (float)Math.sqrt(r2 - dz * dz);
+			int y0 = Math.max(0, (int)Math.ceil((b[i + 1] - r) / ph));
+			int y1 = Math.min(h - 1, (int)Math.floor((b[i + 1] + r) / ph));
+			for(int y = y0; y <= y1; y++) {
+				float dy = (float)(y * ph) - b[i + 1];
+				float rx = (float)Math.sqrt(Math.max(0, r * r - dy * dy));
+				int x0 = Math.max(0, (int)Math.ceil((b[i] - rx) / pw));
+				int x1 = Math.min(w - 1, (int)Math.floor((b[i] + rx) / pw));
+				for(int x = x0; x <= x1; x++)
+					frame[y * w + x] = (short)65535;
+			}
+		}
+	}
+}
@@ -0,0 +1,187 @@
+package huisken.projection.test;
+
+import huisken.projection.processing.SphericalMaxProjection;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares reading and writing .vertices files with the channel based
+ * methods of SphericalMaxProjection to the previous stream based code.
+ *
+ * Usage: VerticesIOBenchmark [nVertices [nFiles [directory]]]
+ */
+public class VerticesIOBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		int nVertices = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int nFiles    = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		File dir = args.length > 2 ? new File(args[2]) : new File(System.getProperty("java.io.tmpdir"), "vertices-benchmark");
+		dir.mkdirs();
+
+		Random random = new Random(42);
+		short[] sData = new short[nVertices];
+		int[] iData = new int[nVertices];
+		for(int i = 0; i < nVertices; i++) {
+			sData[i] = (short)random.nextInt(65536);
+			iData[i] = random.nextInt();
+		}
+
+		String[] files = new String[nFiles];
+		for(int i = 0; i < nFiles; i++)
+			files[i] = new File(dir, String.format("tp%04d_00.vertices", i)).getAbsolutePath();
+
+		System.out.println(nFiles + " files of " + nVertices + " vertices in " + dir);
+		// warm up, then measure
+		for(int it = 0; it < 2; it++) {
+			boolean print = it == 1;
+			runShort(files, sData, print);
+			runInt(files, iData, print);
+		}
+
+		for(String file : files)
+			new File(file).delete();
+		dir.delete();
+	}
+
+	private static void runShort(String[] files, short[] data, boolean print) throws IOException {
+		double mb = 2.0 * data.length * files.length / (1 << 20);
+		short[] reuse = new short[data.length];
+
+		long start = System.nanoTime();
+		for(String file : files)
+			saveShortDataStream(data, file);
+		long tWriteStream = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for(String file : files)
+			check(loadShortDataStream(file, data.length), data);
+		long tReadStream = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for(String file : files)
+			SphericalMaxProjection.saveShortData(data, file);
+		long tWrite = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for(String file : files)
+			check(SphericalMaxProjection.loadShortData(file, data.length), data);
+		long tRead = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for(String file : files)
+			check(SphericalMaxProjection.loadShortData(file, reuse), data);
+		long tReadReuse = System.nanoTime() - start;
+
+		if(print) {
+			System.out.println("short, write: " + mbs(mb, tWriteStream) + " (stream) " + mbs(mb, tWrite) + " (channel)");
+			System.out.println("short, read:  " + mbs(mb, tReadStream) + " (stream) " + mbs(mb, tRead) + " (channel) " + mbs(mb, tReadReuse) + " (channel, re-used array)");
+		}
+	}
+
+	private static void runInt(String[] files, int[] data, boolean print) throws IOException {
+		double mb = 4.0 * data.length * files.length / (1 << 20);
+		int[] reuse = new int[data.length];
+
+		long start = System.nanoTime();
+		for(String file : files)
+			saveIntDataStream(data, file);
+		long tWriteStream = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for(String file : files)
+			check(loadIntDataStream(file, data.length), data);
+		long tReadStream = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for(String file : files)
+			SphericalMaxProjection.saveIntData(data, file);
+		long tWrite = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for(String file : files)
+			check(SphericalMaxProjection.loadIntData(file, reuse), data);
+		long tRead = System.nanoTime() - start;
+
+		if(print) {
+			System.out.println("int,   write: " + mbs(mb, tWriteStream) + " (stream) " + mbs(mb, tWrite) + " (channel)");
+			System.out.println("int,   read:  " + mbs(mb, tReadStream) + " (stream) " + mbs(mb, tRead) + " (channel, re-used array)");
+		}
+	}
+
+	private static String mbs(double mb, long ns) {
+		return String.format("%8.1f MB/s", mb / (ns / 1e9));
+	}
+
+	private static void check(short[] a, short[] b) {
+		if(!Arrays.equals(a, b))
+			throw new RuntimeException("Data differs");
+	}
+
+	private static void check(int[] a, int[] b) {
+		if(!Arrays.equals(a, b))
+			throw new RuntimeException("Data differs");
+	}
+
+	/*
+	 * The previous, stream based implementations.
+	 */
+	private static void saveShortDataStream(short[] data, String path) throws IOException {
+		DataOutputStream out = new DataOutputStream(
+			new BufferedOutputStream(
+				new FileOutputStream(path)));
+		for(short f : data)
+			out.writeShort(f);
+		out.close();
+	}
+
+	private static void saveIntDataStream(int[] data, String path) throws IOException {
+		DataOutputStream out = new DataOutputStream(
+			new BufferedOutputStream(
+				new FileOutputStream(path)));
+		for(int f : data)
+			out.writeInt(f);
+		out.close();
+	}
+
+	private static short[] loadShortDataStream(String file, int n) throws IOException {
+		DataInputStream in = new DataInputStream(
+			new BufferedInputStream(
+				new FileInputStream(file)));
+		short[] data = new short[n];
+		for(int i = 0; i < n; i++) {
+			try {
+				data[i] = in.readShort();
+			} catch(EOFException e) {
+				break;
+			}
+		}
+		in.close();
+		return data;
+	}
+
+	private static int[] loadIntDataStream(String file, int n) throws IOException {
+		DataInputStream in = new DataInputStream(
+			new BufferedInputStream(
+				new FileInputStream(file)));
+		int[] data = new int[n];
+		for(int i = 0; i < n; i++) {
+			try {
+				data[i] = in.readInt();
+			} catch(EOFException e) {
+				break;
+			}
+		}
+		in.close();
+		return data;
+	}
+}
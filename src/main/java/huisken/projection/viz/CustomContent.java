@@ -1,5 +1,6 @@
 package huisken.projection.viz;
 
+import huisken.projection.processing.LiveProjection;
 import huisken.projection.processing.SphericalMaxProjection;
 import ij3d.Content;
 import ij3d.ContentInstant;
@@ -26,7 +27,7 @@ import javax.vecmath.Point3f;
 import customnode.CustomMeshNode;
 import customnode.CustomTriangleMesh;
 
-public class CustomContent extends Content {
+public class CustomContent extends Content implements LiveProjection.Subscriber {
 
 	private final CustomIndexedTriangleMesh mesh;
 	public final File[] files;
@@ -47,10 +48,15 @@ public class CustomContent extends Content {
 
 	private float maximaThreshold = 0;
 
+	// for live content, which stacks are shown (-1 for any), see stackPublished()
+	private int liveAngle = -1, liveIll = -1, liveLayer = 0;
+	private LiveProjection.Stack liveStack = null;
+
 	public CustomContent(String objfile, String vertexDir, String filenameContains) throws IOException {
 
 		super("bla", 0);
-		smp = new SphericalMaxProjection(objfile);
+		smp = new SphericalMaxProjection(objfile,
+				SphericalMaxProjection.getMeshCacheDir(new File(objfile).getAbsoluteFile().getParentFile()));
 
 		List<File> tmp = new ArrayList<File>();
 		tmp.addAll(Arrays.asList(new File(vertexDir).listFiles()));
@@ -65,25 +71,58 @@ public class CustomContent extends Content {
 		tmp.toArray(files);
 		Arrays.sort(files);
 
-		int nVertices = smp.getSphere().nVertices;
-		Color3f[] colors = new Color3f[nVertices];
-		for(int i = 0; i < colors.length; i++)
-			colors[i] = new Color3f(0, 1, 0);
-
 		try {
 			readColors(files[0]);
 		} catch(Exception e) {
 			throw new RuntimeException("Cannot load " + files[0], e);
 		}
-		mesh = new CustomIndexedTriangleMesh(smp.getSphere().getVertices(), colors, smp.getSphere().getFaces());
+		mesh = createMesh();
+		showMesh();
+	}
+
+	/**
+	 * Creates content which is not backed by files, but shows the stacks
+	 * published to a LiveProjection, once subscribed to it.
+	 * @param aIndex The angle index of the stacks to show, -1 for any.
+	 * @param ill The illumination of the stacks to show, -1 for any.
+	 * @param layer The layer to show.
+	 */
+	public CustomContent(SphericalMaxProjection smp, int aIndex, int ill, int layer) {
+		super("bla", 0);
+		this.smp = smp;
+		this.files = new File[0];
+		this.liveAngle = aIndex;
+		this.liveIll = ill;
+		this.liveLayer = layer;
+		this.maxima = new short[smp.getSphere().nVertices];
+		mesh = createMesh();
+		showMesh();
+	}
+
+	private CustomIndexedTriangleMesh createMesh() {
+		int nVertices = smp.getSphere().nVertices;
+		Color3f[] colors = new Color3f[nVertices];
+		for(int i = 0; i < colors.length; i++)
+			colors[i] = new Color3f(0, 1, 0);
+		return new CustomIndexedTriangleMesh(smp.getSphere().getVertices(), colors, smp.getSphere().getFaces());
+	}
+
+	private void showMesh() {
 		CustomMeshNode node = new CustomMeshNode(mesh);
 
 		ContentInstant content = getInstant(0);
 		content.display(node);
 
-		displayedMinimum = getCurrentMinimum();
-		displayedMaximum = getCurrentMaximum();
+		resetDisplayRange();
+	}
 
+	/*
+	 * Sets the display range to the range of the current maxima; live
+	 * content starts with all zeros, for which the range is [0, 1].
+	 */
+	private void resetDisplayRange() {
+		displayedMinimum = getCurrentMinimum();
+		displayedMaximum = Math.max(getCurrentMaximum(), displayedMinimum + 1);
 		updateDisplayRange();
 	}
 
@@ -113,11 +152,42 @@ public class CustomContent extends Content {
 	}
 
 	public String getCurrentFilePath() {
+		if(isLive())
+			return liveStack == null ? "live" : "live: " + liveStack;
 		return files[currentIdx].getAbsolutePath();
 	}
 
+	/**
+	 * Returns the displayed file, or null for live content.
+	 */
 	public File getCurrentFile() {
-		return files[currentIdx];
+		return isLive() ? null : files[currentIdx];
+	}
+
+	public boolean isLive() {
+		return files.length == 0;
+	}
+
+	/**
+	 * Shows the published stack, if it matches the angle and
+	 * illumination given in the constructor. The display range is
+	 * adjusted to the first stack shown.
+	 */
+	@Override
+	public void stackPublished(LiveProjection.Stack stack) {
+		if(!stack.matches(liveAngle, liveIll))
+			return;
+		// copied, since smooth() and scaleForAngle() modify maxima
+		short[] m = stack.getMaxima(Math.min(liveLayer, stack.getNLayers() - 1)).clone();
+		synchronized(this) {
+			boolean first = liveStack == null;
+			liveStack = stack;
+			maxima = m;
+			if(first)
+				resetDisplayRange();
+			else
+				updateDisplayRange();
+		}
 	}
 
 	public boolean areMaximaShown() {
@@ -196,10 +266,10 @@ public class CustomContent extends Content {
 		updateDisplayRange();
 	}
 
-	private void updateDisplayRange() {
+	private synchronized void updateDisplayRange() {
 		boolean[] isMax = smp.isMaximum(maxima);
 		int[] overlay = null;
-		if(showColorOverlay) {
+		if(showColorOverlay && !isLive()) {
 			File cf = files[currentIdx];
 			File colorfile = new File(new File(cf.getParentFile(), "contributions"), cf.getName());
 			if(!colorfile.exists())
@@ -228,7 +298,7 @@ public class CustomContent extends Content {
 					smp.getCenter().x + (1 + elevationFactor * m) * (mesh.vertices[i].x - smp.getCenter().x),
 					smp.getCenter().y + (1 + elevationFactor * m) * (mesh.vertices[i].y - smp.getCenter().y),
 					smp.getCenter().z + (1 + elevationFactor * m) * (mesh.vertices[i].z - smp.getCenter().z));
-				if(showColorOverlay) {
+				if(showColorOverlay && overlay != null) {
 					int rgb = overlay[i];
 					int r = (rgb & 0xff0000) >> 16;
 					int g = (rgb & 0xff00) >> 8;
@@ -286,10 +356,12 @@ public class CustomContent extends Content {
 	@Override public void setShowAllTimepoints(boolean b) {}
 
 	@Override public int getNumberOfInstants() {
-		return files.length;
+		return Math.max(1, files.length);
 	}
 
 	@Override public ContentInstant getInstant(int t) {
+		if(isLive())
+			return super.getInstant(0);
 		try {
 			readColors(files[t]);
 			updateDisplayRange();
@@ -304,6 +376,8 @@ public class CustomContent extends Content {
 	}
 
 	@Override public void showTimepoint(int t) {
+		if(isLive())
+			return;
 		try {
 			currentIdx = t;
 			readColors(files[t]);
@@ -328,7 +402,7 @@ public class CustomContent extends Content {
 	}
 
 	@Override public int getEndTime() {
-		return files.length - 1;
+		return getNumberOfInstants() - 1;
 	}
 
 
@@ -0,0 +1,54 @@
+package huisken.projection.viz;
+
+import huisken.projection.processing.GeneralProjProjection;
+import huisken.projection.processing.LiveProjection;
+import huisken.projection.processing.Map_Projection;
+import huisken.projection.processing.SphericalMaxProjection;
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+/**
+ * Shows the stacks published to a LiveProjection as a 2D map, in one
+ * image which is updated with each stack.
+ */
+public class LiveMap implements LiveProjection.Subscriber {
+
+	private final GeneralProjProjection proj;
+	private final int aIndex, ill, layer;
+	private ImagePlus image = null;
+
+	/**
+	 * @param maptype One of Map_Projection.MAP_TYPES.
+	 * @param width The width of the map.
+	 * @param aIndex The angle index of the stacks to show, -1 for any.
+	 * @param ill The illumination of the stacks to show, -1 for any.
+	 * @param layer The layer to show.
+	 */
+	public LiveMap(SphericalMaxProjection smp, int maptype, int width, int aIndex, int ill, int layer) {
+		this.proj = Map_Projection.createProjection(maptype);
+		this.aIndex = aIndex;
+		this.ill = ill;
+		this.layer = layer;
+		proj.prepareForProjection(smp, width);
+	}
+
+	@Override
+	public void stackPublished(LiveProjection.Stack stack) {
+		if(!stack.matches(aIndex, ill))
+			return;
+		ImageProcessor ip = proj.project(stack.getMaxima(Math.min(layer, stack.getNLayers() - 1)));
+		String title = "Live map (" + stack + ")";
+		if(image == null) {
+			image = new ImagePlus(title, ip);
+			image.show();
+		} else {
+			// keep the display range chosen by the user
+			ip.setMinAndMax(image.getDisplayRangeMin(), image.getDisplayRangeMax());
+			image.setProcessor(title, ip);
+		}
+	}
+
+	public ImagePlus getImage() {
+		return image;
+	}
+}
@@ -0,0 +1,71 @@
+package huisken.projection.viz;
+
+import fiji.util.gui.GenericDialogPlus;
+import huisken.projection.processing.LiveProjection;
+import huisken.projection.processing.LiveProjectionClient;
+import huisken.projection.processing.LiveProjectionServer;
+import huisken.projection.processing.Map_Projection;
+import huisken.projection.processing.SphericalMaxProjection;
+import ij.IJ;
+import ij.plugin.PlugIn;
+
+import java.io.File;
+
+/**
+ * Shows the projections of a running acquisition in another process,
+ * as they are sent by the LiveProjectionServer of TwoCamera_MaxProjection,
+ * in a 3D view and/or as a 2D map.
+ */
+public class Live_Preview implements PlugIn {
+
+	@Override
+	public void run(String arg) {
+		String[] maps = new String[Map_Projection.MAP_TYPES.length + 1];
+		maps[0] = "None";
+		System.arraycopy(Map_Projection.MAP_TYPES, 0, maps, 1, Map_Projection.MAP_TYPES.length);
+
+		GenericDialogPlus gd = new GenericDialogPlus("Live Preview");
+		gd.addDirectoryField("Sample directory", "");
+		gd.addStringField("Host", "localhost");
+		gd.addNumericField("Port", LiveProjectionServer.DEFAULT_PORT, 0);
+		gd.addNumericField("Angle index (-1 for all)", -1, 0);
+		gd.addNumericField("Illumination (-1 for both)", -1, 0);
+		gd.addNumericField("Layer", 0, 0);
+		gd.addCheckbox("Show 3D view", true);
+		gd.addChoice("Map", maps, maps[0]);
+		gd.addNumericField("Map width", 800, 0);
+		gd.showDialog();
+		if(gd.wasCanceled())
+			return;
+
+		File dir = new File(gd.getNextString());
+		String host = gd.getNextString();
+		int port = (int)gd.getNextNumber();
+		int aIndex = (int)gd.getNextNumber();
+		int ill = (int)gd.getNextNumber();
+		int layer = (int)gd.getNextNumber();
+		boolean show3D = gd.getNextBoolean();
+		int maptype = gd.getNextChoiceIndex() - 1;
+		int mapWidth = (int)gd.getNextNumber();
+
+		File objfile = new File(dir, "Sphere.obj");
+		if(!objfile.exists()) {
+			IJ.error("Cannot find " + objfile.getAbsolutePath());
+			return;
+		}
+
+		try {
+			SphericalMaxProjection smp = new SphericalMaxProjection(objfile.getAbsolutePath(),
+					SphericalMaxProjection.getMeshCacheDir(dir));
+			LiveProjection live = new LiveProjection();
+			if(show3D)
+				SphereProjectionViewer.showLive(smp, live, aIndex, ill, layer);
+			if(maptype >= 0)
+				live.subscribe(new LiveMap(smp, maptype, mapWidth, aIndex, ill, layer));
+			new LiveProjectionClient(host, port, live);
+		} catch(Exception e) {
+			IJ.error(e.getMessage());
+			e.printStackTrace();
+		}
+	}
+}
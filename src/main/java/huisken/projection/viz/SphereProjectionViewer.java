@@ -1,6 +1,7 @@
 package huisken.projection.viz;
 
 import fiji.util.gui.GenericDialogPlus;
+import huisken.projection.processing.LiveProjection;
 import huisken.projection.processing.SphericalMaxProjection;
 import ij.IJ;
 import ij.gui.GenericDialog;
@@ -76,6 +77,29 @@ public class SphereProjectionViewer implements PlugIn {
 		return univ;
 	}
 
+	/**
+	 * Shows the stacks published to live, see CustomContent(SphericalMaxProjection, int, int, int),
+	 * until the window is closed.
+	 */
+	public static Image3DUniverse showLive(SphericalMaxProjection smp, final LiveProjection live, int aIndex, int ill, int layer) {
+		final CustomContent content = new CustomContent(smp, aIndex, ill, layer);
+
+		Image3DUniverse univ = new Image3DUniverse();
+		univ.addInteractiveBehavior(new CustomBehavior(univ, content));
+		univ.show();
+
+		univ.addContent(content);
+		live.subscribe(content);
+		univ.getWindow().addWindowListener(new WindowAdapter() {
+			@Override
+			public void windowClosed(WindowEvent e) {
+				live.unsubscribe(content);
+			}
+		});
+
+		return univ;
+	}
+
 	public static CustomContent readMesh(String objpath, String vertexDir, String filenameContains) throws IOException {
 		return new CustomContent(objpath, vertexDir, filenameContains);
 	}